@@ -0,0 +1,137 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.filter.AndFilter;
+import org.jivesoftware.smack.filter.FromContainsFilter;
+import org.jivesoftware.smack.filter.PacketExtensionFilter;
+import org.jivesoftware.smack.filter.PacketIDFilter;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.DefaultPacketExtension;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures delivering a received packet from {@link PacketReader} to a connection
+ * with many registered listeners and collectors, as a client with many chats, rooms
+ * and pending requests would have.  The connection is never connected; packets are
+ * handed to the reader directly.
+ * <p>
+ * Asynchronous listeners are run on the calling thread, so the benchmark measures the
+ * whole delivery without building a backlog in a listener thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketDispatchBenchmark {
+    /** The number of listeners, and the number of collectors, registered. */
+    @Param({"10", "100", "1000"})
+    public int count;
+
+    private XMPPConnection connection;
+    private PacketReader reader;
+    private Message message;
+    private Packet reply;
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        ConnectionConfiguration config = new ConnectionConfiguration("example.com");
+        config.setParallelListenerDispatchEnabled(true);
+        config.setListenerExecutor(new Executor() {
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        connection = new XMPPConnection(config);
+        reader = new PacketReader(connection);
+
+        for (int i = 0; i < count; i++) {
+            // Listeners for extensions, like the ones managers register, and for
+            // messages from particular users, like chats.
+            connection.addPacketListener(newListener(blackhole, i % 2 == 0),
+                    new PacketExtensionFilter("x", "urn:example:" + i));
+            connection.addPacketListener(newListener(blackhole, false),
+                    new AndFilter(new PacketTypeFilter(Message.class),
+                            new FromContainsFilter("user" + i + "@example.com")));
+
+            // Collectors waiting for replies to outstanding requests.
+            connection.createPacketCollector(new PacketIDFilter("request" + i));
+        }
+
+        message = new Message("romeo@example.com", Message.Type.chat);
+        message.setFrom("user0@example.com/resource");
+        message.setBody("Wherefore art thou?");
+        message.addExtension(new DefaultPacketExtension("x", "urn:example:0"));
+
+        IQ iq = new IQ() {
+            public String getChildElementXML() {
+                return null;
+            }
+        };
+        iq.setPacketID("request0");
+        iq.setType(IQ.Type.RESULT);
+        reply = iq;
+    }
+
+    private static PacketListener newListener(final Blackhole blackhole, boolean synchronous) {
+        if (synchronous) {
+            return new SynchronousPacketListener() {
+                public void processPacket(Packet packet) {
+                    blackhole.consume(packet);
+                }
+            };
+        }
+        return new PacketListener() {
+            public void processPacket(Packet packet) {
+                blackhole.consume(packet);
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        reader.shutdown();
+    }
+
+    @Benchmark
+    public void dispatchMessage() {
+        reader.processPacket(message);
+    }
+
+    @Benchmark
+    public void dispatchReply() {
+        reader.processPacket(reply);
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.packet;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.util.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures serializing packets with {@link Packet#toXML} and {@link Packet#appendXML},
+ * and the {@link StringUtils} encoders used while doing so.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    /** The length of the message body, and of the text and data encoded. */
+    @Param({"64", "4096"})
+    public int size;
+
+    private Message message;
+    private Presence presence;
+    private String text;
+    private byte[] data;
+    private final StringBuilder buffer = new StringBuilder();
+
+    @Setup
+    public void setup() {
+        // Mostly plain text, with a markup character every 32 characters.
+        StringBuilder body = new StringBuilder(size);
+        for (int i = 0; i < size; i++)
+            body.append(i % 32 == 31? '&':(char) ('a' + i % 26));
+        text = body.toString();
+
+        data = new byte[size];
+        new Random(0).nextBytes(data);
+
+        message = new Message("romeo@montague.lit/orchard", Message.Type.chat);
+        message.setFrom("juliet@capulet.lit/balcony");
+        message.setThread("e0ffe42b28561960c6b12b944a092794b9683a38");
+        message.setBody(text);
+        DefaultPacketExtension extension = new DefaultPacketExtension("x", "jabber:x:unknown");
+        extension.setValue("a", "1");
+        extension.setValue("b", "2");
+        message.addExtension(extension);
+
+        presence = new Presence(Presence.Type.available, "Wherefore art thou?", 5, Presence.Mode.away);
+        presence.setFrom("juliet@capulet.lit/balcony");
+    }
+
+    @Benchmark
+    public String messageToXML() {
+        return message.toXML();
+    }
+
+    @Benchmark
+    public int messageAppendXML() throws Exception {
+        buffer.setLength(0);
+        message.appendXML(buffer);
+        return buffer.length();
+    }
+
+    @Benchmark
+    public String presenceToXML() {
+        return presence.toXML();
+    }
+
+    @Benchmark
+    public String escapeForXML() {
+        return StringUtils.escapeForXML(text);
+    }
+
+    @Benchmark
+    public String encodeBase64() {
+        return StringUtils.encodeBase64(data);
+    }
+}
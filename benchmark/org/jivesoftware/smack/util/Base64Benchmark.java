@@ -0,0 +1,84 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the legacy base64 methods of {@link StringUtils}, which go through
+ * intermediate Strings, with {@link Base64Codec} encoding into a reused output
+ * buffer and decoding from the parser's character array, for In-Band Bytestream
+ * sized blocks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Base64Benchmark {
+    @Param({"64", "4096", "65535"})
+    public int size;
+
+    private byte[] data;
+    private String encoded;
+    private char[] encodedChars;
+    private final StringBuilder out = new StringBuilder();
+
+    @Setup
+    public void setup() {
+        data = new byte[size];
+        new Random(42).nextBytes(data);
+        encoded = StringUtils.encodeBase64(data, 0, data.length, false);
+        encodedChars = encoded.toCharArray();
+    }
+
+    @Benchmark
+    public StringBuilder encodeLegacy() {
+        out.setLength(0);
+        return out.append(StringUtils.encodeBase64(data, 0, data.length, false));
+    }
+
+    @Benchmark
+    public StringBuilder encodeCodec() throws IOException {
+        out.setLength(0);
+        Base64Codec.encode(data, 0, data.length, out);
+        return out;
+    }
+
+    @Benchmark
+    public byte[] decodeLegacy() {
+        return StringUtils.decodeBase64(new String(encodedChars));
+    }
+
+    @Benchmark
+    public byte[] decodeCodec() {
+        return Base64Codec.decode(encodedChars, 0, encodedChars.length);
+    }
+}
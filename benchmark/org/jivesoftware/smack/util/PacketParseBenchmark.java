@@ -0,0 +1,118 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.packet.Packet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Element;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * Measures parsing a stanza from bytes: reading it into a DOM with
+ * {@link XmlUtil#ReadNodeFromXmlPull}, parsing that DOM with {@link PacketParserUtils},
+ * and parsing directly from the {@link XmlPullParser}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketParseBenchmark {
+    static final String MESSAGE =
+        "<message xmlns='jabber:client' from='juliet@capulet.lit/balcony' " +
+            "to='romeo@montague.lit/orchard' id='msg1' type='chat'>" +
+        "<body>Art thou not Romeo, and a Montague? &amp; more &lt;text&gt;</body>" +
+        "<thread>e0ffe42b28561960c6b12b944a092794b9683a38</thread>" +
+        "<active xmlns='http://jabber.org/protocol/chatstates'/>" +
+        "<x xmlns='jabber:x:unknown'><a>1</a><b>2</b></x>" +
+        "</message>";
+
+    static final String PRESENCE =
+        "<presence xmlns='jabber:client' from='juliet@capulet.lit/balcony' to='romeo@montague.lit'>" +
+        "<show>away</show><status>Wherefore art thou?</status><priority>5</priority>" +
+        "</presence>";
+
+    static final String IQ =
+        "<iq xmlns='jabber:client' to='romeo@montague.lit/orchard' id='roster1' type='result'>" +
+        "<query xmlns='jabber:iq:roster'>" +
+        "<item jid='juliet@capulet.lit' name='Juliet' subscription='both'><group>Friends</group></item>" +
+        "<item jid='benvolio@montague.lit' name='Benvolio' subscription='to'/>" +
+        "<item jid='mercutio@verona.lit' name='Mercutio' subscription='from'/>" +
+        "</query></iq>";
+
+    @Param({"message", "presence", "iq"})
+    public String stanza;
+
+    private byte[] bytes;
+    private XmlPullParserFactory factory;
+
+    @Setup
+    public void setup() throws Exception {
+        String xml = stanza.equals("message")? MESSAGE:stanza.equals("presence")? PRESENCE:IQ;
+        bytes = xml.getBytes("UTF-8");
+        factory = XmlPullParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+    }
+
+    /** Return a parser positioned on the stanza's opening tag. */
+    private XmlPullParser newParser() throws Exception {
+        XmlPullParser parser = factory.newPullParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(new InputStreamReader(new ByteArrayInputStream(bytes), "UTF-8"));
+        parser.next();
+        return parser;
+    }
+
+    @Benchmark
+    public Element readNode() throws Exception {
+        return XmlUtil.ReadNodeFromXmlPull(newParser());
+    }
+
+    @Benchmark
+    public Packet parseFromDOM() throws Exception {
+        Element element = XmlUtil.ReadNodeFromXmlPull(newParser());
+        if (stanza.equals("message"))
+            return PacketParserUtils.parseMessage(element);
+        if (stanza.equals("presence"))
+            return PacketParserUtils.parsePresence(element);
+        return PacketParserUtils.parseIQ(element, null);
+    }
+
+    @Benchmark
+    public Packet parseFromStream() throws Exception {
+        XmlPullParser parser = newParser();
+        if (stanza.equals("message"))
+            return PacketParserUtils.parseMessage(parser);
+        if (stanza.equals("presence"))
+            return PacketParserUtils.parsePresence(parser);
+        return PacketParserUtils.parseIQ(parser, null);
+    }
+}
@@ -28,10 +28,19 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.filter.PacketIDFilter;
+import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.Presence;
 
@@ -126,7 +135,10 @@ public abstract class Connection {
      * A collection of PacketCollectors which collects packets for a specified filter
      * and perform blocking and polling operations on the result queue.
      */
-    protected final Collection<PacketCollector> collectors = new ConcurrentLinkedQueue<PacketCollector>();
+    protected final Collection<PacketCollector<?>> collectors = new ConcurrentLinkedQueue<PacketCollector<?>>();
+
+    /** An index of {@link #collectors} by filter, to find the collectors for a packet. */
+    final PacketRouter<PacketCollector<?>> collectorRouter = new PacketRouter<PacketCollector<?>>();
 
     /**
      * List of PacketListeners that will be notified when a new packet was received.
@@ -134,6 +146,9 @@ public abstract class Connection {
     protected final Map<PacketListener, ListenerWrapper> recvListeners =
             new ConcurrentHashMap<PacketListener, ListenerWrapper>();
 
+    /** An index of {@link #recvListeners} by filter, to find the listeners for a packet. */
+    final PacketRouter<ListenerWrapper> recvListenerRouter = new PacketRouter<ListenerWrapper>();
+
     /**
      * List of PacketListeners that will be notified when a new packet was sent.
      */
@@ -285,6 +300,15 @@ public abstract class Connection {
      */
     public abstract boolean isUsingCompression();
 
+    /**
+     * Returns true if the server supports roster versioning (XEP-0237).
+     *
+     * @return true if the server advertised roster versioning.
+     */
+    public boolean isRosterVersioningSupported() {
+        return false;
+    }
+
     /**
      * Establishes a connection to the XMPP server.
      * <p>
@@ -383,11 +407,28 @@ public abstract class Connection {
 
     /**
      * Sends the specified packet to the server.
+     * <p>
+     * If the packet is rejected because too many packets are waiting to be sent,
+     * a RuntimeException is thrown; see {@link #trySendPacket} to handle this.
      * 
      * @param packet the packet to send.
      */
     public abstract void sendPacket(Packet packet);
 
+    /**
+     * Sends the specified packet to the server.  If too many packets are waiting to
+     * be sent, the {@link ConnectionConfiguration.BackpressurePolicy} is applied, and
+     * XMPPException is thrown if the packet is rejected.
+     * <p>
+     * The default implementation calls {@link #sendPacket}.
+     *
+     * @param packet the packet to send.
+     * @throws XMPPException if the packet was rejected.
+     */
+    public void trySendPacket(Packet packet) throws XMPPException {
+        sendPacket(packet);
+    }
+
     /**
      * Cast from U to T.  This allows unchecked casts without putting @SuppressWarnings("unchecked")
      * on the function doing the cast, which confuses Javadocs in Eclipse.
@@ -407,12 +448,212 @@ public abstract class Connection {
      */
     public <T extends Packet> T sendPacketReadResult(T packet) throws XMPPException {
         Class<T> packetClass = uncheckedCast(packet.getClass());
-        PacketCollector<T> collector = createPacketCollector(new PacketIDFilter(packet), packetClass);
+        // Only the first response is read, so don't queue any others.
+        PacketCollector<T> collector = createPacketCollector(new PacketIDFilter(packet), packetClass,
+                1, PacketCollector.OverflowPolicy.dropNewest);
 
-        sendPacket(packet);
+        try {
+            trySendPacket(packet);
+        } catch(XMPPException e) {
+            collector.cancel();
+            throw e;
+        }
         return collector.getOnlyResult(0);
     }
 
+    /**
+     * Send the specified IQ without waiting for the response, using the default timeout.
+     * <p>
+     * See {@link #sendIqAsync(IQ, Class, long)}.
+     *
+     * @param iq the IQ to send.
+     * @return a future receiving the response.
+     */
+    public PacketFuture<IQ> sendIqAsync(IQ iq) {
+        return sendIqAsync(iq, IQ.class, 0);
+    }
+
+    /**
+     * Send the specified IQ without waiting for the response.  Any IQ response is
+     * accepted.
+     * <p>
+     * See {@link #sendIqAsync(IQ, Class, long)}.
+     *
+     * @param iq the IQ to send.
+     * @param timeout the time to wait for the response in milliseconds, or 0 to use the
+     * default timeout.
+     * @return a future receiving the response.
+     */
+    public PacketFuture<IQ> sendIqAsync(IQ iq, long timeout) {
+        return sendIqAsync(iq, IQ.class, timeout);
+    }
+
+    /**
+     * Send the specified IQ without waiting for the response, using the default timeout.
+     * <p>
+     * See {@link #sendIqAsync(IQ, Class, long)}.
+     *
+     * @param iq the IQ to send.
+     * @param replyClass the packet type of a successful response.
+     * @return a future receiving the response.
+     */
+    public <T extends IQ> PacketFuture<T> sendIqAsync(IQ iq, Class<T> replyClass) {
+        return sendIqAsync(iq, replyClass, 0);
+    }
+
+    /**
+     * Send the specified IQ without waiting for the response.  The returned future
+     * receives the response with the same packet ID.  It fails if the response is an
+     * error, if a result isn't of type replyClass, if no response arrives within timeout
+     * milliseconds, if the IQ can't be sent, or if the connection is closed first.
+     * <p>
+     * Results without a payload, such as the reply to most set requests, are parsed as
+     * a plain {@link IQ}, so use IQ.class unless a specific result type is expected.
+     * <p>
+     * Timeouts are run on the {@link ConnectionConfiguration#getExecutorService executor
+     * service}, so no thread is blocked waiting for the response.
+     *
+     * @param iq the IQ to send.
+     * @param replyClass the packet type of a successful response.
+     * @param timeout the time to wait for the response in milliseconds, or 0 to use the
+     * default timeout.
+     * @return a future receiving the response.
+     */
+    public <T extends IQ> PacketFuture<T> sendIqAsync(IQ iq, Class<T> replyClass, long timeout) {
+        if(timeout == 0)
+            timeout = SmackConfiguration.getPacketReplyTimeout();
+
+        PacketFuture<T> future = new PacketFuture<T>(this, new PacketIDFilter(iq), replyClass);
+        PacketCollector<T> collector = future.getCollector();
+        collectors.add(collector);
+        collectorRouter.add(collector, collector.getPacketFilter());
+
+        // If we disconnected before the collector was added, it won't be told that the
+        // connection was lost.
+        if(!isConnected()) {
+            future.fail(new XMPPException("Not connected to server."));
+            return future;
+        }
+
+        future.scheduleTimeout(getScheduledExecutor(), timeout);
+
+        try {
+            trySendPacket(iq);
+        } catch(XMPPException e) {
+            future.fail(e);
+        } catch(RuntimeException e) {
+            future.fail(new XMPPException(e));
+        }
+        return future;
+    }
+
+    private static ScheduledExecutorService sharedScheduledExecutor;
+
+    /**
+     * Return the scheduler shared by connections with no
+     * {@link ConnectionConfiguration#getExecutorService executor service}.
+     */
+    private static synchronized ScheduledExecutorService getSharedScheduledExecutor() {
+        if(sharedScheduledExecutor == null) {
+            sharedScheduledExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Smack Scheduler (shared)");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sharedScheduledExecutor;
+    }
+
+    /**
+     * Returns the executor used to schedule timeouts and other delayed work for this
+     * connection.  Scheduled tasks must be short; long-running work belongs on the
+     * {@link #getExtensionExecutor extension executor}.
+     *
+     * @return the scheduled executor of this connection.
+     */
+    public ScheduledExecutorService getScheduledExecutor() {
+        ScheduledExecutorService executor = config.getExecutorService();
+        return executor != null? executor:getSharedScheduledExecutor();
+    }
+
+    private static ThreadPoolExecutor sharedExtensionExecutor;
+
+    /**
+     * Return the extension executor shared by connections with no
+     * {@link ConnectionConfiguration#getExtensionExecutor extension executor}.  Idle
+     * threads exit, so the pool only holds threads while extensions are busy.
+     */
+    private static synchronized Executor getSharedExtensionExecutor() {
+        if(sharedExtensionExecutor == null) {
+            int threads = SmackConfiguration.getExtensionThreads();
+            sharedExtensionExecutor = new ThreadPoolExecutor(threads, threads,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        int count = 0;
+                        public synchronized Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "Smack Extension Processor (shared " + ++count + ")");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            sharedExtensionExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sharedExtensionExecutor;
+    }
+
+    /**
+     * Returns the executor for long-running work of extensions, such as file transfers.
+     * Tasks on it must not wait for other tasks on it, as a bounded executor could run out
+     * of threads; they run such work on the {@link #getNegotiationExecutor negotiation
+     * executor} instead.  This is the
+     * {@link ConnectionConfiguration#getExtensionExecutor configured executor}, or by
+     * default a pool shared by all connections, with up to
+     * {@link SmackConfiguration#getExtensionThreads} threads.
+     *
+     * @return the extension executor of this connection.
+     */
+    public Executor getExtensionExecutor() {
+        Executor executor = config.getExtensionExecutor();
+        return executor != null? executor:getSharedExtensionExecutor();
+    }
+
+    private static ThreadPoolExecutor sharedNegotiationExecutor;
+
+    /**
+     * Return the negotiation executor shared by all connections.  It is unbounded, so its
+     * tasks never queue behind each other; idle threads exit.
+     */
+    private static synchronized Executor getSharedNegotiationExecutor() {
+        if(sharedNegotiationExecutor == null) {
+            sharedNegotiationExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                    60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    new ThreadFactory() {
+                        int count = 0;
+                        public synchronized Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "Smack Negotiation Processor (shared " + ++count + ")");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return sharedNegotiationExecutor;
+    }
+
+    /**
+     * Returns the executor for short-lived work that other tasks wait for, such as stream
+     * negotiation and connection attempts to bytestream proxies.  It is a pool shared by
+     * all connections, which starts a thread for each task if none is idle, so a task
+     * waiting for another never waits for a thread.  Tasks must be bounded by a timeout,
+     * so threads are only held while a negotiation is in progress.
+     *
+     * @return the negotiation executor of this connection.
+     */
+    public Executor getNegotiationExecutor() {
+        return getSharedNegotiationExecutor();
+    }
+
     /**
      * A stream reset is required.
      */
@@ -567,9 +808,24 @@ public abstract class Connection {
      * See {@link #createPacketCollector(PacketFilter)}.
      */
     public <T extends Packet> PacketCollector<T> createPacketCollector(PacketFilter packetFilter, Class<T> packetType) {
-        PacketCollector<T> collector = new PacketCollector<T>(this, packetFilter, packetType);
+        return createPacketCollector(packetFilter, packetType, SmackConfiguration.getPacketCollectorSize(),
+                PacketCollector.OverflowPolicy.dropOldest);
+    }
+
+    /**
+     * Create a new typed packet collector for this connection, holding up to capacity
+     * packets.  Packets received while the collector is full are handled according to
+     * overflowPolicy.
+     * <p>
+     * See {@link #createPacketCollector(PacketFilter, Class)}.
+     */
+    public <T extends Packet> PacketCollector<T> createPacketCollector(PacketFilter packetFilter, Class<T> packetType,
+            int capacity, PacketCollector.OverflowPolicy overflowPolicy)
+    {
+        PacketCollector<T> collector = new PacketCollector<T>(this, packetFilter, packetType, capacity, overflowPolicy);
         // Add the collector to the list of active collectors.
         collectors.add(collector);
+        collectorRouter.add(collector, packetFilter);
         return collector;
     }
 
@@ -578,7 +834,8 @@ public abstract class Connection {
      * 
      * @param collector a packet collectors which was created for this connection.
      */
-    protected void removePacketCollector(PacketCollector collector) {
+    protected void removePacketCollector(PacketCollector<?> collector) {
+        collectorRouter.remove(collector);
         collectors.remove(collector);
     }
 
@@ -587,10 +844,22 @@ public abstract class Connection {
      * 
      * @return a collection of packet collectors for this connection.
      */
-    protected Collection<PacketCollector> getPacketCollectors() {
+    protected Collection<PacketCollector<?>> getPacketCollectors() {
         return collectors;
     }
 
+    /**
+     * Get the packet collectors for this connection whose filters may accept the given
+     * packet.  This avoids calling every collector's filter; the collector must still
+     * check its filter.
+     *
+     * @param packet the received packet.
+     * @return a collection of packet collectors which may accept the packet.
+     */
+    protected Collection<PacketCollector<?>> getPacketCollectors(Packet packet) {
+        return collectorRouter.getCandidates(packet);
+    }
+
     /**
      * Registers a packet listener with this connection. A packet filter determines
      * which packets will be delivered to the listener. If the same packet listener
@@ -604,7 +873,12 @@ public abstract class Connection {
             throw new NullPointerException("Packet listener is null.");
         }
         ListenerWrapper wrapper = new ListenerWrapper(packetListener, packetFilter);
-        recvListeners.put(packetListener, wrapper);
+        synchronized(recvListenerRouter) {
+            ListenerWrapper previous = recvListeners.put(packetListener, wrapper);
+            if(previous != null)
+                recvListenerRouter.remove(previous);
+            recvListenerRouter.add(wrapper, packetFilter);
+        }
     }
 
     /**
@@ -613,7 +887,12 @@ public abstract class Connection {
      * @param packetListener the packet listener to remove.
      */
     public void removePacketListener(PacketListener packetListener) {
-        ListenerWrapper removed = recvListeners.remove(packetListener);
+        ListenerWrapper removed;
+        synchronized(recvListenerRouter) {
+            removed = recvListeners.remove(packetListener);
+            if(removed != null)
+                recvListenerRouter.remove(removed);
+        }
         if(removed == null)
             throw new IllegalArgumentException("Listener not registered");
     }
@@ -627,6 +906,17 @@ public abstract class Connection {
         return recvListeners;
     }
 
+    /**
+     * Get the packet listeners for received packets whose filters may accept the given
+     * packet.  {@link ListenerWrapper#notifyListener} still checks the filter.
+     *
+     * @param packet the received packet.
+     * @return a collection of packet listeners which may accept the packet.
+     */
+    protected Collection<ListenerWrapper> getPacketListeners(Packet packet) {
+        return recvListenerRouter.getCandidates(packet);
+    }
+
     /**
      * Registers a packet listener with this connection. The listener will be
      * notified of every packet that this connection sends. A packet filter determines
@@ -22,6 +22,7 @@ package org.jivesoftware.smack;
 
 import java.net.URI;
 import java.security.KeyStore;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 
@@ -67,6 +68,15 @@ public class ConnectionConfiguration implements Cloneable {
 
     private boolean compressionEnabled = true;
 
+    private boolean streamParsingEnabled = true;
+
+    private boolean nonBlockingIOEnabled = false;
+
+    private boolean parallelConnectEnabled = false;
+
+    private boolean streamManagementEnabled = false;
+    private int streamManagementQueueCapacity = 500;
+
     private boolean saslAuthenticationEnabled = true;
     /**
      * Used to get information from the user
@@ -84,6 +94,7 @@ public class ConnectionConfiguration implements Cloneable {
     private String resource;
     private boolean sendPresence = true;
     private boolean rosterLoadedAtLogin = true;
+    private RosterStore rosterStore;
     private SecurityMode securityMode = SecurityMode.enabled;
 	
 	// Holds the proxy information (such as proxyhost, proxyport, username, password etc)
@@ -92,6 +103,19 @@ public class ConnectionConfiguration implements Cloneable {
     private ScheduledExecutorService executorService;
 
     private ThreadFactory threadFactory;
+
+    private int writeBatchMaxPackets = 100;
+    private int writeBatchMaxSize = 64 * 1024;
+    private long writeLingerTime = 0;
+
+    private int packetQueueCapacity = 500;
+    private boolean packetQueueFair = true;
+    private BackpressurePolicy backpressurePolicy = BackpressurePolicy.block;
+    private long backpressureTimeout = 0;
+
+    private boolean parallelListenerDispatchEnabled = false;
+    private Executor listenerExecutor;
+    private Executor extensionExecutor;
     
     /**
      * Creates a new ConnectionConfiguration for the specified service name.
@@ -462,6 +486,130 @@ public class ConnectionConfiguration implements Cloneable {
         this.compressionEnabled = compressionEnabled;
     }
 
+    /**
+     * Returns true if message, presence and IQ stanzas are parsed directly from the
+     * stream, without building a DOM for each stanza.  The received XML is recorded, and
+     * {@link org.jivesoftware.smack.packet.Packet#getElement} on these packets builds its
+     * DOM the first time it's called.  Transports which don't stream XML, like BOSH, always build a DOM. Default: enabled.
+     *
+     * @return true if stanzas are parsed directly from the stream.
+     */
+    public boolean isStreamParsingEnabled() {
+        return streamParsingEnabled;
+    }
+
+    /**
+     * Sets if message, presence and IQ stanzas are parsed directly from the stream,
+     * without building a DOM for each stanza. Default: enabled.
+     *
+     * @param streamParsingEnabled if stanzas are parsed directly from the stream.
+     */
+    public void setStreamParsingEnabled(boolean streamParsingEnabled) {
+        this.streamParsingEnabled = streamParsingEnabled;
+    }
+
+    /**
+     * Returns true if direct TCP connections use non-blocking I/O.
+     *
+     * @return true if non-blocking I/O is enabled.
+     */
+    public boolean isNonBlockingIOEnabled() {
+        return nonBlockingIOEnabled;
+    }
+
+    /**
+     * Sets if direct TCP connections use non-blocking I/O.  When enabled, the connection
+     * doesn't have its own reader thread; its socket is served by a small pool of I/O threads
+     * shared by all connections, which allows a process to hold many thousands of
+     * connections.  The pool size is set by {@link SmackConfiguration#setNonBlockingIOThreads}.
+     * <p>
+     * Received packets are processed on the shared I/O threads, so
+     * {@link SynchronousPacketListener synchronous listeners} must not block.  Asynchronous
+     * listeners are run on the {@link #setListenerExecutor listener executor}, still one
+     * packet at a time unless {@link #setParallelListenerDispatchEnabled parallel listener
+     * dispatch} is enabled, and outgoing packets are written by a pool of the same size
+     * shared by all connections, so an idle connection holds no threads.  Connections
+     * through a proxy always use blocking I/O.  Default: disabled.
+     *
+     * @param nonBlockingIOEnabled if non-blocking I/O is enabled.
+     */
+    public void setNonBlockingIOEnabled(boolean nonBlockingIOEnabled) {
+        this.nonBlockingIOEnabled = nonBlockingIOEnabled;
+    }
+
+    /**
+     * Returns true if direct TCP connections race the discovered servers in parallel.
+     *
+     * @return true if parallel connection attempts are enabled.
+     */
+    public boolean isParallelConnectEnabled() {
+        return parallelConnectEnabled;
+    }
+
+    /**
+     * Sets if direct TCP connections race the discovered servers in parallel.  When
+     * enabled, the servers found by SRV lookup, and each of their IPv6 and IPv4 addresses,
+     * are tried in order with staggered starts, without waiting for earlier attempts to
+     * fail.  The first socket to connect is used and the others are closed, so an
+     * unreachable server costs a fraction of a second instead of a full connection timeout.
+     * <p>
+     * Connections through a proxy, and non-blocking connections, always try servers one
+     * at a time.  Default: disabled.
+     *
+     * @param parallelConnectEnabled if parallel connection attempts are enabled.
+     */
+    public void setParallelConnectEnabled(boolean parallelConnectEnabled) {
+        this.parallelConnectEnabled = parallelConnectEnabled;
+    }
+
+    /**
+     * Returns true if XEP-0198 stream management is used when the server supports it.
+     *
+     * @return true if stream management is enabled.
+     */
+    public boolean isStreamManagementEnabled() {
+        return streamManagementEnabled;
+    }
+
+    /**
+     * Sets if XEP-0198 stream management is used when the server supports it.  When
+     * enabled, the server acknowledges the stanzas it receives, and stanzas it hasn't
+     * acknowledged are kept.  If the TCP connection is lost, the session isn't closed;
+     * {@link ConnectionListener#connectionClosedRecoverably} is called instead, and
+     * {@link Connection#recoverConnection()} reconnects and resumes the session in one
+     * round trip, resending the unacknowledged stanzas, without binding a new resource
+     * or reloading the roster.  Stanzas sent while the connection is down are queued.
+     * <p>
+     * Only TCP connections using blocking I/O support stream management.  Default: disabled.
+     *
+     * @param streamManagementEnabled if stream management is enabled.
+     */
+    public void setStreamManagementEnabled(boolean streamManagementEnabled) {
+        this.streamManagementEnabled = streamManagementEnabled;
+    }
+
+    /**
+     * Returns the number of sent stanzas that may await acknowledgement by the server.
+     *
+     * @return the stream management queue capacity.
+     */
+    public int getStreamManagementQueueCapacity() {
+        return streamManagementQueueCapacity;
+    }
+
+    /**
+     * Sets the number of sent stanzas that may await acknowledgement by the server when
+     * stream management is enabled.  Once this many are unacknowledged, sending waits
+     * for an acknowledgement, or for the session to be resumed.  Default: 500.
+     *
+     * @param capacity the stream management queue capacity.
+     */
+    public void setStreamManagementQueueCapacity(int capacity) {
+        if(capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.streamManagementQueueCapacity = capacity;
+    }
+
     /**
      * Returns true if the client is going to use SASL authentication when logging into the
      * server. If SASL authenticatin fails then the client will try to use non-sasl authentication.
@@ -559,6 +707,28 @@ public class ConnectionConfiguration implements Cloneable {
         this.rosterLoadedAtLogin = rosterLoadedAtLogin;
     }
 
+    /**
+     * Returns the store used to keep a local copy of the roster, or null if the
+     * roster isn't stored.
+     *
+     * @return the roster store.
+     */
+    public RosterStore getRosterStore() {
+        return rosterStore;
+    }
+
+    /**
+     * Sets the store used to keep a local copy of the roster between logins.  The
+     * stored roster is loaded when logging in, and if the server supports roster
+     * versioning (XEP-0237), only the changes since the stored version are requested.
+     * By default, no store is used and the full roster is requested on every login.
+     *
+     * @param rosterStore the roster store, such as a {@link FileRosterStore}, or null.
+     */
+    public void setRosterStore(RosterStore rosterStore) {
+        this.rosterStore = rosterStore;
+    }
+
     /**
      * Returns a CallbackHandler to obtain information, such as the password or
      * principal information during the SASL authentication. A CallbackHandler
@@ -612,6 +782,31 @@ public class ConnectionConfiguration implements Cloneable {
         disabled
     }
 
+    /**
+     * An enumeration of the ways the connection can respond when packets are sent faster
+     * than they can be written, and the outgoing packet queue is full.
+     */
+    public static enum BackpressurePolicy {
+
+        /**
+         * Wait for space in the queue, up to the backpressure timeout, and then reject
+         * the packet. This is the default setting.
+         */
+        block,
+
+        /**
+         * Reject the packet immediately.
+         */
+        reject,
+
+        /**
+         * Drop low-priority packets, like presence updates and chat state notifications,
+         * to make room. If the packet being sent is itself low-priority, it's dropped.
+         * If there are no low-priority packets to drop, behave like {@link #block}.
+         */
+        dropLowPriority
+    }
+
     /**
      * Returns the username to use when trying to reconnect to the server.
      *
@@ -682,4 +877,238 @@ public class ConnectionConfiguration implements Cloneable {
     public void setThreadFactory(ThreadFactory threadFactory) {
         this.threadFactory = threadFactory;
     }
+
+    /**
+     * Returns the maximum number of queued packets which are written to the stream
+     * together, with a single write and flush. Default: 100.
+     *
+     * @return the maximum number of packets in one write.
+     */
+    public int getWriteBatchMaxPackets() {
+        return writeBatchMaxPackets;
+    }
+
+    /**
+     * Sets the maximum number of queued packets which are written to the stream
+     * together, with a single write and flush. Set this to 1 to write each packet
+     * separately. Default: 100.
+     *
+     * @param writeBatchMaxPackets the maximum number of packets in one write.
+     */
+    public void setWriteBatchMaxPackets(int writeBatchMaxPackets) {
+        if(writeBatchMaxPackets < 1)
+            throw new IllegalArgumentException("writeBatchMaxPackets must be at least 1");
+        this.writeBatchMaxPackets = writeBatchMaxPackets;
+    }
+
+    /**
+     * Returns the size, in characters, after which no more packets are added to a
+     * write batch. A single packet larger than this is still written whole.
+     * Default: 65536.
+     *
+     * @return the maximum size of one write, in characters.
+     */
+    public int getWriteBatchMaxSize() {
+        return writeBatchMaxSize;
+    }
+
+    /**
+     * Sets the size, in characters, after which no more packets are added to a
+     * write batch. Default: 65536.
+     *
+     * @param writeBatchMaxSize the maximum size of one write, in characters.
+     */
+    public void setWriteBatchMaxSize(int writeBatchMaxSize) {
+        if(writeBatchMaxSize < 1)
+            throw new IllegalArgumentException("writeBatchMaxSize must be at least 1");
+        this.writeBatchMaxSize = writeBatchMaxSize;
+    }
+
+    /**
+     * Returns the time, in milliseconds, that the packet writer waits for more packets
+     * to fill a batch before writing it.
+     *
+     * @return the linger time in milliseconds.
+     */
+    public long getWriteLingerTime() {
+        return writeLingerTime;
+    }
+
+    /**
+     * Sets the time, in milliseconds, that the packet writer waits for more packets
+     * before writing a batch that isn't full. This delays each packet by up to this
+     * long, in exchange for fewer writes and TLS records when many packets are being
+     * sent. If 0, packets already queued are batched, but the writer never waits for
+     * more. Default: 0.
+     *
+     * @param writeLingerTime the linger time in milliseconds.
+     */
+    public void setWriteLingerTime(long writeLingerTime) {
+        if(writeLingerTime < 0)
+            throw new IllegalArgumentException("writeLingerTime must not be negative");
+        this.writeLingerTime = writeLingerTime;
+    }
+
+    /**
+     * Returns the maximum number of packets which can be queued to be written to the
+     * server. Default: 500.
+     *
+     * @return the capacity of the outgoing packet queue.
+     */
+    public int getPacketQueueCapacity() {
+        return packetQueueCapacity;
+    }
+
+    /**
+     * Sets the maximum number of packets which can be queued to be written to the
+     * server. When the queue is full, the {@link BackpressurePolicy} decides what
+     * happens to new packets. Default: 500.
+     *
+     * @param packetQueueCapacity the capacity of the outgoing packet queue.
+     */
+    public void setPacketQueueCapacity(int packetQueueCapacity) {
+        if(packetQueueCapacity < 1)
+            throw new IllegalArgumentException("packetQueueCapacity must be at least 1");
+        this.packetQueueCapacity = packetQueueCapacity;
+    }
+
+    /**
+     * Returns true if threads blocked waiting for space in the outgoing packet queue
+     * are admitted in FIFO order. Default: enabled.
+     *
+     * @return true if the outgoing packet queue is fair.
+     */
+    public boolean isPacketQueueFair() {
+        return packetQueueFair;
+    }
+
+    /**
+     * Sets if threads blocked waiting for space in the outgoing packet queue are admitted
+     * in FIFO order. A non-fair queue has higher throughput when many threads are sending,
+     * but a blocked sender may wait longer. Default: enabled.
+     *
+     * @param packetQueueFair if the outgoing packet queue is fair.
+     */
+    public void setPacketQueueFair(boolean packetQueueFair) {
+        this.packetQueueFair = packetQueueFair;
+    }
+
+    /**
+     * Returns what happens when a packet is sent while the outgoing packet queue is full.
+     * Default: {@link BackpressurePolicy#block}.
+     *
+     * @return the backpressure policy.
+     */
+    public BackpressurePolicy getBackpressurePolicy() {
+        return backpressurePolicy;
+    }
+
+    /**
+     * Sets what happens when a packet is sent while the outgoing packet queue is full.
+     * Default: {@link BackpressurePolicy#block}.
+     *
+     * @param backpressurePolicy the backpressure policy.
+     */
+    public void setBackpressurePolicy(BackpressurePolicy backpressurePolicy) {
+        if(backpressurePolicy == null)
+            throw new IllegalArgumentException("backpressurePolicy must not be null");
+        this.backpressurePolicy = backpressurePolicy;
+    }
+
+    /**
+     * Returns the number of milliseconds to wait for space in the outgoing packet queue
+     * before rejecting a packet. Default: {@link SmackConfiguration#getPacketReplyTimeout}.
+     *
+     * @return the backpressure timeout in milliseconds.
+     */
+    public long getBackpressureTimeout() {
+        if(backpressureTimeout == 0)
+            return SmackConfiguration.getPacketReplyTimeout();
+        return backpressureTimeout;
+    }
+
+    /**
+     * Sets the number of milliseconds to wait for space in the outgoing packet queue
+     * before rejecting a packet. If 0, use {@link SmackConfiguration#getPacketReplyTimeout}.
+     *
+     * @param backpressureTimeout the backpressure timeout in milliseconds.
+     */
+    public void setBackpressureTimeout(long backpressureTimeout) {
+        if(backpressureTimeout < 0)
+            throw new IllegalArgumentException("backpressureTimeout must not be negative");
+        this.backpressureTimeout = backpressureTimeout;
+    }
+
+    /**
+     * Returns true if asynchronous packet listeners are run in parallel for unrelated
+     * senders. Default: disabled.
+     *
+     * @return true if parallel listener dispatch is enabled.
+     */
+    public boolean isParallelListenerDispatchEnabled() {
+        return parallelListenerDispatchEnabled;
+    }
+
+    /**
+     * Sets if asynchronous packet listeners are run in parallel for unrelated senders.
+     * <p>
+     * When disabled, each connection delivers received packets to its listeners one at a
+     * time, in order, on its own thread, or on the listener executor with
+     * {@link #setNonBlockingIOEnabled non-blocking I/O}. When enabled, packets are delivered on the
+     * {@link #setListenerExecutor listener executor}, and are only kept in order relative
+     * to other packets from the same bare JID (or MUC room). Replies to IQ requests may be
+     * delivered in any order. Listeners must be thread-safe. Default: disabled.
+     *
+     * @param parallelListenerDispatchEnabled if parallel listener dispatch is enabled.
+     */
+    public void setParallelListenerDispatchEnabled(boolean parallelListenerDispatchEnabled) {
+        this.parallelListenerDispatchEnabled = parallelListenerDispatchEnabled;
+    }
+
+    /**
+     * Returns the executor used for parallel listener dispatch and by connections using
+     * non-blocking I/O, or null to use a pool shared by all connections, with one thread
+     * per processor.
+     *
+     * @return the listener executor, or null.
+     */
+    public Executor getListenerExecutor() {
+        return listenerExecutor;
+    }
+
+    /**
+     * Sets the executor used for parallel listener dispatch and by connections using
+     * non-blocking I/O. This may be shared between connections. If null, a pool shared
+     * by all connections is used, with one thread per processor. Default: null.
+     *
+     * @param listenerExecutor the listener executor, or null.
+     */
+    public void setListenerExecutor(Executor listenerExecutor) {
+        this.listenerExecutor = listenerExecutor;
+    }
+
+    /**
+     * Returns the executor for long-running work of extensions, such as file transfers,
+     * or null to use a bounded pool shared by all connections.
+     *
+     * @return the extension executor, or null.
+     * @see Connection#getExtensionExecutor
+     */
+    public Executor getExtensionExecutor() {
+        return extensionExecutor;
+    }
+
+    /**
+     * Sets the executor for long-running work of extensions, such as file transfers.  This
+     * may be shared between connections.  Tasks on it never wait for other tasks on it;
+     * work they wait for runs on the {@link Connection#getNegotiationExecutor negotiation
+     * executor}.  A bounded executor should queue tasks rather than reject them.  If null,
+     * a pool shared by all connections is used, with up to
+     * {@link SmackConfiguration#getExtensionThreads} threads.  Default: null.
+     *
+     * @param extensionExecutor the extension executor, or null.
+     */
+    public void setExtensionExecutor(Executor extensionExecutor) {
+        this.extensionExecutor = extensionExecutor;
+    }
 }
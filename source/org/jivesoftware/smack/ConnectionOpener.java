@@ -23,6 +23,7 @@ import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.jivesoftware.smack.XMPPStream.ConnectData;
+import org.jivesoftware.smack.proxy.ProxyInfo;
 import org.jivesoftware.smack.util.ObservableReader.ReadEvent;
 import org.jivesoftware.smack.util.ObservableWriter.WriteEvent;
 import org.jivesoftware.smack.util.ThreadUtil;
@@ -195,7 +196,11 @@ class ConnectionOpener
         Vector<Class<? extends XMPPStream>> transportsToAttempt =
             new Vector<Class<? extends XMPPStream>>();
         transportsToAttempt.add(XMPPStreamBOSH.class);
-        transportsToAttempt.add(XMPPStreamTCP.class);
+        if(config.isNonBlockingIOEnabled() &&
+                config.getProxyInfo().getProxyType() == ProxyInfo.ProxyType.NONE)
+            transportsToAttempt.add(XMPPStreamNIO.class);
+        else
+            transportsToAttempt.add(XMPPStreamTCP.class);
 
         XMPPException firstFailure = null;
         for(Class<? extends XMPPStream> transport: transportsToAttempt) {
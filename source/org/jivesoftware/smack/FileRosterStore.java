@@ -0,0 +1,139 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.jivesoftware.smack.packet.RosterPacket;
+import org.jivesoftware.smack.util.FileUtil;
+import org.jivesoftware.smack.util.PacketParserUtils;
+import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smack.util.XmlUtil;
+import org.xml.sax.SAXException;
+
+/**
+ * A {@link RosterStore} which keeps the roster in a directory, with one file per
+ * roster item, so a roster push only rewrites a single file.  Each file is replaced
+ * atomically.  The directory should be specific to one account.
+ * <p>
+ * The version is removed while the whole roster is replaced, so if the application
+ * exits partway through, the full roster is requested on the next login.
+ */
+public class FileRosterStore implements RosterStore {
+    private static final String VERSION_FILE = "version";
+    private static final String ENTRY_PREFIX = "entry-";
+    private static final String ENTRY_SUFFIX = ".xml";
+
+    private final File directory;
+
+    /**
+     * Creates a store in the given directory, creating the directory if it doesn't
+     * exist.  A roster already stored there is used.
+     *
+     * @param directory the directory to store the roster in.
+     * @throws IllegalArgumentException if the directory can't be created.
+     */
+    public FileRosterStore(File directory) {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IllegalArgumentException("Can't create roster directory " + directory);
+        this.directory = directory;
+    }
+
+    public synchronized Collection<RosterPacket.Item> getEntries() {
+        List<RosterPacket.Item> items = new ArrayList<RosterPacket.Item>();
+        File[] files = directory.listFiles();
+        if (files == null)
+            return items;
+
+        for (File file: files) {
+            String name = file.getName();
+            if (!name.startsWith(ENTRY_PREFIX) || !name.endsWith(ENTRY_SUFFIX))
+                continue;
+
+            String data = FileUtil.readFile(file);
+            if (data == null)
+                continue;
+
+            try {
+                items.add(PacketParserUtils.parseRosterItem(XmlUtil.getXMLRootNode(data)));
+            } catch (SAXException e) {
+                // The file is corrupt.  Skip it; a full roster will be requested if
+                // the version has been discarded as well.
+            } catch (IllegalArgumentException e) {
+                // Unknown subscription type.
+            }
+        }
+        return items;
+    }
+
+    public synchronized String getRosterVersion() {
+        File file = new File(directory, VERSION_FILE);
+        if (!file.exists())
+            return null;
+        return FileUtil.readFile(file);
+    }
+
+    public synchronized boolean addEntry(RosterPacket.Item item, String version) {
+        return FileUtil.writeFileAtomically(entryFile(item.getUser()), item.toXML()) && setVersion(version);
+    }
+
+    public synchronized boolean removeEntry(String user, String version) {
+        File file = entryFile(user);
+        if (file.exists() && !file.delete())
+            return false;
+        return setVersion(version);
+    }
+
+    public synchronized boolean resetEntries(Collection<RosterPacket.Item> items, String version) {
+        // Discard the version first, so a partially written roster is never used.
+        File versionFile = new File(directory, VERSION_FILE);
+        if (versionFile.exists() && !versionFile.delete())
+            return false;
+
+        File[] files = directory.listFiles();
+        if (files == null)
+            return false;
+        for (File file: files) {
+            if (file.getName().startsWith(ENTRY_PREFIX) && !file.delete())
+                return false;
+        }
+
+        for (RosterPacket.Item item: items) {
+            if (!FileUtil.writeFileAtomically(entryFile(item.getUser()), item.toXML()))
+                return false;
+        }
+        return setVersion(version);
+    }
+
+    private boolean setVersion(String version) {
+        File file = new File(directory, VERSION_FILE);
+        if (version == null)
+            return !file.exists() || file.delete();
+        return FileUtil.writeFileAtomically(file, version);
+    }
+
+    /** Return the file for a user.  JIDs are hex-encoded, so any JID is a valid filename. */
+    private File entryFile(String user) {
+        try {
+            return new File(directory, ENTRY_PREFIX + StringUtils.encodeHex(user.getBytes("UTF-8")) + ENTRY_SUFFIX);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF-8 not supported", e);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules keepalives for any number of connections with a hashed timing wheel, run
+ * by a single thread shared by the whole process.
+ * <p>
+ * Connections don't reschedule a timer after each write.  Instead, each connection is
+ * checked once per keepalive interval: if it has been idle for the whole interval, it's
+ * sent a keepalive; otherwise it's checked again one interval after its last activity.
+ * Registering, cancelling and checking a connection are O(1), and the keepalives due
+ * in a tick are sent together as one task, so the wheel thread never blocks on a socket.
+ */
+class KeepAliveScheduler {
+    /** A connection kept alive by the scheduler. */
+    interface Target {
+        /** Return the time of the most recent write, from System.currentTimeMillis. */
+        long getLastActivity();
+
+        /**
+         * Send a keepalive.  This is called from a shared thread, and should not block
+         * for long.
+         */
+        void sendKeepAlive();
+    }
+
+    /** A target registered with {@link KeepAliveScheduler#register}. */
+    static class Entry {
+        final Target target;
+        final long interval;
+
+        /** The number of full turns of the wheel left before this entry is due. */
+        long rounds;
+
+        private volatile boolean cancelled = false;
+
+        Entry(Target target, long interval) {
+            this.target = target;
+            this.interval = interval;
+        }
+
+        /** Stop sending keepalives.  A keepalive already being sent may still complete. */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private static KeepAliveScheduler sharedScheduler;
+
+    /** Return the scheduler shared by all connections. */
+    static synchronized KeepAliveScheduler getSharedScheduler() {
+        if(sharedScheduler == null) {
+            ThreadPoolExecutor sender = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "Smack Keepalive Sender (shared)");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            sender.allowCoreThreadTimeOut(true);
+            sharedScheduler = new KeepAliveScheduler(1000, 512, sender);
+        }
+        return sharedScheduler;
+    }
+
+    private final long tickDuration;
+    private final List<LinkedList<Entry>> wheel;
+    private final Executor sender;
+
+    /** Entries registered since the last tick.  The wheel itself is only touched by its thread. */
+    private final ConcurrentLinkedQueue<Entry> registrations = new ConcurrentLinkedQueue<Entry>();
+
+    private Thread thread;
+
+    /** The number of ticks processed.  This is only accessed by the wheel thread. */
+    private long tick = 0;
+
+    /**
+     * @param tickDuration the wheel resolution, in milliseconds.  Keepalives are sent up to
+     *     this much later than their interval.
+     * @param wheelSize the number of slots in the wheel.
+     * @param sender runs each tick's batch of keepalives.
+     */
+    KeepAliveScheduler(long tickDuration, int wheelSize, Executor sender) {
+        this.tickDuration = tickDuration;
+        this.sender = sender;
+        wheel = new ArrayList<LinkedList<Entry>>(wheelSize);
+        for(int i = 0; i < wheelSize; ++i)
+            wheel.add(new LinkedList<Entry>());
+    }
+
+    /**
+     * Send target a keepalive whenever it's been idle for interval milliseconds.
+     *
+     * @return an entry which can be {@link Entry#cancel cancelled}.
+     */
+    Entry register(Target target, long interval) {
+        if(interval <= 0)
+            throw new IllegalArgumentException("interval must be positive");
+
+        Entry entry = new Entry(target, interval);
+        registrations.add(entry);
+
+        synchronized(this) {
+            if(thread == null) {
+                thread = new Thread(new Runnable() {
+                    public void run() { runWheel(); }
+                }, "Smack Keepalive (shared)");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        return entry;
+    }
+
+    private void runWheel() {
+        long start = System.currentTimeMillis();
+        while(true) {
+            // Sleep until the next tick.  If we've fallen behind, catch up without sleeping.
+            long nextTick = start + (tick + 1) * tickDuration;
+            long wait = nextTick - System.currentTimeMillis();
+            if(wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch(InterruptedException e) {
+                    // The thread is never interrupted intentionally; keep going.
+                }
+                continue;
+            }
+
+            ++tick;
+            long now = System.currentTimeMillis();
+
+            List<Target> due = expire(now);
+            if(!due.isEmpty())
+                sender.execute(new SendBatch(due));
+
+            // Add new entries after processing the slot, so schedule() never places an
+            // entry in a slot that's already been processed this turn.
+            Entry entry;
+            while((entry = registrations.poll()) != null)
+                schedule(entry, entry.interval);
+        }
+    }
+
+    /** Process the current slot, returning the targets which need a keepalive now. */
+    private List<Target> expire(long now) {
+        List<Target> due = new ArrayList<Target>();
+        List<Entry> rescheduled = new ArrayList<Entry>();
+
+        Iterator<Entry> it = wheel.get((int) (tick % wheel.size())).iterator();
+        while(it.hasNext()) {
+            Entry entry = it.next();
+            if(entry.cancelled) {
+                it.remove();
+                continue;
+            }
+
+            if(entry.rounds > 0) {
+                entry.rounds--;
+                continue;
+            }
+
+            it.remove();
+            rescheduled.add(entry);
+
+            if(now - entry.target.getLastActivity() >= entry.interval)
+                due.add(entry.target);
+        }
+
+        // Reschedule after iterating, since an entry may land back in this slot.  If there's
+        // been activity since an entry was scheduled, it isn't idle yet; check it again one
+        // interval after the activity.
+        for(Entry entry: rescheduled) {
+            long idle = now - entry.target.getLastActivity();
+            schedule(entry, idle >= entry.interval? entry.interval:entry.interval - idle);
+        }
+
+        return due;
+    }
+
+    /**
+     * Place entry in the slot delay milliseconds from now.  This is only called on the
+     * wheel thread, after the current slot has been processed.
+     */
+    private void schedule(Entry entry, long delay) {
+        long ticks = Math.max(1, (delay + tickDuration - 1) / tickDuration);
+        entry.rounds = (ticks - 1) / wheel.size();
+        wheel.get((int) ((tick + ticks) % wheel.size())).add(entry);
+    }
+
+    private static class SendBatch implements Runnable {
+        private final List<Target> targets;
+
+        SendBatch(List<Target> targets) {
+            this.targets = targets;
+        }
+
+        public void run() {
+            for(Target target: targets) {
+                try {
+                    target.sendKeepAlive();
+                } catch(RuntimeException e) {
+                    // One failing connection mustn't stop keepalives to the others.
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
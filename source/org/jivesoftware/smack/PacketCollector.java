@@ -24,7 +24,9 @@ import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.XMPPError;
 
-import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Provides a mechanism to collect packets into a result queue that pass a
@@ -33,8 +35,16 @@ import java.util.LinkedList;
  * use than a {@link PacketListener} when you need to wait for a specific
  * result.<p>
  *
- * Each packet collector will queue up to 2^16 packets for processing before
- * older packets are automatically dropped.
+ * Each packet collector holds a fixed number of packets, by default
+ * {@link SmackConfiguration#getPacketCollectorSize()}.  When it's full, new packets
+ * are handled according to its {@link OverflowPolicy}, and counted by
+ * {@link #getDroppedCount()}.<p>
+ *
+ * Packets are queued in a ring which starts small and grows, up to the capacity, as
+ * packets queue up, so collectors waiting for a single reply stay cheap.  Queueing a
+ * packet doesn't lock unless a thread is waiting for a result.  Only one thread may call {@link #processPacket}
+ * at a time, which is the case for the connection's packet reader; any number of
+ * threads may read results.
  *
  * @see Connection#createPacketCollector(PacketFilter)
  * @author Matt Tucker
@@ -42,18 +52,51 @@ import java.util.LinkedList;
 public class PacketCollector<T extends Packet> {
 
     /**
-     * Max number of packets that any one collector can hold. After the max is
-     * reached, older packets will be automatically dropped from the queue as
-     * new packets are added.
+     * What to do with a packet received when a collector is full.
      */
-    private static final int MAX_PACKETS = 65536;
+    public static enum OverflowPolicy {
+        /** Remove the oldest queued packet to make room for the new one. */
+        dropOldest,
+
+        /** Discard the new packet. */
+        dropNewest
+    }
 
     private PacketFilter packetFilter;
-    private LinkedList<Packet> resultQueue;
     private Connection connection;
-    private boolean cancelled = false;
+    private volatile boolean cancelled = false;
     private Class<T> packetClass;
 
+    private final OverflowPolicy overflowPolicy;
+
+    /** The number of slots a new collector's ring starts with. */
+    private static final int INITIAL_RING_SIZE = 4;
+
+    /** The maximum number of queued packets. */
+    private final int capacity;
+
+    /**
+     * The queued packets.  The packet with sequence number n is stored at n % ring.length().
+     * Only replaced by the thread calling processPacket, before it advances {@link #tail}
+     * past the old ring's contents, so a consumer reading the ring after tail sees a ring
+     * holding every packet up to that tail.
+     */
+    private volatile AtomicReferenceArray<Packet> ring;
+
+    /** The sequence number of the oldest queued packet. */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * The sequence number of the next packet to be queued.  Only written by the thread
+     * calling processPacket.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** The number of threads blocked waiting for a result. */
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
     /**
      * Creates a new packet collector. If the packet filter is <tt>null</tt>, then
      * all packets will match this collector.
@@ -61,22 +104,47 @@ public class PacketCollector<T extends Packet> {
      * If cls is null, calls to getResult will not be typesafe.  When created using
      * connection.createPacketCollector(filter, cls), cls will be specified.
      * <p>
-     * See also {@link #PacketCollector(Connection, PacketFilter)}.
+     * The collector holds up to {@link SmackConfiguration#getPacketCollectorSize()}
+     * packets, and drops the oldest packet when full.
      *
      * @param connection the connection the collector is tied to.
      * @param packetFilter determines which packets will be returned by this collector.
      * @param cls the packet type to return
      */
     protected PacketCollector(Connection connection, PacketFilter packetFilter, Class<T> cls) {
+        this(connection, packetFilter, cls, SmackConfiguration.getPacketCollectorSize(),
+                OverflowPolicy.dropOldest);
+    }
+
+    /**
+     * Creates a new packet collector holding up to capacity packets.
+     * <p>
+     * See {@link #PacketCollector(Connection, PacketFilter, Class)}.
+     *
+     * @param connection the connection the collector is tied to.
+     * @param packetFilter determines which packets will be returned by this collector.
+     * @param cls the packet type to return
+     * @param capacity the maximum number of packets to queue.
+     * @param overflowPolicy what to do with packets received while full.
+     */
+    protected PacketCollector(Connection connection, PacketFilter packetFilter, Class<T> cls,
+            int capacity, OverflowPolicy overflowPolicy)
+    {
         if (connection == null)
             throw new IllegalArgumentException("connection may not be null");
         if (cls == null)
             throw new IllegalArgumentException("cls may not be null");
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        if (overflowPolicy == null)
+            throw new IllegalArgumentException("overflowPolicy may not be null");
 
         this.connection = connection;
         this.packetFilter = packetFilter;
-        this.resultQueue = new LinkedList<Packet>();
         this.packetClass = cls;
+        this.capacity = capacity;
+        this.ring = new AtomicReferenceArray<Packet>(Math.min(capacity, INITIAL_RING_SIZE));
+        this.overflowPolicy = overflowPolicy;
     }
 
     /**
@@ -89,6 +157,10 @@ public class PacketCollector<T extends Packet> {
         if (!cancelled) {
             cancelled = true;
             connection.removePacketCollector(this);
+
+            // Release queued packets, in case the collector itself is still referenced.
+            while (poll() != null)
+                ;
         }
     }
 
@@ -102,6 +174,33 @@ public class PacketCollector<T extends Packet> {
         return packetFilter;
     }
 
+    /**
+     * Returns the maximum number of packets this collector queues.
+     *
+     * @return the capacity of this collector.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the policy applied to packets received while this collector is full.
+     *
+     * @return the overflow policy.
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Returns the number of packets discarded because this collector was full.
+     *
+     * @return the number of dropped packets.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
     /**
      * Polls to see if a packet is currently available and returns it, or
      * immediately returns <tt>null</tt> if no packets are currently in the
@@ -112,12 +211,12 @@ public class PacketCollector<T extends Packet> {
      * @return the next packet result, or <tt>null</tt> if there are no more
      *      results.
      */
-    public synchronized T pollResult() {
-        if (resultQueue.isEmpty()) {
+    public T pollResult() {
+        Packet packet = poll();
+        if (packet == null) {
             return null;
         }
 
-        Packet packet = resultQueue.removeLast();
         try {
             return castToType(packet);
         } catch(XMPPException e) {
@@ -132,17 +231,19 @@ public class PacketCollector<T extends Packet> {
      * @return the next available packet.
      * @deprecated see {@link #getResult(long)}
      */
-    public synchronized Packet nextResult() {
+    public Packet nextResult() {
         // Wait indefinitely until there is a result to return.
-        while (resultQueue.isEmpty()) {
+        while (true) {
+            Packet packet = poll();
+            if (packet != null)
+                return packet;
             try {
-                wait();
+                waitForPacket(0, false);
             }
             catch (InterruptedException ie) {
                 // Ignore.
             }
         }
-        return resultQueue.removeLast();
     }
 
     /**
@@ -154,7 +255,7 @@ public class PacketCollector<T extends Packet> {
      * @return the next available packet.
      * @deprecated see {@link #getResult(long)}
      */
-    public synchronized Packet nextResult(long timeout) {
+    public Packet nextResult(long timeout) {
         try {
             return getResult(timeout);
         } catch(XMPPException e) {
@@ -177,7 +278,7 @@ public class PacketCollector<T extends Packet> {
      * @throws XMPPException if the timeout expires, or if the returned packet is not
      * compatible with the type of this PacketCollector
      */
-    public synchronized T getResult(long timeout) throws XMPPException {
+    public T getResult(long timeout) throws XMPPException {
         if(cancelled)
             throw new IllegalStateException("getResult called on a cancelled PacketCollector");
 
@@ -197,15 +298,16 @@ public class PacketCollector<T extends Packet> {
                 if(!connection.isConnected())
                     throw new XMPPException("Connection lost");
 
-                if(!resultQueue.isEmpty()) {
-                    return castToType(resultQueue.removeLast());
+                Packet packet = poll();
+                if(packet != null) {
+                    return castToType(packet);
                 }
 
                 long waitTime = waitUntil - System.currentTimeMillis();
                 if (waitTime <= 0)
                     throw new XMPPException("Response timed out", XMPPError.Condition.request_timeout);
 
-                wait(waitTime);
+                waitForPacket(waitTime, true);
             }
         }
         catch (InterruptedException ie) {
@@ -230,22 +332,17 @@ public class PacketCollector<T extends Packet> {
     /**
      * Processes a packet to see if it meets the criteria for this packet collector.
      * If so, the packet is added to the result queue.
+     * <p>
+     * This must not be called by more than one thread at a time.
      *
      * @param packet the packet to process.
      */
-    protected synchronized void processPacket(Packet packet) {
+    protected void processPacket(Packet packet) {
         if (packet == null) {
             return;
         }
         if (packetFilter == null || packetFilter.accept(packet)) {
-            // If the max number of packets has been reached, remove the oldest one.
-            if (resultQueue.size() == MAX_PACKETS) {
-                resultQueue.removeLast();
-            }
-            // Add the new packet.
-            resultQueue.addFirst(packet);
-            // Notify waiting threads a result is available.
-            notifyAll();
+            offer(packet);
         }
     }
 
@@ -261,6 +358,112 @@ public class PacketCollector<T extends Packet> {
         notifyAll();
     }
 
+    /**
+     * Add a packet to the ring, applying the overflow policy if it's full.  Only the
+     * single producer thread calls this, so it's the only writer of {@link #tail}.
+     */
+    private void offer(Packet packet) {
+        AtomicReferenceArray<Packet> ring = this.ring;
+        long t = tail.get();
+        if (t - head.get() >= ring.length() && ring.length() < capacity)
+            ring = grow(ring, t);
+
+        while (t - head.get() >= capacity) {
+            if (overflowPolicy == OverflowPolicy.dropNewest) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+
+            // Discard the oldest packet.  This races with consumers, so if the CAS fails
+            // a consumer has taken it, and there may be room now.
+            long h = head.get();
+            if (t - h >= capacity && head.compareAndSet(h, h + 1)) {
+                ring.set((int) (h % ring.length()), null);
+                droppedCount.incrementAndGet();
+            }
+        }
+
+        // The slot is outside the range consumers read from, so we can fill it before
+        // publishing it by advancing tail.
+        ring.set((int) (t % ring.length()), packet);
+        tail.set(t + 1);
+
+        // Only lock if a consumer may be waiting.  Consumers register in waiters before
+        // checking for packets, so either they see the new tail or we see them.
+        if (waiters.get() > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Replace a full ring with one twice the size, up to the capacity, holding the same
+     * packets.  Only the producer calls this, before queueing the packet with sequence
+     * number tail.
+     */
+    private AtomicReferenceArray<Packet> grow(AtomicReferenceArray<Packet> old, long tail) {
+        AtomicReferenceArray<Packet> grown =
+            new AtomicReferenceArray<Packet>((int) Math.min((long) old.length() * 2, capacity));
+
+        // Consumers may take packets while we copy.  Copying a taken packet only keeps
+        // it referenced until its slot is reused, or poll() clears it.
+        for (long n = head.get(); n < tail; n++) {
+            grown.set((int) (n % grown.length()), old.get((int) (n % old.length())));
+        }
+        this.ring = grown;
+        return grown;
+    }
+
+    /**
+     * Remove and return the oldest queued packet, or null if none are queued.
+     */
+    private Packet poll() {
+        while (true) {
+            long h = head.get();
+            if (h == tail.get())
+                return null;
+
+            // Read the ring after tail, so it holds the packet at h.
+            AtomicReferenceArray<Packet> ring = this.ring;
+            int index = (int) (h % ring.length());
+            Packet packet = ring.get(index);
+
+            // If head moved, another consumer took this packet, or the producer dropped
+            // it; the slot may have been reused, so retry.
+            if (head.compareAndSet(h, h + 1)) {
+                // Clear the slot so the packet can be collected.  The producer may
+                // already have refilled it, in which case leave it alone.  If the ring
+                // grew meanwhile, the packet was copied into the new ring as well.
+                ring.compareAndSet(index, packet, null);
+                AtomicReferenceArray<Packet> current = this.ring;
+                if (current != ring)
+                    current.compareAndSet((int) (h % current.length()), packet, null);
+                return packet;
+            }
+        }
+    }
+
+    /**
+     * Wait up to timeout milliseconds for a packet to be queued, or indefinitely if
+     * timeout is 0.  If checkConnected is true, also return when the connection is
+     * lost.  This may return early.
+     */
+    private synchronized void waitForPacket(long timeout, boolean checkConnected)
+        throws InterruptedException
+    {
+        waiters.incrementAndGet();
+        try {
+            if (head.get() != tail.get())
+                return;
+            if (checkConnected && !connection.isConnected())
+                return;
+            wait(timeout);
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
     /**
      * Cast the given packet to the type of this PacketCollector.  Throws
      * XMPPException if the packet is of an incorrect type.
@@ -0,0 +1,289 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.XMPPError;
+
+/**
+ * The pending reply to a packet sent with {@link Connection#sendIqAsync}.
+ * <p>
+ * The future is completed by the connection's packet reader when the reply arrives.
+ * It fails with {@link XMPPException} if the reply is an error, if no reply arrives
+ * before the timeout, or if the connection is closed first.  No thread is used while
+ * waiting for the reply, so any number of requests may be pending at once.
+ * <p>
+ * Results can be waited for with {@link #get} or {@link #getResult}, or received
+ * asynchronously with {@link #addCallback}.
+ */
+public class PacketFuture<T extends Packet> implements Future<T> {
+    /**
+     * Receives the outcome of a {@link PacketFuture}.
+     * <p>
+     * Callbacks are called from the thread that completes the future, usually the
+     * connection's packet reader thread, and must not block.
+     */
+    public interface Callback<T> {
+        /** Called with the reply when the request succeeds. */
+        void onResult(T result);
+
+        /**
+         * Called when the request fails.  This is not called if the future is
+         * cancelled.
+         */
+        void onError(XMPPException error);
+    }
+
+    private final Collector collector;
+
+    /** Guarded by this. */
+    private boolean done = false;
+
+    /** Set when the outcome is decided, before the collector is released and done is set. */
+    private boolean completing = false;
+    private boolean cancelled = false;
+    private T result;
+    private XMPPException error;
+    private ScheduledFuture<?> timeoutFuture;
+    private List<Callback<? super T>> callbacks = new ArrayList<Callback<? super T>>();
+
+    PacketFuture(Connection connection, PacketFilter filter, Class<T> cls) {
+        collector = new Collector(connection, filter, cls);
+    }
+
+    /** Return the collector receiving the reply for this future. */
+    PacketCollector<T> getCollector() {
+        return collector;
+    }
+
+    /**
+     * Fail the request if it hasn't completed after timeout milliseconds.
+     */
+    synchronized void scheduleTimeout(ScheduledExecutorService executor, long timeout) {
+        if(done)
+            return;
+
+        timeoutFuture = executor.schedule(new Runnable() {
+            public void run() {
+                fail(new XMPPException("Response timed out", XMPPError.Condition.request_timeout));
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Register a callback to receive the outcome of this request.  If the request has
+     * already completed, the callback is called immediately from this thread.
+     */
+    public void addCallback(Callback<? super T> callback) {
+        synchronized(this) {
+            if(!done) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+
+        if(!cancelled)
+            notifyCallback(callback);
+    }
+
+    /**
+     * Complete the future successfully.  Return false if it was already complete.
+     */
+    boolean complete(T packet) {
+        if(packet.getError() != null)
+            return fail(new XMPPException(packet.getError()));
+
+        synchronized(this) {
+            if(completing)
+                return false;
+            completing = true;
+            result = packet;
+        }
+        finish();
+        return true;
+    }
+
+    /**
+     * Complete the future with an error.  Return false if it was already complete.
+     */
+    boolean fail(XMPPException e) {
+        synchronized(this) {
+            if(completing)
+                return false;
+            completing = true;
+            error = e;
+        }
+        finish();
+        return true;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized(this) {
+            if(completing)
+                return false;
+            completing = true;
+            cancelled = true;
+        }
+        finish();
+        return true;
+    }
+
+    /**
+     * Release the collector and timeout, mark the future done and notify waiters.
+     * The result must already be set.
+     */
+    private void finish() {
+        // Release the collector first, so it's gone by the time waiters see the result.
+        collector.cancel();
+
+        List<Callback<? super T>> callbacksToNotify;
+        synchronized(this) {
+            done = true;
+            if(timeoutFuture != null)
+                timeoutFuture.cancel(false);
+            timeoutFuture = null;
+
+            callbacksToNotify = callbacks;
+            callbacks = null;
+            notifyAll();
+        }
+
+        if(!cancelled) {
+            for(Callback<? super T> callback: callbacksToNotify)
+                notifyCallback(callback);
+        }
+    }
+
+    private void notifyCallback(Callback<? super T> callback) {
+        try {
+            if(error != null)
+                callback.onError(error);
+            else
+                callback.onResult(result);
+        } catch(RuntimeException e) {
+            // Don't let a broken callback prevent other callbacks from running.
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while(!done)
+            wait();
+        return getCompletedResult();
+    }
+
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException
+    {
+        long waitUntil = System.currentTimeMillis() + unit.toMillis(timeout);
+        while(!done) {
+            long waitTime = waitUntil - System.currentTimeMillis();
+            if(waitTime <= 0)
+                throw new TimeoutException();
+            wait(waitTime);
+        }
+        return getCompletedResult();
+    }
+
+    /**
+     * Wait for the reply and return it.  Unlike {@link #get}, errors are thrown
+     * directly.
+     *
+     * @return the reply.
+     * @throws XMPPException if the request failed or was cancelled, or the thread
+     * was interrupted.
+     */
+    public synchronized T getResult() throws XMPPException {
+        try {
+            while(!done)
+                wait();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XMPPException("Thread interrupted", e);
+        }
+
+        if(cancelled)
+            throw new XMPPException("Request cancelled");
+        if(error != null)
+            throw error;
+        return result;
+    }
+
+    private T getCompletedResult() throws ExecutionException {
+        if(cancelled)
+            throw new CancellationException();
+        if(error != null)
+            throw new ExecutionException(error);
+        return result;
+    }
+
+    /**
+     * The collector receiving the reply.  Rather than queueing packets, it completes
+     * the future.
+     */
+    private class Collector extends PacketCollector<T> {
+        private final Class<T> packetClass;
+
+        Collector(Connection connection, PacketFilter filter, Class<T> cls) {
+            // Packets are never queued, so don't allocate space for them.
+            super(connection, filter, cls, 1, OverflowPolicy.dropNewest);
+            packetClass = cls;
+        }
+
+        protected void processPacket(Packet packet) {
+            if(packet == null)
+                return;
+            PacketFilter filter = getPacketFilter();
+            if(filter != null && !filter.accept(packet))
+                return;
+
+            // Error replies are usually parsed as a plain IQ, whatever the type of the
+            // request, so check for errors before the packet type.
+            if(packet.getError() != null) {
+                fail(new XMPPException(packet.getError()));
+                return;
+            }
+
+            if(!packetClass.isInstance(packet)) {
+                fail(new XMPPException("Unexpected packet type received (got " + packet.getClass().getName() + ")"));
+                return;
+            }
+            complete(packetClass.cast(packet));
+        }
+
+        public void connectionLost() {
+            fail(new XMPPException("Connection lost"));
+        }
+    }
+}
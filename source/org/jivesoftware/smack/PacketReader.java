@@ -20,16 +20,27 @@
 
 package org.jivesoftware.smack;
 
+import java.io.IOException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.jivesoftware.smack.Connection.ListenerWrapper;
+import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.ReceivedPacket;
+import org.jivesoftware.smack.util.KeyedSerialExecutor;
 import org.jivesoftware.smack.util.PacketParserUtils;
+import org.jivesoftware.smack.util.RecordingXmlPullParser;
+import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smack.util.XmlUtil;
 import org.w3c.dom.Element;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 /**
  * Listens for XML traffic from the XMPP server and parses it into packet objects.
@@ -40,13 +51,42 @@ import org.w3c.dom.Element;
  * @author Matt Tucker
  */
 class PacketReader {
+    /**
+     * The executor delivering packets to asynchronous listeners in order, if parallel
+     * listener dispatch is disabled.
+     */
     private ExecutorService listenerExecutor;
 
+    /**
+     * The executor delivering packets to asynchronous listeners on a shared executor, if
+     * parallel listener dispatch or non-blocking I/O is enabled.
+     */
+    private KeyedSerialExecutor keyedListenerExecutor;
+
+    /**
+     * If true, packets are delivered in parallel by {@link #getDispatchKey}.  Otherwise,
+     * they're delivered one at a time in the order they were received.
+     */
+    private final boolean parallelDispatch;
+
     private XMPPConnection connection;
 
     protected PacketReader(final XMPPConnection connection) {
         this.connection = connection;
 
+        ConnectionConfiguration config = connection.getConfiguration();
+        parallelDispatch = config.isParallelListenerDispatchEnabled();
+
+        // With non-blocking I/O, don't hold a thread for each connection.  Packets are
+        // still delivered in order, by giving them all the same key.
+        if(parallelDispatch || config.isNonBlockingIOEnabled()) {
+            Executor executor = config.getListenerExecutor();
+            if(executor == null)
+                executor = getSharedListenerExecutor();
+            keyedListenerExecutor = new KeyedSerialExecutor(executor);
+            return;
+        }
+
         // Create an executor to deliver incoming packets to listeners. We'll use a single
         // thread with an unbounded queue.
         listenerExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
@@ -58,6 +98,31 @@ class PacketReader {
             }
         });
     }
+
+    private static ThreadPoolExecutor sharedListenerExecutor;
+
+    /**
+     * Return the listener executor shared by all connections using parallel listener
+     * dispatch or non-blocking I/O without their own executor.  It has one thread per
+     * processor.
+     */
+    private static synchronized Executor getSharedListenerExecutor() {
+        if(sharedListenerExecutor == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            sharedListenerExecutor = new ThreadPoolExecutor(threads, threads,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        int count = 0;
+                        public synchronized Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "Smack Listener Processor (shared " + ++count + ")");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            sharedListenerExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sharedListenerExecutor;
+    }
     
     /**
      * Shuts the packet reader down.
@@ -65,9 +130,12 @@ class PacketReader {
     public void shutdown() {
         // Shut down the listener executor.
         ExecutorService executorRef;
+        KeyedSerialExecutor keyedExecutorRef;
         synchronized(this) {
             executorRef = listenerExecutor;
             listenerExecutor = null;
+            keyedExecutorRef = keyedListenerExecutor;
+            keyedListenerExecutor = null;
         }
 
         if(executorRef != null) {
@@ -80,6 +148,10 @@ class PacketReader {
                 throw new RuntimeException(e);
             }
         }
+
+        // The shared executor isn't ours to shut down; just wait for our listeners to finish.
+        if(keyedExecutorRef != null)
+            keyedExecutorRef.shutdown();
     }
 
     /**
@@ -106,21 +178,128 @@ class PacketReader {
                 receivedPacket = new ReceivedPacket();
             }
 
+            // parseIQ returns null if it already replied with an error.
+            if(receivedPacket == null)
+                return;
+
             receivedPacket.setElement(packet);
+            processPacket(receivedPacket);
+        } catch (XMPPException e) {
+            connection.handleError(e);
+        }
+    }
 
-            for (ListenerWrapper listenerWrapper : connection.recvListeners.values()) {
-                if(listenerWrapper.isSynchronous())
-                    listenerWrapper.notifyListener(receivedPacket);
+    /**
+     * Parse a top-level packet directly from the stream, without building a DOM for
+     * message, presence and IQ stanzas.  The received XML is recorded, so a DOM can be
+     * built if the packet's element is requested.  On return, the parser is positioned
+     * on the packet's closing tag.
+     *
+     * @param parser an {@link XmlPullParser} positioned on the packet's opening tag.
+     * @throws XMPPException if reading or parsing the packet fails.  The stream can't
+     *     continue after this, so this is treated as a connection error.
+     */
+    void parsePacket(XmlPullParser parser) throws XMPPException {
+        Packet receivedPacket;
+        RecordingXmlPullParser recorder;
+        String name = parser.getName();
+        if (name.equals("message")) {
+            recorder = createRecorder(parser);
+            receivedPacket = PacketParserUtils.parseMessage(recorder);
+        }
+        else if (name.equals("iq")) {
+            recorder = createRecorder(parser);
+            receivedPacket = PacketParserUtils.parseIQ(recorder, connection);
+        }
+        else if (name.equals("presence")) {
+            recorder = createRecorder(parser);
+            receivedPacket = PacketParserUtils.parsePresence(recorder);
+        }
+        else {
+            // Anything else is a stream-level element, which is rare and may be inspected
+            // with getElement(), so read it into a DOM as before.
+            try {
+                parsePacket(XmlUtil.ReadNodeFromXmlPull(parser));
+            } catch(IOException e) {
+                throw new XMPPException("I/O error", e);
             }
+            return;
+        }
+
+        // parseIQ returns null if it already replied with an error.
+        if(receivedPacket == null)
+            return;
+
+        receivedPacket.setElement(recorder.getRecording());
+        processPacket(receivedPacket);
+    }
 
-            // Loop through all collectors and notify the appropriate ones.
-            for (PacketCollector collector: connection.getPacketCollectors())
-                collector.processPacket(receivedPacket);
+    private static RecordingXmlPullParser createRecorder(XmlPullParser parser) throws XMPPException {
+        try {
+            return new RecordingXmlPullParser(parser);
+        } catch(XmlPullParserException e) {
+            throw new XMPPException("XML error", e);
+        }
+    }
 
-            // Deliver the received packet to listeners.
+    /**
+     * Deliver a received packet to listeners and collectors.
+     */
+    void processPacket(Packet receivedPacket) {
+        for (ListenerWrapper listenerWrapper : connection.getPacketListeners(receivedPacket)) {
+            if(listenerWrapper.isSynchronous())
+                listenerWrapper.notifyListener(receivedPacket);
+        }
+
+        // Notify the collectors which may accept the packet.
+        for (PacketCollector<?> collector: connection.getPacketCollectors(receivedPacket))
+            collector.processPacket(receivedPacket);
+
+        // Deliver the received packet to listeners.
+        if(keyedListenerExecutor != null) {
+            Object key = parallelDispatch? getDispatchKey(receivedPacket):this;
+            keyedListenerExecutor.execute(key, new ListenerNotification(receivedPacket));
+        }
+        else
             listenerExecutor.submit(new ListenerNotification(receivedPacket));
-        } catch (XMPPException e) {
-            connection.handleError(e);
+    }
+
+    /**
+     * Return the key used to order delivery of packet to asynchronous listeners, when
+     * parallel listener dispatch is enabled.  Packets with equal keys are delivered in
+     * the order they were received.
+     * <p>
+     * IQ results and errors are replies to a single request, so they're keyed by packet ID.
+     * Everything else is keyed by the sender's bare JID, which is the room for MUC
+     * traffic.  Packets from the server itself, such as roster pushes, share one key.
+     */
+    static Object getDispatchKey(Packet packet) {
+        if(packet instanceof IQ && packet.getPacketID() != null) {
+            IQ.Type type = ((IQ) packet).getType();
+            if(type == IQ.Type.RESULT || type == IQ.Type.ERROR)
+                return new PacketIDKey(packet.getPacketID());
+        }
+
+        String from = packet.getFrom();
+        if(from == null)
+            return "";
+        return StringUtils.parseBareAddress(from);
+    }
+
+    /** A dispatch key for a packet ID, which never compares equal to a JID key. */
+    private static class PacketIDKey {
+        private final String packetID;
+
+        PacketIDKey(String packetID) {
+            this.packetID = packetID;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof PacketIDKey && ((PacketIDKey) o).packetID.equals(packetID);
+        }
+
+        public int hashCode() {
+            return packetID.hashCode();
         }
     }
 
@@ -139,7 +318,7 @@ class PacketReader {
             // Listeners are run synchronously to this thread.  Run them before
             // collectors, so a collector can be used to wait until all listeners
             // on a packet have been run.
-            for (ListenerWrapper listenerWrapper : connection.recvListeners.values()) {
+            for (ListenerWrapper listenerWrapper : connection.getPacketListeners(packet)) {
                 if(!listenerWrapper.isSynchronous())
                     listenerWrapper.notifyListener(packet);
             }
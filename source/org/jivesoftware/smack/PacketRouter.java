@@ -0,0 +1,239 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jivesoftware.smack.filter.AndFilter;
+import org.jivesoftware.smack.filter.PacketExtensionFilter;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.filter.PacketIDFilter;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
+
+/**
+ * An index of entries (collectors or listeners) by their {@link PacketFilter}, used to
+ * find the entries which may accept a packet without calling every filter.
+ * <p>
+ * Each entry is indexed by one condition its filter requires: a packet ID for
+ * {@link PacketIDFilter}, an extension namespace for {@link PacketExtensionFilter}, or a
+ * packet class for {@link PacketTypeFilter}.  For {@link AndFilter}, the most selective
+ * of these among its filters is used.  Entries with any other filter are returned for
+ * every packet.
+ * <p>
+ * The index only narrows down candidates; callers must still check each entry's filter.
+ * Lookups don't lock, and may run concurrently with changes.
+ */
+class PacketRouter<T> {
+    /**
+     * Entries by key.  Values are never modified once stored; changes replace the
+     * array.  Only modified while synchronized on this.
+     */
+    private final Map<Object, Object[]> index = new ConcurrentHashMap<Object, Object[]>();
+
+    /** Entries whose filters can't be indexed.  Replaced on change, like {@link #index}. */
+    private volatile Object[] residual = new Object[0];
+
+    /** The key each entry is stored under, or {@link #RESIDUAL}.  Guarded by this. */
+    private final Map<T, Object> entryKeys = new HashMap<T, Object>();
+
+    private static final Object RESIDUAL = new Object();
+
+    /**
+     * Add an entry to the index.  If the entry is already present, it's re-indexed
+     * with the new filter.
+     *
+     * @param entry the entry to add.
+     * @param filter the entry's filter, or null if it accepts all packets.
+     */
+    public synchronized void add(T entry, PacketFilter filter) {
+        remove(entry);
+
+        Object key = getKey(filter);
+        if(key == null) {
+            residual = append(residual, entry);
+            entryKeys.put(entry, RESIDUAL);
+        } else {
+            Object[] entries = index.get(key);
+            index.put(key, append(entries != null? entries:new Object[0], entry));
+            entryKeys.put(entry, key);
+        }
+    }
+
+    /**
+     * Remove an entry from the index.
+     *
+     * @return true if the entry was present.
+     */
+    public synchronized boolean remove(T entry) {
+        Object key = entryKeys.remove(entry);
+        if(key == null)
+            return false;
+
+        if(key == RESIDUAL) {
+            residual = without(residual, entry);
+        } else {
+            Object[] entries = without(index.get(key), entry);
+            if(entries.length == 0)
+                index.remove(key);
+            else
+                index.put(key, entries);
+        }
+        return true;
+    }
+
+    /** Remove all entries. */
+    public synchronized void clear() {
+        index.clear();
+        residual = new Object[0];
+        entryKeys.clear();
+    }
+
+    /** Return true if the index has no entries. */
+    public synchronized boolean isEmpty() {
+        return entryKeys.isEmpty();
+    }
+
+    /**
+     * Return the entries whose filters may accept packet.
+     */
+    public List<T> getCandidates(Packet packet) {
+        List<T> result = new ArrayList<T>();
+        addAll(result, residual);
+
+        if(index.isEmpty())
+            return result;
+
+        String packetID = packet.getPacketID();
+        if(packetID != null)
+            addAll(result, index.get(new PacketIDKey(packetID)));
+
+        // Look up each class the packet is an instance of.
+        for(Class<?> cls = packet.getClass(); cls != null && Packet.class.isAssignableFrom(cls); cls = cls.getSuperclass())
+            addAll(result, index.get(cls));
+
+        Collection<PacketExtension> extensions = packet.getExtensions();
+        if(!extensions.isEmpty()) {
+            Set<String> namespaces = new HashSet<String>();
+            for(PacketExtension extension: extensions) {
+                String namespace = extension.getNamespace();
+                if(namespace != null && namespaces.add(namespace))
+                    addAll(result, index.get(new NamespaceKey(namespace)));
+            }
+        }
+
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void addAll(List<T> result, Object[] entries) {
+        if(entries == null)
+            return;
+        for(Object entry: entries)
+            result.add((T) entry);
+    }
+
+    private static Object[] append(Object[] entries, Object entry) {
+        Object[] result = Arrays.copyOf(entries, entries.length + 1);
+        result[entries.length] = entry;
+        return result;
+    }
+
+    private static Object[] without(Object[] entries, Object entry) {
+        List<Object> result = new ArrayList<Object>(Arrays.asList(entries));
+        result.remove(entry);
+        return result.toArray();
+    }
+
+    /**
+     * Return the index key for filter, or null if it can't be indexed.
+     */
+    static Object getKey(PacketFilter filter) {
+        if(filter instanceof PacketIDFilter)
+            return new PacketIDKey(((PacketIDFilter) filter).getPacketID());
+
+        if(filter instanceof PacketExtensionFilter) {
+            String namespace = ((PacketExtensionFilter) filter).getNamespace();
+            return namespace != null? new NamespaceKey(namespace):null;
+        }
+
+        if(filter instanceof PacketTypeFilter)
+            return ((PacketTypeFilter) filter).getPacketType();
+
+        if(filter instanceof AndFilter) {
+            // Every filter in an AndFilter must accept a packet, so any of their keys
+            // can be used.  Prefer packet IDs, which are unique, then namespaces; packet
+            // types are the least selective.
+            Object best = null;
+            for(PacketFilter child: ((AndFilter) filter).getFilters()) {
+                Object key = getKey(child);
+                if(key != null && (best == null || getSelectivity(key) > getSelectivity(best)))
+                    best = key;
+            }
+            return best;
+        }
+
+        return null;
+    }
+
+    private static int getSelectivity(Object key) {
+        if(key instanceof PacketIDKey)
+            return 2;
+        if(key instanceof NamespaceKey)
+            return 1;
+        return 0;
+    }
+
+    private static class PacketIDKey {
+        private final String packetID;
+
+        PacketIDKey(String packetID) {
+            this.packetID = packetID;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof PacketIDKey && ((PacketIDKey) o).packetID.equals(packetID);
+        }
+
+        public int hashCode() {
+            return packetID.hashCode();
+        }
+    }
+
+    private static class NamespaceKey {
+        private final String namespace;
+
+        NamespaceKey(String namespace) {
+            this.namespace = namespace;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof NamespaceKey && ((NamespaceKey) o).namespace.equals(namespace);
+        }
+
+        public int hashCode() {
+            return namespace.hashCode();
+        }
+    }
+}
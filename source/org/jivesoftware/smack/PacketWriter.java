@@ -20,18 +20,37 @@
 
 package org.jivesoftware.smack;
 
+import org.jivesoftware.smack.ConnectionConfiguration.BackpressurePolicy;
+import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.util.ThreadUtil;
 
 import java.io.IOException;
-import java.util.Vector;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Writes packets to a XMPP server. Packets are sent using a dedicated thread. Packet
- * interceptors can be registered to dynamically modify packets before they're actually
- * sent. Packet listeners can be registered to listen for all outgoing packets.
+ * Writes packets to a XMPP server. Packets are sent using a dedicated thread, or with
+ * non-blocking I/O, by a fixed pool of threads shared by all connections, which writes
+ * one batch at a time for each connection with packets queued. Packet interceptors
+ * can be registered to dynamically modify packets before they're actually sent.
+ * Packet listeners can be registered to listen for all outgoing packets.<p>
+ *
+ * Packets which are queued together are written to the stream in batches, with one
+ * write and flush per batch.  See {@link ConnectionConfiguration#setWriteBatchMaxPackets},
+ * {@link ConnectionConfiguration#setWriteBatchMaxSize} and
+ * {@link ConnectionConfiguration#setWriteLingerTime}.
  *
  * @see Connection#addPacketInterceptor
  * @see Connection#addPacketSendingListener
@@ -45,17 +64,53 @@ class PacketWriter {
     private final BlockingQueue<Packet> queue;
     private boolean done;
 
+    /**
+     * The shared executor which writes queued packets, or null if this writer has its
+     * own thread.
+     */
+    private final Executor sharedExecutor;
+
+    /**
+     * True while a task on {@link #sharedExecutor} is scheduled to write packets.
+     * Guarded by this.
+     */
+    private boolean draining = false;
+
+    /** Writes a batch of packets on {@link #sharedExecutor}. */
+    private final Runnable drainTask = new Runnable() {
+        public void run() { drainPackets(); }
+    };
+
+    private final ConnectionConfiguration.BackpressurePolicy backpressurePolicy;
+    private final long backpressureTimeout;
+
+    /** The largest number of packets that have been in the queue at once. */
+    private final AtomicInteger highWatermark = new AtomicInteger();
+
+    /** The number of packets dropped by {@link BackpressurePolicy#dropLowPriority}. */
+    private final AtomicLong droppedPackets = new AtomicLong();
+
     /**
      * Creates a new packet writer with the specified connection.
      *
      * @param connection the connection.
      */
     protected PacketWriter(XMPPConnection connection) {
-        this.queue = new ArrayBlockingQueue<Packet>(500, true);
+        ConnectionConfiguration config = connection.getConfiguration();
+        this.queue = new ArrayBlockingQueue<Packet>(config.getPacketQueueCapacity(), config.isPacketQueueFair());
+        this.backpressurePolicy = config.getBackpressurePolicy();
+        this.backpressureTimeout = config.getBackpressureTimeout();
         this.connection = connection;
         
         done = false;
 
+        // With non-blocking I/O, don't hold a thread for each connection.
+        if(config.isNonBlockingIOEnabled()) {
+            sharedExecutor = getSharedWriterExecutor();
+            return;
+        }
+        sharedExecutor = null;
+
         writerThread = new Thread() {
             public void run() { writePackets(this); }
         };
@@ -65,21 +120,30 @@ class PacketWriter {
     }
 
     /**
-     * Sends the specified packet to the server.
+     * Sends the specified packet to the server.  If the queue is full, the connection's
+     * {@link BackpressurePolicy} is applied.  Packet sending listeners aren't called for
+     * packets which are dropped.
      *
      * @param packet the packet to send.
+     * @throws XMPPException if the queue is full and the packet was rejected.
      */
-    public void sendPacket(Packet packet) {
+    public void sendPacket(Packet packet) throws XMPPException {
         if (!done) {
             // Invoke interceptors for the new packet that is about to be sent. Interceptors
             // may modify the content of the packet.
             connection.firePacketInterceptors(packet);
 
+            if(!enqueue(packet))
+                return;
+
             synchronized(this) {
-                if(!queue.offer(packet)) {
-                    throw new RuntimeException("Queue overflow");
-                }
                 this.notifyAll();
+
+                // Start writing on the shared executor, unless a task is already writing.
+                if(sharedExecutor != null && !draining) {
+                    draining = true;
+                    sharedExecutor.execute(drainTask);
+                }
             }
 
             // Process packet writer listeners. Note that we're using the sending
@@ -88,6 +152,111 @@ class PacketWriter {
         }
     }
 
+    /**
+     * Add packet to the queue, applying the backpressure policy if it's full.
+     *
+     * @return true if the packet was queued, or false if it was dropped.
+     * @throws XMPPException if the packet was rejected.
+     */
+    private boolean enqueue(Packet packet) throws XMPPException {
+        boolean queued = queue.offer(packet);
+
+        if(!queued && backpressurePolicy == BackpressurePolicy.dropLowPriority) {
+            if(isLowPriority(packet)) {
+                droppedPackets.incrementAndGet();
+                return false;
+            }
+
+            // Make room by dropping a queued low-priority packet, if there is one.
+            if(dropQueuedLowPriorityPacket())
+                queued = queue.offer(packet);
+        }
+
+        if(!queued && backpressurePolicy != BackpressurePolicy.reject) {
+            try {
+                queued = queue.offer(packet, backpressureTimeout, TimeUnit.MILLISECONDS);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new XMPPException("Interrupted while waiting to send a packet");
+            }
+        }
+
+        if(!queued)
+            throw new XMPPException("Outgoing packet queue is full");
+
+        // Update the high watermark.
+        int size = queue.size();
+        while(true) {
+            int current = highWatermark.get();
+            if(size <= current || highWatermark.compareAndSet(current, size))
+                break;
+        }
+
+        return true;
+    }
+
+    /**
+     * Remove the oldest low-priority packet from the queue.
+     *
+     * @return true if a packet was removed.
+     */
+    private boolean dropQueuedLowPriorityPacket() {
+        for(Iterator<Packet> it = queue.iterator(); it.hasNext(); ) {
+            Packet queuedPacket = it.next();
+            if(isLowPriority(queuedPacket) && queue.remove(queuedPacket)) {
+                droppedPackets.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if packet can be dropped under backpressure: presence updates, and
+     * messages which carry only a chat state notification.  Presence subscription
+     * management packets are never dropped.
+     */
+    static boolean isLowPriority(Packet packet) {
+        if(packet instanceof Presence) {
+            Presence.Type type = ((Presence) packet).getType();
+            return type == Presence.Type.available || type == Presence.Type.unavailable;
+        }
+
+        if(packet instanceof Message) {
+            Message message = (Message) packet;
+            if(!message.getBodies().isEmpty() || !message.getSubjects().isEmpty())
+                return false;
+
+            Collection<PacketExtension> extensions = message.getExtensions();
+            if(extensions.isEmpty())
+                return false;
+            for(PacketExtension extension: extensions) {
+                if(!CHAT_STATES_NAMESPACE.equals(extension.getNamespace()))
+                    return false;
+            }
+            return true;
+        }
+
+        return false;
+    }
+
+    private static final String CHAT_STATES_NAMESPACE = "http://jabber.org/protocol/chatstates";
+
+    /** Returns the number of packets waiting to be written. */
+    int getQueueSize() {
+        return queue.size();
+    }
+
+    /** Returns the largest number of packets that have been waiting to be written at once. */
+    int getQueueHighWatermark() {
+        return highWatermark.get();
+    }
+
+    /** Returns the number of packets dropped due to backpressure. */
+    long getDroppedPacketCount() {
+        return droppedPackets.get();
+    }
+
     /**
      * Shuts down the packet writer. Once this method has been called, no further
      * packets will be written to the server.
@@ -100,23 +269,69 @@ class PacketWriter {
             writerThreadRef = writerThread;
             done = true;
             this.notifyAll();
+
+            // Wait for a shared executor task writing packets to finish.
+            while(draining)
+                ThreadUtil.uninterruptibleMonitorWait(this);
         }
 
         if(writerThreadRef != null)
             ThreadUtil.uninterruptibleJoin(writerThreadRef);
+        else
+            flushQueue(new StringBuilder(), new int[Math.max(1, connection.getConfiguration().getWriteBatchMaxPackets())]);
+    }
+
+    private static ThreadPoolExecutor sharedWriterExecutor;
+
+    /**
+     * Return the executor writing packets for all connections using non-blocking I/O.
+     * It has {@link SmackConfiguration#getNonBlockingIOThreads} threads, like the I/O
+     * threads serving the sockets.  Each task writes one batch, so connections with
+     * packets queued take turns.
+     * <p>
+     * A write only blocks once a connection's socket has fallen far behind, so a
+     * connection which stops reading holds a thread until it catches up or is closed.
+     */
+    private static synchronized Executor getSharedWriterExecutor() {
+        if(sharedWriterExecutor == null) {
+            int threads = SmackConfiguration.getNonBlockingIOThreads();
+            sharedWriterExecutor = new ThreadPoolExecutor(threads, threads,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        int count = 0;
+                        public synchronized Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "Smack Packet Writer (shared " + ++count + ")");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            sharedWriterExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sharedWriterExecutor;
     }
 
     /**
-     * Returns the next available packet from the queue for writing.
+     * Returns the next available packet from the queue for writing.  If timeout is
+     * greater than 0, waits at most that many milliseconds and returns null if no packet
+     * arrives; otherwise waits indefinitely.  Returns null if we're done.
      *
      * @return the next packet for writing.
      */
-    private synchronized Packet nextPacket() {
+    private synchronized Packet nextPacket(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+
         // Wait until there's a packet or we're done.
         Packet packet = null;
         while (!done && (packet = queue.poll()) == null) {
+            long waitTime = 0;
+            if(timeout > 0) {
+                waitTime = deadline - System.currentTimeMillis();
+                if(waitTime <= 0)
+                    return null;
+            }
+
             try {
-                this.wait();
+                this.wait(waitTime);
             }
             catch (InterruptedException ie) {
                 Thread.currentThread().interrupt();
@@ -127,35 +342,72 @@ class PacketWriter {
         return packet;
     }
 
+    /**
+     * Serialize packet directly into batch, without building an intermediate String.
+     */
+    private static void appendPacket(StringBuilder batch, Packet packet) {
+        try {
+            packet.appendXML(batch);
+        } catch(IOException e) {
+            // StringBuilder doesn't throw IOException.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Append packets to batch, starting with firstPacket, until the batch is full or
+     * no more packets are available.  The end offset of each packet is stored in ends.
+     * If linger is greater than 0, wait up to that many milliseconds for more packets
+     * to arrive.  Returns the number of packets added.
+     */
+    private int fillBatch(StringBuilder batch, int[] ends, Packet firstPacket, long linger) {
+        final int maxPackets = connection.getConfiguration().getWriteBatchMaxPackets();
+        final int maxSize = connection.getConfiguration().getWriteBatchMaxSize();
+        final long deadline = System.currentTimeMillis() + linger;
+
+        appendPacket(batch, firstPacket);
+        ends[0] = batch.length();
+        int count = 1;
+        while(count < maxPackets && batch.length() < maxSize) {
+            Packet packet = queue.poll();
+            if(packet == null && linger > 0 && !done) {
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining > 0)
+                    packet = nextPacket(remaining);
+            }
+            if(packet == null)
+                break;
+
+            appendPacket(batch, packet);
+            ends[count++] = batch.length();
+        }
+        return count;
+    }
+
     private void writePackets(Thread thisThread) {
+        // The batch buffer is reused for each write, so we don't reallocate it for
+        // every packet.
+        StringBuilder batch = new StringBuilder();
+        int[] ends = new int[Math.max(1, connection.getConfiguration().getWriteBatchMaxPackets())];
+        final int maxSize = connection.getConfiguration().getWriteBatchMaxSize();
+        final long linger = connection.getConfiguration().getWriteLingerTime();
+
         try {
             // Write out packets from the queue.
             while (!done && (writerThread == thisThread)) {
-                Packet packet = nextPacket();
+                Packet packet = nextPacket(0);
                 if (packet != null) {
-                    Vector<Packet> packets = new Vector<Packet>();
-                    packets.add(packet);
-                    connection.writePacket(packets);
-                }
-            }
-            // Flush out the rest of the queue. If the queue is extremely large, it's possible
-            // we won't have time to entirely flush it before the socket is forced closed
-            // by the shutdown process.
-            try {
-                Vector<Packet> packets = new Vector<Packet>();
-                packets.addAll(queue);
+                    int count = fillBatch(batch, ends, packet, linger);
+                    connection.writeStanzas(batch.toString(), ends, count);
 
-                // Until we receive a packet, it's not valid to call writePacket.  Don't call
-                // it at all if we have no packets to send.
-                if(packets.size() > 0)
-                    connection.writePacket(packets);
-            }
-            catch (XMPPException e) {
-                // e.printStackTrace();
+                    // Don't hold on to an unusually large buffer after a large packet.
+                    if(batch.capacity() > maxSize * 2)
+                        batch = new StringBuilder();
+                    else
+                        batch.setLength(0);
+                }
             }
-
-            // Delete the queue contents (hopefully nothing is left).
-            queue.clear();
+            flushQueue(batch, ends);
         }
         catch (XMPPException ioe){
             // Don't report write errors.  Instead, require that any write errors at the
@@ -165,4 +417,74 @@ class PacketWriter {
             done = true;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Flush out the rest of the queue once we're done. If the queue is extremely large,
+     * it's possible we won't have time to entirely flush it before the socket is forced
+     * closed by the shutdown process.
+     */
+    private void flushQueue(StringBuilder batch, int[] ends) {
+        try {
+            // Until we receive a packet, it's not valid to call writePacket.  Don't call
+            // it at all if we have no packets to send.
+            Packet packet;
+            while((packet = queue.poll()) != null) {
+                batch.setLength(0);
+                int count = fillBatch(batch, ends, packet, 0);
+                connection.writeStanzas(batch.toString(), ends, count);
+            }
+        }
+        catch (XMPPException e) {
+            // e.printStackTrace();
+        }
+
+        // Delete the queue contents (hopefully nothing is left).
+        queue.clear();
+    }
+
+    /**
+     * Write one batch of queued packets.  This runs on the shared executor, and
+     * reschedules itself while packets remain, rather than holding the thread until
+     * the queue is empty.
+     */
+    private void drainPackets() {
+        try {
+            Packet packet = queue.poll();
+            if(packet != null) {
+                StringBuilder batch = new StringBuilder();
+                int[] ends = new int[Math.max(1, connection.getConfiguration().getWriteBatchMaxPackets())];
+                long linger = done? 0:connection.getConfiguration().getWriteLingerTime();
+                int count = fillBatch(batch, ends, packet, linger);
+                connection.writeStanzas(batch.toString(), ends, count);
+            }
+
+            // sendPacket queues before checking draining, so once we've seen the queue
+            // empty while holding the lock, a new packet starts a new task.
+            synchronized(this) {
+                if(queue.isEmpty()) {
+                    draining = false;
+                    this.notifyAll();
+                    return;
+                }
+            }
+            sharedExecutor.execute(drainTask);
+        }
+        catch (XMPPException ioe) {
+            // As with the writer thread, write errors are reported by the reader.
+            new Exception(ioe).printStackTrace();
+            synchronized(this) {
+                done = true;
+                queue.clear();
+                draining = false;
+                this.notifyAll();
+            }
+        }
+        catch (RuntimeException e) {
+            synchronized(this) {
+                draining = false;
+                this.notifyAll();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ThreadFactory;
+
+import org.jivesoftware.smack.util.DNSUtil;
+import org.jivesoftware.smack.util.DNSUtil.HostAddress;
+import org.xbill.DNS.Type;
+
+/**
+ * Connects a socket to the first reachable server in a list, racing connection attempts
+ * with staggered starts ("happy eyeballs", RFC 8305).
+ * <p>
+ * Servers are tried in order, so earlier (higher priority) servers get a head start.
+ * Each server's IPv6 and IPv4 addresses are interleaved, and each address is tried
+ * {@link #STAGGER} milliseconds after the previous one, or immediately if every attempt
+ * in progress has failed.  The first socket to connect wins; the others are closed.
+ */
+class ParallelConnector {
+    /** The delay before starting the next attempt while earlier ones are still connecting. */
+    static final long STAGGER = 250;
+
+    /** The winning connection. */
+    static class Result {
+        final Socket socket;
+        final HostAddress address;
+
+        Result(Socket socket, HostAddress address) {
+            this.socket = socket;
+            this.address = address;
+        }
+    }
+
+    /** A single address to try. */
+    private static class Candidate {
+        final InetAddress ip;
+        final HostAddress address;
+
+        Candidate(InetAddress ip, HostAddress address) {
+            this.ip = ip;
+            this.address = address;
+        }
+    }
+
+    private final List<HostAddress> hosts;
+    private final ThreadFactory threadFactory;
+
+    /* Guarded by this. */
+    private boolean cancelled = false;
+    private Result winner;
+    private final List<Socket> sockets = new ArrayList<Socket>();
+    private final List<DNSUtil.CancellableLookup> lookups = new ArrayList<DNSUtil.CancellableLookup>();
+    private int running = 0;
+    private Exception firstError;
+
+    ParallelConnector(List<HostAddress> hosts, ThreadFactory threadFactory) {
+        this.hosts = hosts;
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Connect to one of the servers.  This blocks until a connection succeeds, every
+     * attempt fails, or {@link #cancel} is called.
+     *
+     * @throws XMPPException if no server could be reached, or the connection was cancelled.
+     */
+    Result connect() throws XMPPException {
+        Iterator<HostAddress> nextHost = hosts.iterator();
+        LinkedList<Candidate> candidates = new LinkedList<Candidate>();
+
+        while(true) {
+            // Resolve the next server when we run out of addresses.  Lookups are usually
+            // cached, so this doesn't significantly delay the next attempt.
+            if(candidates.isEmpty() && nextHost.hasNext()) {
+                resolve(nextHost.next(), candidates);
+                continue;
+            }
+
+            synchronized(this) {
+                if(winner == null && !cancelled && !candidates.isEmpty()) {
+                    start(candidates.removeFirst());
+
+                    // Give the attempts in progress a head start before starting another,
+                    // unless they've all failed.
+                    long waitUntil = System.currentTimeMillis() + STAGGER;
+                    while(winner == null && !cancelled && running > 0) {
+                        long ms = waitUntil - System.currentTimeMillis();
+                        if(ms <= 0)
+                            break;
+                        waitUninterruptibly(ms);
+                    }
+                }
+
+                // If nothing is left to start, wait for the attempts in progress.
+                if(candidates.isEmpty() && !nextHost.hasNext()) {
+                    while(winner == null && !cancelled && running > 0)
+                        waitUninterruptibly(0);
+                }
+
+                if(cancelled)
+                    throw new XMPPException("Connection cancelled");
+
+                if(winner != null) {
+                    // Close the attempts which lost the race.
+                    for(Socket socket: sockets) {
+                        if(socket != winner.socket)
+                            closeQuietly(socket);
+                    }
+                    return winner;
+                }
+
+                if(candidates.isEmpty() && !nextHost.hasNext()) {
+                    if(firstError instanceof XMPPException)
+                        throw (XMPPException) firstError;
+                    throw new XMPPException("Could not connect to " + hosts, firstError);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancel the connection.  Attempts in progress are closed, and {@link #connect} throws.
+     * This may be called from any thread.
+     */
+    void cancel() {
+        synchronized(this) {
+            cancelled = true;
+            for(Socket socket: sockets)
+                closeQuietly(socket);
+            for(DNSUtil.CancellableLookup lookup: lookups)
+                lookup.cancel();
+            notifyAll();
+        }
+    }
+
+    /** Look up host's addresses, adding them to candidates with IPv6 and IPv4 interleaved. */
+    private void resolve(HostAddress host, List<Candidate> candidates) throws XMPPException {
+        // IP literals don't need a lookup.
+        if(isAddressLiteral(host.getHost())) {
+            try {
+                candidates.add(new Candidate(InetAddress.getByName(host.getHost()), host));
+            } catch(UnknownHostException e) {
+                synchronized(this) {
+                    if(firstError == null)
+                        firstError = e;
+                }
+            }
+            return;
+        }
+
+        DNSUtil.AddressLookup lookup6 = new DNSUtil.AddressLookup(host.getHost(), Type.AAAA);
+        DNSUtil.AddressLookup lookup4 = new DNSUtil.AddressLookup(host.getHost(), Type.A);
+        synchronized(this) {
+            if(cancelled)
+                throw new XMPPException("Connection cancelled");
+            lookups.add(lookup6);
+            lookups.add(lookup4);
+        }
+
+        Vector<InetAddress> ips6 = lookup6.run();
+        Vector<InetAddress> ips4 = lookup4.run();
+
+        synchronized(this) {
+            lookups.remove(lookup6);
+            lookups.remove(lookup4);
+            if(cancelled || ips6 == null || ips4 == null)
+                throw new XMPPException("Connection cancelled");
+
+        }
+
+        // If DNS has no addresses, fall back on the system resolver, which also knows
+        // about local hosts files.  This isn't cancellable, but is rarely reached.
+        if(ips6.isEmpty() && ips4.isEmpty()) {
+            try {
+                for(InetAddress ip: InetAddress.getAllByName(host.getHost())) {
+                    if(ip instanceof Inet6Address)
+                        ips6.add(ip);
+                    else
+                        ips4.add(ip);
+                }
+            } catch(UnknownHostException e) {
+                synchronized(this) {
+                    if(firstError == null)
+                        firstError = e;
+                }
+            }
+        }
+
+        for(int i = 0; i < Math.max(ips6.size(), ips4.size()); ++i) {
+            if(i < ips6.size() && ips6.get(i) instanceof Inet6Address)
+                candidates.add(new Candidate(ips6.get(i), host));
+            if(i < ips4.size())
+                candidates.add(new Candidate(ips4.get(i), host));
+        }
+    }
+
+    /** Start connecting to candidate in a new thread. */
+    private void start(final Candidate candidate) {
+        final Socket socket = new Socket(Proxy.NO_PROXY);
+        sockets.add(socket);
+        running++;
+
+        Thread thread = threadFactory.newThread(new Runnable() {
+            public void run() {
+                Exception error = null;
+                try {
+                    // Don't pass the InetAddress directly to InetSocketAddress; it'll do a
+                    // reverse IP lookup, which we don't want.
+                    socket.connect(new InetSocketAddress(candidate.ip.getHostAddress(),
+                            candidate.address.getPort()));
+                } catch(IOException e) {
+                    error = e;
+                }
+
+                synchronized(ParallelConnector.this) {
+                    running--;
+                    if(error == null && winner == null && !cancelled)
+                        winner = new Result(socket, candidate.address);
+                    else if(error == null)
+                        closeQuietly(socket);
+                    else if(firstError == null)
+                        firstError = error;
+                    ParallelConnector.this.notifyAll();
+                }
+            }
+        });
+        thread.setName("Smack connect (" + candidate.ip.getHostAddress() + ":" + candidate.address.getPort() + ")");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Return true if host is an IPv4 or IPv6 address rather than a hostname. */
+    private static boolean isAddressLiteral(String host) {
+        return host.indexOf(':') != -1 || host.matches("[0-9]{1,3}(\\.[0-9]{1,3}){3}");
+    }
+
+    private void waitUninterruptibly(long ms) {
+        try {
+            wait(ms);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch(IOException e) {
+            // ignore
+        }
+    }
+}
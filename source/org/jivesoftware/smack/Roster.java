@@ -20,6 +20,10 @@
 
 package org.jivesoftware.smack;
 
+import org.jivesoftware.smack.filter.AndFilter;
+import org.jivesoftware.smack.filter.IQTypeFilter;
+import org.jivesoftware.smack.filter.NotFilter;
+import org.jivesoftware.smack.filter.OrFilter;
 import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.filter.PacketIDFilter;
 import org.jivesoftware.smack.filter.PacketTypeFilter;
@@ -65,6 +69,18 @@ public class Roster {
     private Map<String, Map<String, Presence>> presenceMap;
     private PresencePacketListener presencePacketListener;
 
+    /** The local copy of the roster, or null if the roster isn't stored. */
+    private final RosterStore rosterStore;
+
+    /**
+     * False once the store has failed to save a change.  Later changes aren't stored,
+     * so its version stays behind and the missed changes are sent on the next login.
+     */
+    private boolean rosterStoreValid = true;
+
+    /** The packet IDs of roster requests awaiting a reply. */
+    private final Set<String> pendingReloads = new HashSet<String>();
+
     private SubscriptionMode subscriptionMode = getDefaultSubscriptionMode();
 
     /**
@@ -103,10 +119,21 @@ public class Roster {
         entries = new ConcurrentHashMap<String,RosterEntry>();
         rosterListeners = new CopyOnWriteArrayList<RosterListener>();
         presenceMap = new ConcurrentHashMap<String, Map<String, Presence>>();
+
+        // Start with the stored roster, if any.
+        rosterStore = connection.getConfiguration().getRosterStore();
+        if (rosterStore != null)
+            loadFromStore();
+
         // Listen for any roster packets.
         PacketFilter rosterFilter = new PacketTypeFilter(RosterPacket.class);
         connection.addPacketListener(new RosterPacketListenerSync(), rosterFilter);
         connection.addPacketListener(new RosterPacketListener(), rosterFilter);
+        // Listen for replies to roster requests which carry no roster.
+        PacketFilter emptyReplyFilter = new AndFilter(new PacketTypeFilter(IQ.class),
+                new NotFilter(rosterFilter),
+                new OrFilter(new IQTypeFilter(IQ.Type.RESULT), new IQTypeFilter(IQ.Type.ERROR)));
+        connection.addPacketListener(new EmptyReplyListener(), emptyReplyFilter);
         // Listen for any presence packets.
         PacketFilter presenceFilter = new PacketTypeFilter(Presence.class);
         presencePacketListener = new PresencePacketListener();
@@ -199,11 +226,35 @@ public class Roster {
         }
 
         RosterPacket packet = new RosterPacket();
+
+        // If we have a stored roster, ask for the changes since its version.  An empty
+        // version asks for the full roster, versioned so later logins can do the same.
+        if (rosterStore != null && connection.isRosterVersioningSupported()) {
+            String version;
+            synchronized (this) {
+                version = rosterStoreValid? rosterStore.getRosterVersion():null;
+            }
+            packet.setVersion(version != null? version:"");
+        }
+
+        synchronized (this) {
+            pendingReloads.add(packet.getPacketID());
+        }
+
         PacketCollector coll = connection.createPacketCollector(new PacketIDFilter(packet));
         connection.sendPacket(packet);
         return coll;
     }
 
+    /**
+     * Returns the number of roster requests awaiting a reply.
+     *
+     * @return the number of pending roster requests.
+     */
+    synchronized int getPendingReloadCount() {
+        return pendingReloads.size();
+    }
+
     /**
      * Adds a listener to this roster. The listener will be fired anytime one or more
      * changes to the roster are pushed from the server.
@@ -925,8 +976,10 @@ public class Roster {
         for (String groupName: groupNames) {
             // Add the entry to the group.
             RosterGroup group = getGroup(groupName);
-            if (group == null)
-                group = createGroup(groupName);
+            if (group == null) {
+                group = new RosterGroup(groupName, connection);
+                groups.put(groupName, group);
+            }
 
             group.addEntryLocal(entry);
         }
@@ -983,6 +1036,63 @@ public class Roster {
         markDeleted(entry.getUser());
     }
 
+    /**
+     * Load the roster from the store.  These entries aren't reported to listeners as
+     * added; only differences from the stored roster are.
+     */
+    private synchronized void loadFromStore() {
+        for (RosterPacket.Item item : rosterStore.getEntries()) {
+            addEntryLocal(item);
+            updateGroupsLocal(item, item.getGroupNames());
+        }
+
+        addedEntries.clear();
+        updatedEntries.clear();
+        deletedEntries.clear();
+    }
+
+    /**
+     * Replace the roster with the full roster from the server, removing any entries
+     * which aren't in it.
+     */
+    private synchronized void resetEntriesLocal(RosterPacket rosterPacket) {
+        Set<String> users = new HashSet<String>();
+        for (RosterPacket.Item item : rosterPacket.getRosterItems())
+            users.add(item.getUser());
+
+        for (RosterEntry entry : new ArrayList<RosterEntry>(entries.values())) {
+            if (!users.contains(entry.getUser()))
+                removeEntryLocal(RosterEntry.toRosterItem(entry));
+        }
+
+        for (RosterPacket.Item item : rosterPacket.getRosterItems()) {
+            addEntryLocal(item);
+            updateGroupsLocal(item, item.getGroupNames());
+        }
+
+        if (rosterStore != null)
+            rosterStoreValid = rosterStore.resetEntries(rosterPacket.getRosterItems(), rosterPacket.getVersion());
+    }
+
+    /** Save a roster push to the store. */
+    private synchronized void storePush(RosterPacket rosterPacket) {
+        if (rosterStore == null || !rosterStoreValid)
+            return;
+
+        for (RosterPacket.Item item : rosterPacket.getRosterItems()) {
+            boolean stored;
+            if (item.getItemType() == RosterPacket.ItemType.remove)
+                stored = rosterStore.removeEntry(item.getUser(), rosterPacket.getVersion());
+            else
+                stored = rosterStore.addEntry(item, rosterPacket.getVersion());
+
+            if (!stored) {
+                rosterStoreValid = false;
+                return;
+            }
+        }
+    }
+
     /** 
      * Update the roster based on roster packets.
      * <p>
@@ -996,6 +1106,20 @@ public class Roster {
     private class RosterPacketListenerSync extends SynchronousPacketListener {
         public void processPacket(Packet packet) {
             RosterPacket rosterPacket = (RosterPacket) packet;
+
+            // The result of a roster request is the whole roster.
+            boolean reply;
+            synchronized (Roster.this) {
+                reply = (rosterPacket.getType() == IQ.Type.RESULT ||
+                        rosterPacket.getType() == IQ.Type.ERROR) &&
+                    pendingReloads.remove(rosterPacket.getPacketID());
+            }
+            if (reply) {
+                if (rosterPacket.getType() == IQ.Type.RESULT)
+                    resetEntriesLocal(rosterPacket);
+                return;
+            }
+
             for (RosterPacket.Item item : rosterPacket.getRosterItems()) {
                 // Add or remove the entry.
                 if (item.getItemType() == RosterPacket.ItemType.remove) {
@@ -1005,6 +1129,22 @@ public class Roster {
                     updateGroupsLocal(item, item.getGroupNames());
                 }
             }
+
+            if (rosterPacket.getType() == IQ.Type.SET)
+                storePush(rosterPacket);
+        }
+    }
+
+    /**
+     * Forget roster requests answered without a roster.  When the stored roster is
+     * current, a server supporting roster versioning sends an empty result, and the
+     * changes follow as pushes.
+     */
+    private class EmptyReplyListener extends SynchronousPacketListener {
+        public void processPacket(Packet packet) {
+            synchronized (Roster.this) {
+                pendingReloads.remove(packet.getPacketID());
+            }
         }
     }
 
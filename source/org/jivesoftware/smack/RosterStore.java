@@ -0,0 +1,75 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.util.Collection;
+
+import org.jivesoftware.smack.packet.RosterPacket;
+
+/**
+ * A local copy of a user's roster, used for roster versioning (XEP-0237).  When the
+ * server supports versioning, {@link Roster} sends the stored version with its roster
+ * request, and the server only sends the changes since then.
+ * <p>
+ * Stores are called from the packet reader while roster packets are processed, in the
+ * order the changes are received.  A store that fails to save a change should return
+ * false; the roster will then request the full roster on the next login.
+ *
+ * @see FileRosterStore
+ * @see ConnectionConfiguration#setRosterStore(RosterStore)
+ */
+public interface RosterStore {
+
+    /**
+     * Returns all stored roster items.
+     *
+     * @return the stored items.
+     */
+    public Collection<RosterPacket.Item> getEntries();
+
+    /**
+     * Returns the version of the stored roster, or null if no roster has been stored.
+     *
+     * @return the roster version.
+     */
+    public String getRosterVersion();
+
+    /**
+     * Adds or updates an item, and sets the roster version.
+     *
+     * @param item the item to store.
+     * @param version the roster version after the change.
+     * @return true if the change was stored.
+     */
+    public boolean addEntry(RosterPacket.Item item, String version);
+
+    /**
+     * Removes an item, and sets the roster version.
+     *
+     * @param user the bare JID of the item to remove.
+     * @param version the roster version after the change.
+     * @return true if the change was stored.
+     */
+    public boolean removeEntry(String user, String version);
+
+    /**
+     * Replaces the whole roster, and sets the roster version.
+     *
+     * @param items the new roster items.
+     * @param version the version of the new roster.
+     * @return true if the roster was stored.
+     */
+    public boolean resetEntries(Collection<RosterPacket.Item> items, String version);
+}
@@ -85,6 +85,7 @@ public class SASLAuthentication implements UserAuthentication {
 
     private Connection connection;
     private Collection<String> serverMechanisms = new ArrayList<String>();
+    private ReceivedPacket authenticatedFeatures;
     /**
      * Boolean indicating if SASL negotiation has finished and was successful.
      */
@@ -182,6 +183,14 @@ public class SASLAuthentication implements UserAuthentication {
         return answer;
     }
 
+    /**
+     * Returns the &lt;features/&gt; received after authenticating, or null if
+     * authentication hasn't succeeded.
+     */
+    ReceivedPacket getAuthenticatedFeatures() {
+        return authenticatedFeatures;
+    }
+
     SASLAuthentication(Connection connection, ReceivedPacket features) {
         super();
         this.connection = connection;
@@ -360,6 +369,7 @@ public class SASLAuthentication implements UserAuthentication {
             ReceivedPacket features = (ReceivedPacket) featuresCollector.nextResult(SmackConfiguration.getPacketReplyTimeout());
             if(features == null)
                 throw new XMPPException("Timed out waiting for post-SASL features");
+            authenticatedFeatures = features;
 
             // Ensure that we've received the "bind" feature.
             for(Element node: XmlUtil.getChildElements(features.getElement())) {
@@ -405,20 +415,10 @@ public class SASLAuthentication implements UserAuthentication {
     public String authenticate(String username, String resource, CallbackHandler cbh) 
             throws XMPPException
     {
-        List<String> mechanismsToUse = mechanismsPreferences;
-        if (username == null) {
-            mechanismsToUse = new Vector<String>();
-            mechanismsToUse.add("ANONYMOUS");
-        }
-        
         // Try each available SASL mechanism in order of preference until we try one
         // that works, or the server closes the connection.
         XMPPException error = null;
-        for (String mechanism: mechanismsToUse) {
-            if (!implementedMechanisms.containsKey(mechanism) || !serverMechanisms.contains(mechanism))
-                continue;
-
-            SASLMechanismType.Factory factory = implementedMechanisms.get(mechanism);
+        for (SASLMechanismType.Factory factory: getMechanismsToTry(serverMechanisms, username == null)) {
             try {
                 return authenticateUsingMechanism(username, cbh, resource, factory);
             }
@@ -450,6 +450,27 @@ public class SASLAuthentication implements UserAuthentication {
         throw new XMPPException("No supported SASL methods found");
     }
 
+    /**
+     * Return the mechanisms to attempt, in order of preference, given the mechanisms
+     * offered by the server.  Anonymous logins only use ANONYMOUS.
+     */
+    static List<SASLMechanismType.Factory> getMechanismsToTry(Collection<String> serverMechanisms,
+            boolean anonymous)
+    {
+        List<String> mechanismsToUse = mechanismsPreferences;
+        if (anonymous) {
+            mechanismsToUse = new Vector<String>();
+            mechanismsToUse.add("ANONYMOUS");
+        }
+
+        List<SASLMechanismType.Factory> result = new ArrayList<SASLMechanismType.Factory>();
+        for (String mechanism: mechanismsToUse) {
+            if (implementedMechanisms.containsKey(mechanism) && serverMechanisms.contains(mechanism))
+                result.add(implementedMechanisms.get(mechanism));
+        }
+        return result;
+    }
+
     private String bindResource(String resource) throws XMPPException {
         Bind bindResource = new Bind();
         bindResource.setResource(resource);
@@ -0,0 +1,146 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of I/O threads, each running a {@link Selector}, which serve the channels
+ * of any number of {@link XMPPStreamNIO} connections.  Each channel is served by a single
+ * thread for its whole life, so its events are handled in order.
+ * <p>
+ * Besides I/O events, each thread runs tasks posted with {@link IOThread#execute}.
+ */
+class SelectorPool {
+    /** Handles events for a channel registered with an {@link IOThread}. */
+    interface Handler {
+        /** Called on the I/O thread when the channel is ready for one of its interest ops. */
+        void ready(SelectionKey key);
+    }
+
+    private static SelectorPool sharedPool;
+
+    /**
+     * Return the pool shared by all connections, creating it with
+     * {@link SmackConfiguration#getNonBlockingIOThreads} threads if needed.
+     */
+    static synchronized SelectorPool getSharedPool() throws IOException {
+        if(sharedPool == null)
+            sharedPool = new SelectorPool(SmackConfiguration.getNonBlockingIOThreads(), "Smack NIO");
+        return sharedPool;
+    }
+
+    private final IOThread[] threads;
+    private final AtomicInteger nextThread = new AtomicInteger();
+
+    SelectorPool(int threadCount, String name) throws IOException {
+        threads = new IOThread[threadCount];
+        for(int i = 0; i < threadCount; ++i) {
+            threads[i] = new IOThread(Selector.open());
+            threads[i].setName(name + " (" + (i + 1) + ")");
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /** Return the thread the next connection should use.  Connections are spread evenly. */
+    IOThread nextThread() {
+        int index = (nextThread.getAndIncrement() & Integer.MAX_VALUE) % threads.length;
+        return threads[index];
+    }
+
+    static class IOThread extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        IOThread(Selector selector) {
+            this.selector = selector;
+        }
+
+        /** Return true if called from this thread. */
+        boolean inThread() {
+            return Thread.currentThread() == this;
+        }
+
+        /** Run task on this thread.  Tasks run in the order they're posted. */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if(!inThread())
+                selector.wakeup();
+        }
+
+        /**
+         * Register channel for ops.  This must be called on this thread; handler is called
+         * when the channel is ready.
+         */
+        SelectionKey register(SelectableChannel channel, int ops, Handler handler)
+            throws IOException
+        {
+            if(!inThread())
+                throw new IllegalStateException("Channels must be registered on the I/O thread");
+            return channel.register(selector, ops, handler);
+        }
+
+        public void run() {
+            while(true) {
+                try {
+                    if(tasks.isEmpty())
+                        selector.select();
+                    else
+                        selector.selectNow();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while(it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if(key.isValid())
+                            runHandler(key);
+                    }
+
+                    Runnable task;
+                    while((task = tasks.poll()) != null)
+                        runTask(task);
+                } catch(IOException e) {
+                    // The selector itself failed.  This shouldn't happen; keep going, so
+                    // connections at least see their own errors.
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /** A failing handler or task must not stop the thread serving other connections. */
+        private static void runHandler(SelectionKey key) {
+            try {
+                ((Handler) key.attachment()).ready(key);
+            } catch(RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private static void runTask(Runnable task) {
+            try {
+                task.run();
+            } catch(RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -51,6 +51,10 @@ public final class SmackConfiguration {
 
     private static int packetReplyTimeout = 5000;
     private static int keepAliveInterval = 30000;
+    private static int packetCollectorSize = 5000;
+    private static int nonBlockingIOThreads = Runtime.getRuntime().availableProcessors();
+    private static int extensionThreads = 64;
+    private static int maxConcurrentFileTransfers = 16;
     private static Vector<String> defaultMechs = new Vector<String>();
 
     private static boolean localSocks5ProxyEnabled = true;
@@ -78,6 +82,18 @@ public final class SmackConfiguration {
             else if (child.getLocalName().equals("keepAliveInterval")) {
                 keepAliveInterval = parseIntProperty(child, keepAliveInterval);
             }
+            else if (child.getLocalName().equals("packetCollectorSize")) {
+                packetCollectorSize = parseIntProperty(child, packetCollectorSize);
+            }
+            else if (child.getLocalName().equals("nonBlockingIOThreads")) {
+                nonBlockingIOThreads = parseIntProperty(child, nonBlockingIOThreads);
+            }
+            else if (child.getLocalName().equals("extensionThreads")) {
+                extensionThreads = parseIntProperty(child, extensionThreads);
+            }
+            else if (child.getLocalName().equals("maxConcurrentFileTransfers")) {
+                maxConcurrentFileTransfers = parseIntProperty(child, maxConcurrentFileTransfers);
+            }
             else if (child.getLocalName().equals("mechName")) {
                 defaultMechs.add(XmlUtil.getTextContent(child));
             } else if (child.getLocalName().equals("localSocks5ProxyEnabled")) {
@@ -186,6 +202,115 @@ public final class SmackConfiguration {
         keepAliveInterval = interval;
     }
 
+    /**
+     * Returns the number of packets a {@link PacketCollector} holds by default.  When
+     * a collector is full, further packets are handled according to its
+     * {@link PacketCollector.OverflowPolicy}.  The default value is 5000.
+     *
+     * @return the default packet collector capacity.
+     */
+    public static int getPacketCollectorSize() {
+        if (packetCollectorSize <= 0) {
+            packetCollectorSize = 5000;
+        }
+        return packetCollectorSize;
+    }
+
+    /**
+     * Sets the number of packets a {@link PacketCollector} holds by default.  This
+     * affects collectors created afterwards.
+     *
+     * @param size the default packet collector capacity.
+     */
+    public static void setPacketCollectorSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException();
+        }
+        packetCollectorSize = size;
+    }
+
+    /**
+     * Returns the number of I/O threads shared by connections using non-blocking I/O.
+     * The default is one thread per processor.
+     *
+     * @return the number of non-blocking I/O threads.
+     * @see ConnectionConfiguration#setNonBlockingIOEnabled
+     */
+    public static int getNonBlockingIOThreads() {
+        if (nonBlockingIOThreads <= 0) {
+            nonBlockingIOThreads = Runtime.getRuntime().availableProcessors();
+        }
+        return nonBlockingIOThreads;
+    }
+
+    /**
+     * Sets the number of I/O threads shared by connections using non-blocking I/O.  This
+     * only has an effect before the first such connection is made.
+     *
+     * @param threads the number of non-blocking I/O threads.
+     */
+    public static void setNonBlockingIOThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException();
+        }
+        nonBlockingIOThreads = threads;
+    }
+
+    /**
+     * Returns the maximum number of threads in the pool shared by connections without their
+     * own {@link ConnectionConfiguration#setExtensionExecutor extension executor}.  The pool
+     * runs file transfers and other long-running work of extensions; tasks beyond this
+     * limit wait for a thread.  The default value is 64.
+     *
+     * @return the maximum number of shared extension threads.
+     * @see Connection#getExtensionExecutor
+     */
+    public static int getExtensionThreads() {
+        if (extensionThreads <= 0) {
+            extensionThreads = 64;
+        }
+        return extensionThreads;
+    }
+
+    /**
+     * Sets the maximum number of threads in the pool shared by connections without their
+     * own extension executor.  This only has an effect before the pool is first used.
+     *
+     * @param threads the maximum number of shared extension threads.
+     */
+    public static void setExtensionThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException();
+        }
+        extensionThreads = threads;
+    }
+
+    /**
+     * Returns the maximum number of file transfers a connection runs at once.  Further
+     * transfers are queued until a running transfer finishes.  The default value is 16.
+     *
+     * @return the maximum number of concurrent file transfers per connection.
+     */
+    public static int getMaxConcurrentFileTransfers() {
+        if (maxConcurrentFileTransfers <= 0) {
+            maxConcurrentFileTransfers = 16;
+        }
+        return maxConcurrentFileTransfers;
+    }
+
+    /**
+     * Sets the maximum number of file transfers a connection runs at once.  This affects
+     * connections whose file transfer support is initialized afterwards.
+     *
+     * @param transfers the maximum number of concurrent file transfers per connection.
+     */
+    public static void setMaxConcurrentFileTransfers(int transfers) {
+        if (transfers <= 0) {
+            throw new IllegalArgumentException();
+        }
+        maxConcurrentFileTransfers = transfers;
+    }
+
     /**
      * Add a SASL mechanism to the list to be used.
      *
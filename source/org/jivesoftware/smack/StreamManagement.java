@@ -0,0 +1,183 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.util.ArrayDeque;
+
+import org.jivesoftware.smack.util.StringUtils;
+
+/**
+ * XEP-0198 stream management state for a session: the count of stanzas handled, and
+ * the stanzas sent which the server hasn't yet acknowledged.  This outlives the TCP
+ * connection, so a resumed session can resend what the server never received.
+ * <p>
+ * This class isn't thread-safe.  {@link XMPPStreamTCP} accesses it with its lock held,
+ * except for the handled count, which is only touched by the packet reader thread.
+ */
+class StreamManagement {
+    static final String NAMESPACE = "urn:xmpp:sm:3";
+
+    static final String ENABLE_REQUEST = "<enable xmlns='" + NAMESPACE + "' resume='true'/>";
+    static final String ACK_REQUEST = "<r xmlns='" + NAMESPACE + "'/>";
+
+    /** Counts are sequence numbers modulo 2^32. */
+    private static final long COUNT_MASK = 0xFFFFFFFFL;
+
+    private final int capacity;
+    private final ArrayDeque<String> unacked = new ArrayDeque<String>();
+
+    /** The number of our stanzas the server has acknowledged. */
+    private long acked = 0;
+
+    /** The number of stanzas received from the server and handled. */
+    private long handled = 0;
+
+    private boolean enabled = false;
+    private String resumptionId;
+    private boolean ackRequested = false;
+
+    /**
+     * @param capacity the number of unacknowledged stanzas to allow before writers wait
+     *     for an acknowledgement.
+     */
+    StreamManagement(int capacity) {
+        if(capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+    }
+
+    /**
+     * The server has accepted &lt;enable/&gt;.  If resume is true, the session can be
+     * resumed with the given ID.
+     */
+    void enabled(String id, boolean resume) {
+        enabled = true;
+        handled = 0;
+        resumptionId = resume && id != null && id.length() > 0? id:null;
+    }
+
+    /** Return true if the server has accepted &lt;enable/&gt;. */
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Return true if the session can be resumed after the connection is lost. */
+    boolean isResumable() {
+        return resumptionId != null;
+    }
+
+    /**
+     * Record a batch of stanzas as sent.  Stanza i of batch ends at ends[i].  Each
+     * stanza is kept until the server acknowledges it.
+     */
+    void sent(String batch, int[] ends, int count) {
+        int start = 0;
+        for(int i = 0; i < count; ++i) {
+            unacked.add(batch.substring(start, ends[i]));
+            start = ends[i];
+        }
+    }
+
+    /** Return the number of stanzas sent which the server hasn't acknowledged. */
+    int getUnackedCount() {
+        return unacked.size();
+    }
+
+    /** Return true if writers should wait for an acknowledgement before sending more. */
+    boolean isFull() {
+        return unacked.size() >= capacity;
+    }
+
+    /**
+     * Return true if an acknowledgement should be requested along with the stanzas just
+     * sent.  Acks are requested once a quarter of the queue is used, so writers rarely
+     * need to wait for one.
+     */
+    boolean shouldRequestAck() {
+        if(unacked.size() < Math.max(1, capacity / 4))
+            return false;
+        return requestAck();
+    }
+
+    /**
+     * Note that an acknowledgement is being requested.  Return false if one has already
+     * been requested and not yet received, in which case there's no need to ask again.
+     */
+    boolean requestAck() {
+        if(ackRequested)
+            return false;
+        ackRequested = true;
+        return true;
+    }
+
+    /**
+     * The server acknowledged h stanzas.  Discard the stanzas it's acknowledged.
+     *
+     * @throws XMPPException if the server acknowledged stanzas we never sent.
+     */
+    void acknowledged(long h) throws XMPPException {
+        long count = (h - acked) & COUNT_MASK;
+        if(count > unacked.size()) {
+            throw new XMPPException("Server acknowledged " + count + " stanzas, but only " +
+                    unacked.size() + " were sent");
+        }
+
+        for(long i = 0; i < count; ++i)
+            unacked.removeFirst();
+        acked = h;
+        ackRequested = false;
+    }
+
+    /**
+     * The session was resumed, and the server has handled h of our stanzas.  Return the
+     * rest, to be sent again.  They stay queued until they're acknowledged.
+     */
+    String resumed(long h) throws XMPPException {
+        acknowledged(h);
+
+        StringBuilder resend = new StringBuilder();
+        for(String stanza: unacked)
+            resend.append(stanza);
+        return resend.toString();
+    }
+
+    /** A stanza has been received from the server and handled. */
+    void stanzaHandled() {
+        handled = (handled + 1) & COUNT_MASK;
+    }
+
+    /** Return the &lt;a/&gt; answering an ack request from the server. */
+    String ackResponse() {
+        return "<a xmlns='" + NAMESPACE + "' h='" + handled + "'/>";
+    }
+
+    /** Return the &lt;resume/&gt; request to resume this session on a new stream. */
+    String resumeRequest() {
+        return "<resume xmlns='" + NAMESPACE + "' h='" + handled + "' previd='" +
+            StringUtils.escapeForXML(resumptionId) + "'/>";
+    }
+
+    /** Parse the h attribute of &lt;a/&gt; or &lt;resumed/&gt;. */
+    static long parseCount(String h) throws XMPPException {
+        try {
+            long count = Long.parseLong(h);
+            if(count >= 0 && count <= COUNT_MASK)
+                return count;
+        } catch(NumberFormatException e) {
+            // fall through
+        }
+        throw new XMPPException("Invalid stream management count: " + h);
+    }
+}
@@ -38,12 +38,12 @@ import org.apache.harmony.javax.security.auth.callback.CallbackHandler;
 
 import java.io.IOException;
 import java.lang.reflect.Constructor;
-import java.util.Collection;
 import java.util.Vector;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.w3c.dom.Element;
+import org.xmlpull.v1.XmlPullParser;
 
 /**
  * Creates a socket connection to a XMPP server. This is the default connection
@@ -78,6 +78,7 @@ public class XMPPConnection extends Connection {
     final ObservableWriter.WriteEvent writeEvent;
 
     private ReceivedPacket initialFeatures;
+    private boolean rosterVersioningSupported = false;
     Roster roster = null;
 
     /** If true, shutdown() has been called.  No further connections are allowed. */
@@ -173,6 +174,14 @@ public class XMPPConnection extends Connection {
             throw error;
         }
 
+        // Servers may advertise roster versioning before or after authentication.
+        rosterVersioningSupported = hasRosterVersioningFeature(initialFeatures) ||
+            hasRosterVersioningFeature(sasl.getAuthenticatedFeatures());
+
+        // Let the transport enable features which need a bound resource, like stream
+        // management.
+        data_stream.resourceBound();
+
         // Set the user.
         if (JID != null) {
             this.user = JID;
@@ -207,6 +216,21 @@ public class XMPPConnection extends Connection {
             this.roster = new Roster(this);
     }
 
+    private static boolean hasRosterVersioningFeature(ReceivedPacket features) {
+        if (features == null)
+            return false;
+        for(Element node: XmlUtil.getChildElements(features.getElement())) {
+            if(node.getLocalName().equals("ver") &&
+               "urn:xmpp:features:rosterver".equals(node.getNamespaceURI()))
+                return true;
+        }
+        return false;
+    }
+
+    public boolean isRosterVersioningSupported() {
+        return rosterVersioningSupported;
+    }
+
     public void login(String username, String password, String resource) throws XMPPException {
         // Do partial version of nameprep on the username.
         username = username.toLowerCase().trim();
@@ -282,6 +306,11 @@ public class XMPPConnection extends Connection {
         packetReader.shutdown();
         packetWriter.shutdown();
 
+        // Fail pending requests, such as those from sendIqAsync.  connected is already
+        // cleared, so waiting collectors see the disconnection.
+        for(PacketCollector<?> collector: getPacketCollectors())
+            collector.connectionLost();
+
         authenticated = false;
 
         // If we're the one that cleared connected, it's our job to notify about the
@@ -308,19 +337,60 @@ public class XMPPConnection extends Connection {
         // notifyConnectionClosed.  Some listeners unregister themselves (unnecessarily)
         // on disconnection; if we clear listeners before notifyConnectionClosed that'll
         // cause an unnecessary error.
-        recvListeners.clear();
+        synchronized(recvListenerRouter) {
+            recvListeners.clear();
+            recvListenerRouter.clear();
+        }
         sendListeners.clear();
         collectors.clear();
+        collectorRouter.clear();
         interceptors.clear();
     }
 
     public void sendPacket(Packet packet) {
+        try {
+            trySendPacket(packet);
+        } catch(XMPPException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void trySendPacket(Packet packet) throws XMPPException {
         if (packet == null) {
             throw new NullPointerException("Packet is null.");
         }
         packetWriter.sendPacket(packet);
     }
 
+    /**
+     * Returns the number of packets waiting to be written to the server.
+     *
+     * @return the number of queued outgoing packets.
+     */
+    public int getPacketQueueSize() {
+        return packetWriter.getQueueSize();
+    }
+
+    /**
+     * Returns the largest number of packets that have been waiting to be written to
+     * the server at once.  If this approaches {@link ConnectionConfiguration#getPacketQueueCapacity},
+     * packets are being sent faster than the connection can write them.
+     *
+     * @return the high watermark of the outgoing packet queue.
+     */
+    public int getPacketQueueHighWatermark() {
+        return packetWriter.getQueueHighWatermark();
+    }
+
+    /**
+     * Returns the number of packets dropped by {@link ConnectionConfiguration.BackpressurePolicy#dropLowPriority}.
+     *
+     * @return the number of dropped outgoing packets.
+     */
+    public long getDroppedPacketCount() {
+        return packetWriter.getDroppedPacketCount();
+    }
+
     private void connectInternal() throws XMPPException {
         assertNotLocked();
 
@@ -463,16 +533,15 @@ public class XMPPConnection extends Connection {
         return data_stream.isUsingCompression();
     }
 
-    /** Write a list of packets to the stream.  Used by PacketWriter. */
-    protected void writePacket(Collection<Packet> packets) throws XMPPException {
+    /**
+     * Write a batch of serialized packets to the stream.  Packet i of batch ends at
+     * ends[i].  Used by PacketWriter.
+     */
+    protected void writeStanzas(String batch, int[] ends, int count) throws XMPPException {
         assertNotLocked();
         assertConnectCalled();
 
-        StringBuffer data = new StringBuffer();
-        for(Packet packet: packets)
-            data.append(packet.toXML());
-
-        data_stream.writePacket(data.toString());
+        data_stream.writeStanzas(batch, ends, count);
     }
 
     /**
@@ -536,7 +605,7 @@ public class XMPPConnection extends Connection {
         if(isConnected())
             throw new AssertionError("Should be disconnected");
 
-        for(PacketCollector collector: getPacketCollectors())
+        for(PacketCollector<?> collector: getPacketCollectors())
             collector.connectionLost();
     }
     
@@ -546,6 +615,16 @@ public class XMPPConnection extends Connection {
             packetReader.parsePacket(packet);
         }
 
+        public void onPacket(XmlPullParser parser) throws XMPPException {
+            if(!config.isStreamParsingEnabled()) {
+                super.onPacket(parser);
+                return;
+            }
+
+            assertNotLocked();
+            packetReader.parsePacket(parser);
+        }
+
         public void onError(XMPPException error) {
             handleError(error);
         }
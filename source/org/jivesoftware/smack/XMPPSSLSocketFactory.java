@@ -42,6 +42,7 @@ import javax.net.ssl.HandshakeCompletedListener;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
@@ -117,7 +118,7 @@ public class XMPPSSLSocketFactory {
                     info.insecureConnection = null;
                 } else {
                     try {
-                        checkSecureConnection(socket);
+                        checkSecureConnection(socket.getSession());
                         info.insecureConnection = null;
                     } catch(CertificateException e) {
                         // The connection isn't secure.  Store the reason.
@@ -135,6 +136,41 @@ public class XMPPSSLSocketFactory {
         return sslSocket;
     }
 
+    /**
+     * Return an SSLEngine in client mode for a connection to the given host, for transports
+     * which perform TLS themselves rather than with an SSLSocket.  Once the handshake
+     * completes, call {@link #checkSession} to verify the server's certificate.
+     */
+    public SSLEngine createSSLEngine(String host, int port) throws IOException {
+        initIfNeeded();
+        if(sslContext == null)
+            throw new IOException("TLS not available");
+
+        SSLEngine engine = sslContext.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        return engine;
+    }
+
+    /**
+     * Verify the certificate of a session established with {@link #createSSLEngine}.
+     *
+     * @return null if the connection is secure, or the reason it isn't.
+     */
+    public CertificateException checkSession(SSLSession session) {
+        // As with sockets, if a secure connection is required the certificate was checked
+        // during the handshake, which fails if it's not trusted.
+        if(secureConnectionRequired)
+            return null;
+
+        try {
+            checkSecureConnection(session);
+            return null;
+        } catch(CertificateException e) {
+            seenInsecureConnection = e;
+            return e;
+        }
+    }
+
     /** Attempt to request compression on the given socket, if supported by the implementation.
      *  This is supported by org.apache.harmony.xnet.provider.jsse. */
     private static void initCompression(SSLSocket socket)
@@ -165,14 +201,12 @@ public class XMPPSSLSocketFactory {
     }
 
     /**
-     * Verify the certificate for the given socket.  If the certificate isn't
+     * Verify the certificate for the given session.  If the certificate isn't
      * trusted, throw {@link ServerTrustManager.CertificateExceptionDetail }.
      */
-    private void checkSecureConnection(SSLSocket socket)
+    private void checkSecureConnection(SSLSession session)
     throws CertificateException
     {
-        SSLSession session = socket.getSession();
-
         Certificate[] certs;
         try {
             certs = session.getPeerCertificates();
@@ -5,7 +5,9 @@ import java.util.LinkedList;
 
 import org.jivesoftware.smack.util.ObservableReader;
 import org.jivesoftware.smack.util.ObservableWriter;
+import org.jivesoftware.smack.util.XmlUtil;
 import org.w3c.dom.Element;
+import org.xmlpull.v1.XmlPullParser;
 
 public abstract class XMPPStream
 {
@@ -60,6 +62,17 @@ public abstract class XMPPStream
      */
     public abstract void writePacket(String packet) throws XMPPException;
 
+    /**
+     * Send a batch of serialized stanzas to the server.  Stanza i of batch ends at
+     * offset ends[i], so transports which track individual stanzas don't need to
+     * parse the batch.  Otherwise behaves like {@link #writePacket}.
+     * <p>
+     * The default implementation writes the batch with {@link #writePacket}.
+     */
+    public void writeStanzas(String batch, int[] ends, int count) throws XMPPException {
+        writePacket(batch);
+    }
+
     /**
      * Permanently close the connection, flushing any pending messages and cleanly
      * disconnecting the session.  If non-null and the connection is not already
@@ -80,11 +93,40 @@ public abstract class XMPPStream
      * @throws IOException
      */
     public abstract void streamReset() throws XMPPException;
+
+    /**
+     * Indicate to the stream that the user has authenticated and bound a resource.
+     * Transports may enable features which need an established session, such as
+     * stream management.  The default implementation does nothing.
+     */
+    public void resourceBound() throws XMPPException {
+    }
     
     static abstract class PacketCallback {
         /** onPacket is called when a packet is received from the server. */
         public abstract void onPacket(Element packet);
 
+        /**
+         * Transports which read XML from a stream may call this instead of
+         * {@link #onPacket(Element)}, allowing the packet to be parsed without
+         * building a DOM.  The parser is positioned on the packet's START_TAG, and
+         * must be positioned on its matching END_TAG on return.
+         * <p>
+         * The default implementation reads the packet into a DOM and calls
+         * {@link #onPacket(Element)}.
+         *
+         * @throws XMPPException if reading the packet fails; the stream can't continue.
+         */
+        public void onPacket(XmlPullParser parser) throws XMPPException {
+            Element packet;
+            try {
+                packet = XmlUtil.ReadNodeFromXmlPull(parser);
+            } catch(IOException e) {
+                throw new XMPPException("I/O error", e);
+            }
+            onPacket(packet);
+        }
+
         /** onError is called when the connection has been lost. */
         public abstract void onError(XMPPException error);
 
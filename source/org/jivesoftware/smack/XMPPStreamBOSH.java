@@ -134,7 +134,7 @@ public class XMPPStreamBOSH extends XMPPStream
         lock.lock();
         try {
             ConnectDataBOSH data = new ConnectDataBOSH();
-            if(!this.uri.equals(ConnectionConfiguration.AUTO_DETECT_BOSH))
+            if(this.uri != null && !this.uri.equals(ConnectionConfiguration.AUTO_DETECT_BOSH))
                 data.addresses.add(this.uri);
             return data;
         } finally {
@@ -145,7 +145,8 @@ public class XMPPStreamBOSH extends XMPPStream
     public ConnectDataBOSH getConnectData() throws XMPPException {
         assertNotLocked();
 
-        if(!this.config.getBoshURI().equals(ConnectionConfiguration.AUTO_DETECT_BOSH))
+        URI configURI = this.config.getBoshURI();
+        if(configURI != null && !configURI.equals(ConnectionConfiguration.AUTO_DETECT_BOSH))
             return getDefaultConnectData();
         
         lock.lock();
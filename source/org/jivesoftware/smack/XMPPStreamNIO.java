@@ -0,0 +1,1294 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.jivesoftware.smack.XMPPStreamTCP.ConnectDataTCP;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smack.util.DNSUtil;
+import org.jivesoftware.smack.util.ObservableReader;
+import org.jivesoftware.smack.util.ObservableWriter;
+import org.jivesoftware.smack.util.StanzaFramer;
+import org.jivesoftware.smack.util.ThreadUtil;
+import org.jivesoftware.smack.util.XmlUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * XMPP TCP transport using non-blocking I/O, implementing TLS and compression.
+ * <p>
+ * Unlike {@link XMPPStreamTCP}, this has no thread of its own.  Its channel is served
+ * by one of the {@link SelectorPool} threads shared by all connections, which reads
+ * whatever data is available, splits it into stanzas with a {@link StanzaFramer}, and
+ * parses and delivers each stanza once it's complete, so parsing never blocks.  TLS is
+ * performed with an {@link SSLEngine}, and compression with {@link Inflater} and
+ * {@link Deflater}.
+ * <p>
+ * {@link PacketCallback Callbacks} are made on the I/O thread, which also serves other
+ * connections, so they must not block.
+ */
+public class XMPPStreamNIO extends XMPPStream
+{
+    /**
+     * Once this many bytes are waiting to be sent, writes from threads other than the
+     * I/O thread block until the socket catches up.
+     */
+    private static final int MAX_PENDING_WRITE = 256 * 1024;
+
+    /** The largest stanza which will be received. */
+    private static final int MAX_STANZA_SIZE = 4 * 1024 * 1024;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * Deflater.deflate(byte[], int, int, int), which is needed to flush compressed data
+     * after each write.  This is only available in Java 7; if it's missing, compression
+     * isn't negotiated.
+     */
+    private static final Method DEFLATE_WITH_FLUSH;
+    private static final int SYNC_FLUSH = 2;
+    static {
+        Method method = null;
+        try {
+            method = Deflater.class.getMethod("deflate", byte[].class, Integer.TYPE, Integer.TYPE, Integer.TYPE);
+        } catch(NoSuchMethodException e) {
+        }
+        DEFLATE_WITH_FLUSH = method;
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition cond = lock.newCondition();
+
+    private final ConnectionConfiguration config;
+    private final String originalServiceName;
+
+    private ObservableReader.ReadEvent readEvent;
+    private ObservableWriter.WriteEvent writeEvent;
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private SelectorPool.IOThread ioThread;
+    private String host;
+    private int port;
+
+    /** Set when the stream is closed.  Once set, it's never cleared. */
+    private volatile boolean closed = false;
+
+    /** The DNS lookup being performed by getConnectData, so it can be cancelled. */
+    private DNSUtil.CancellableLookup initialLookup;
+
+    // These are only accessed by the I/O thread.
+    private final StanzaFramer framer = new StanzaFramer(MAX_STANZA_SIZE);
+    private final FramerListener framerListener = new FramerListener();
+    private final XmlPullParser parser;
+    private ByteBuffer netIn = ByteBuffer.allocate(16 * 1024);
+    private ByteBuffer appIn;
+    private Inflater inflater;
+    private byte[] inflated;
+
+    /** The most recent stream header; each stanza is parsed in its namespace context. */
+    private String streamHeader;
+
+    // The rest are protected by lock.
+
+    /** Data waiting to be written to the channel. */
+    private final LinkedList<ByteBuffer> netOut = new LinkedList<ByteBuffer>();
+    private int netOutSize = 0;
+
+    /** True if the key is registered for OP_WRITE. */
+    private boolean writeInterest = false;
+
+    /** True if reading is paused until setPacketCallbacks is called. */
+    private boolean readPaused = false;
+
+    /** Set once TLS is negotiated.  This is only changed by the I/O thread. */
+    private SSLEngine sslEngine;
+
+    /** True while the TLS handshake is in progress.  Writes are held in heldWrites. */
+    private boolean handshaking = false;
+    private final List<byte[]> heldWrites = new ArrayList<byte[]>();
+
+    private Deflater deflater;
+
+    /** True once TLS and compression negotiation is complete. */
+    private boolean setupComplete = false;
+
+    /** The error which ended the stream before setup completed. */
+    private XMPPException setupError;
+
+    /** The final &lt;features/&gt;, delivered by setPacketCallbacks. */
+    private Element pendingFeatures;
+
+    /** The error which ended the stream after setup completed, but before setPacketCallbacks. */
+    private XMPPException pendingError;
+
+    /** The user's callbacks, once set. */
+    private PacketCallback callbacks;
+
+    private KeepAliveScheduler.Entry keepAlive;
+    private volatile long lastWrite = System.currentTimeMillis();
+
+    private XMPPSSLSocketFactory sslSocketFactory;
+
+    /** If true, the most recent <features/> advertised <starttls/>. */
+    private boolean featureStartTLSReceived = false;
+
+    /** The compression methods advertised in the most recent <features/>. */
+    private List<String> featureCompressionMethods;
+
+    /** True if the connection is encrypted, whether or not the certificate is verified. */
+    private boolean usingTLS = false;
+
+    /** True if the connection is secure (encrypted with a verified certificate). */
+    private boolean usingSecureConnection = false;
+
+    private boolean usingXMPPCompression = false;
+
+    private String connectionID;
+
+    public XMPPStreamNIO(ConnectionConfiguration config)
+    {
+        this.config = config;
+
+        try {
+            parser = XmlPullParserFactory.newInstance().newPullParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        }
+        catch (XmlPullParserException xppe) {
+            xppe.printStackTrace();
+            throw new RuntimeException(xppe);
+        }
+
+        /* We update config.serviceName when we see the service name from the server,
+         * but we need to retain the original value for TLS certificate checking. */
+        originalServiceName = config.getServiceName();
+    }
+
+    private void assertNotLocked() {
+        if(lock.isHeldByCurrentThread())
+            throw new RuntimeException("Lock should not be held");
+    }
+
+    private void assertLocked() {
+        if(!lock.isHeldByCurrentThread())
+            throw new RuntimeException("Lock should be held");
+    }
+
+    public void setReadWriteEvents(ObservableReader.ReadEvent readEvent, ObservableWriter.WriteEvent writeEvent) {
+        this.readEvent = readEvent;
+        this.writeEvent = writeEvent;
+    }
+
+    public boolean isSecureConnection() { return usingSecureConnection; }
+    public boolean isUsingCompression() { return usingXMPPCompression; }
+    public String getConnectionID() { return connectionID; }
+
+    public ConnectData getDefaultConnectData() {
+        return XMPPStreamTCP.createDefaultConnectData(config);
+    }
+
+    public ConnectData getConnectData() throws XMPPException {
+        assertNotLocked();
+
+        if(config.getHost() != null)
+            return getDefaultConnectData();
+
+        // If no host was specified, look up the XMPP service name.  disconnect() may
+        // cancel the lookup while it runs.
+        DNSUtil.XMPPDomainLookup lookup = new DNSUtil.XMPPDomainLookup(config.getServiceName(), true);
+        lock.lock();
+        try {
+            if(closed)
+                throw new XMPPException("Connection cancelled");
+            initialLookup = lookup;
+        } finally {
+            lock.unlock();
+        }
+
+        ConnectDataTCP data = new ConnectDataTCP();
+        try {
+            data.addresses = lookup.run();
+        } finally {
+            lock.lock();
+            try {
+                initialLookup = null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        if(data.addresses == null)
+            throw new XMPPException("Connection cancelled");
+        return data;
+    }
+
+    public void initializeConnection(ConnectData data, int attempt) throws XMPPException {
+        if(!(data instanceof ConnectDataTCP))
+            throw new IllegalArgumentException("data argument was not created with XMPPStreamNIO.getConnectData");
+        ConnectDataTCP dataTCP = (ConnectDataTCP) data;
+
+        assertNotLocked();
+
+        if(attempt >= dataTCP.addresses.size())
+            throw new IllegalArgumentException();
+
+        SelectorPool pool;
+        try {
+            pool = SelectorPool.getSharedPool();
+        } catch(IOException e) {
+            throw new XMPPException("Error starting I/O threads", e);
+        }
+
+        lock.lock();
+        try {
+            if(channel != null)
+                throw new RuntimeException("The connection has already been initialized");
+
+            // If disconnect() was called before we got this far, exit without starting.
+            if(closed)
+                throw new XMPPException("Connection cancelled");
+
+            host = dataTCP.addresses.get(attempt).getHost();
+            port = dataTCP.addresses.get(attempt).getPort();
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+            } catch(IOException e) {
+                throw new XMPPException("Could not connect to " + host + ":" + port, e);
+            }
+            ioThread = pool.nextThread();
+        } finally {
+            lock.unlock();
+        }
+
+        XMPPException error = null;
+        try {
+            // Resolving the host may block, so do it here rather than on the I/O thread.
+            final InetSocketAddress address = new InetSocketAddress(host, port);
+            if(address.isUnresolved())
+                throw new XMPPException("Could not connect to " + host + ":" + port + ": unknown host");
+
+            ioThread.execute(new Runnable() {
+                public void run() { startConnect(address); }
+            });
+
+            // Wait for TLS and compression negotiation to complete.
+            lock.lock();
+            try {
+                while(!setupComplete && setupError == null && !closed)
+                    ThreadUtil.uninterruptibleWait(cond);
+
+                if(setupError != null)
+                    error = setupError;
+                else if(!setupComplete)
+                    error = new XMPPException("Connection cancelled");
+            } finally {
+                lock.unlock();
+            }
+        } catch(XMPPException e) {
+            error = e;
+        }
+
+        if(error != null) {
+            disconnect();
+            throw error;
+        }
+
+        startKeepAliveProcess();
+    }
+
+    public void setPacketCallbacks(PacketCallback userCallbacks) {
+        if(userCallbacks == null)
+            throw new IllegalArgumentException("userCallbacks can not be null");
+
+        assertNotLocked();
+
+        Element features;
+        XMPPException error;
+        lock.lock();
+        try {
+            if(this.callbacks != null)
+                throw new IllegalStateException("PacketCallbacks already set");
+
+            this.callbacks = userCallbacks;
+            features = pendingFeatures;
+            error = pendingError;
+            pendingFeatures = null;
+            pendingError = null;
+        } finally {
+            lock.unlock();
+        }
+
+        if(error != null) {
+            userCallbacks.onError(error);
+            return;
+        }
+
+        // Deliver the <features/> which completed setup.  Reading is paused until now, so
+        // no other callbacks can be made until we resume it below.
+        userCallbacks.onPacket(features);
+
+        ioThread.execute(new Runnable() {
+            public void run() {
+                try {
+                    if(closed)
+                        return;
+
+                    lock.lock();
+                    try {
+                        readPaused = false;
+                        updateInterestOps();
+                    } finally {
+                        lock.unlock();
+                    }
+
+                    // Deliver anything which was received along with the <features/>.
+                    framer.resume(framerListener);
+                } catch(XMPPException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    public void writePacket(String packet) throws XMPPException {
+        assertNotLocked();
+
+        byte[] data;
+        try {
+            data = packet.getBytes("UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+
+        lock.lock();
+        try {
+            if(closed || channel == null)
+                throw new XMPPException("Wrote a packet while the connection was closed");
+
+            // If the socket isn't keeping up, make the writer wait.  The I/O thread must
+            // never block, so it always queues.
+            if(!ioThread.inThread()) {
+                while(netOutSize > MAX_PENDING_WRITE && !closed)
+                    ThreadUtil.uninterruptibleWait(cond);
+                if(closed)
+                    throw new XMPPException("Wrote a packet while the connection was closed");
+            }
+
+            if(handshaking) {
+                // Data can't be sent until the TLS handshake completes.
+                heldWrites.add(data);
+            } else {
+                encode(data);
+                flush();
+            }
+        } catch(IOException e) {
+            // Let the I/O thread close the stream and notify the callbacks.
+            final XMPPException error = new XMPPException("I/O error", e);
+            ioThread.execute(new Runnable() {
+                public void run() { fail(error); }
+            });
+            throw error;
+        } finally {
+            lock.unlock();
+        }
+
+        lastWrite = System.currentTimeMillis();
+        if(writeEvent != null)
+            writeEvent.notifyListeners(packet);
+    }
+
+    /** Compress and encrypt data, as enabled, and queue it to be written. */
+    private void encode(byte[] data) throws IOException {
+        assertLocked();
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if(deflater != null)
+            buffer = deflate(data);
+
+        if(sslEngine != null)
+            wrap(buffer);
+        else
+            queue(buffer);
+    }
+
+    private ByteBuffer deflate(byte[] data) {
+        assertLocked();
+
+        deflater.setInput(data);
+        byte[] out = new byte[data.length / 2 + 64];
+        int total = 0;
+        try {
+            while(true) {
+                // With SYNC_FLUSH, if the output buffer is filled there may be more output.
+                total += (Integer) DEFLATE_WITH_FLUSH.invoke(deflater, out, total, out.length - total, SYNC_FLUSH);
+                if(total < out.length)
+                    break;
+
+                byte[] newOut = new byte[out.length * 2];
+                System.arraycopy(out, 0, newOut, 0, total);
+                out = newOut;
+            }
+        } catch(IllegalAccessException e) {
+            throw new RuntimeException("Unexpected error compressing data", e);
+        } catch(InvocationTargetException e) {
+            throw new RuntimeException("Unexpected error compressing data", e);
+        }
+        return ByteBuffer.wrap(out, 0, total);
+    }
+
+    /** Encrypt all of src and queue the result to be written. */
+    private void wrap(ByteBuffer src) throws IOException {
+        assertLocked();
+
+        do {
+            ByteBuffer out = ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
+            SSLEngineResult result = sslEngine.wrap(src, out);
+            if(result.getStatus() == SSLEngineResult.Status.CLOSED)
+                throw new IOException("TLS session closed");
+
+            out.flip();
+            if(out.hasRemaining())
+                queue(out);
+        } while(src.hasRemaining());
+    }
+
+    private void queue(ByteBuffer buffer) {
+        assertLocked();
+        netOut.add(buffer);
+        netOutSize += buffer.remaining();
+    }
+
+    /** Write as much queued data as the channel will accept without blocking. */
+    private void flush() throws IOException {
+        assertLocked();
+
+        while(!netOut.isEmpty()) {
+            ByteBuffer buffer = netOut.getFirst();
+            netOutSize -= channel.write(buffer);
+            if(buffer.hasRemaining())
+                break;
+            netOut.removeFirst();
+        }
+
+        // Wake up writers waiting for the queue to drain.
+        cond.signalAll();
+
+        // If data is left over, wait for the channel to become writable.
+        boolean wantWrite = !netOut.isEmpty();
+        if(wantWrite == writeInterest)
+            return;
+        writeInterest = wantWrite;
+
+        if(ioThread.inThread()) {
+            updateInterestOps();
+        } else {
+            ioThread.execute(new Runnable() {
+                public void run() {
+                    lock.lock();
+                    try {
+                        updateInterestOps();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            });
+        }
+    }
+
+    /** Update the key's interest ops.  This is only called by the I/O thread. */
+    private void updateInterestOps() {
+        assertLocked();
+        if(key == null || !key.isValid())
+            return;
+
+        int ops = 0;
+        if(!readPaused)
+            ops |= SelectionKey.OP_READ;
+        if(writeInterest)
+            ops |= SelectionKey.OP_WRITE;
+        key.interestOps(ops);
+    }
+
+    /** Begin connecting.  This is run on the I/O thread. */
+    private void startConnect(InetSocketAddress address) {
+        try {
+            if(closed)
+                return;
+
+            boolean connected = channel.connect(address);
+            SelectionKey newKey = ioThread.register(channel,
+                    connected? SelectionKey.OP_READ:SelectionKey.OP_CONNECT, handler);
+
+            lock.lock();
+            try {
+                key = newKey;
+            } finally {
+                lock.unlock();
+            }
+
+            if(connected)
+                restartStream();
+        } catch(IOException e) {
+            fail(new XMPPException("Could not connect to " + host + ":" + port, e));
+        } catch(XMPPException e) {
+            fail(e);
+        }
+    }
+
+    private final SelectorPool.Handler handler = new SelectorPool.Handler() {
+        public void ready(SelectionKey readyKey) {
+            try {
+                if(readyKey.isConnectable()) {
+                    try {
+                        channel.finishConnect();
+                    } catch(IOException e) {
+                        throw new XMPPException("Could not connect to " + host + ":" + port, e);
+                    }
+
+                    lock.lock();
+                    try {
+                        updateInterestOps();
+                    } finally {
+                        lock.unlock();
+                    }
+                    restartStream();
+                }
+
+                if(readyKey.isValid() && readyKey.isWritable()) {
+                    lock.lock();
+                    try {
+                        flush();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+
+                if(readyKey.isValid() && readyKey.isReadable())
+                    read();
+            } catch(CancelledKeyException e) {
+                // The stream was closed by another thread.
+            } catch(IOException e) {
+                fail(new XMPPException("I/O error", e));
+            } catch(XMPPException e) {
+                fail(e);
+            }
+        }
+    };
+
+    /** Read available data, and process it.  This is run on the I/O thread. */
+    private void read() throws IOException, XMPPException {
+        // If a TLS record doesn't fit, make room for it.
+        if(!netIn.hasRemaining()) {
+            ByteBuffer newNetIn = ByteBuffer.allocate(netIn.capacity() * 2);
+            netIn.flip();
+            newNetIn.put(netIn);
+            netIn = newNetIn;
+        }
+
+        if(channel.read(netIn) == -1)
+            throw new XMPPException("Session terminated");
+
+        netIn.flip();
+        try {
+            if(sslEngine == null)
+                receive(netIn);
+            else
+                unwrap();
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    /** Decrypt received data, and continue the TLS handshake if it's in progress. */
+    private void unwrap() throws IOException, XMPPException {
+        if(appIn == null)
+            appIn = ByteBuffer.allocate(sslEngine.getSession().getApplicationBufferSize());
+
+        while(!closed) {
+            SSLEngineResult result = sslEngine.unwrap(netIn, appIn);
+            switch(result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                appIn = ByteBuffer.allocate(appIn.capacity() + sslEngine.getSession().getApplicationBufferSize());
+                continue;
+            case BUFFER_UNDERFLOW:
+                // Wait for the rest of the record.
+                return;
+            case CLOSED:
+                throw new XMPPException("Session terminated");
+            default:
+                break;
+            }
+
+            if(appIn.position() > 0) {
+                appIn.flip();
+                receive(appIn);
+                appIn.clear();
+            }
+
+            boolean handshakeProgress = continueHandshake();
+            if(result.bytesConsumed() == 0 && result.bytesProduced() == 0 && !handshakeProgress)
+                return;
+        }
+    }
+
+    /**
+     * Run the TLS handshake as far as possible without more data from the server.
+     *
+     * @return true if any progress was made.
+     */
+    private boolean continueHandshake() throws IOException, XMPPException {
+        if(!handshaking)
+            return false;
+
+        boolean progress = false;
+        while(true) {
+            HandshakeStatus status = sslEngine.getHandshakeStatus();
+            if(status == HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while((task = sslEngine.getDelegatedTask()) != null)
+                    task.run();
+            } else if(status == HandshakeStatus.NEED_WRAP) {
+                lock.lock();
+                try {
+                    wrap(EMPTY);
+                    flush();
+                } finally {
+                    lock.unlock();
+                }
+            } else if(status == HandshakeStatus.NEED_UNWRAP) {
+                return progress;
+            } else {
+                handshakeComplete();
+                return true;
+            }
+            progress = true;
+        }
+    }
+
+    private void handshakeComplete() throws XMPPException {
+        CertificateException insecureReason = sslSocketFactory.checkSession(sslEngine.getSession());
+
+        lock.lock();
+        try {
+            handshaking = false;
+
+            // If usingSecureConnection is false, we're encrypted but we couldn't verify
+            // the server's certificate.
+            usingTLS = true;
+            usingSecureConnection = (insecureReason == null);
+
+            // If a secure connection was required, fail.
+            if(!usingSecureConnection && config.getSecurityMode() == ConnectionConfiguration.SecurityMode.required) {
+                throw new XMPPException("Server does not support security (TLS), " +
+                        "but the configuration requires a secure connection.",
+                        XMPPError.Condition.forbidden, insecureReason);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // Send the new stream header, followed by anything written during the handshake.
+        restartStream();
+
+        lock.lock();
+        try {
+            for(byte[] data: heldWrites)
+                encode(data);
+            heldWrites.clear();
+            flush();
+        } catch(IOException e) {
+            throw new XMPPException("I/O error", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Decompress received data if compression is enabled, and frame it into stanzas. */
+    private void receive(ByteBuffer data) throws XMPPException {
+        Inflater currentInflater = inflater;
+        if(currentInflater == null) {
+            framer.feed(data, framerListener);
+            return;
+        }
+
+        currentInflater.setInput(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        data.position(data.limit());
+        try {
+            while(!closed) {
+                int count = currentInflater.inflate(inflated);
+                if(count > 0)
+                    framer.feed(ByteBuffer.wrap(inflated, 0, count), framerListener);
+                else if(currentInflater.needsInput())
+                    break;
+                else
+                    throw new XMPPException("Compressed stream ended unexpectedly");
+            }
+        } catch(DataFormatException e) {
+            throw new XMPPException("Error decompressing stream", e);
+        }
+    }
+
+    /** Receives the stream header and stanzas.  This is only called on the I/O thread. */
+    private class FramerListener implements StanzaFramer.Listener {
+        public void streamOpened(String header) throws XMPPException {
+            if(readEvent != null)
+                readEvent.notifyListeners(header);
+
+            Element element;
+            try {
+                parser.setInput(new StringReader(header));
+                parser.next();
+
+                // Check that the opening stream is what we expect.
+                if (!parser.getName().equals("stream") ||
+                        !"http://etherx.jabber.org/streams".equals(parser.getNamespace()) ||
+                        !"jabber:client".equals(parser.getNamespace(null))) {
+                    throw new XMPPException("Expected stream:stream");
+                }
+                element = XmlUtil.ReadElementFromXmlPullNonRecursive(parser);
+            } catch(XmlPullParserException e) {
+                throw new XMPPException("XML error", e);
+            } catch(IOException e) {
+                throw new XMPPException("I/O error", e);
+            }
+            streamHeader = header;
+
+            Element features;
+            lock.lock();
+            try {
+                features = loadStreamSettings(element);
+            } finally {
+                lock.unlock();
+            }
+
+            // If the server is too old to send <features/>, loadStreamSettings returns a
+            // dummy one.  Treat it as if it was received.
+            if(features != null)
+                received(features, null);
+        }
+
+        public void stanza(String stanza) throws XMPPException {
+            if(readEvent != null)
+                readEvent.notifyListeners(stanza);
+
+            try {
+                // Parse the stanza in the namespace context of the stream header, positioning
+                // the parser on the stanza's START_TAG.
+                parser.setInput(new StringReader(streamHeader + stanza));
+                parser.next();
+                parser.next();
+            } catch(XmlPullParserException e) {
+                throw new XMPPException("XML error", e);
+            } catch(IOException e) {
+                throw new XMPPException("I/O error", e);
+            }
+            received(null, parser);
+        }
+
+        public void streamClosed() throws XMPPException {
+            throw new XMPPException("Session terminated");
+        }
+    }
+
+    /**
+     * Handle a received packet, given as either a DOM element or a parser positioned on
+     * its START_TAG.  During setup, it's used for negotiation; afterwards, it's passed to
+     * the user's callbacks.
+     */
+    private void received(Element element, XmlPullParser packetParser) throws XMPPException {
+        PacketCallback userCallbacks;
+        lock.lock();
+        try {
+            userCallbacks = setupComplete? callbacks:null;
+        } finally {
+            lock.unlock();
+        }
+
+        if(userCallbacks != null) {
+            if(element != null)
+                userCallbacks.onPacket(element);
+            else
+                userCallbacks.onPacket(packetParser);
+            return;
+        }
+
+        if(element == null) {
+            try {
+                element = XmlUtil.ReadNodeFromXmlPull(packetParser);
+            } catch(IOException e) {
+                throw new XMPPException("I/O error", e);
+            }
+        }
+
+        String initResponse;
+        lock.lock();
+        try {
+            throwIfDisconnected();
+            initResponse = processInitializationPacket(element);
+        } finally {
+            lock.unlock();
+        }
+
+        if(initResponse == ENABLE_TLS) {
+            startTLS();
+        } else if(initResponse == ENABLE_COMPRESSION) {
+            startCompression();
+        } else if(initResponse == DO_NOTHING) {
+        } else if(initResponse != null) {
+            writePacket(initResponse);
+        } else {
+            lock.lock();
+            try {
+                // After a successful connect, fill in config with the host we actually connected
+                // to.  This allows the client to detect what it's actually talking to.
+                config.setHost(host);
+                config.setPort(port);
+
+                // Hold the <features/> and anything after it until setPacketCallbacks is called.
+                pendingFeatures = element;
+                framer.suspend();
+                readPaused = true;
+                updateInterestOps();
+
+                // Wake initializeConnection back up.
+                setupComplete = true;
+                cond.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void startTLS() throws XMPPException {
+        SSLEngine engine;
+        try {
+            engine = sslSocketFactory.createSSLEngine(originalServiceName, port);
+            engine.beginHandshake();
+        } catch(IOException e) {
+            throw new XMPPException("Error initializing TLS", e);
+        }
+
+        // Anything the server sends from now on is part of the TLS handshake.
+        framer.reset();
+
+        lock.lock();
+        try {
+            throwIfDisconnected();
+            sslEngine = engine;
+            handshaking = true;
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            continueHandshake();
+        } catch(IOException e) {
+            throw new XMPPException("Error initializing TLS", e);
+        }
+    }
+
+    private void startCompression() throws XMPPException {
+        // Anything the server sends from now on is compressed.
+        framer.reset();
+        inflater = new Inflater();
+        inflated = new byte[16 * 1024];
+
+        lock.lock();
+        try {
+            throwIfDisconnected();
+            deflater = new Deflater(9);
+            usingXMPPCompression = true;
+        } finally {
+            lock.unlock();
+        }
+
+        restartStream();
+    }
+
+    /** Discard the current stream and send a new stream header.  This is run on the I/O thread. */
+    private void restartStream() throws XMPPException {
+        framer.reset();
+        streamHeader = null;
+
+        StringBuilder stream = new StringBuilder();
+        stream.append("<?xml version='1.0'?>");
+        stream.append("<stream:stream");
+        stream.append(" to=\"").append(config.getServiceName()).append("\"");
+        stream.append(" xmlns=\"jabber:client\"");
+        stream.append(" xmlns:stream=\"http://etherx.jabber.org/streams\"");
+        stream.append(" version=\"1.0\">");
+
+        writePacket(stream.toString());
+    }
+
+    public void streamReset() throws XMPPException {
+        assertNotLocked();
+
+        lock.lock();
+        try {
+            throwIfDisconnected();
+        } finally {
+            lock.unlock();
+        }
+
+        if(ioThread.inThread()) {
+            restartStream();
+            return;
+        }
+
+        // The framer must be reset on the I/O thread, before the server can respond to
+        // the new stream header.
+        ioThread.execute(new Runnable() {
+            public void run() {
+                try {
+                    if(!closed)
+                        restartStream();
+                } catch(XMPPException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Close the stream due to an error, and notify whoever is waiting for the result:
+     * initializeConnection during setup, or the user's callbacks.
+     */
+    private void fail(XMPPException error) {
+        assertNotLocked();
+
+        PacketCallback userCallbacks;
+        lock.lock();
+        try {
+            if(closed)
+                return;
+            close();
+
+            if(!setupComplete) {
+                setupError = error;
+                return;
+            }
+
+            userCallbacks = callbacks;
+            if(userCallbacks == null) {
+                // setPacketCallbacks will deliver the error.
+                pendingError = error;
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        userCallbacks.onError(error);
+    }
+
+    private void close() {
+        assertLocked();
+
+        closed = true;
+        cond.signalAll();
+
+        if(initialLookup != null)
+            initialLookup.cancel();
+
+        if(keepAlive != null) {
+            keepAlive.cancel();
+            keepAlive = null;
+        }
+
+        netOut.clear();
+        netOutSize = 0;
+
+        if(channel != null) {
+            // This also cancels the key.
+            try {
+                channel.close();
+            } catch(IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    public void disconnect() {
+        assertNotLocked();
+
+        SelectorPool.IOThread thread;
+        lock.lock();
+        try {
+            if(!closed)
+                close();
+            thread = ioThread;
+        } finally {
+            lock.unlock();
+        }
+
+        // Wait for anything running on the I/O thread to finish, so no callbacks are made
+        // after we return.  If we're on the I/O thread, nothing else is running.
+        if(thread == null || thread.inThread())
+            return;
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        thread.execute(new Runnable() {
+            public void run() { latch.countDown(); }
+        });
+
+        boolean interrupted = false;
+        while(true) {
+            try {
+                latch.await();
+                break;
+            } catch(InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    public void gracefulDisconnect(String packet) {
+        assertNotLocked();
+
+        /* Ask the stream to close. */
+        try {
+            if (packet == null)
+                packet = "";
+
+            // Append the final packet (if any) and </stream> and send them together.
+            writePacket(packet + "</stream:stream>");
+        }
+        catch (XMPPException e) {
+            // If this fails for some reason, just close the connection.
+            disconnect();
+            return;
+        }
+
+        // Wait for the server to close the stream, unless we're on the I/O thread, which
+        // is what would notice.
+        if(!ioThread.inThread()) {
+            lock.lock();
+            try {
+                long waitUntil = System.currentTimeMillis() + SmackConfiguration.getPacketReplyTimeout();
+                while(!closed) {
+                    if(!XMPPStreamTCP.waitUntilTime(cond, waitUntil))
+                        break;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // If the connection didn't close gracefully, force it.
+        disconnect();
+    }
+
+    public void recoverConnection() {
+        throw new RuntimeException("Can't reconnect TCP sessions");
+    }
+
+    /** If the stream has been closed, throw an exception. */
+    private void throwIfDisconnected() throws XMPPException {
+        assertLocked();
+        if(closed || channel == null)
+            throw new XMPPException("Connection has been closed");
+    }
+
+    /**
+     * Read settings from the top-level stream header.
+     *
+     * If a non-null Element is returned, the stream header is from a legacy
+     * server, and the provided element should be processed as if it was a
+     * received packet.
+     */
+    private Element loadStreamSettings(Element element) throws XMPPException {
+        assertLocked();
+
+        // Save the connection id.
+        connectionID = element.getAttribute("id");
+
+        // Save the service name.
+        String from = element.getAttribute("from");
+        if(from != null)
+            config.setServiceName(from);
+
+        // If the protocol version is lower than 1.0, we may not receive <features/>.
+        // Mask this to the user by returning a dummy <features/> node.
+        if(XMPPStreamTCP.parseVersionString(element.getAttribute("version")) < 100) {
+            try {
+                DocumentBuilderFactory dbfac = DocumentBuilderFactory.newInstance();
+                DocumentBuilder docBuilder = dbfac.newDocumentBuilder();
+                Document doc = docBuilder.newDocument();
+                return doc.createElementNS("http://etherx.jabber.org/streams", "features");
+            } catch(ParserConfigurationException e) {
+                throw new RuntimeException("Unexpected error", e);
+            }
+        }
+        return null;
+    }
+
+    static final String ENABLE_TLS = XMPPStreamTCP.ENABLE_TLS;
+    static final String ENABLE_COMPRESSION = XMPPStreamTCP.ENABLE_COMPRESSION;
+    static final String DO_NOTHING = XMPPStreamTCP.DO_NOTHING;
+
+    /**
+     * Process a packet during initialization.  This returns the same values as
+     * {@link XMPPStreamTCP}: ENABLE_TLS, ENABLE_COMPRESSION, DO_NOTHING, a packet to
+     * send, or null if initialization is complete.
+     */
+    private String processInitializationPacket(Element node) throws XMPPException {
+        assertLocked();
+
+        if (node.getNodeName().equals("features")) {
+            featureStartTLSReceived = false;
+            featureCompressionMethods = new ArrayList<String>();
+
+            for (Element child: XmlUtil.getChildElements(node)) {
+                if (!usingTLS && child.getNodeName().equals("starttls")) {
+                    featureStartTLSReceived = true;
+
+                    for (Element startTlsChild: XmlUtil.getChildElements(child)) {
+                        if (startTlsChild.getNodeName().equals("required") &&
+                                config.getSecurityMode() == ConnectionConfiguration.SecurityMode.disabled) {
+                            throw new XMPPException(
+                                "TLS required by server but not allowed by connection configuration", XMPPError.Condition.forbidden);
+                        }
+                    }
+                }
+                else if (child.getNodeName().equals("compression")) {
+                    for (Element compressionChild: XmlUtil.getChildElements(child)) {
+                        if (compressionChild.getNodeName().equals("method"))
+                            featureCompressionMethods.add(XmlUtil.getTextContent(compressionChild));
+                    }
+                }
+            }
+
+            return negotiateFeature();
+        }
+        else if(node.getNodeName().equals("proceed") && node.getNamespaceURI().equals("urn:ietf:params:xml:ns:xmpp-tls")) {
+            return ENABLE_TLS;
+        }
+        else if(node.getNodeName().equals("failure")) {
+            if(node.getNamespaceURI().equals("urn:ietf:params:xml:ns:xmpp-tls"))
+                throw new XMPPException("Server failed while initializing TLS");
+            else if(node.getNamespaceURI().equals("http://jabber.org/protocol/compress"))
+                return negotiateFeature();
+        }
+        else if (node.getNodeName().equals("compressed") && node.getNamespaceURI().equals("http://jabber.org/protocol/compress")) {
+            return ENABLE_COMPRESSION;
+        }
+
+        return DO_NOTHING;
+    }
+
+    /** Attempt to negotiate a feature, based on the most recent <features/> packet. */
+    private String negotiateFeature() throws XMPPException {
+        assertLocked();
+
+        if (!usingTLS && !featureStartTLSReceived &&
+                config.getSecurityMode() == ConnectionConfiguration.SecurityMode.required)
+        {
+            throw new XMPPException("Server does not support security (TLS), " +
+                    "but security required by connection configuration.",
+                    XMPPError.Condition.forbidden);
+        }
+
+        if(!usingTLS && featureStartTLSReceived &&
+                config.getSecurityMode() != ConnectionConfiguration.SecurityMode.disabled) {
+            if(sslSocketFactory == null)
+                sslSocketFactory = new XMPPSSLSocketFactory(config, originalServiceName);
+
+            if(sslSocketFactory.isAvailable())
+                return "<starttls xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/>";
+
+            if(config.getSecurityMode() == ConnectionConfiguration.SecurityMode.required) {
+                throw new XMPPException("System does not support encryption, " +
+                        "but security is required by connection configuration.", XMPPError.Condition.forbidden);
+            }
+        }
+
+        // Compression must be negotiated after encryption.
+        if(!usingXMPPCompression && config.isCompressionEnabled() && DEFLATE_WITH_FLUSH != null &&
+                featureCompressionMethods.contains("zlib")) {
+            // Only attempt to negotiate a method once per <features/>.
+            featureCompressionMethods.remove("zlib");
+            return "<compress xmlns='http://jabber.org/protocol/compress'>" +
+                "<method>zlib</method></compress>";
+        }
+
+        return null;
+    }
+
+    /**
+     * Start sending a space when nothing else has been sent for the keepalive interval.
+     * Keepalives for all connections are scheduled by the shared {@link KeepAliveScheduler}.
+     */
+    private void startKeepAliveProcess() {
+        int interval = SmackConfiguration.getKeepAliveInterval();
+        if(interval <= 0)
+            return;
+
+        lock.lock();
+        try {
+            if(!closed)
+                keepAlive = KeepAliveScheduler.getSharedScheduler().register(keepAliveTarget, interval);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private final KeepAliveScheduler.Target keepAliveTarget = new KeepAliveScheduler.Target() {
+        public long getLastActivity() {
+            return lastWrite;
+        }
+
+        public void sendKeepAlive() {
+            try {
+                writePacket(" ");
+            } catch(XMPPException e) {
+                // The stream is closed or failing, which is reported elsewhere.
+            }
+        }
+    };
+}
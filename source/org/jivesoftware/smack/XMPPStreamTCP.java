@@ -20,13 +20,10 @@
 
 package org.jivesoftware.smack;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
 import java.lang.reflect.Constructor;
@@ -36,12 +33,10 @@ import java.net.Proxy;
 import java.net.Socket;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Vector;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
@@ -52,13 +47,20 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.jivesoftware.smack.packet.XMPPError;
+import org.apache.harmony.javax.security.auth.callback.CallbackHandler;
+import org.jivesoftware.smack.proxy.ProxyInfo;
 import org.jivesoftware.smack.proxy.SocketConnectorFactory.SocketConnector;
+import org.jivesoftware.smack.sasl.SASLHelpers;
+import org.jivesoftware.smack.sasl.SASLMechanismType;
+import org.jivesoftware.smack.util.Base64;
 import org.jivesoftware.smack.util.DNSUtil;
 import org.jivesoftware.smack.util.DNSUtil.HostAddress;
 import org.jivesoftware.smack.util.ObservableReader;
 import org.jivesoftware.smack.util.ObservableWriter;
+import org.jivesoftware.smack.util.PacketParserUtils;
 import org.jivesoftware.smack.util.ThreadUtil;
-import org.jivesoftware.smack.util.WriterListener;
+import org.jivesoftware.smack.util.Utf8Reader;
+import org.jivesoftware.smack.util.Utf8Writer;
 import org.jivesoftware.smack.util.XmlUtil;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -78,7 +80,8 @@ public class XMPPStreamTCP extends XMPPStream
     private ObservableReader.ReadEvent readEvent;
     private ObservableWriter.WriteEvent writeEvent;
 
-    private ObservableWriter.WriteEvent keepaliveMonitorWriteEvent;
+    /** The time of the most recent write, used to only send keepalives when idle. */
+    private volatile long lastWrite = System.currentTimeMillis();
 
     /** True if the connection is encrypted, whether or not the certificate is verified. */
     private boolean usingTLS = false;
@@ -97,9 +100,6 @@ public class XMPPStreamTCP extends XMPPStream
     private final ReentrantLock lock = new ReentrantLock();
     private final Condition cond = lock.newCondition();
 
-    private ScheduledExecutorService schedExec;
-    private boolean schedExecOwned = false;
-    
     private ConnectionConfiguration config;
     private String originalServiceName;
 
@@ -115,6 +115,28 @@ public class XMPPStreamTCP extends XMPPStream
     /** Callbacks for stream events. */
     private PacketCallback callbacks;
 
+    /** The callbacks passed to setPacketCallbacks.  Once setup completes, callbacks points here. */
+    private PacketCallback userCallbacks;
+
+    /** If true, the most recent <features/> advertised stream management. */
+    private boolean featureStreamManagement = false;
+
+    /**
+     * Stream management state, set by {@link #resourceBound} if the server supports it.
+     * This survives the loss of the connection if the session can be resumed.  Other
+     * than the handled count, this is only accessed while locked.
+     */
+    private volatile StreamManagement streamManagement;
+
+    /** True once disconnect() or gracefulDisconnect() is called.  The session won't be resumed. */
+    private boolean disconnectRequested = false;
+
+    /** True while recoverConnection is resuming the session.  Stanzas are queued until it completes. */
+    private boolean recovering = false;
+
+    /** The most recent packet reader thread.  Recovery waits for it to exit before reconnecting. */
+    private Thread lastReaderThread;
+
     private void assertNotLocked() {
         if(lock.isHeldByCurrentThread())
             throw new RuntimeException("Lock should not be held");
@@ -146,7 +168,151 @@ public class XMPPStreamTCP extends XMPPStream
         } catch(IOException e) {
             throw new XMPPException(e);
         }
+
+        lastWrite = System.currentTimeMillis();
+    }
+
+    /**
+     * Write a batch of stanzas.  If stream management is enabled, each stanza is kept
+     * until the server acknowledges it.  While the connection is lost and the session
+     * can be resumed, stanzas are only queued, and are sent when it's resumed.
+     */
+    public void writeStanzas(String batch, int[] ends, int count) throws XMPPException {
+        assertNotLocked();
+
+        while(true) {
+            Writer writerCopy;
+            lock.lock();
+            try {
+                if(streamManagement == null)
+                    break;
+
+                waitForQueueSpace();
+                if(queueForResumption(batch, ends, count))
+                    return;
+
+                writerCopy = this.writer;
+                if(writerCopy == null)
+                    break;
+            } finally {
+                lock.unlock();
+            }
+
+            if(writeTracked(writerCopy, batch, ends, count))
+                return;
+
+            // The connection was lost or replaced before we could write.  Try again.
+        }
+
+        // Stream management isn't in use, or the connection is closed.
+        writePacket(batch);
+    }
+
+    /**
+     * Write a batch of stanzas to writerCopy, recording them with stream management.
+     * If writerCopy is no longer the current writer, return false without writing.
+     */
+    private boolean writeTracked(Writer writerCopy, String batch, int[] ends, int count)
+        throws XMPPException
+    {
+        try {
+            synchronized(writerCopy) {
+                boolean requestAck = false;
+                lock.lock();
+                try {
+                    if(writerCopy != this.writer || recovering)
+                        return false;
+
+                    // Record the stanzas while holding the writer, so they're recorded
+                    // in the order they're written.
+                    if(streamManagement != null) {
+                        streamManagement.sent(batch, ends, count);
+                        requestAck = streamManagement.shouldRequestAck();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                writerCopy.write(batch);
+                if(requestAck)
+                    writerCopy.write(StreamManagement.ACK_REQUEST);
+                writerCopy.flush();
+            }
+        } catch(IOException e) {
+            // If the session can be resumed, the stanzas we just recorded will be sent
+            // again when it is.  The packet reader will report the connection loss.
+            lock.lock();
+            try {
+                if(!disconnectRequested && streamManagement != null && streamManagement.isResumable())
+                    return true;
+            } finally {
+                lock.unlock();
+            }
+            throw new XMPPException(e);
+        }
+
+        lastWrite = System.currentTimeMillis();
+        return true;
     }
+
+    /**
+     * If the connection is down or being recovered and the session can be resumed,
+     * queue the stanzas to be sent when it's resumed and return true.
+     */
+    private boolean queueForResumption(String batch, int[] ends, int count) {
+        assertLocked();
+
+        if(writer != null && !recovering)
+            return false;
+        if(disconnectRequested || streamManagement == null || !streamManagement.isResumable())
+            return false;
+
+        streamManagement.sent(batch, ends, count);
+        return true;
+    }
+
+    /**
+     * Wait until stream management has room for more unacknowledged stanzas.  If the
+     * server doesn't acknowledge stanzas in time, the connection is assumed to be dead
+     * and is closed, so it's recovered.  While disconnected, wait for the session to
+     * be resumed.
+     */
+    private void waitForQueueSpace() {
+        assertLocked();
+
+        long waitUntil = System.currentTimeMillis() + SmackConfiguration.getPacketReplyTimeout();
+        while(streamManagement != null && streamManagement.isFull() && !disconnectRequested) {
+            if(writer == null || recovering) {
+                ThreadUtil.uninterruptibleWait(cond);
+                continue;
+            }
+
+            // Request an ack, if one isn't already outstanding.  Write it unlocked; we
+            // mustn't hold the lock while waiting for the writer.
+            if(streamManagement.requestAck()) {
+                lock.unlock();
+                try {
+                    writePacket(StreamManagement.ACK_REQUEST);
+                } catch(XMPPException e) {
+                    // The packet reader will see the error.
+                } finally {
+                    lock.lock();
+                }
+                continue;
+            }
+
+            if(!waitUntilTime(cond, waitUntil)) {
+                try {
+                    if(socket != null)
+                        socket.close();
+                } catch(IOException e) {
+                    // ignore
+                }
+                waitUntil = System.currentTimeMillis() + SmackConfiguration.getPacketReplyTimeout();
+            }
+        }
+    }
+
     public boolean isSecureConnection() { return usingSecureConnection; }
     public boolean isUsingCompression() { return usingXMPPCompression || usingTLSCompression; }
 
@@ -158,11 +324,6 @@ public class XMPPStreamTCP extends XMPPStream
     public XMPPStreamTCP(ConnectionConfiguration config)
     {
         this.config = config;
-        schedExec = config.getExecutorService();
-        if(schedExec == null) {
-            Executors.newSingleThreadScheduledExecutor();
-            schedExecOwned = true;
-        }
         
         try {
             parser = XmlPullParserFactory.newInstance().newPullParser();
@@ -176,7 +337,6 @@ public class XMPPStreamTCP extends XMPPStream
         /* We update config.serviceName when we see the service name from the server,
          * but we need to retain the original value for TLS certificate checking. */
         originalServiceName = config.getServiceName();
-        keepaliveMonitorWriteEvent = new ObservableWriter.WriteEvent();
     }
 
     public void setReadWriteEvents(ObservableReader.ReadEvent readEvent, ObservableWriter.WriteEvent writeEvent) {
@@ -197,35 +357,65 @@ public class XMPPStreamTCP extends XMPPStream
      */
     private SocketConnector socketConnector;
 
-    class ConnectDataTCP extends ConnectData {
+    /**
+     * If parallel connections are enabled, this races connections to each address.  Like
+     * {@link #socketConnector}, this is cancelled asynchronously by {@link #disconnect()}.
+     */
+    private ParallelConnector parallelConnector;
+
+    static class ConnectDataTCP extends ConnectData {
         Vector<DNSUtil.HostAddress> addresses;
 
+        /**
+         * If true, all addresses are raced in a single attempt by {@link ParallelConnector},
+         * instead of being tried one at a time.
+         */
+        boolean parallel = false;
+
         int connectionAttempts() {
+            if(parallel)
+                return Math.min(1, addresses.size());
             return addresses.size();
         }
     };
 
+    /** Return true if connections with config should race all addresses at once. */
+    private static boolean useParallelConnect(ConnectionConfiguration config) {
+        return config.isParallelConnectEnabled() &&
+            config.getProxyInfo().getProxyType() == ProxyInfo.ProxyType.NONE;
+    }
+
     public ConnectData getDefaultConnectData() {
         assertNotLocked();
 
         lock.lock();
         try {
-            ConnectDataTCP data = new ConnectDataTCP();
-            data.addresses = new Vector<DNSUtil.HostAddress>();
-
-            String host = config.getHost();
-            int port = config.getPort();
-            if(port == -1)
-                port = 5222;
-            if(host != null)
-                data.addresses.add(new HostAddress(host, port));
-            else
-                data.addresses.add(new HostAddress(config.getServiceName(), port));
+            ConnectDataTCP data = createDefaultConnectData(config);
+            data.parallel = useParallelConnect(config);
             return data;
         } finally {
             lock.unlock();
         }
     }
+
+    /**
+     * Return ConnectData for the configured host, or the service name if no host is
+     * configured, without performing any lookups.
+     */
+    static ConnectDataTCP createDefaultConnectData(ConnectionConfiguration config) {
+        ConnectDataTCP data = new ConnectDataTCP();
+        data.addresses = new Vector<DNSUtil.HostAddress>();
+
+        String host = config.getHost();
+        int port = config.getPort();
+        if(port == -1)
+            port = 5222;
+        if(host != null)
+            data.addresses.add(new HostAddress(host, port));
+        else
+            data.addresses.add(new HostAddress(config.getServiceName(), port));
+        return data;
+    }
     
     public ConnectData getConnectData() throws XMPPException {
         assertNotLocked();
@@ -262,6 +452,7 @@ public class XMPPStreamTCP extends XMPPStream
             if(data.addresses == null)
                 throw new XMPPException("Connection cancelled");
 
+            data.parallel = useParallelConnect(config);
             return data;
         } finally {
             lock.unlock();
@@ -297,17 +488,12 @@ public class XMPPStreamTCP extends XMPPStream
                 throw new XMPPException("Connection cancelled");
 
             try {
-                socket = new Socket(Proxy.NO_PROXY);
-                socketConnector = config.getProxyInfo().getSocketConnectorFactory().createConnector(socket);
-                
-                // Unlock while we connect to the server.  disconnect() may close the stream,
-                // cancelling the connection.
-                lock.unlock();
-                try {
-                    socketConnector.connectSocket(host, port);
-                } finally {
-                    lock.lock();
-                    socketConnector = null;
+                if(dataTCP.parallel) {
+                    ParallelConnector.Result result = connectParallel(dataTCP.addresses);
+                    host = result.address.getHost();
+                    port = result.address.getPort();
+                } else {
+                    connectSocket(host, port);
                 }
 
                 initReaderAndWriter();
@@ -315,12 +501,7 @@ public class XMPPStreamTCP extends XMPPStream
                 throw new XMPPException("Could not connect to " + host + ":" + port, e);
             }
 
-            setupCallbacks = new SetupPacketCallback(host, port);
-            this.callbacks = setupCallbacks;
-
-            packetReaderThread = new PacketReaderThread();
-            packetReaderThread.setName("XMPP packet reader (" + host + ":" + port + ")");
-            packetReaderThread.start();
+            setupCallbacks = startPacketReader(host, port);
         } finally {
             lock.unlock();
         }
@@ -346,6 +527,77 @@ public class XMPPStreamTCP extends XMPPStream
         }
     }
 
+    /**
+     * Connect socket to host:port, through the configured proxy if any.  The lock must
+     * be held; it's released while connecting, so disconnect() can cancel the connection.
+     */
+    private void connectSocket(String host, int port) throws XMPPException, IOException {
+        assertLocked();
+
+        socket = new Socket(Proxy.NO_PROXY);
+        socketConnector = config.getProxyInfo().getSocketConnectorFactory().createConnector(socket);
+
+        lock.unlock();
+        try {
+            socketConnector.connectSocket(host, port);
+        } finally {
+            lock.lock();
+            socketConnector = null;
+        }
+    }
+
+    /** Start the packet reader thread, negotiating TLS and compression with SetupPacketCallback. */
+    private SetupPacketCallback startPacketReader(String host, int port) {
+        assertLocked();
+
+        SetupPacketCallback setupCallbacks = new SetupPacketCallback(host, port);
+        this.callbacks = setupCallbacks;
+
+        packetReaderThread = new PacketReaderThread();
+        packetReaderThread.setName("XMPP packet reader (" + host + ":" + port + ")");
+        lastReaderThread = packetReaderThread;
+        packetReaderThread.start();
+        return setupCallbacks;
+    }
+
+    /**
+     * Race connections to all of addresses, setting socket to the winner.  The lock must
+     * be held; it's released while connecting.
+     */
+    private ParallelConnector.Result connectParallel(List<DNSUtil.HostAddress> addresses)
+        throws XMPPException
+    {
+        assertLocked();
+
+        ParallelConnector connector = new ParallelConnector(addresses, config.getThreadFactory());
+        parallelConnector = connector;
+
+        // Unlock while we connect.  disconnect() may cancel parallelConnector, which
+        // causes connect() to throw.
+        ParallelConnector.Result result;
+        lock.unlock();
+        try {
+            result = connector.connect();
+        } finally {
+            lock.lock();
+            parallelConnector = null;
+        }
+
+        // If disconnect() was called after the connection completed, but before we
+        // relocked, it didn't see a socket to close.
+        if(threadExited) {
+            try {
+                result.socket.close();
+            } catch(IOException e) {
+                // ignore
+            }
+            throw new XMPPException("Connection cancelled");
+        }
+
+        socket = result.socket;
+        return result;
+    }
+
     public void setPacketCallbacks(PacketCallback userCallbacks) {
         if(userCallbacks == null)
             throw new IllegalArgumentException("userCallbacks can not be null");
@@ -358,6 +610,7 @@ public class XMPPStreamTCP extends XMPPStream
 
             // Set the user's callback.
             this.callbacks = userCallbacks;
+            this.userCallbacks = userCallbacks;
             
             // If PacketReaderThread is waiting for callbacks to be set, wake it up.
             cond.signalAll();
@@ -654,7 +907,7 @@ public class XMPPStreamTCP extends XMPPStream
      * 
      * @return the version number multiplied by 100; version 1.5 is 150 
      */
-    private static int parseVersionString(String version) throws XMPPException {
+    static int parseVersionString(String version) throws XMPPException {
         if(version == null)
             version = "0.9";
 
@@ -685,6 +938,11 @@ public class XMPPStreamTCP extends XMPPStream
             socketConnector.cancel();
         }
 
+        if(parallelConnector != null) {
+            // Cancel any ongoing parallel connection; don't clear the reference.
+            parallelConnector.cancel();
+        }
+
         // If socket isn't set, then initializeConnection hasn't yet set up the
         // socket or thread.  Skip to the threadExited state, so it'll abort without
         // starting them.
@@ -703,6 +961,10 @@ public class XMPPStreamTCP extends XMPPStream
             throw new RuntimeException("Unexpected I/O error disconnecting socket", e);
         }
 
+        // Wake up the packet reader if it's waiting for callbacks, and writers waiting
+        // for stream management.
+        cond.signalAll();
+
         // Wait for the thread to exit, unless we're inside the thread itself.
         if(packetReaderThread != null && packetReaderThread != Thread.currentThread()) {
             while(!threadExited)
@@ -710,20 +972,11 @@ public class XMPPStreamTCP extends XMPPStream
         }
         packetReaderThread = null;
 
-        // Shut down the keepalive thread, if any.  Do this after closing the socket,
-        // so it'll receive an IOException immediately if it's currently blocking to write,
-        // guaranteeing it'll exit quickly.  Don't hold the lock while we do this, since
-        // we're joining a thread that calls into us.
-        KeepAliveTask keepAliveRef = keepAlive;
-        keepAlive = null;
-        
-        lock.unlock();
-        try {
-            assertNotLocked();
-            if(keepAliveRef != null)
-                keepAliveRef.close();
-        } finally {
-            lock.lock();
+        // Stop keepalives.  If one is being sent right now, it'll fail harmlessly since
+        // the socket is closed.
+        if(keepAlive != null) {
+            keepAlive.cancel();
+            keepAlive = null;
         }
 
         this.socket = null;
@@ -737,12 +990,6 @@ public class XMPPStreamTCP extends XMPPStream
             try { writer.close(); } catch (IOException ignore) { /* ignore */ }
             writer = null;
         }
-
-        // If we created the executor, shut it down.
-        if(schedExecOwned) {
-            schedExec.shutdown();
-            schedExec = null;
-        }
     }
 
     /**
@@ -754,6 +1001,7 @@ public class XMPPStreamTCP extends XMPPStream
 
         lock.lock();
         try {
+            disconnectRequested = true;
             shutdown_stream();
         } finally {
             lock.unlock();
@@ -777,6 +1025,11 @@ public class XMPPStreamTCP extends XMPPStream
     {
         assertNotLocked();
 
+        // The session is ending, so a connection loss from here on isn't recoverable.
+        lock.lock();
+        disconnectRequested = true;
+        lock.unlock();
+
         /* Ask the stream to close. */
         try {
             if (packet == null)
@@ -855,7 +1108,21 @@ public class XMPPStreamTCP extends XMPPStream
         public void run() {
             while(true) {
                 try {
-                    Element result = readPacketLoop(parser);
+                    readPacketLoop(parser);
+
+                    // Once stream setup is complete, stanzas are given to the callbacks
+                    // directly from the parser, so they can be parsed without a DOM.
+                    if(parser.getDepth() == 2 && callbacks != null && callbacks == userCallbacks) {
+                        dispatchPacket(parser);
+                        continue;
+                    }
+
+                    if(parser.getDepth() == 2 && !(callbacks instanceof SetupPacketCallback)) {
+                        callbacks.onPacket(parser);
+                        continue;
+                    }
+
+                    Element result = readElement(parser);
                     assertNotLocked();
                     lock.lock();
 
@@ -907,10 +1174,30 @@ public class XMPPStreamTCP extends XMPPStream
 
                     // This is our normal exit path; the stream will be closed and readPacketLoop
                     // will throw a socket error.
-                    disconnect();
+                    //
+                    // If the connection was lost but the session can be resumed, keep the
+                    // stream management state and report a recoverable error, so the user
+                    // can resume it with recoverConnection.
+                    boolean recoverable;
+                    lock.lock();
+                    try {
+                        recoverable = callbacks != null && callbacks == userCallbacks &&
+                            !disconnectRequested && streamManagement != null &&
+                            streamManagement.isResumable() && isIOError(e);
+                        if(!recoverable && callbacks == userCallbacks)
+                            streamManagement = null;
 
-                    if(callbacks != null)
-                        callbacks.onError(e);
+                        shutdown_stream();
+                    } finally {
+                        lock.unlock();
+                    }
+
+                    if(callbacks != null) {
+                        if(recoverable)
+                            callbacks.onRecoverableError(e);
+                        else
+                            callbacks.onError(e);
+                    }
 
                     // Notify any disconnect() calls in other threads that we're exiting.
                     lock.lock();
@@ -928,22 +1215,112 @@ public class XMPPStreamTCP extends XMPPStream
     };
 
     /**
-     * Read the next element from the given parser.
+     * Give a packet received after setup to the user's callbacks.  Stream management
+     * packets are handled here, and stanzas are counted once they've been handled.
+     */
+    private void dispatchPacket(XmlPullParser parser) throws XMPPException {
+        assertNotLocked();
+
+        String name = parser.getName();
+        String namespace = parser.getNamespace();
+
+        if(StreamManagement.NAMESPACE.equals(namespace)) {
+            processStreamManagementPacket(readElement(parser));
+            return;
+        }
+
+        // Check post-authentication <features/> for stream management, for resourceBound.
+        if(name.equals("features") && namespace.equals("http://etherx.jabber.org/streams")) {
+            Element features = readElement(parser);
+            lock.lock();
+            try {
+                featureStreamManagement = hasStreamManagementFeature(features);
+            } finally {
+                lock.unlock();
+            }
+            callbacks.onPacket(features);
+            return;
+        }
+
+        boolean stanza = namespace.equals("jabber:client") &&
+            (name.equals("message") || name.equals("presence") || name.equals("iq"));
+
+        callbacks.onPacket(parser);
+
+        // The handled count is only touched by this thread.
+        StreamManagement sm = streamManagement;
+        if(stanza && sm != null && sm.isEnabled())
+            sm.stanzaHandled();
+    }
+
+    /** Handle a stream management packet from the server. */
+    private void processStreamManagementPacket(Element packet) throws XMPPException {
+        assertNotLocked();
+
+        String name = packet.getLocalName();
+        if(name.equals("r")) {
+            StreamManagement sm = streamManagement;
+            if(sm != null)
+                writePacket(sm.ackResponse());
+            return;
+        }
+
+        lock.lock();
+        try {
+            if(streamManagement == null)
+                return;
+
+            if(name.equals("a")) {
+                streamManagement.acknowledged(StreamManagement.parseCount(packet.getAttribute("h")));
+            } else if(name.equals("enabled")) {
+                String resume = packet.getAttribute("resume");
+                streamManagement.enabled(packet.getAttribute("id"), resume.equals("true") || resume.equals("1"));
+            } else if(name.equals("failed")) {
+                // The server refused to enable stream management.  Carry on without it.
+                streamManagement = null;
+            }
+
+            // Wake writers waiting for acknowledgements.
+            cond.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean hasStreamManagementFeature(Element features) {
+        for(Element child: XmlUtil.getChildElements(features)) {
+            if(child.getLocalName().equals("sm") && StreamManagement.NAMESPACE.equals(child.getNamespaceURI()))
+                return true;
+        }
+        return false;
+    }
+
+    /** Return true if e was caused by an I/O error, rather than a protocol error. */
+    private static boolean isIOError(Throwable e) {
+        for(; e != null; e = e.getCause()) {
+            if(e instanceof IOException)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Advance the given parser to the start of the next element.
      * <p>
      * This function must run without locking XMPPStreamTCP, as it blocks.  In order to
      * prevent accidental use of data which requires locking, this function is static
      * and only uses the provided parser.
      * <p>
-     * If the parser returns at depth 1, the returned Element represents the top-level
-     * stream header.  Otherwise, the parser returns at depth 2 and the returned Element
-     * represents a received XMPP stanza.
+     * If the parser returns at depth 1, it's positioned on the top-level stream header.
+     * Otherwise, the parser returns at depth 2, positioned on the START_TAG of a received
+     * XMPP stanza.
      */
-    private static Element readPacketLoop(XmlPullParser parser) throws XMPPException {
+    private static void readPacketLoop(XmlPullParser parser) throws XMPPException {
         try {
             // Depth 0 means we're just starting; 1 means we've read the stream header;
             // 2 means we've read at least one packet.  If we're at depth 2, then the
-            // previous element must be END_TAG, as a result of calling ReadNodeFromXmlPull
-            // below.
+            // previous element must be END_TAG, as a result of reading the previous
+            // stanza with readElement or PacketCallback.onPacket(XmlPullParser).
             if (parser.getDepth() > 2)
                 throw new RuntimeException("Unexpected parser depth: " + parser.getDepth());
             if (parser.getDepth() == 2 && parser.getEventType() != XmlPullParser.END_TAG)
@@ -956,9 +1333,10 @@ public class XMPPStreamTCP extends XMPPStream
             while (parser.getEventType() == XmlPullParser.TEXT)
                 parser.next();
 
-            // END_DOCUMENT means the stream has ended.
+            // END_DOCUMENT means the stream has ended without being closed, so the
+            // connection was lost.
             if (parser.getEventType() == XmlPullParser.END_DOCUMENT)
-                throw new XMPPException("Session terminated");
+                throw new XMPPException("Session terminated", new EOFException("Stream ended without </stream:stream>"));
 
             // If we receive END_TAG, then </stream:stream> has been closed and the
             // connection is about to be closed.  If we receive END_DOCUMENT, then the
@@ -982,11 +1360,6 @@ public class XMPPStreamTCP extends XMPPStream
                         !parser.getNamespace(null).equals("jabber:client")) {
                     throw new XMPPException("Expected stream:stream");
                 }
-
-                return XmlUtil.ReadElementFromXmlPullNonRecursive(parser);
-            } else {
-                // We have an XMPP stanza.  Read the whole thing into a DOM node and return it.
-                return XmlUtil.ReadNodeFromXmlPull(parser);
             }
         }
         catch (XmlPullParserException e) {
@@ -997,6 +1370,24 @@ public class XMPPStreamTCP extends XMPPStream
         }
     }
 
+    /**
+     * Read the element that the parser is positioned on by {@link #readPacketLoop}.
+     * <p>
+     * At depth 1, the returned Element represents the top-level stream header.  At
+     * depth 2, the whole stanza is read into a DOM node.
+     */
+    private static Element readElement(XmlPullParser parser) throws XMPPException {
+        try {
+            if(parser.getDepth() == 1)
+                return XmlUtil.ReadElementFromXmlPullNonRecursive(parser);
+            else
+                return XmlUtil.ReadNodeFromXmlPull(parser);
+        }
+        catch (IOException e) {
+            throw new XMPPException("I/O error", e);
+        }
+    }
+
     private void initReaderAndWriter() throws XMPPException, IOException
     {
         assertLocked();
@@ -1031,28 +1422,10 @@ public class XMPPStreamTCP extends XMPPStream
             }
         }        
         
-        reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
-        writer = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"));
-        
-        /* Send incoming and outgoing data to the read and write observers, if any. */
-        if(readEvent != null) {
-            ObservableReader obsReader = new ObservableReader(reader);
-            obsReader.setReadEvent(readEvent);
-            reader = obsReader;
-        }
-
-        if(writeEvent != null) {
-            ObservableWriter obsWriter = new ObservableWriter(writer);
-            obsWriter.setWriteEvent(writeEvent);
-            writer = obsWriter;
-        }
-
-        // For keepalive purposes, add an observer wrapper to monitor writes.
-        {
-            ObservableWriter obsWriter = new ObservableWriter(writer);
-            obsWriter.setWriteEvent(keepaliveMonitorWriteEvent);
-            writer = obsWriter;
-        }
+        // Decode and encode UTF-8 directly against the socket streams.  The read and
+        // write observers, if any, are only notified while they have listeners.
+        reader = new Utf8Reader(inputStream, readEvent);
+        writer = new Utf8Writer(outputStream, writeEvent);
     }
 
     /** If the socket has been disconnected due to a call to disconnect(), throw
@@ -1195,121 +1568,460 @@ public class XMPPStreamTCP extends XMPPStream
         writePacket(stream.toString());
     }
 
-    public void recoverConnection() {
-        // We don't support any form of session recovery over a plain TCP connection.
-        // XEP-0198 Stream Management allows this, but it's not transparent; it requires
-        // reauthentication, so it can't be implemented at the transport level.
-        throw new RuntimeException("Can't reconnect TCP sessions");
-    }
-    
     /**
-     * Starts the keepalive process. A white space (aka heartbeat) is going to be
-     * sent to the server every 30 seconds (by default) since the last stanza was sent
-     * to the server.
+     * Enable stream management, if it's enabled in the configuration and the server
+     * supports it.  Stanzas written from here on are counted, and kept until the
+     * server acknowledges them.
      */
-    private KeepAliveTask keepAlive;
-    private void startKeepAliveProcess() throws XMPPException {
+    public void resourceBound() throws XMPPException {
         assertNotLocked();
-        
+
+        Writer writerCopy;
         lock.lock();
         try {
+            if(!config.isStreamManagementEnabled() || !featureStreamManagement || streamManagement != null)
+                return;
+
             throwIfDisconnected();
+            writerCopy = writer;
+        } finally {
+            lock.unlock();
+        }
 
-            // Schedule a keep-alive task to run if the feature is enabled. will write
-            // out a space character each time it runs to keep the TCP/IP connection open.
-            int keepAliveInterval = SmackConfiguration.getKeepAliveInterval();
-            if (keepAliveInterval == 0)
+        try {
+            // Start counting while holding the writer, so no stanza is written between
+            // <enable/> and the start of the count.
+            synchronized(writerCopy) {
+                lock.lock();
+                try {
+                    streamManagement = new StreamManagement(config.getStreamManagementQueueCapacity());
+                } finally {
+                    lock.unlock();
+                }
+
+                writerCopy.write(StreamManagement.ENABLE_REQUEST);
+                writerCopy.flush();
+            }
+        } catch(IOException e) {
+            throw new XMPPException(e);
+        }
+
+        lastWrite = System.currentTimeMillis();
+    }
+
+    /**
+     * Resume the session with XEP-0198 stream management, after the connection was lost.
+     * This reconnects to the same server, negotiates TLS and compression, authenticates
+     * again as the same user, then resumes the session instead of binding a new resource.
+     * Stanzas the server didn't receive are sent again.
+     */
+    public void recoverConnection() {
+        assertNotLocked();
+
+        lock.lock();
+        try {
+            // Do nothing if we've been closed, are connected, or are already recovering.
+            if(disconnectRequested || recovering || socket != null)
                 return;
-            
-            KeepAliveTask task = new KeepAliveTask(keepAliveInterval);
-            keepAlive = task;
+
+            // Without resumable stream management, the session ended with the connection,
+            // and we never reported the error as recoverable.
+            if(streamManagement == null || !streamManagement.isResumable())
+                throw new RuntimeException("Can't reconnect TCP sessions without stream management");
+
+            recovering = true;
+
+            Thread thread = config.getThreadFactory().newThread(new Runnable() {
+                public void run() { recover(); }
+            });
+            thread.setName("XMPP stream resumption");
+            thread.start();
         } finally {
             lock.unlock();
         }
     }
 
+    /** The server refused to resume the session.  The connection can't be recovered. */
+    private static class ResumptionRefused extends XMPPException {
+        private static final long serialVersionUID = 1L;
+
+        ResumptionRefused(String message) { super(message); }
+    }
+
+    private void recover() {
+        assertNotLocked();
+
+        try {
+            resumeSession(new ResumeCallback());
+        } catch(XMPPException e) {
+            // If the server refused to resume, the session is gone.  Anything else, like
+            // the network still being down, can be retried.
+            boolean recoverable = !(e instanceof ResumptionRefused);
+
+            lock.lock();
+            try {
+                recovering = false;
+
+                // If we were disconnected, nobody is waiting to hear about it.
+                if(disconnectRequested)
+                    return;
+
+                if(!recoverable)
+                    streamManagement = null;
+
+                shutdown_stream();
+            } finally {
+                lock.unlock();
+            }
+
+            if(recoverable)
+                userCallbacks.onRecoverableError(e);
+            else
+                userCallbacks.onError(e);
+        }
+    }
+
+    private void resumeSession(ResumeCallback resume) throws XMPPException {
+        assertNotLocked();
+
+        // Wait for the packet reader of the lost connection to exit.
+        Thread previousReader;
+        lock.lock();
+        try {
+            previousReader = lastReaderThread;
+        } finally {
+            lock.unlock();
+        }
+        if(previousReader != null)
+            ThreadUtil.uninterruptibleJoin(previousReader);
+
+        String host;
+        int port;
+        SetupPacketCallback setupCallbacks;
+        lock.lock();
+        try {
+            if(disconnectRequested)
+                throw new XMPPException("Connection cancelled");
+
+            resetConnectionState();
+
+            // The session only exists on the server we were connected to.
+            host = config.getHost();
+            port = config.getPort();
+            try {
+                connectSocket(host, port);
+                throwIfDisconnected();
+                initReaderAndWriter();
+            } catch(IOException e) {
+                throw new XMPPException("Could not connect to " + host + ":" + port, e);
+            }
+
+            setupCallbacks = startPacketReader(host, port);
+        } finally {
+            lock.unlock();
+        }
+
+        // Negotiate TLS and compression.
+        streamReset();
+        setupCallbacks.waitForCompletion();
+
+        // Take over from SetupPacketCallback.  The packet reader redelivers the <features/>
+        // it stopped on to us.
+        lock.lock();
+        try {
+            throwIfDisconnected();
+            callbacks = resume;
+            cond.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        reauthenticate(resume.nextPacket(), resume);
+
+        // Authentication resets the stream.  The new features must still offer stream management.
+        streamReset();
+        if(!hasStreamManagementFeature(resume.nextPacket()))
+            throw new ResumptionRefused("The server no longer supports stream management");
+
+        String request;
+        lock.lock();
+        try {
+            throwIfDisconnected();
+            if(streamManagement == null)
+                throw new ResumptionRefused("Stream management was disabled");
+            request = streamManagement.resumeRequest();
+        } finally {
+            lock.unlock();
+        }
+        writePacket(request);
+
+        // The packet reader completes resumption when it receives <resumed/>, in which case
+        // this returns null.  Anything else is a refusal.
+        if(resume.nextPacket() != null)
+            throw new ResumptionRefused("The server refused to resume the session");
+    }
+
+    /** Clear the state of the lost connection, before connecting a new one. */
+    private void resetConnectionState() {
+        assertLocked();
+
+        threadExited = false;
+        callbacks = null;
+        usingTLS = false;
+        usingSecureConnection = false;
+        usingXMPPCompression = false;
+        usingTLSCompression = false;
+        featureStartTLSReceived = false;
+        featureCompressionMethods = null;
+        featureStreamManagement = false;
+    }
+
+    /**
+     * Authenticate the new connection as the user who logged in, with SASL.  features is
+     * the <features/> packet offering SASL mechanisms.
+     */
+    private void reauthenticate(Element features, ResumeCallback resume) throws XMPPException {
+        assertNotLocked();
+
+        Collection<String> serverMechanisms = new ArrayList<String>();
+        for(Element child: XmlUtil.getChildElements(features)) {
+            if(child.getLocalName().equals("mechanisms"))
+                serverMechanisms = PacketParserUtils.parseMechanisms(child);
+        }
+
+        // Anonymous sessions have no credentials to authenticate with again.
+        String username = config.getUsername();
+        String password = config.getPassword();
+        if(username == null)
+            throw new ResumptionRefused("Anonymous sessions can't be resumed");
+
+        CallbackHandler cbh;
+        if(password == null && config.getCallbackHandler() != null)
+            cbh = config.getCallbackHandler();
+        else
+            cbh = new SASLAuthentication.DefaultCallbackHandler(username, password);
+
+        for(SASLMechanismType.Factory factory: SASLAuthentication.getMechanismsToTry(serverMechanisms, false)) {
+            SASLMechanismType mechanism = factory.create();
+            byte[] initialResponse;
+            try {
+                initialResponse = mechanism.authenticate(username, config.getServiceName(), cbh);
+            } catch(SASLMechanismType.MechanismNotSupported e) {
+                continue;
+            }
+
+            writePacket(new SASLAuthentication.AuthMechanism(mechanism.getName(), initialResponse).toXML());
+
+            while(true) {
+                Element packet = resume.nextPacket();
+                if(packet == null || !"urn:ietf:params:xml:ns:xmpp-sasl".equals(packet.getNamespaceURI()))
+                    continue;
+
+                String text = XmlUtil.getTextContent(packet);
+                if(packet.getLocalName().equals("success")) {
+                    byte[] successData = null;
+                    if(text != null && text.length() > 0)
+                        successData = text.equals("=")? new byte[0]:SASLHelpers.decodeBase64(text);
+                    mechanism.successReceived(successData);
+                    return;
+                }
+
+                if(packet.getLocalName().equals("failure"))
+                    throw new ResumptionRefused("SASL authentication " + mechanism.getName() + " failed while resuming");
+
+                if(packet.getLocalName().equals("challenge")) {
+                    byte[] challenge = text != null? SASLHelpers.decodeBase64(text):new byte[0];
+                    byte[] response = mechanism.challengeReceived(challenge);
+                    if(response == null)
+                        writePacket(new SASLAuthentication.Response().toXML());
+                    else
+                        writePacket(new SASLAuthentication.Response(Base64.encodeBytes(response, Base64.DONT_BREAK_LINES)).toXML());
+                }
+            }
+        }
+
+        throw new ResumptionRefused("No supported SASL mechanisms to resume with");
+    }
+
     /**
-     * A TimerTask that keeps connections to the server alive by sending a space
-     * character on an interval.
+     * Receives packets while a session is being resumed.  Packets are queued for
+     * {@link #resumeSession}, except &lt;resumed/&gt;, which is handled on the packet
+     * reader thread, so packets following it go straight to the user's callbacks.
      */
-    private class KeepAliveTask {
-        private final int delay;
-        private boolean done = false;
-        private ScheduledFuture keepaliveFuture;
-        private long lastActive = System.currentTimeMillis();
-
-        private final WriterListener listener = new WriterListener() {
-            public void write(String str) {
-                lastActive = System.currentTimeMillis();
+    class ResumeCallback extends PacketCallback {
+        private final LinkedList<Element> packets = new LinkedList<Element>();
+        private XMPPException error;
+        private boolean resumed = false;
+
+        public void onPacket(Element packet) {
+            assertNotLocked();
+
+            if(packet.getLocalName().equals("resumed") &&
+                    StreamManagement.NAMESPACE.equals(packet.getNamespaceURI())) {
+                try {
+                    completeResumption(packet);
+                } catch(XMPPException e) {
+                    onError(e);
+                }
+                return;
             }
-        };        
 
-        public KeepAliveTask(int delay) {
-            this.delay = delay;
+            lock.lock();
+            try {
+                packets.add(packet);
+                cond.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
 
-            // Add a write listener to track the time of the most recent write.  This is used
-            // to only send heartbeats when the connection is idle.
-            keepaliveMonitorWriteEvent.addWriterListener(listener);
+        public void onError(XMPPException error) {
+            assertNotLocked();
+            lock.lock();
+            try {
+                this.error = error;
+                cond.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
 
-            scheduleKeepalive();
+        public void onRecoverableError(XMPPException error) {
+            onError(error);
         }
 
+        public void onRecovered() { throw new RuntimeException(); }
+
         /**
-         * Close the keepalive thread. 
+         * Wait for the next packet.  Return null if the session has been resumed.
+         *
+         * @throws XMPPException if the connection fails, or no packet arrives in time.
          */
-        public void close() {
-            // Ensure that no new keepaliveFuture will be set.
-            synchronized(this) {
-                done = true;
-            }
+        Element nextPacket() throws XMPPException {
+            assertNotLocked();
 
-            if(keepaliveFuture != null) {
-                if(!keepaliveFuture.cancel(false)) {
-                    try {
-                        // If keepaliveFuture is already running, wait for it to finish.
-                        keepaliveFuture.get();
-                    } catch(InterruptedException e) {
-                        throw new RuntimeException(e);
-                    } catch(ExecutionException e) {
-                        throw new RuntimeException(e);
-                    }
+            lock.lock();
+            try {
+                long waitUntil = System.currentTimeMillis() + SmackConfiguration.getPacketReplyTimeout();
+                while(packets.isEmpty() && error == null && !resumed) {
+                    if(!waitUntilTime(cond, waitUntil))
+                        throw new XMPPException("Timed out resuming the session", XMPPError.Condition.request_timeout);
                 }
-                keepaliveFuture = null;
+
+                if(error != null)
+                    throw error;
+                if(!packets.isEmpty())
+                    return packets.removeFirst();
+                return null;
+            } finally {
+                lock.unlock();
             }
-            
-            keepaliveMonitorWriteEvent.removeWriterListener(listener);
         }
 
-        private long getMsUntilKeepalive() {
-            long timeSinceKeepalive = System.currentTimeMillis() - KeepAliveTask.this.lastActive;
-            return delay - timeSinceKeepalive;
-        }
+        /**
+         * The server resumed the session.  Resend the stanzas it didn't receive, and hand
+         * the connection back to the user's callbacks.
+         */
+        private void completeResumption(Element packet) throws XMPPException {
+            long h = StreamManagement.parseCount(packet.getAttribute("h"));
 
-        private Runnable sendKeepAlive = new Runnable() {
-            public void run() { 
-                // Send heartbeat if no packet has been sent to the server for a given time
-                try {
-                    if (getMsUntilKeepalive() <= 0) {
-                        writePacket(" ");
+            Writer writerCopy;
+            lock.lock();
+            try {
+                throwIfDisconnected();
+                writerCopy = writer;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                // Hold the writer while resending, so stanzas queued during recovery are
+                // written before any new ones.
+                synchronized(writerCopy) {
+                    String resend;
+                    lock.lock();
+                    try {
+                        throwIfDisconnected();
+                        if(streamManagement == null)
+                            throw new XMPPException("Stream management was disabled");
+                        resend = streamManagement.resumed(h);
+
+                        callbacks = userCallbacks;
+                        recovering = false;
+                        resumed = true;
+                        cond.signalAll();
+                    } finally {
+                        lock.unlock();
                     }
-                }
-                catch (XMPPException e) {
-                    // Do nothing, and assume that whatever caused an error
-                    // here will cause one in the main code path, too.  This
-                    // will also happen if the write blocked and XMPPStreamTCP.disconnect
-                    // closed the socket.
-                }
 
-                scheduleKeepalive();
+                    writerCopy.write(resend);
+                    writerCopy.flush();
+                }
+            } catch(IOException e) {
+                // The new connection has already failed.  The packet reader will see the
+                // error and report it as recoverable.
+                return;
             }
-        };
 
-        private synchronized void scheduleKeepalive() {
-            if(done)
+            lastWrite = System.currentTimeMillis();
+            startKeepAliveProcess();
+            userCallbacks.onRecovered();
+        }
+    };
+    
+    /**
+     * Starts the keepalive process. A white space (aka heartbeat) is going to be
+     * sent to the server every 30 seconds (by default) since the last stanza was sent
+     * to the server.  Keepalives for all connections are scheduled by the shared
+     * {@link KeepAliveScheduler}.
+     */
+    private KeepAliveScheduler.Entry keepAlive;
+    private void startKeepAliveProcess() throws XMPPException {
+        assertNotLocked();
+        
+        lock.lock();
+        try {
+            throwIfDisconnected();
+
+            // Schedule a keep-alive task to run if the feature is enabled. will write
+            // out a space character each time it runs to keep the TCP/IP connection open.
+            int keepAliveInterval = SmackConfiguration.getKeepAliveInterval();
+            if (keepAliveInterval <= 0)
                 return;
 
-            keepaliveFuture = schedExec.schedule(sendKeepAlive,
-                    getMsUntilKeepalive() + 50, TimeUnit.MILLISECONDS);
+            keepAlive = KeepAliveScheduler.getSharedScheduler().register(keepAliveTarget, keepAliveInterval);
+        } finally {
+            lock.unlock();
         }
     }
+
+    private final KeepAliveScheduler.Target keepAliveTarget = new KeepAliveScheduler.Target() {
+        public long getLastActivity() {
+            return lastWrite;
+        }
+
+        public void sendKeepAlive() {
+            // With stream management, ask for an ack instead of sending whitespace, so
+            // stanzas sent before going idle are acknowledged.
+            String keepAlive = " ";
+            lock.lock();
+            try {
+                StreamManagement sm = streamManagement;
+                if(sm != null && sm.isEnabled() && sm.getUnackedCount() > 0 && sm.requestAck())
+                    keepAlive = StreamManagement.ACK_REQUEST;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                writePacket(keepAlive);
+            }
+            catch (XMPPException e) {
+                // Do nothing, and assume that whatever caused an error
+                // here will cause one in the main code path, too.  This
+                // will also happen if the write blocked and XMPPStreamTCP.disconnect
+                // closed the socket.
+            }
+        }
+    };
 };
\ No newline at end of file
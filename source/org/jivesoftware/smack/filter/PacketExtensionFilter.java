@@ -58,4 +58,23 @@ public class PacketExtensionFilter implements PacketFilter {
     public boolean accept(Packet packet) {
         return packet.getExtension(elementName, namespace) != null;
     }
+
+    /**
+     * Returns the XML element name of the packet extension, or null if any element
+     * name is accepted.
+     *
+     * @return the element name of the packet extension.
+     */
+    public String getElementName() {
+        return elementName;
+    }
+
+    /**
+     * Returns the XML namespace of the packet extension.
+     *
+     * @return the namespace of the packet extension.
+     */
+    public String getNamespace() {
+        return namespace;
+    }
 }
@@ -56,6 +56,15 @@ public class PacketIDFilter implements PacketFilter {
         return packetID.equals(packet.getPacketID());
     }
 
+    /**
+     * Returns the packet ID this filter accepts.
+     *
+     * @return the packet ID.
+     */
+    public String getPacketID() {
+        return packetID;
+    }
+
     public String toString() {
         return "PacketIDFilter by id: " + packetID;
     }
@@ -35,7 +35,7 @@ import org.jivesoftware.smack.packet.Packet;
  */
 public class PacketTypeFilter implements PacketFilter {
 
-    Class packetType;
+    Class<? extends Packet> packetType;
 
     /**
      * Creates a new packet type filter that will filter for packets that are the
@@ -43,18 +43,27 @@ public class PacketTypeFilter implements PacketFilter {
      *
      * @param packetType the Class type.
      */
-    public PacketTypeFilter(Class packetType) {
+    public PacketTypeFilter(Class<?> packetType) {
         // Ensure the packet type is a sub-class of Packet.
         if (!Packet.class.isAssignableFrom(packetType)) {
             throw new IllegalArgumentException("Packet type must be a sub-class of Packet.");
         }
-        this.packetType = packetType;
+        this.packetType = packetType.asSubclass(Packet.class);
     }
 
     public boolean accept(Packet packet) {
         return packetType.isInstance(packet);
     }
 
+    /**
+     * Returns the packet class this filter accepts, including subclasses.
+     *
+     * @return the packet class.
+     */
+    public Class<? extends Packet> getPacketType() {
+        return packetType;
+    }
+
     public String toString() {
         return "PacketTypeFilter: " + packetType.getName();
     }
@@ -20,8 +20,11 @@
 
 package org.jivesoftware.smack.packet;
 
+import java.io.IOException;
 import java.util.*;
 
+import org.jivesoftware.smack.util.StringUtils;
+
 /**
  * Default implementation of the PacketExtension interface. Unless a PacketExtensionProvider
  * is registered with {@link org.jivesoftware.smack.provider.ProviderManager ProviderManager},
@@ -44,7 +47,7 @@ import java.util.*;
  *
  * @author Matt Tucker
  */
-public class DefaultPacketExtension implements PacketExtension {
+public class DefaultPacketExtension implements PacketExtension, XMLAppendable {
 
     private String elementName;
     private String namespace;
@@ -80,16 +83,18 @@ public class DefaultPacketExtension implements PacketExtension {
     }
 
     public String toXML() {
-        StringBuilder buf = new StringBuilder();
-        buf.append("<").append(elementName).append(" xmlns=\"").append(namespace).append("\">");
+        return StringUtils.toXML(this);
+    }
+
+    public void appendXML(Appendable out) throws IOException {
+        out.append("<").append(elementName).append(" xmlns=\"").append(namespace).append("\">");
         for (String name : getNames()) {
             String value = getValue(name);
-            buf.append("<").append(name).append(">");
-            buf.append(value);
-            buf.append("</").append(name).append(">");
+            out.append("<").append(name).append(">");
+            out.append(value);
+            out.append("</").append(name).append(">");
         }
-        buf.append("</").append(elementName).append(">");
-        return buf.toString();
+        out.append("</").append(elementName).append(">");
     }
 
     /**
@@ -23,6 +23,8 @@ package org.jivesoftware.smack.packet;
 import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.util.StringUtils;
 
+import java.io.IOException;
+
 /**
  * The base IQ (Info/Query) packet. IQ packets are used to get and set information
  * on the server, including authentication, roster operations, and creating
@@ -68,35 +70,38 @@ public abstract class IQ extends Packet {
     }
 
     public String toXML() {
-        StringBuilder buf = new StringBuilder();
-        buf.append("<iq ");
+        return StringUtils.toXML(this);
+    }
+
+    public void appendXML(Appendable out) throws IOException {
+        out.append("<iq ");
         if (getPacketID() != null) {
-            buf.append("id=\"" + getPacketID() + "\" ");
+            out.append("id=\"").append(getPacketID()).append("\" ");
         }
         if (getTo() != null) {
-            buf.append("to=\"").append(StringUtils.escapeForXML(getTo())).append("\" ");
+            out.append("to=\"");
+            StringUtils.escapeForXML(getTo(), out);
+            out.append("\" ");
         }
         if (getFrom() != null) {
-            buf.append("from=\"").append(StringUtils.escapeForXML(getFrom())).append("\" ");
+            out.append("from=\"");
+            StringUtils.escapeForXML(getFrom(), out);
+            out.append("\" ");
         }
         if (type == null) {
-            buf.append("type=\"get\">");
+            out.append("type=\"get\">");
         }
         else {
-            buf.append("type=\"").append(getType()).append("\">");
+            out.append("type=\"").append(getType().toString()).append("\">");
         }
         // Add the query section if there is one.
-        String queryXML = getChildElementXML();
-        if (queryXML != null) {
-            buf.append(queryXML);
-        }
+        appendChildElementXML(out);
         // Add the error sub-packet, if there is one.
         XMPPError error = getError();
         if (error != null) {
-            buf.append(error.toXML());
+            out.append(error.toXML());
         }
-        buf.append("</iq>");
-        return buf.toString();
+        out.append("</iq>");
     }
 
     /**
@@ -109,6 +114,21 @@ public abstract class IQ extends Packet {
      */
     public abstract String getChildElementXML();
 
+    /**
+     * Appends the sub-element XML section of the IQ packet to out.  The default
+     * implementation appends {@link #getChildElementXML()}, if it isn't null.  Subclasses
+     * with large payloads may override this to write directly to out.
+     *
+     * @param out where to append the XML.
+     * @throws IOException if out throws IOException.
+     */
+    protected void appendChildElementXML(Appendable out) throws IOException {
+        String queryXML = getChildElementXML();
+        if (queryXML != null) {
+            out.append(queryXML);
+        }
+    }
+
     /**
      * Convenience method to create a new empty {@link Type#RESULT IQ.Type.RESULT}
      * IQ based on a {@link Type#GET IQ.Type.GET} or {@link Type#SET IQ.Type.SET}
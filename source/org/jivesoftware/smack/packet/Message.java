@@ -22,6 +22,7 @@ package org.jivesoftware.smack.packet;
 
 import org.jivesoftware.smack.util.StringUtils;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -405,69 +406,79 @@ public class Message extends Packet {
     }
 
     public String toXML() {
-        StringBuilder buf = new StringBuilder();
-        buf.append("<message");
+        return StringUtils.toXML(this);
+    }
+
+    public void appendXML(Appendable out) throws IOException {
+        out.append("<message");
         if (getXmlns() != null) {
-            buf.append(" xmlns=\"").append(getXmlns()).append("\"");
+            out.append(" xmlns=\"").append(getXmlns()).append("\"");
         }
         if (language != null) {
-            buf.append(" xml:lang=\"").append(getLanguage()).append("\"");
+            out.append(" xml:lang=\"").append(getLanguage()).append("\"");
         }
         if (getPacketID() != null) {
-            buf.append(" id=\"").append(getPacketID()).append("\"");
+            out.append(" id=\"").append(getPacketID()).append("\"");
         }
         if (getTo() != null) {
-            buf.append(" to=\"").append(StringUtils.escapeForXML(getTo())).append("\"");
+            out.append(" to=\"");
+            StringUtils.escapeForXML(getTo(), out);
+            out.append("\"");
         }
         if (getFrom() != null) {
-            buf.append(" from=\"").append(StringUtils.escapeForXML(getFrom())).append("\"");
+            out.append(" from=\"");
+            StringUtils.escapeForXML(getFrom(), out);
+            out.append("\"");
         }
         if (type != Type.normal) {
-            buf.append(" type=\"").append(type).append("\"");
+            out.append(" type=\"").append(type.toString()).append("\"");
         }
-        buf.append(">");
+        out.append(">");
         // Add the subject in the default language
         Subject defaultSubject = getMessageSubject(null);
         if (defaultSubject != null) {
-            buf.append("<subject>").append(StringUtils.escapeForXML(defaultSubject.subject)).append("</subject>");
+            out.append("<subject>");
+            StringUtils.escapeForXML(defaultSubject.subject, out);
+            out.append("</subject>");
         }
         // Add the subject in other languages
         for (Subject subject : getSubjects()) {
             // Skip the default language
             if(subject.equals(defaultSubject))
                 continue;
-            buf.append("<subject xml:lang=\"").append(subject.language).append("\">");
-            buf.append(StringUtils.escapeForXML(subject.subject));
-            buf.append("</subject>");
+            out.append("<subject xml:lang=\"").append(subject.language).append("\">");
+            StringUtils.escapeForXML(subject.subject, out);
+            out.append("</subject>");
         }
         // Add the body in the default language
         Body defaultBody = getMessageBody(null);
         if (defaultBody != null) {
-            buf.append("<body>").append(StringUtils.escapeForXML(defaultBody.message)).append("</body>");
+            out.append("<body>");
+            StringUtils.escapeForXML(defaultBody.message, out);
+            out.append("</body>");
         }
         // Add the bodies in other languages
         for (Body body : getBodies()) {
             // Skip the default language
             if(body.equals(defaultBody))
                 continue;
-            buf.append("<body xml:lang=\"").append(body.getLanguage()).append("\">");
-            buf.append(StringUtils.escapeForXML(body.getMessage()));
-            buf.append("</body>");
+            out.append("<body xml:lang=\"").append(body.getLanguage()).append("\">");
+            StringUtils.escapeForXML(body.getMessage(), out);
+            out.append("</body>");
         }
         if (thread != null) {
-            buf.append("<thread>").append(thread).append("</thread>");
+            out.append("<thread>").append(thread).append("</thread>");
         }
         // Append the error subpacket if the message type is an error.
         if (type == Type.error) {
             XMPPError error = getError();
             if (error != null) {
-                buf.append(error.toXML());
+                out.append(error.toXML());
             }
         }
         // Add packet extensions, if any are defined.
-        buf.append(getExtensionsXML());
-        buf.append("</message>");
-        return buf.toString();
+        appendExtensionsXML(out);
+        out.append("</message>");
     }
 
 
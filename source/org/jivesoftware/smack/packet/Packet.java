@@ -20,6 +20,7 @@
 
 package org.jivesoftware.smack.packet;
 
+import org.jivesoftware.smack.util.RecordingXmlPullParser;
 import org.jivesoftware.smack.util.StringUtils;
 
 import org.w3c.dom.Element;
@@ -43,7 +44,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
  *
  * @author Matt Tucker
  */
-public abstract class Packet {
+public abstract class Packet implements XMLAppendable {
 
     protected static final String DEFAULT_LANGUAGE =
             java.util.Locale.getDefault().getLanguage().toLowerCase();
@@ -74,6 +75,12 @@ public abstract class Packet {
      */
     private Element element;
 
+    /**
+     * If this packet was parsed directly from the stream, this records the received
+     * XML, and {@link #element} is created from it when it's first requested.
+     */
+    private RecordingXmlPullParser.Recording recordedElement;
+
     private String xmlns = DEFAULT_XML_NS;
 
     /**
@@ -329,13 +336,28 @@ public abstract class Packet {
 
     /** Save the original XML data. */
     // ... but when we get it from the low level, it's already parsed
-    public void setElement(Element element) {
+    public synchronized void setElement(Element element) {
         this.element = element;
+        this.recordedElement = null;
+    }
+
+    /**
+     * Save the original XML data of a packet which was parsed directly from the
+     * stream, without creating a DOM.  The DOM will be built from the recording the
+     * first time {@link #getElement} is called.
+     */
+    public synchronized void setElement(RecordingXmlPullParser.Recording recording) {
+        this.element = null;
+        this.recordedElement = recording;
     }
 
     /** Retrieve the original XML data of this packet, or {@code null} if this is
      *  a locally-generated packet. */
-    public Element getElement() { // XXX rename to getElement, merge with ReceivedPacket
+    public synchronized Element getElement() {
+        if(recordedElement != null) {
+            element = recordedElement.toElement();
+            recordedElement = null;
+        }
         return element;
     }
 
@@ -348,6 +370,18 @@ public abstract class Packet {
      */
     public abstract String toXML();
 
+    /**
+     * Appends the packet as XML to out.  The default implementation appends
+     * {@link #toXML()}; subclasses should override this to write directly to out,
+     * and implement toXML() with {@link StringUtils#toXML(XMLAppendable)}.
+     *
+     * @param out where to append the XML.
+     * @throws IOException if out throws IOException.
+     */
+    public void appendXML(Appendable out) throws IOException {
+        out.append(toXML());
+    }
+
     /**
      * Returns the extension sub-packets (including properties data) as an XML
      * String, or the Empty String if there are no packet extensions.
@@ -357,60 +391,84 @@ public abstract class Packet {
      */
     protected synchronized String getExtensionsXML() {
         StringBuilder buf = new StringBuilder();
+        try {
+            appendExtensionsXML(buf);
+        }
+        catch (IOException e) {
+            // StringBuilder doesn't throw IOException.
+            throw new RuntimeException(e);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Appends the extension sub-packets (including properties data) as XML to out.
+     * Extensions implementing {@link XMLAppendable} are written directly.
+     *
+     * @param out where to append the XML.
+     * @throws IOException if out throws IOException.
+     */
+    protected synchronized void appendExtensionsXML(Appendable out) throws IOException {
         // Add in all standard extension sub-packets.
         for (PacketExtension extension : getExtensions()) {
-            buf.append(extension.toXML());
+            if (extension instanceof XMLAppendable) {
+                ((XMLAppendable) extension).appendXML(out);
+            }
+            else {
+                out.append(extension.toXML());
+            }
         }
         // Add in packet properties.
         if (properties != null && !properties.isEmpty()) {
-            buf.append("<properties xmlns=\"http://www.jivesoftware.com/xmlns/xmpp/properties\">");
+            out.append("<properties xmlns=\"http://www.jivesoftware.com/xmlns/xmpp/properties\">");
             // Loop through all properties and write them out.
             for (String name : getPropertyNames()) {
                 Object value = getProperty(name);
-                buf.append("<property>");
-                buf.append("<name>").append(StringUtils.escapeForXML(name)).append("</name>");
-                buf.append("<value type=\"");
+                out.append("<property>");
+                out.append("<name>");
+                StringUtils.escapeForXML(name, out);
+                out.append("</name>");
+                out.append("<value type=\"");
                 if (value instanceof Integer) {
-                    buf.append("integer\">").append(value).append("</value>");
+                    out.append("integer\">").append(value.toString()).append("</value>");
                 }
                 else if (value instanceof Long) {
-                    buf.append("long\">").append(value).append("</value>");
+                    out.append("long\">").append(value.toString()).append("</value>");
                 }
                 else if (value instanceof Float) {
-                    buf.append("float\">").append(value).append("</value>");
+                    out.append("float\">").append(value.toString()).append("</value>");
                 }
                 else if (value instanceof Double) {
-                    buf.append("double\">").append(value).append("</value>");
+                    out.append("double\">").append(value.toString()).append("</value>");
                 }
                 else if (value instanceof Boolean) {
-                    buf.append("boolean\">").append(value).append("</value>");
+                    out.append("boolean\">").append(value.toString()).append("</value>");
                 }
                 else if (value instanceof String) {
-                    buf.append("string\">");
-                    buf.append(StringUtils.escapeForXML((String)value));
-                    buf.append("</value>");
+                    out.append("string\">");
+                    StringUtils.escapeForXML((String)value, out);
+                    out.append("</value>");
                 }
                 // Otherwise, it's a generic Serializable object. Serialized objects are in
                 // a binary format, which won't work well inside of XML. Therefore, we base-64
                 // encode the binary data before adding it.
                 else {
                     ByteArrayOutputStream byteStream = null;
-                    ObjectOutputStream out = null;
+                    ObjectOutputStream objectOut = null;
+                    String encodedVal = null;
                     try {
                         byteStream = new ByteArrayOutputStream();
-                        out = new ObjectOutputStream(byteStream);
-                        out.writeObject(value);
-                        buf.append("java-object\">");
-                        String encodedVal = StringUtils.encodeBase64(byteStream.toByteArray());
-                        buf.append(encodedVal).append("</value>");
+                        objectOut = new ObjectOutputStream(byteStream);
+                        objectOut.writeObject(value);
+                        encodedVal = StringUtils.encodeBase64(byteStream.toByteArray());
                     }
                     catch (IOException e) {
                         e.printStackTrace();
                     }
                     finally {
-                        if (out != null) {
+                        if (objectOut != null) {
                             try {
-                                out.close();
+                                objectOut.close();
                             }
                             catch (IOException e) {
                                 // Ignore.
@@ -425,12 +483,14 @@ public abstract class Packet {
                             }
                         }
                     }
+                    if (encodedVal != null) {
+                        out.append("java-object\">").append(encodedVal).append("</value>");
+                    }
                 }
-                buf.append("</property>");
+                out.append("</property>");
             }
-            buf.append("</properties>");
+            out.append("</properties>");
         }
-        return buf.toString();
     }
 
     public String getXmlns() {
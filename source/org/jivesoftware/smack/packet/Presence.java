@@ -22,6 +22,8 @@ package org.jivesoftware.smack.packet;
 
 import org.jivesoftware.smack.util.StringUtils;
 
+import java.io.IOException;
+
 /**
  * Represents XMPP presence packets. Every presence packet has a type, which is one of
  * the following values:
@@ -224,48 +226,55 @@ public class Presence extends Packet {
     }
 
     public String toXML() {
-        StringBuilder buf = new StringBuilder();
-        buf.append("<presence");
+        return StringUtils.toXML(this);
+    }
+
+    public void appendXML(Appendable out) throws IOException {
+        out.append("<presence");
         if(getXmlns() != null) {
-            buf.append(" xmlns=\"").append(getXmlns()).append("\"");
+            out.append(" xmlns=\"").append(getXmlns()).append("\"");
         }
         if (language != null) {
-            buf.append(" xml:lang=\"").append(getLanguage()).append("\"");
+            out.append(" xml:lang=\"").append(getLanguage()).append("\"");
         }
         if (getPacketID() != null) {
-            buf.append(" id=\"").append(getPacketID()).append("\"");
+            out.append(" id=\"").append(getPacketID()).append("\"");
         }
         if (getTo() != null) {
-            buf.append(" to=\"").append(StringUtils.escapeForXML(getTo())).append("\"");
+            out.append(" to=\"");
+            StringUtils.escapeForXML(getTo(), out);
+            out.append("\"");
         }
         if (getFrom() != null) {
-            buf.append(" from=\"").append(StringUtils.escapeForXML(getFrom())).append("\"");
+            out.append(" from=\"");
+            StringUtils.escapeForXML(getFrom(), out);
+            out.append("\"");
         }
         if (type != Type.available) {
-            buf.append(" type=\"").append(type).append("\"");
+            out.append(" type=\"").append(type.toString()).append("\"");
         }
-        buf.append(">");
+        out.append(">");
         if (status != null) {
-            buf.append("<status>").append(StringUtils.escapeForXML(status)).append("</status>");
+            out.append("<status>");
+            StringUtils.escapeForXML(status, out);
+            out.append("</status>");
         }
         if (priority != Integer.MIN_VALUE) {
-            buf.append("<priority>").append(priority).append("</priority>");
+            out.append("<priority>").append(String.valueOf(priority)).append("</priority>");
         }
         if (mode != null && mode != Mode.available) {
-            buf.append("<show>").append(mode).append("</show>");
+            out.append("<show>").append(mode.toString()).append("</show>");
         }
 
-        buf.append(this.getExtensionsXML());
+        appendExtensionsXML(out);
 
         // Add the error sub-packet, if there is one.
         XMPPError error = getError();
         if (error != null) {
-            buf.append(error.toXML());
+            out.append(error.toXML());
         }
 
-        buf.append("</presence>");
-        
-        return buf.toString();
+        out.append("</presence>");
     }
 
     public String toString() {
@@ -33,6 +33,7 @@ import java.util.concurrent.CopyOnWriteArraySet;
 public class RosterPacket extends IQ {
 
     private final List<Item> rosterItems = new ArrayList<Item>();
+    private String version;
 
     /**
      * Adds a roster item to the packet.
@@ -67,9 +68,33 @@ public class RosterPacket extends IQ {
         }
     }
 
+    /**
+     * Returns the roster version (XEP-0237), or null if the packet isn't versioned.
+     *
+     * @return the roster version.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Sets the roster version (XEP-0237).  In a roster request, this is the version
+     * of the locally stored roster, or the empty string if none is stored; the server
+     * will then only send the changes since that version.
+     *
+     * @param version the roster version, or null to omit it.
+     */
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
     public String getChildElementXML() {
         StringBuilder buf = new StringBuilder();
-        buf.append("<query xmlns=\"jabber:iq:roster\">");
+        buf.append("<query xmlns=\"jabber:iq:roster\"");
+        if (version != null) {
+            buf.append(" ver=\"").append(StringUtils.escapeForXML(version)).append("\"");
+        }
+        buf.append(">");
         synchronized (rosterItems) {
             for (Item entry : rosterItems) {
                 buf.append(entry.toXML());
@@ -0,0 +1,38 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.packet;
+
+import java.io.IOException;
+
+/**
+ * An object which can write its XML representation to an {@link Appendable}, such as
+ * a Writer or StringBuilder, without building intermediate Strings.
+ * <p>
+ * {@link Packet} implements this interface.  {@link PacketExtension}s may implement it
+ * to be written directly into their packet's output; extensions which don't are
+ * written using {@link PacketExtension#toXML()}.
+ *
+ * @see org.jivesoftware.smack.util.StringUtils#toXML(XMLAppendable)
+ */
+public interface XMLAppendable {
+    /**
+     * Append the XML representation of this object to out.  The output must be the
+     * same as the object's toXML() method.
+     *
+     * @param out where to append the XML.
+     * @throws IOException if out throws IOException.
+     */
+    public void appendXML(Appendable out) throws IOException;
+}
@@ -20,10 +20,13 @@
 
 package org.jivesoftware.smack.provider;
 
+import java.io.IOException;
+
 import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.PacketExtension;
 import org.jivesoftware.smack.util.XmlPullParserDom;
+import org.jivesoftware.smack.util.XmlUtil;
 import org.w3c.dom.Element;
 import org.xmlpull.v1.XmlPullParser;
 
@@ -73,4 +76,58 @@ public abstract class IQProvider {
             throw new XMPPException(e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Parse the IQ sub-document directly from the stream's parser, without building a DOM.
+     * At the beginning of the method call, the parser is positioned on the opening tag
+     * of the element.  On return, it is positioned on the matching closing tag.
+     * <p>
+     * If {@link #parseIQ(Element)} is overridden, the element is read into a DOM and
+     * passed to it; otherwise, the parser is passed to {@link #parseIQ(XmlPullParser)}.
+     *
+     * @param parser the stream's XML parser.
+     * @throws XMPPException if an error occurs parsing the XML, or if the provider
+     *     leaves the parser past the end of the element.
+     */
+    public IQ parseIQFromStream(XmlPullParser parser) throws XMPPException {
+        if(parsesElement()) {
+            try {
+                return parseIQ(XmlUtil.ReadNodeFromXmlPull(parser));
+            } catch(IOException e) {
+                throw new XMPPException("I/O error", e);
+            }
+        }
+
+        int depth = parser.getDepth();
+        IQ result;
+        try {
+            result = parseIQ(parser);
+        } catch(XMPPException e) {
+            throw e;
+        } catch(Exception e) {
+            throw new XMPPException(e);
+        }
+
+        try {
+            XmlUtil.skipToEndTag(parser, depth);
+        } catch(IOException e) {
+            throw new XMPPException("I/O error", e);
+        }
+        return result;
+    }
+
+    private Boolean parsesElement;
+
+    /** Return true if this provider overrides {@link #parseIQ(Element)}. */
+    private boolean parsesElement() {
+        if(parsesElement == null) {
+            try {
+                Class<?> declaringClass = getClass().getMethod("parseIQ", Element.class).getDeclaringClass();
+                parsesElement = declaringClass != IQProvider.class;
+            } catch(NoSuchMethodException e) {
+                throw new RuntimeException("Unexpected error", e);
+            }
+        }
+        return parsesElement;
+    }
+}
@@ -20,6 +20,8 @@
 
 package org.jivesoftware.smack.provider;
 
+import java.io.IOException;
+
 import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.packet.PacketExtension;
 import org.jivesoftware.smack.util.XmlPullParserDom;
@@ -72,4 +74,58 @@ public abstract class PacketExtensionProvider {
             throw new XMPPException(e2);
         }
     }
+
+    /**
+     * Parse the extension sub-packet directly from the stream's parser, without building a DOM.
+     * At the beginning of the method call, the parser is positioned on the opening tag
+     * of the element.  On return, it is positioned on the matching closing tag.
+     * <p>
+     * If {@link #parseExtension(Element)} is overridden, the element is read into a DOM and
+     * passed to it; otherwise, the parser is passed to {@link #parseExtension(XmlPullParser)}.
+     *
+     * @param parser the stream's XML parser.
+     * @throws XMPPException if an error occurs parsing the XML, or if the provider
+     *     leaves the parser past the end of the element.
+     */
+    public PacketExtension parseExtensionFromStream(XmlPullParser parser) throws XMPPException {
+        if(parsesElement()) {
+            try {
+                return parseExtension(XmlUtil.ReadNodeFromXmlPull(parser));
+            } catch(IOException e) {
+                throw new XMPPException("I/O error", e);
+            }
+        }
+
+        int depth = parser.getDepth();
+        PacketExtension result;
+        try {
+            result = parseExtension(parser);
+        } catch(XMPPException e) {
+            throw e;
+        } catch(Exception e2) {
+            throw new XMPPException(e2);
+        }
+
+        try {
+            XmlUtil.skipToEndTag(parser, depth);
+        } catch(IOException e) {
+            throw new XMPPException("I/O error", e);
+        }
+        return result;
+    }
+
+    private Boolean parsesElement;
+
+    /** Return true if this provider overrides {@link #parseExtension(Element)}. */
+    private boolean parsesElement() {
+        if(parsesElement == null) {
+            try {
+                Class<?> declaringClass = getClass().getMethod("parseExtension", Element.class).getDeclaringClass();
+                parsesElement = declaringClass != PacketExtensionProvider.class;
+            } catch(NoSuchMethodException e) {
+                throw new RuntimeException("Unexpected error", e);
+            }
+        }
+        return parsesElement;
+    }
 }
@@ -0,0 +1,236 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+/**
+ * Encodes and decodes base64 (RFC 4648) directly between byte arrays and character
+ * buffers, without intermediate Strings.  This is intended for bulk data such as
+ * bytestream payloads: encoded data is appended straight to a packet's output, and
+ * decoded straight from the parser's characters into a byte array of the exact size.
+ * <p>
+ * Encoded output is never broken into lines.  Decoding ignores whitespace, and
+ * accepts input with or without padding, but rejects anything else that isn't part
+ * of the base64 alphabet, including data following padding.
+ */
+public final class Base64Codec {
+    private static final char[] ALPHABET =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static final byte INVALID = -1;
+    private static final byte WHITESPACE = -2;
+    private static final byte PAD = -3;
+
+    /** The value of each ASCII character, or INVALID, WHITESPACE or PAD. */
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++)
+            VALUES[i] = INVALID;
+        for (int i = 0; i < ALPHABET.length; i++)
+            VALUES[ALPHABET[i]] = (byte) i;
+        VALUES[' '] = VALUES['\t'] = VALUES['\r'] = VALUES['\n'] = WHITESPACE;
+        VALUES['='] = PAD;
+    }
+
+    /** The most characters encoded into a temporary buffer at once when appending. */
+    private static final int CHUNK_SIZE = 4096;
+
+    private Base64Codec() {
+    }
+
+    /**
+     * Returns the number of characters length bytes encode to.
+     *
+     * @param length the number of bytes.
+     * @return the encoded length, including padding.
+     */
+    public static int encodedLength(int length) {
+        return (length + 2) / 3 * 4;
+    }
+
+    /**
+     * Encodes bytes into a character array.
+     *
+     * @param src the bytes to encode.
+     * @param off the offset of the first byte in src.
+     * @param len the number of bytes to encode.
+     * @param dst the array to encode into, with room for {@link #encodedLength(int)} characters.
+     * @param dstOff the offset in dst to start writing at.
+     * @return the number of characters written.
+     */
+    public static int encode(byte[] src, int off, int len, char[] dst, int dstOff) {
+        int end = off + len;
+        int d = dstOff;
+
+        // Whole groups of three bytes.
+        int wholeEnd = off + len - len % 3;
+        for (int s = off; s < wholeEnd; s += 3) {
+            int bits = (src[s] & 0xff) << 16 | (src[s + 1] & 0xff) << 8 | (src[s + 2] & 0xff);
+            dst[d++] = ALPHABET[bits >>> 18];
+            dst[d++] = ALPHABET[(bits >>> 12) & 0x3f];
+            dst[d++] = ALPHABET[(bits >>> 6) & 0x3f];
+            dst[d++] = ALPHABET[bits & 0x3f];
+        }
+
+        // One or two remaining bytes, padded.
+        int remaining = end - wholeEnd;
+        if (remaining > 0) {
+            int bits = (src[wholeEnd] & 0xff) << 16;
+            if (remaining == 2)
+                bits |= (src[wholeEnd + 1] & 0xff) << 8;
+            dst[d++] = ALPHABET[bits >>> 18];
+            dst[d++] = ALPHABET[(bits >>> 12) & 0x3f];
+            dst[d++] = remaining == 2? ALPHABET[(bits >>> 6) & 0x3f]:'=';
+            dst[d++] = '=';
+        }
+        return d - dstOff;
+    }
+
+    /**
+     * Encodes bytes and appends them to out.  Large inputs are encoded in chunks, so
+     * no buffer the size of the whole output is allocated.
+     *
+     * @param src the bytes to encode.
+     * @param off the offset of the first byte in src.
+     * @param len the number of bytes to encode.
+     * @param out where to append the encoded characters.
+     * @throws IOException if out throws IOException.
+     */
+    public static void encode(byte[] src, int off, int len, Appendable out) throws IOException {
+        if (out instanceof StringBuilder)
+            ((StringBuilder) out).ensureCapacity(((StringBuilder) out).length() + encodedLength(len));
+
+        // Chunks are whole groups of three bytes, so padding only occurs in the last.
+        char[] chunk = new char[Math.min(encodedLength(len), CHUNK_SIZE)];
+        int chunkBytes = chunk.length / 4 * 3;
+        int end = off + len;
+        for (int s = off; s < end; s += chunkBytes) {
+            int count = encode(src, s, Math.min(chunkBytes, end - s), chunk, 0);
+            if (out instanceof StringBuilder)
+                ((StringBuilder) out).append(chunk, 0, count);
+            else if (out instanceof Writer)
+                ((Writer) out).write(chunk, 0, count);
+            else
+                out.append(CharBuffer.wrap(chunk, 0, count));
+        }
+    }
+
+    /**
+     * Encodes bytes into a String.
+     *
+     * @param src the bytes to encode.
+     * @param off the offset of the first byte in src.
+     * @param len the number of bytes to encode.
+     * @return the encoded String.
+     */
+    public static String encode(byte[] src, int off, int len) {
+        char[] chars = new char[encodedLength(len)];
+        encode(src, off, len, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Decodes base64 characters into a new array of exactly the decoded size.
+     *
+     * @param src the characters to decode.
+     * @param off the offset of the first character in src.
+     * @param len the number of characters to decode.
+     * @return the decoded bytes, or null if the input isn't valid base64.
+     */
+    public static byte[] decode(char[] src, int off, int len) {
+        int length = decodedLength(src, off, len);
+        if (length == -1)
+            return null;
+
+        byte[] dst = new byte[length];
+        int d = 0;
+        int bits = 0;
+        int count = 0;
+        int end = off + len;
+        for (int s = off; s < end; s++) {
+            int value = VALUES[src[s]];
+            if (value < 0)
+                continue;
+
+            bits = bits << 6 | value;
+            if (++count == 4) {
+                dst[d++] = (byte) (bits >> 16);
+                dst[d++] = (byte) (bits >> 8);
+                dst[d++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+
+        // A final partial group of two or three characters holds one or two bytes.
+        if (count == 2) {
+            dst[d++] = (byte) (bits >> 4);
+        }
+        else if (count == 3) {
+            dst[d++] = (byte) (bits >> 10);
+            dst[d++] = (byte) (bits >> 2);
+        }
+        return dst;
+    }
+
+    /**
+     * Decodes a base64 String.
+     *
+     * @param src the String to decode.
+     * @return the decoded bytes, or null if the input isn't valid base64.
+     */
+    public static byte[] decode(String src) {
+        return decode(src.toCharArray(), 0, src.length());
+    }
+
+    /**
+     * Validate the input, and return the number of bytes it decodes to, or -1 if it
+     * isn't valid.
+     */
+    private static int decodedLength(char[] src, int off, int len) {
+        int count = 0;
+        int pads = 0;
+        int end = off + len;
+        for (int s = off; s < end; s++) {
+            char c = src[s];
+            int value = c < VALUES.length? VALUES[c]:INVALID;
+            if (value >= 0) {
+                // Data may not follow padding.
+                if (pads > 0)
+                    return -1;
+                count++;
+            }
+            else if (value == PAD) {
+                if (++pads > 2)
+                    return -1;
+            }
+            else if (value == INVALID) {
+                return -1;
+            }
+        }
+
+        // Padding, if present, must complete the last group.
+        if (pads > 0 && (count + pads) % 4 != 0)
+            return -1;
+        int partial = count % 4;
+        if (partial == 1)
+            return -1;
+        return count / 4 * 3 + (partial == 0? 0:partial - 1);
+    }
+}
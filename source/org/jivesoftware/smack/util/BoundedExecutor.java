@@ -0,0 +1,134 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks on a shared {@link Executor}, with at most a fixed number running at once.
+ * <p>
+ * Tasks beyond the limit wait in a queue without occupying a thread of the underlying
+ * executor, and are started in the order they were submitted as running tasks finish.
+ * This keeps long-running tasks from one source, such as file transfers, from taking
+ * over an executor shared with other work.
+ */
+public class BoundedExecutor implements Executor {
+    private final Executor executor;
+
+    private final int maxRunning;
+
+    /** Tasks waiting to run.  Guarded by this. */
+    private final LinkedList<Runnable> queue = new LinkedList<Runnable>();
+
+    /** The number of tasks submitted to the underlying executor.  Guarded by this. */
+    private int running = 0;
+
+    /**
+     * Create a BoundedExecutor running tasks on the given executor.  The executor may be
+     * shared by any number of BoundedExecutors.
+     *
+     * @param executor the executor to run tasks on.
+     * @param maxRunning the maximum number of tasks running at once.
+     */
+    public BoundedExecutor(Executor executor, int maxRunning) {
+        if(maxRunning <= 0)
+            throw new IllegalArgumentException("maxRunning must be positive");
+        this.executor = executor;
+        this.maxRunning = maxRunning;
+    }
+
+    /**
+     * Run a task once fewer than the maximum number of tasks are running.
+     *
+     * @throws RejectedExecutionException if the underlying executor rejects the task.
+     */
+    public void execute(Runnable task) {
+        synchronized(this) {
+            if(running >= maxRunning) {
+                queue.add(task);
+                return;
+            }
+            ++running;
+        }
+
+        schedule(new Worker(task));
+    }
+
+    /**
+     * Returns the number of tasks waiting for a running task to finish.
+     *
+     * @return the number of queued tasks.
+     */
+    public synchronized int getQueuedTaskCount() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of tasks running or submitted to the underlying executor.
+     *
+     * @return the number of running tasks.
+     */
+    public synchronized int getRunningTaskCount() {
+        return running;
+    }
+
+    private void schedule(Worker worker) {
+        try {
+            executor.execute(worker);
+        } catch(RejectedExecutionException e) {
+            synchronized(this) {
+                --running;
+            }
+            throw e;
+        }
+    }
+
+    /** Runs a task, then passes its slot to the next queued task, if any. */
+    private class Worker implements Runnable {
+        private final Runnable task;
+
+        Worker(Runnable task) {
+            this.task = task;
+        }
+
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                // Hand the slot to the next queued task on a fresh worker, so a thread
+                // of the underlying executor isn't held for the whole queue.
+                Runnable next;
+                synchronized(BoundedExecutor.this) {
+                    next = queue.poll();
+                    if(next == null)
+                        --running;
+                }
+
+                if(next != null) {
+                    try {
+                        schedule(new Worker(next));
+                    } catch(RejectedExecutionException e) {
+                        // The underlying executor was shut down.  Queued tasks will never run.
+                        synchronized(BoundedExecutor.this) {
+                            queue.clear();
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
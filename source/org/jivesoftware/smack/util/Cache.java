@@ -22,70 +22,67 @@ package org.jivesoftware.smack.util;
 import org.jivesoftware.smack.util.collections.AbstractMapEntry;
 
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A specialized Map that is size-limited (using an LRU algorithm) and
  * has an optional expiration time for cache items. The Map is thread-safe.<p>
  *
- * The algorithm for cache is as follows: a HashMap is maintained for fast
- * object lookup. Two linked lists are maintained: one keeps objects in the
- * order they are accessed from cache, the other keeps objects in the order
- * they were originally added to cache. When objects are added to cache, they
- * are first wrapped by a CacheObject which maintains the following pieces
- * of information:<ul>
- * <li> A pointer to the node in the linked list that maintains accessed
- * order for the object. Keeping a reference to the node lets us avoid
- * linear scans of the linked list.
- * <li> A pointer to the node in the linked list that maintains the age
- * of the object in cache. Keeping a reference to the node lets us avoid
- * linear scans of the linked list.</ul>
- * <p/>
- * To get an object from cache, a hash lookup is performed to get a reference
- * to the CacheObject that wraps the real object we are looking for.
- * The object is subsequently moved to the front of the accessed linked list
- * and any necessary cache cleanups are performed. Cache deletion and expiration
- * is performed as needed.
+ * The cache is split into segments by key hash, each with its own lock, so threads
+ * using different keys rarely contend.  Each segment holds a share of the maximum
+ * size, and keeps a hash map for lookup and two intrusive linked lists: one in the
+ * order entries were accessed, and one in the order they were added.  Every entry
+ * holds its own list links, so lookups, insertions, recency updates, evictions and
+ * expirations are all O(1).<p>
+ *
+ * When a segment is full, its least recently used entries are evicted.  Entries
+ * older than the maximum lifetime are expired when their segment is next used.<p>
+ *
+ * By default, the maximum size is a number of entries.  If a {@link Weigher} is
+ * given, it's the maximum total weight of the entries instead.<p>
+ *
+ * Views returned by {@link #keySet}, {@link #values} and {@link #entrySet} are
+ * snapshots; changes to the cache aren't reflected in them.
  *
  * @author Matt Tucker
  */
 public class Cache<K, V> implements Map<K, V> {
 
     /**
-     * The map the keys and values are stored in.
+     * Calculates the weight of cache entries, for caches bounded by total weight
+     * rather than number of entries.
      */
-    protected Map<K, CacheObject<V>> map;
+    public interface Weigher<K, V> {
+        /**
+         * Returns the weight of an entry.  This must not be negative, and must not
+         * change while the entry is in the cache.
+         *
+         * @param key the entry's key.
+         * @param value the entry's value.
+         * @return the entry's weight.
+         */
+        int weigh(K key, V value);
+    }
 
-    /**
-     * Linked list to maintain order that cache objects are accessed
-     * in, most used to least used.
-     */
-    protected LinkedList lastAccessedList;
+    /** The maximum number of segments. */
+    private static final int MAX_SEGMENTS = 16;
 
-    /**
-     * Linked list to maintain time that cache objects were initially added
-     * to the cache, most recently added to oldest added.
-     */
-    protected LinkedList ageList;
+    /** The smallest share of the maximum size a segment is given. */
+    private static final int MIN_SEGMENT_SIZE = 16;
 
-    /**
-     * Maximum number of items the cache will hold.
-     */
-    protected int maxCacheSize;
+    private final Segment<K, V>[] segments;
+
+    private final Weigher<? super K, ? super V> weigher;
 
     /**
-     * Maximum length of time objects can exist in cache before expiring.
+     * Maximum number of items (or total weight) the cache will hold.
      */
-    protected long maxLifetime;
+    private volatile int maxCacheSize;
 
     /**
-     * Maintain the number of cache hits and misses. A cache hit occurs every
-     * time the get method is called and the cache contains the requested
-     * object. A cache miss represents the opposite occurence.<p>
-     *
-     * Keeping track of cache hits and misses lets one measure how efficient
-     * the cache is; the higher the percentage of hits, the more efficient.
+     * Maximum length of time objects can exist in cache before expiring.
      */
-    protected long cacheHits, cacheMisses = 0L;
+    private volatile long maxLifetime;
 
     /**
      * Create a new cache and specify the maximum size of for the cache in
@@ -97,209 +94,168 @@ public class Cache<K, V> implements Map<K, V> {
      *      cache before being deleted. -1 means objects never expire.
      */
     public Cache(int maxSize, long maxLifetime) {
-        if (maxSize == 0) {
+        this(maxSize, maxLifetime, null);
+    }
+
+    /**
+     * Create a new cache bounded by the total weight of its entries.
+     *
+     * @param maxWeight the maximum total weight of the objects the cache will hold,
+     *      or -1 if the cache has no max size.
+     * @param maxLifetime the maximum amount of time (in ms) objects can exist in
+     *      cache before being deleted. -1 means objects never expire.
+     * @param weigher calculates the weight of each entry, or null to count entries.
+     */
+    @SuppressWarnings("unchecked")
+    public Cache(int maxWeight, long maxLifetime, Weigher<? super K, ? super V> weigher) {
+        if (maxWeight == 0) {
             throw new IllegalArgumentException("Max cache size cannot be 0.");
         }
-        this.maxCacheSize = maxSize;
+        this.maxCacheSize = maxWeight;
         this.maxLifetime = maxLifetime;
+        this.weigher = weigher;
+
+        // Use fewer segments for small caches, so each segment's share of the
+        // maximum size stays large enough for LRU eviction to be meaningful.
+        int segmentCount = 1;
+        while (segmentCount < MAX_SEGMENTS &&
+                (maxWeight < 0 || maxWeight / (segmentCount * 2) >= MIN_SEGMENT_SIZE)) {
+            segmentCount *= 2;
+        }
 
-        // Our primary data structure is a hash map. The default capacity of 11
-        // is too small in almost all cases, so we set it bigger.
-        map = new HashMap<K, CacheObject<V>>(103);
-
-        lastAccessedList = new LinkedList();
-        ageList = new LinkedList();
+        segments = (Segment<K, V>[]) new Segment<?, ?>[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment<K, V>();
+        }
+        setSegmentCapacities();
     }
 
-    public synchronized V put(K key, V value) {
-        V oldValue = null;
-        // Delete an old entry if it exists.
-        if (map.containsKey(key)) {
-            oldValue = remove(key, true);
+    /**
+     * Divide the maximum size among the segments, so the segments' total never
+     * exceeds it.
+     */
+    private void setSegmentCapacities() {
+        int maxSize = maxCacheSize;
+        for (int i = 0; i < segments.length; i++) {
+            long capacity = -1;
+            if (maxSize >= 0) {
+                capacity = maxSize / segments.length + (i < maxSize % segments.length? 1:0);
+            }
+            segments[i].setCapacity(capacity);
         }
-
-        CacheObject<V> cacheObject = new CacheObject<V>(value);
-        map.put(key, cacheObject);
-        // Make an entry into the cache order list.
-        // Store the cache order list entry so that we can get back to it
-        // during later lookups.
-        cacheObject.lastAccessedListNode = lastAccessedList.addFirst(key);
-        // Add the object to the age list
-        LinkedListNode ageNode = ageList.addFirst(key);
-        ageNode.timestamp = System.currentTimeMillis();
-        cacheObject.ageListNode = ageNode;
-
-        // If cache is too full, remove least used cache entries until it is not too full.
-        cullCache();
-
-        return oldValue;
     }
 
-    public synchronized V get(Object key) {
-        // First, clear all entries that have been in cache longer than the
-        // maximum defined age.
-        deleteExpiredEntries();
+    private Segment<K, V> segmentFor(Object key) {
+        int h = key == null? 0:key.hashCode();
+        // Spread the high bits down, since only the low bits select the segment.
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & (segments.length - 1)];
+    }
 
-        CacheObject<V> cacheObject = map.get(key);
-        if (cacheObject == null) {
-            // The object didn't exist in cache, so increment cache misses.
-            cacheMisses++;
-            return null;
+    private int weigh(K key, V value) {
+        if (weigher == null) {
+            return 1;
         }
-        // Remove the object from it's current place in the cache order list,
-        // and re-insert it at the front of the list.
-        cacheObject.lastAccessedListNode.remove();
-        lastAccessedList.addFirst(cacheObject.lastAccessedListNode);
-
-        // The object exists in cache, so increment cache hits. Also, increment
-        // the object's read count.
-        cacheHits++;
-        cacheObject.readCount++;
+        int weight = weigher.weigh(key, value);
+        if (weight < 0) {
+            throw new IllegalArgumentException("Weight cannot be negative: " + weight);
+        }
+        return weight;
+    }
 
-        return cacheObject.object;
+    public V put(K key, V value) {
+        return segmentFor(key).put(key, value, weigh(key, value), maxLifetime);
     }
 
-    public synchronized V remove(Object key) {
-        return remove(key, false);
+    public V get(Object key) {
+        return segmentFor(key).get(key, maxLifetime);
     }
 
-    /*
-     * Remove operation with a flag so we can tell coherence if the remove was
-     * caused by cache internal processing such as eviction or loading
-     */
-    public synchronized V remove(Object key, boolean internal) {
-        //noinspection SuspiciousMethodCalls
-        CacheObject<V> cacheObject =  map.remove(key);
-        // If the object is not in cache, stop trying to remove it.
-        if (cacheObject == null) {
-            return null;
-        }
-        // Remove from the cache order list
-        cacheObject.lastAccessedListNode.remove();
-        cacheObject.ageListNode.remove();
-        // Remove references to linked list nodes
-        cacheObject.ageListNode = null;
-        cacheObject.lastAccessedListNode = null;
-
-        return cacheObject.object;
+    public V remove(Object key) {
+        return segmentFor(key).remove(key);
     }
 
-    public synchronized void clear() {
-        Object[] keys = map.keySet().toArray();
-        for (Object key : keys) {
-            remove(key);
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            segment.clear();
         }
-
-        // Now, reset all containers.
-        map.clear();
-        lastAccessedList.clear();
-        ageList.clear();
-
-        cacheHits = 0;
-        cacheMisses = 0;
     }
 
-    public synchronized int size() {
-        // First, clear all entries that have been in cache longer than the
-        // maximum defined age.
-        deleteExpiredEntries();
-
-        return map.size();
+    public int size() {
+        long lifetime = maxLifetime;
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            size += segment.size(lifetime);
+        }
+        return size;
     }
 
-    public synchronized boolean isEmpty() {
-        // First, clear all entries that have been in cache longer than the
-        // maximum defined age.
-        deleteExpiredEntries();
-
-        return map.isEmpty();
+    public boolean isEmpty() {
+        return size() == 0;
     }
 
-    public synchronized Collection<V> values() {
-        // First, clear all entries that have been in cache longer than the
-        // maximum defined age.
-        deleteExpiredEntries();
-
+    public Collection<V> values() {
+        final List<Node<K, V>> nodes = snapshot();
         return Collections.unmodifiableCollection(new AbstractCollection<V>() {
-            Collection<CacheObject<V>> values = map.values();
             public Iterator<V> iterator() {
                 return new Iterator<V>() {
-                    Iterator<CacheObject<V>> it = values.iterator();
+                    Iterator<Node<K, V>> it = nodes.iterator();
 
                     public boolean hasNext() {
                         return it.hasNext();
                     }
 
                     public V next() {
-                        return it.next().object;
+                        return it.next().value;
                     }
 
                     public void remove() {
-                        it.remove();
+                        throw new UnsupportedOperationException();
                     }
                 };
             }
 
             public int size() {
-                return values.size();
+                return nodes.size();
             }
         });
     }
 
-    public synchronized boolean containsKey(Object key) {
-        // First, clear all entries that have been in cache longer than the
-        // maximum defined age.
-        deleteExpiredEntries();
-
-        return map.containsKey(key);
+    public boolean containsKey(Object key) {
+        return segmentFor(key).containsKey(key, maxLifetime);
     }
 
     public void putAll(Map<? extends K, ? extends V> map) {
         for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
-            V value = entry.getValue();
-            // If the map is another DefaultCache instance than the
-            // entry values will be CacheObject instances that need
-            // to be converted to the normal object form.
-            if (value instanceof CacheObject) {
-                //noinspection unchecked
-                value = ((CacheObject<V>) value).object;
-            }
-            put(entry.getKey(), value);
+            put(entry.getKey(), entry.getValue());
         }
     }
 
-    public synchronized boolean containsValue(Object value) {
-        // First, clear all entries that have been in cache longer than the
-        // maximum defined age.
-        deleteExpiredEntries();
-
-        //noinspection unchecked
-        CacheObject<V> cacheObject = new CacheObject<V>((V) value);
-
-        return map.containsValue(cacheObject);
+    public boolean containsValue(Object value) {
+        for (Node<K, V> node : snapshot()) {
+            if (value == null? node.value == null:value.equals(node.value)) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    public synchronized Set<Map.Entry<K, V>> entrySet() {
-        // Warning -- this method returns CacheObject instances and not Objects
-        // in the same form they were put into cache.
-
-        // First, clear all entries that have been in cache longer than the
-        // maximum defined age.
-        deleteExpiredEntries();
-
+    public Set<Map.Entry<K, V>> entrySet() {
+        final List<Node<K, V>> nodes = snapshot();
         return new AbstractSet<Map.Entry<K, V>>() {
-            private final Set<Map.Entry<K, CacheObject<V>>> set = map.entrySet();
-
             public Iterator<Entry<K, V>> iterator() {
                 return new Iterator<Entry<K, V>>() {
-                    private final Iterator<Entry<K, CacheObject<V>>> it = set.iterator();
+                    private final Iterator<Node<K, V>> it = nodes.iterator();
+                    private Node<K, V> current;
+
                     public boolean hasNext() {
                         return it.hasNext();
                     }
 
                     public Entry<K, V> next() {
-                        Map.Entry<K, CacheObject<V>> entry = it.next();
-                        return new AbstractMapEntry<K, V>(entry.getKey(), entry.getValue().object) {
+                        current = it.next();
+                        return new AbstractMapEntry<K, V>(current.key, current.value) {
                             @Override
                             public V setValue(V value) {
                                 throw new UnsupportedOperationException("Cannot set");
@@ -308,32 +264,83 @@ public class Cache<K, V> implements Map<K, V> {
                     }
 
                     public void remove() {
-                        it.remove();
+                        if (current == null) {
+                            throw new IllegalStateException();
+                        }
+                        Cache.this.remove(current.key);
+                        current = null;
                     }
                 };
-
             }
 
             public int size() {
-                return set.size();
+                return nodes.size();
             }
         };
     }
 
-    public synchronized Set<K> keySet() {
-        // First, clear all entries that have been in cache longer than the
-        // maximum defined age.
-        deleteExpiredEntries();
+    public Set<K> keySet() {
+        Set<K> keys = new HashSet<K>();
+        for (Node<K, V> node : snapshot()) {
+            keys.add(node.key);
+        }
+        return Collections.unmodifiableSet(keys);
+    }
 
-        return Collections.unmodifiableSet(map.keySet());
+    /**
+     * Return the unexpired entries of every segment.
+     */
+    private List<Node<K, V>> snapshot() {
+        long lifetime = maxLifetime;
+        List<Node<K, V>> nodes = new ArrayList<Node<K, V>>();
+        for (Segment<K, V> segment : segments) {
+            segment.snapshot(nodes, lifetime);
+        }
+        return nodes;
     }
 
+    /**
+     * Returns the number of times {@link #get} found the requested object.
+     */
     public long getCacheHits() {
-        return cacheHits;
+        long hits = 0;
+        for (Segment<K, V> segment : segments) {
+            hits += segment.getStatistic(Segment.HITS);
+        }
+        return hits;
     }
 
+    /**
+     * Returns the number of times {@link #get} didn't find the requested object.
+     */
     public long getCacheMisses() {
-        return cacheMisses;
+        long misses = 0;
+        for (Segment<K, V> segment : segments) {
+            misses += segment.getStatistic(Segment.MISSES);
+        }
+        return misses;
+    }
+
+    /**
+     * Returns the number of objects removed to keep the cache within its maximum size.
+     */
+    public long getEvictionCount() {
+        long evictions = 0;
+        for (Segment<K, V> segment : segments) {
+            evictions += segment.getStatistic(Segment.EVICTIONS);
+        }
+        return evictions;
+    }
+
+    /**
+     * Returns the number of objects removed because they exceeded the maximum lifetime.
+     */
+    public long getExpirationCount() {
+        long expirations = 0;
+        for (Segment<K, V> segment : segments) {
+            expirations += segment.getStatistic(Segment.EXPIRATIONS);
+        }
+        return expirations;
     }
 
     public int getMaxCacheSize() {
@@ -341,10 +348,13 @@ public class Cache<K, V> implements Map<K, V> {
     }
 
     public synchronized void setMaxCacheSize(int maxCacheSize) {
+        if (maxCacheSize == 0) {
+            throw new IllegalArgumentException("Max cache size cannot be 0.");
+        }
         this.maxCacheSize = maxCacheSize;
         // It's possible that the new max size is smaller than our current cache
-        // size. If so, we need to delete infrequently used items.
-        cullCache();
+        // size. If so, the segments evict infrequently used items.
+        setSegmentCapacities();
     }
 
     public long getMaxLifetime() {
@@ -356,323 +366,228 @@ public class Cache<K, V> implements Map<K, V> {
     }
 
     /**
-     * Clears all entries out of cache where the entries are older than the
-     * maximum defined age.
+     * A cache entry.  Each entry is linked into its segment's access-order and
+     * age-order lists.  Both lists are circular, with the segment's sentinel node at
+     * the head; the most recent entry is just after the head.
      */
-    protected synchronized void deleteExpiredEntries() {
-        // Check if expiration is turned on.
-        if (maxLifetime <= 0) {
-            return;
-        }
-
-        // Remove all old entries. To do this, we remove objects from the end
-        // of the linked list until they are no longer too old. We get to avoid
-        // any hash lookups or looking at any more objects than is strictly
-        // neccessary.
-        LinkedListNode node = ageList.getLast();
-        // If there are no entries in the age list, return.
-        if (node == null) {
-            return;
-        }
-
-        // Determine the expireTime, which is the moment in time that elements
-        // should expire from cache. Then, we can do an easy check to see
-        // if the expire time is greater than the expire time.
-        long expireTime = System.currentTimeMillis() - maxLifetime;
-
-        while (expireTime > node.timestamp) {
-            if (remove(node.object, true) == null) {
-                System.err.println("Error attempting to remove(" + node.object.toString() +
-                ") - cacheObject not found in cache!");
-                // remove from the ageList
-                node.remove();
-            }
-
-            // Get the next node.
-            node = ageList.getLast();
-            // If there are no more entries in the age list, return.
-            if (node == null) {
-                return;
-            }
+    private static class Node<K, V> {
+        final K key;
+        final V value;
+        final int weight;
+        final long timestamp;
+
+        Node<K, V> prev, next;
+        Node<K, V> agePrev, ageNext;
+
+        Node(K key, V value, int weight, long timestamp) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.timestamp = timestamp;
         }
-    }
 
-    /**
-     * Removes the least recently used elements if the cache size is greater than
-     * or equal to the maximum allowed size until the cache is at least 10% empty.
-     */
-    protected synchronized void cullCache() {
-        // Check if a max cache size is defined.
-        if (maxCacheSize < 0) {
-            return;
-        }
-
-        // See if the cache is too big. If so, clean out cache until it's 10% free.
-        if (map.size() > maxCacheSize) {
-            // First, delete any old entries to see how much memory that frees.
-            deleteExpiredEntries();
-            // Next, delete the least recently used elements until 10% of the cache
-            // has been freed.
-            int desiredSize = (int) (maxCacheSize * .90);
-            for (int i=map.size(); i>desiredSize; i--) {
-                // Get the key and invoke the remove method on it.
-                if (remove(lastAccessedList.getLast().object, true) == null) {
-                    System.err.println("Error attempting to cullCache with remove(" +
-                            lastAccessedList.getLast().object.toString() + ") - " +
-                            "cacheObject not found in cache!");
-                    lastAccessedList.getLast().remove();
-                }
-            }
+        boolean isExpired(long now, long lifetime) {
+            return lifetime > 0 && now - timestamp > lifetime;
         }
     }
 
     /**
-     * Wrapper for all objects put into cache. It's primary purpose is to maintain
-     * references to the linked lists that maintain the creation time of the object
-     * and the ordering of the most used objects.
-     *
-     * This class is optimized for speed rather than strictly correct encapsulation.
+     * A part of the cache.  All fields are guarded by the segment's lock.
      */
-    private static class CacheObject<V> {
+    private static class Segment<K, V> extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
 
-       /**
-        * Underlying object wrapped by the CacheObject.
-        */
-        public V object;
+        static final int HITS = 0;
+        static final int MISSES = 1;
+        static final int EVICTIONS = 2;
+        static final int EXPIRATIONS = 3;
 
-        /**
-         * A reference to the node in the cache order list. We keep the reference
-         * here to avoid linear scans of the list. Every time the object is
-         * accessed, the node is removed from its current spot in the list and
-         * moved to the front.
-         */
-        public LinkedListNode lastAccessedListNode;
+        private final Map<Object, Node<K, V>> map = new HashMap<Object, Node<K, V>>();
 
-        /**
-         * A reference to the node in the age order list. We keep the reference
-         * here to avoid linear scans of the list. The reference is used if the
-         * object has to be deleted from the list.
-         */
-        public LinkedListNode ageListNode;
+        /** The sentinel of both lists. */
+        private final Node<K, V> head = new Node<K, V>(null, null, 0, 0);
 
-        /**
-         * A count of the number of times the object has been read from cache.
-         */
-        public int readCount = 0;
+        private long weight = 0;
+        private long capacity = -1;
+        private final long[] statistics = new long[4];
 
-        /**
-         * Creates a new cache object wrapper.
-         *
-         * @param object the underlying Object to wrap.
-         */
-        public CacheObject(V object) {
-            this.object = object;
+        Segment() {
+            head.prev = head.next = head;
+            head.agePrev = head.ageNext = head;
         }
 
-        public boolean equals(Object o) {
-            if (this == o) {
-                return true;
-            }
-            if (!(o instanceof CacheObject)) {
-                return false;
+        void setCapacity(long capacity) {
+            lock();
+            try {
+                this.capacity = capacity;
+                evict();
+            } finally {
+                unlock();
             }
-
-            final CacheObject cacheObject = (CacheObject) o;
-
-            return object.equals(cacheObject.object);
-
         }
 
-        public int hashCode() {
-            return object.hashCode();
+        V get(Object key, long lifetime) {
+            lock();
+            try {
+                Node<K, V> node = map.get(key);
+                if (node != null && node.isExpired(System.currentTimeMillis(), lifetime)) {
+                    removeNode(node);
+                    statistics[EXPIRATIONS]++;
+                    node = null;
+                }
+                if (node == null) {
+                    statistics[MISSES]++;
+                    return null;
+                }
+
+                // Move the node to the front of the access list.
+                unlinkAccess(node);
+                linkAccess(node);
+                statistics[HITS]++;
+                return node.value;
+            } finally {
+                unlock();
+            }
         }
-    }
 
-    /**
-     * Simple LinkedList implementation. The main feature is that list nodes
-     * are public, which allows very fast delete operations when one has a
-     * reference to the node that is to be deleted.<p>
-     */
-    private static class LinkedList {
+        V put(K key, V value, int entryWeight, long lifetime) {
+            lock();
+            try {
+                long now = System.currentTimeMillis();
+                expire(now, lifetime);
 
-        /**
-         * The root of the list keeps a reference to both the first and last
-         * elements of the list.
-         */
-        private LinkedListNode head = new LinkedListNode("head", null, null);
+                Node<K, V> old = map.get(key);
+                if (old != null) {
+                    removeNode(old);
+                }
 
-        /**
-         * Creates a new linked list.
-         */
-        public LinkedList() {
-            head.next = head.previous = head;
+                Node<K, V> node = new Node<K, V>(key, value, entryWeight, now);
+                map.put(key, node);
+                linkAccess(node);
+                node.ageNext = head.ageNext;
+                node.agePrev = head;
+                head.ageNext.agePrev = node;
+                head.ageNext = node;
+                weight += entryWeight;
+
+                evict();
+                return old != null? old.value:null;
+            } finally {
+                unlock();
+            }
         }
 
-        /**
-         * Returns the first linked list node in the list.
-         *
-         * @return the first element of the list.
-         */
-        public LinkedListNode getFirst() {
-            LinkedListNode node = head.next;
-            if (node == head) {
-                return null;
+        V remove(Object key) {
+            lock();
+            try {
+                Node<K, V> node = map.get(key);
+                if (node == null) {
+                    return null;
+                }
+                removeNode(node);
+                return node.value;
+            } finally {
+                unlock();
             }
-            return node;
         }
 
-        /**
-         * Returns the last linked list node in the list.
-         *
-         * @return the last element of the list.
-         */
-        public LinkedListNode getLast() {
-            LinkedListNode node = head.previous;
-            if (node == head) {
-                return null;
+        boolean containsKey(Object key, long lifetime) {
+            lock();
+            try {
+                expire(System.currentTimeMillis(), lifetime);
+                return map.containsKey(key);
+            } finally {
+                unlock();
             }
-            return node;
         }
 
-        /**
-         * Adds a node to the beginning of the list.
-         *
-         * @param node the node to add to the beginning of the list.
-         * @return the node
-         */
-        public LinkedListNode addFirst(LinkedListNode node) {
-            node.next = head.next;
-            node.previous = head;
-            node.previous.next = node;
-            node.next.previous = node;
-            return node;
+        int size(long lifetime) {
+            lock();
+            try {
+                expire(System.currentTimeMillis(), lifetime);
+                return map.size();
+            } finally {
+                unlock();
+            }
         }
 
-        /**
-         * Adds an object to the beginning of the list by automatically creating a
-         * a new node and adding it to the beginning of the list.
-         *
-         * @param object the object to add to the beginning of the list.
-         * @return the node created to wrap the object.
-         */
-        public LinkedListNode addFirst(Object object) {
-            LinkedListNode node = new LinkedListNode(object, head.next, head);
-            node.previous.next = node;
-            node.next.previous = node;
-            return node;
+        void snapshot(List<Node<K, V>> nodes, long lifetime) {
+            lock();
+            try {
+                expire(System.currentTimeMillis(), lifetime);
+                nodes.addAll(map.values());
+            } finally {
+                unlock();
+            }
         }
 
-        /**
-         * Adds an object to the end of the list by automatically creating a
-         * a new node and adding it to the end of the list.
-         *
-         * @param object the object to add to the end of the list.
-         * @return the node created to wrap the object.
-         */
-        public LinkedListNode addLast(Object object) {
-            LinkedListNode node = new LinkedListNode(object, head, head.previous);
-            node.previous.next = node;
-            node.next.previous = node;
-            return node;
+        void clear() {
+            lock();
+            try {
+                map.clear();
+                head.prev = head.next = head;
+                head.agePrev = head.ageNext = head;
+                weight = 0;
+                Arrays.fill(statistics, 0);
+            } finally {
+                unlock();
+            }
         }
 
-        /**
-         * Erases all elements in the list and re-initializes it.
-         */
-        public void clear() {
-            //Remove all references in the list.
-            LinkedListNode node = getLast();
-            while (node != null) {
-                node.remove();
-                node = getLast();
+        long getStatistic(int statistic) {
+            lock();
+            try {
+                return statistics[statistic];
+            } finally {
+                unlock();
             }
-
-            //Re-initialize.
-            head.next = head.previous = head;
         }
 
         /**
-         * Returns a String representation of the linked list with a comma
-         * delimited list of all the elements in the list.
-         *
-         * @return a String representation of the LinkedList.
+         * Remove entries older than lifetime.  The oldest entry is at the tail of the
+         * age list, so this stops at the first unexpired entry.
          */
-        public String toString() {
-            LinkedListNode node = head.next;
-            StringBuilder buf = new StringBuilder();
-            while (node != head) {
-                buf.append(node.toString()).append(", ");
-                node = node.next;
+        private void expire(long now, long lifetime) {
+            if (lifetime <= 0) {
+                return;
+            }
+            while (head.agePrev != head && head.agePrev.isExpired(now, lifetime)) {
+                removeNode(head.agePrev);
+                statistics[EXPIRATIONS]++;
             }
-            return buf.toString();
         }
-    }
-
-    /**
-     * Doubly linked node in a LinkedList. Most LinkedList implementations keep the
-     * equivalent of this class private. We make it public so that references
-     * to each node in the list can be maintained externally.
-     *
-     * Exposing this class lets us make remove operations very fast. Remove is
-     * built into this class and only requires two reference reassignments. If
-     * remove existed in the main LinkedList class, a linear scan would have to
-     * be performed to find the correct node to delete.
-     *
-     * The linked list implementation was specifically written for the Jive
-     * cache system. While it can be used as a general purpose linked list, for
-     * most applications, it is more suitable to use the linked list that is part
-     * of the Java Collections package.
-     */
-    private static class LinkedListNode {
-
-        public LinkedListNode previous;
-        public LinkedListNode next;
-        public Object object;
 
         /**
-         * This class is further customized for the Jive cache system. It
-         * maintains a timestamp of when a Cacheable object was first added to
-         * cache. Timestamps are stored as long values and represent the number
-         * of milliseconds passed since January 1, 1970 00:00:00.000 GMT.<p>
-         *
-         * The creation timestamp is used in the case that the cache has a
-         * maximum lifetime set. In that case, when
-         * [current time] - [creation time] > [max lifetime], the object will be
-         * deleted from cache.
+         * Remove least recently used entries until the segment is within its capacity.
          */
-        public long timestamp;
+        private void evict() {
+            if (capacity < 0) {
+                return;
+            }
+            while (weight > capacity && head.prev != head) {
+                removeNode(head.prev);
+                statistics[EVICTIONS]++;
+            }
+        }
 
-        /**
-         * Constructs a new linked list node.
-         *
-         * @param object the Object that the node represents.
-         * @param next a reference to the next LinkedListNode in the list.
-         * @param previous a reference to the previous LinkedListNode in the list.
-         */
-        public LinkedListNode(Object object, LinkedListNode next,
-                LinkedListNode previous)
-        {
-            this.object = object;
-            this.next = next;
-            this.previous = previous;
+        private void removeNode(Node<K, V> node) {
+            map.remove(node.key);
+            unlinkAccess(node);
+            node.agePrev.ageNext = node.ageNext;
+            node.ageNext.agePrev = node.agePrev;
+            weight -= node.weight;
         }
 
-        /**
-         * Removes this node from the linked list that it is a part of.
-         */
-        public void remove() {
-            previous.next = next;
-            next.previous = previous;
+        private void linkAccess(Node<K, V> node) {
+            node.next = head.next;
+            node.prev = head;
+            head.next.prev = node;
+            head.next = node;
         }
 
-        /**
-         * Returns a String representation of the linked list node by calling the
-         * toString method of the node's object.
-         *
-         * @return a String representation of the LinkedListNode.
-         */
-        public String toString() {
-            return object.toString();
+        private void unlinkAccess(Node<K, V> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
         }
     }
-}
\ No newline at end of file
+}
@@ -20,16 +20,26 @@
 package org.jivesoftware.smack.util;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.xbill.DNS.Lookup;
 import org.xbill.DNS.Record;
+import org.xbill.DNS.AAAARecord;
 import org.xbill.DNS.ARecord;
 import org.xbill.DNS.SRVRecord;
 import org.xbill.DNS.TextParseException;
@@ -37,6 +47,11 @@ import org.xbill.DNS.Type;
 
 /**
  * Utilty class to perform DNS lookups for XMPP services.
+ * <p>
+ * Lookups are performed by a bounded pool of threads shared by all connections, and
+ * answers are cached, respecting their TTL.  Names which don't exist are cached for
+ * {@link #getNegativeCacheTTL}.  Use {@link #prewarm} to populate the cache ahead of
+ * many connections.
  *
  * @author Matt Tucker
  */
@@ -119,19 +134,15 @@ public class DNSUtil {
 
     private static Vector<HostAddress> resolveSRV(AsyncLookup asyncLookup) {
         Vector<SRVRecord> results = new Vector<SRVRecord>();
-        Lookup lookup;
+        Record recs[];
         try {
-            lookup = asyncLookup.run();
+            recs = asyncLookup.run();
         } catch (TextParseException e) {
             return new Vector<HostAddress>();
         }
-        if(lookup == null)
+        if(recs == null)
             return null;
 
-        Record recs[] = lookup.getAnswers();
-        if (recs == null)
-                return new Vector<HostAddress>();
-
         SRVRecord srecs[] = new SRVRecord[recs.length];
         for(int i = 0; i < recs.length; ++i)
             srecs[i] = (SRVRecord) recs[i];
@@ -173,13 +184,8 @@ public class DNSUtil {
         }
 
         Vector<HostAddress> addresses = new Vector<HostAddress>();
-        for(SRVRecord result: results) {
-            // Host entries in DNS should end with a ".".
-            String host = result.getTarget().toString();
-            if (host.endsWith("."))
-                host = host.substring(0, host.length() - 1);
-            addresses.add(new HostAddress(host, result.getPort()));
-        }
+        for(SRVRecord result: results)
+            addresses.add(new HostAddress(stripDot(result.getTarget().toString()), result.getPort()));
         return addresses;
     }
 
@@ -256,18 +262,14 @@ public class DNSUtil {
         public Vector<String> run() {
             Vector<String> results = new Vector<String>();
 
-            Lookup lookup;
+            Record recs[];
             try {
-                lookup = asyncLookup.run();
+                recs = asyncLookup.run();
             } catch (TextParseException e) {
                 return new Vector<String>();
             }
-            if (lookup == null)
-                return null;
-
-            Record recs[] = lookup.getAnswers();
             if (recs == null)
-                return new Vector<String>();
+                return null;
 
             for(int i = 0; i < recs.length; ++i) {
                 String txt = recs[i].rdataToString();
@@ -293,8 +295,20 @@ public class DNSUtil {
     public static class AddressLookup extends CancellableLookup {
         private AsyncLookup asyncLookup;
 
+        /** Look up the IPv4 addresses of domain. */
         public AddressLookup(String domain) {
-            asyncLookup = new AsyncLookup(domain, Type.A);
+            this(domain, Type.A);
+        }
+
+        /**
+         * Look up the addresses of domain.
+         *
+         * @param type {@link Type#A} for IPv4 addresses, or {@link Type#AAAA} for IPv6.
+         */
+        public AddressLookup(String domain, int type) {
+            if(type != Type.A && type != Type.AAAA)
+                throw new IllegalArgumentException("type must be A or AAAA");
+            asyncLookup = new AsyncLookup(domain, type);
         }
 
         /**
@@ -302,24 +316,21 @@ public class DNSUtil {
          * return null.
          */
         public Vector<InetAddress> run() {
-            Lookup lookup;
+            Record recs[];
             try {
-                lookup = asyncLookup.run();
+                recs = asyncLookup.run();
             } catch (TextParseException e) {
                 return new Vector<InetAddress>();
             }
-            if(lookup == null)
+            if(recs == null)
                 return null;
 
-            Record recs[] = lookup.getAnswers();
-            if (recs == null)
-                return new Vector<InetAddress>();
-
             Vector<InetAddress> results = new Vector<InetAddress>();
             for(int i = 0; i < recs.length; ++i) {
-                ARecord rec = (ARecord) recs[i];
-                InetAddress addr = rec.getAddress();
-                results.add(addr);
+                if(recs[i] instanceof ARecord)
+                    results.add(((ARecord) recs[i]).getAddress());
+                else if(recs[i] instanceof AAAARecord)
+                    results.add(((AAAARecord) recs[i]).getAddress());
             }
 
             return results;
@@ -330,94 +341,338 @@ public class DNSUtil {
         }
     };
 
-    public static class AsyncLookup {
-        private Thread lookupThread;
+    /** The most answers kept in the cache. */
+    private static final int CACHE_SIZE = 1000;
 
-        /* The parameters to pass to Lookup(): */
+    /** The longest a successful answer is cached, regardless of its TTL. */
+    private static final long MAX_CACHE_TTL = 60 * 60 * 1000;
+
+    /** The number of threads performing lookups for all connections. */
+    private static final int LOOKUP_THREADS = 8;
+
+    private static volatile long negativeCacheTTL = 60 * 1000;
+
+    /** Recent answers, by {@link #cacheKey}.  Entries expire according to their TTL. */
+    private static final Cache<String, Answer> answerCache = new Cache<String, Answer>(CACHE_SIZE, MAX_CACHE_TTL);
+
+    /** Lookups currently being performed, by {@link #cacheKey}. */
+    private static final ConcurrentHashMap<String, Query> inFlight = new ConcurrentHashMap<String, Query>();
+
+    private static ThreadPoolExecutor lookupExecutor;
+
+    /**
+     * Returns the number of milliseconds that a lookup which found no records is
+     * cached.  The default is 60 seconds.
+     */
+    public static long getNegativeCacheTTL() {
+        return negativeCacheTTL;
+    }
+
+    /**
+     * Sets the number of milliseconds that a lookup which found no records is cached,
+     * or 0 to not cache them.
+     */
+    public static void setNegativeCacheTTL(long ttl) {
+        if(ttl < 0)
+            throw new IllegalArgumentException("ttl must not be negative");
+        negativeCacheTTL = ttl;
+    }
+
+    /** Discard all cached answers.  Lookups in progress are not affected. */
+    public static void clearCache() {
+        answerCache.clear();
+    }
+
+    /**
+     * Start looking up the client SRV records for each domain, and the addresses of the
+     * hosts they point to, in the background.  This returns immediately; connections
+     * made to these domains later will find the results in the cache.
+     * <p>
+     * This is useful before reconnecting many sessions at once, such as after a server
+     * failover, so the lookups are done once rather than by every connection.
+     */
+    public static void prewarm(Collection<String> domains) {
+        for(final String domain: domains) {
+            startQuery("_xmpp-client._tcp." + domain, Type.SRV, new Query.Listener() {
+                public void complete(Record[] records) {
+                    if(records.length == 0) {
+                        // The connection will fall back on _jabber._tcp, then on the domain itself.
+                        startQuery("_jabber._tcp." + domain, Type.SRV, null);
+                        prewarmAddresses(domain);
+                        return;
+                    }
+
+                    for(Record record: records) {
+                        if(record instanceof SRVRecord)
+                            prewarmAddresses(stripDot(((SRVRecord) record).getTarget().toString()));
+                    }
+                }
+            });
+        }
+    }
+
+    private static void prewarmAddresses(String host) {
+        startQuery(host, Type.A, null);
+        startQuery(host, Type.AAAA, null);
+    }
+
+    private static String stripDot(String host) {
+        // Host entries in DNS should end with a ".".
+        if (host.endsWith("."))
+            host = host.substring(0, host.length() - 1);
+        return host;
+    }
+
+    private static synchronized Executor getLookupExecutor() {
+        if(lookupExecutor == null) {
+            lookupExecutor = new ThreadPoolExecutor(LOOKUP_THREADS, LOOKUP_THREADS,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        int count = 0;
+                        public synchronized Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "Smack DNS (shared " + ++count + ")");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            lookupExecutor.allowCoreThreadTimeOut(true);
+        }
+        return lookupExecutor;
+    }
+
+    private static String cacheKey(String name, int type) {
+        return type + "/" + name.toLowerCase();
+    }
+
+    /**
+     * Return a query for name and type.  If a fresh answer is cached, the query is already
+     * complete; if the same lookup is in progress, it's shared; otherwise a new lookup is
+     * started.  If listener isn't null, it's called when the query completes.
+     */
+    private static Query startQuery(String name, int type, Query.Listener listener) {
+        String key = cacheKey(name, type);
+        Answer answer = answerCache.get(key);
+        if(answer != null && answer.expires > System.currentTimeMillis()) {
+            Query query = new Query(key, name, type);
+            query.finish(answer.records, null, listener);
+            return query;
+        }
+
+        Query query = inFlight.get(key);
+        if(query == null) {
+            Query newQuery = new Query(key, name, type);
+            query = inFlight.putIfAbsent(key, newQuery);
+            if(query == null) {
+                newQuery.addListener(listener);
+                getLookupExecutor().execute(newQuery);
+                return newQuery;
+            }
+        }
+
+        // Share the lookup in progress.  If it finished in the meantime, its result is
+        // still available.
+        if(!query.addListener(listener) && listener != null && query.records != null)
+            listener.complete(query.records);
+        return query;
+    }
+
+    /** A cached answer. */
+    private static class Answer {
+        final Record[] records;
+        final long expires;
+
+        Answer(Record[] records, long expires) {
+            this.records = records;
+            this.expires = expires;
+        }
+    }
+
+    /** A lookup, shared by everyone waiting for the same name and type. */
+    private static class Query implements Runnable {
+        interface Listener {
+            void complete(Record[] records);
+        }
+
+        private final String key;
         private final String name;
         private final int type;
 
-        /* Results.  When any of these is non-null, or cancelled is true,
-         * the operation is complete. */
-        private Lookup lookup;
+        /* Guarded by this. */
+        private boolean done = false;
+        private Record[] records;
         private TextParseException error;
-        private boolean cancelled;
+        private List<Listener> listeners = new ArrayList<Listener>();
 
-        public AsyncLookup(String name, int type) {
-            if(name == null)
-                throw new IllegalArgumentException("name must not be nnull");
+        Query(String key, String name, int type) {
+            this.key = key;
             this.name = name;
             this.type = type;
         }
 
-        private void thread() {
+        public void run() {
+            Record[] records = null;
             TextParseException exception = null;
-            Lookup lookup = null;
             try {
                 // Beware: InetSocketAddress will do a pointless reverse lookup on the IP
-                // it's given, so this will block as well, and it may not be cancellable.
-                // The lookup thread is not joined, because we can't reliably cancel it
-                // due to this.
-                lookup = new Lookup(name, type);
+                // it's given, so this may block well past the lookup itself.  That's why
+                // lookups run on the shared executor rather than the connecting thread.
+                Lookup lookup = new Lookup(name, type);
                 lookup.run();
+                records = lookup.getAnswers();
+                if(records == null)
+                    records = new Record[0];
+
+                long ttl = getTTL(lookup.getResult(), records);
+                if(ttl > 0)
+                    answerCache.put(key, new Answer(records, System.currentTimeMillis() + ttl));
             } catch (TextParseException e) {
                 exception = e;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                records = new Record[0];
+            } finally {
+                inFlight.remove(key);
             }
 
-            synchronized(this) {
-                this.lookup = lookup;
-                this.error = exception;
-                this.notify();
-            }
+            finish(records, exception, null);
         }
 
-        /** Perform the lookup.  If the lookup completes without being interrupted,
-         *  return the Lookup object.  If the lookup is interrupted, return null. */
-        public synchronized Lookup run() throws TextParseException
-        {
-            if(cancelled)
-                return null;
-            if(lookupThread != null)
-                throw new RuntimeException("AsyncLookup#run was called multiple times");
+        /**
+         * Return how long to cache an answer, in milliseconds.  Successful answers are
+         * cached for their shortest TTL, and names or types that don't exist for the
+         * negative cache TTL.  Transient failures aren't cached.
+         */
+        private static long getTTL(int result, Record[] records) {
+            if(result == Lookup.HOST_NOT_FOUND || result == Lookup.TYPE_NOT_FOUND)
+                return negativeCacheTTL;
+            if(result != Lookup.SUCCESSFUL)
+                return 0;
+
+            long ttl = MAX_CACHE_TTL;
+            for(Record record: records)
+                ttl = Math.min(ttl, record.getTTL() * 1000);
+            return ttl;
+        }
 
-            lookupThread = new Thread() {
-                public void run() { thread(); }
-            };
-            lookupThread.setName("DNS: " + name);
-            lookupThread.start();
+        /**
+         * Add a listener to be called when the query completes.  Return false if the
+         * query has already completed, in which case the listener isn't added.
+         */
+        synchronized boolean addListener(Listener listener) {
+            if(done)
+                return false;
+            if(listener != null)
+                listeners.add(listener);
+            return true;
+        }
+
+        void finish(Record[] records, TextParseException error, Listener extraListener) {
+            List<Listener> listenersToNotify;
+            synchronized(this) {
+                this.records = records;
+                this.error = error;
+                done = true;
+                listenersToNotify = listeners;
+                listeners = null;
+                notifyAll();
+            }
 
-            // Wait for the lookup to finish or be cancelled.
-            while(lookup == null && error == null && !cancelled) {
+            if(extraListener != null)
+                listenersToNotify.add(extraListener);
+            if(records == null)
+                return;
+            for(Listener listener: listenersToNotify) {
                 try {
-                    wait();
-                } catch(InterruptedException e) {
-                    // This thread was interrupted--not the lookup thread.  We didn't do
-                    // this.  Leave the interrupted flag set and return null.
-                    Thread.currentThread().interrupt();
-                    return null;
+                    listener.complete(records);
+                } catch(RuntimeException e) {
+                    e.printStackTrace();
                 }
             }
+        }
+    }
+
+    /**
+     * A lookup of a single name and type which can be cancelled from another thread.
+     * Lookups are performed by a small thread pool shared by all connections; answers
+     * are cached according to their TTL, and identical lookups in progress at the same
+     * time are only sent once.
+     */
+    public static class AsyncLookup {
+        /* The parameters to pass to Lookup(): */
+        private final String name;
+        private final int type;
+
+        private boolean started;
+        private volatile boolean cancelled;
+        private Query query;
 
-            if(error != null) {
-                error.fillInStackTrace();
-                throw error;
+        public AsyncLookup(String name, int type) {
+            if(name == null)
+                throw new IllegalArgumentException("name must not be nnull");
+            this.name = name;
+            this.type = type;
+        }
+
+        /**
+         * Perform the lookup.  If the lookup completes without being interrupted,
+         * return the answers, which are empty if none were found.  If the lookup is
+         * interrupted, return null.
+         */
+        public Record[] run() throws TextParseException
+        {
+            Query query;
+            synchronized(this) {
+                if(cancelled)
+                    return null;
+                if(started)
+                    throw new RuntimeException("AsyncLookup#run was called multiple times");
+                started = true;
+
+                query = startQuery(name, type, null);
+                this.query = query;
             }
 
-            // Whether the lookup was finished or cancelled, lookup is the result.
-            return lookup;
+            // Wait for the lookup to finish or be cancelled.  Cancelling doesn't stop the
+            // query; its answer will still be cached for other lookups.
+            synchronized(query) {
+                while(!query.done && !cancelled) {
+                    try {
+                        query.wait();
+                    } catch(InterruptedException e) {
+                        // This thread was interrupted--not the lookup thread.  We didn't do
+                        // this.  Leave the interrupted flag set and return null.
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                }
+
+                if(cancelled)
+                    return null;
+
+                if(query.error != null) {
+                    query.error.fillInStackTrace();
+                    throw query.error;
+                }
+                return query.records;
+            }
         }
 
         /**
          * Cancel the lookup.  If run() is called, or is called in the future, null
          * will be returned.  This function can be called asynchronously.
          */
-        public synchronized void cancel() {
-            cancelled = true;
-            // Attempt to stop the lookup, if any.  XXX: This doesn't work, so the lookup
-            // is stranded until it times out.
-            if(lookupThread != null)
-                lookupThread.interrupt();
-            notifyAll();
+        public void cancel() {
+            Query query;
+            synchronized(this) {
+                cancelled = true;
+                query = this.query;
+            }
+
+            if(query != null) {
+                synchronized(query) {
+                    query.notifyAll();
+                }
+            }
         }
     };
 
@@ -0,0 +1,86 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+
+/** Helpers for the file-backed caches. */
+public class FileUtil {
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Read a UTF-8 file into a string.
+     *
+     * @return the file's contents, or null if it can't be read.
+     */
+    public static String readFile(File file) {
+        Reader reader = null;
+        try {
+            reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+            StringBuilder buf = new StringBuilder();
+            char[] chars = new char[1024];
+            int count;
+            while ((count = reader.read(chars)) != -1)
+                buf.append(chars, 0, count);
+            return buf.toString();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (reader != null) {
+                try { reader.close(); } catch (IOException ignore) { /* ignore */ }
+            }
+        }
+    }
+
+    /**
+     * Write data to a temporary file as UTF-8, then move it over file, so readers
+     * never see a partially written file.
+     *
+     * @return true if the file was written.
+     */
+    public static boolean writeFileAtomically(File file, String data) {
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+            writer.write(data);
+            writer.close();
+            writer = null;
+        } catch (IOException e) {
+            temp.delete();
+            return false;
+        } finally {
+            if (writer != null) {
+                try { writer.close(); } catch (IOException ignore) { /* ignore */ }
+            }
+        }
+
+        // renameTo won't replace an existing file on some platforms.
+        if (temp.renameTo(file))
+            return true;
+        file.delete();
+        if (temp.renameTo(file))
+            return true;
+        temp.delete();
+        return false;
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks on a shared {@link Executor}, keeping tasks with the same key in order.
+ * <p>
+ * Tasks submitted with equal keys run one at a time, in the order they were submitted.
+ * Tasks with different keys may run in parallel on the underlying executor.  Only one
+ * thread of the underlying executor is used for each key at a time, so a slow task only
+ * delays tasks with the same key.
+ */
+public class KeyedSerialExecutor {
+    /**
+     * The maximum number of tasks a worker runs before yielding its thread to other keys
+     * on the underlying executor.
+     */
+    private static final int MAX_TASKS_PER_RUN = 16;
+
+    /** The keyed executor whose task is running in the current thread, if any. */
+    private static final ThreadLocal<KeyedSerialExecutor> currentExecutor = new ThreadLocal<KeyedSerialExecutor>();
+
+    private final Executor executor;
+
+    /** Workers with pending tasks, by key.  Guarded by this. */
+    private final Map<Object, Worker> workers = new HashMap<Object, Worker>();
+
+    /** If true, {@link #shutdown} has been called.  Guarded by this. */
+    private boolean shutdown = false;
+
+    /**
+     * Create a KeyedSerialExecutor running tasks on the given executor.  The executor
+     * may be shared by any number of KeyedSerialExecutors.
+     */
+    public KeyedSerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Queue a task to run after all previously queued tasks with an equal key.
+     *
+     * @throws RejectedExecutionException if this executor has been shut down.
+     */
+    public void execute(Object key, Runnable task) {
+        Worker newWorker = null;
+        synchronized(this) {
+            if(shutdown)
+                throw new RejectedExecutionException("KeyedSerialExecutor has been shut down");
+
+            Worker worker = workers.get(key);
+            if(worker == null) {
+                worker = newWorker = new Worker(key);
+                workers.put(key, worker);
+            }
+            worker.tasks.add(task);
+        }
+
+        // If we created a worker for this key, schedule it.  Otherwise, the existing
+        // worker will run the task when it gets to it.
+        if(newWorker != null)
+            schedule(newWorker);
+    }
+
+    /**
+     * Stop accepting tasks, and wait for queued tasks to finish.  If called from within
+     * one of this executor's tasks, returns without waiting.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        if(currentExecutor.get() == this)
+            return;
+
+        while(!workers.isEmpty())
+            ThreadUtil.uninterruptibleMonitorWait(this);
+    }
+
+    private void schedule(Worker worker) {
+        try {
+            executor.execute(worker);
+        } catch(RejectedExecutionException e) {
+            // The underlying executor was shut down.  Discard the key's tasks, so
+            // shutdown() doesn't wait for them forever.
+            synchronized(this) {
+                workers.remove(worker.key);
+                this.notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private class Worker implements Runnable {
+        final Object key;
+
+        /** Tasks waiting to run.  Guarded by KeyedSerialExecutor.this. */
+        final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+        Worker(Object key) {
+            this.key = key;
+        }
+
+        public void run() {
+            KeyedSerialExecutor previous = currentExecutor.get();
+            currentExecutor.set(KeyedSerialExecutor.this);
+            boolean idle = false;
+            try {
+                for(int i = 0; i < MAX_TASKS_PER_RUN; ++i) {
+                    Runnable task;
+                    synchronized(KeyedSerialExecutor.this) {
+                        task = tasks.poll();
+                        if(task == null) {
+                            workers.remove(key);
+                            KeyedSerialExecutor.this.notifyAll();
+                            idle = true;
+                            return;
+                        }
+                    }
+
+                    try {
+                        task.run();
+                    } catch(RuntimeException e) {
+                        // Don't let one task's failure stop later tasks for this key.
+                        e.printStackTrace();
+                    }
+                }
+            } finally {
+                currentExecutor.set(previous);
+
+                // We've run our share of tasks, or a task threw an Error.  Reschedule
+                // ourself behind other keys, so the key's remaining tasks still run.
+                if(!idle)
+                    schedule(this);
+            }
+        }
+    }
+}
@@ -46,7 +46,7 @@ public class ObservableReader extends Reader {
 
     public int read(char[] cbuf, int off, int len) throws IOException {
         int count = wrappedReader.read(cbuf, off, len);
-        if (count > 0 && readEvent != null) {
+        if (count > 0 && readEvent != null && readEvent.hasListeners()) {
             String str = new String(cbuf, off, count);
             readEvent.notifyListeners(str);
         }
@@ -88,6 +88,17 @@ public class ObservableReader extends Reader {
     static public class ReadEvent {
         List<ReaderListener> listeners = new ArrayList<ReaderListener>();
 
+        /** True if listeners isn't empty.  This can be checked without locking. */
+        private volatile boolean hasListeners = false;
+
+        /**
+         * Returns true if any listeners are registered.  Readers check this before
+         * creating strings to notify, so an event with no listeners costs nothing.
+         */
+        public boolean hasListeners() {
+            return hasListeners;
+        }
+
         /**
          * Adds a reader listener to this reader that will be notified when
          * new strings are read.
@@ -102,6 +113,7 @@ public class ObservableReader extends Reader {
                 if (!listeners.contains(readerListener)) {
                     listeners.add(readerListener);
                 }
+                hasListeners = true;
             }
         }
 
@@ -113,6 +125,7 @@ public class ObservableReader extends Reader {
         public void removeReaderListener(ReaderListener readerListener) {
             synchronized (listeners) {
                 listeners.remove(readerListener);
+                hasListeners = !listeners.isEmpty();
             }
         }
 
@@ -122,6 +135,8 @@ public class ObservableReader extends Reader {
          * @param str the read String to notify
          */
         public void notifyListeners(String str) {
+            if (!hasListeners)
+                return;
             ReaderListener[] readerListeners = null;
             synchronized (listeners) {
                 readerListeners = new ReaderListener[listeners.size()];
@@ -44,9 +44,8 @@ public class ObservableWriter extends Writer {
 
     public void write(char cbuf[], int off, int len) throws IOException {
         wrappedWriter.write(cbuf, off, len);
-        String str = new String(cbuf, off, len);
-        if(writeEvent != null)
-            writeEvent.notifyListeners(str);
+        if(writeEvent != null && writeEvent.hasListeners())
+            writeEvent.notifyListeners(new String(cbuf, off, len));
     }
 
     public void flush() throws IOException {
@@ -63,9 +62,8 @@ public class ObservableWriter extends Writer {
 
     public void write(char cbuf[]) throws IOException {
         wrappedWriter.write(cbuf);
-        String str = new String(cbuf);
-        if(writeEvent != null)
-            writeEvent.notifyListeners(str);
+        if(writeEvent != null && writeEvent.hasListeners())
+            writeEvent.notifyListeners(new String(cbuf));
     }
 
     public void write(String str) throws IOException {
@@ -76,20 +74,32 @@ public class ObservableWriter extends Writer {
 
     public void write(String str, int off, int len) throws IOException {
         wrappedWriter.write(str, off, len);
-        str = str.substring(off, off + len);
-        if(writeEvent != null)
-            writeEvent.notifyListeners(str);
+        if(writeEvent != null && writeEvent.hasListeners())
+            writeEvent.notifyListeners(str.substring(off, off + len));
     }
 
     static public class WriteEvent {
         List<WriterListener> listeners = new ArrayList<WriterListener>();
 
+        /** True if listeners isn't empty.  This can be checked without locking. */
+        private volatile boolean hasListeners = false;
+
+        /**
+         * Returns true if any listeners are registered.  Writers check this before
+         * creating strings to notify, so an event with no listeners costs nothing.
+         */
+        public boolean hasListeners() {
+            return hasListeners;
+        }
+
         /**
          * Notify that a new string has been written.
          *
          * @param str the written String to notify
          */
         public void notifyListeners(String str) {
+            if (!hasListeners)
+                return;
             WriterListener[] writerListeners = null;
             synchronized (listeners) {
                 writerListeners = new WriterListener[listeners.size()];
@@ -114,6 +124,7 @@ public class ObservableWriter extends Writer {
                 if (!listeners.contains(writerListener)) {
                     listeners.add(writerListener);
                 }
+                hasListeners = true;
             }
         }
 
@@ -125,6 +136,7 @@ public class ObservableWriter extends Writer {
         public void removeWriterListener(WriterListener writerListener) {
             synchronized (listeners) {
                 listeners.remove(writerListener);
+                hasListeners = !listeners.isEmpty();
             }
         }
     };
@@ -277,6 +277,12 @@ public class PacketParserUtils {
             }
         }
 
+        return finishIQ(iqPacket, id, to, from, type, error, connection);
+    }
+
+    private static IQ finishIQ(IQ iqPacket, String id, String to, String from, IQ.Type type,
+            XMPPError error, Connection connection)
+    {
         // Decide what to do when an IQ packet was not understood
         if (iqPacket == null) {
             if (IQ.Type.GET == type || IQ.Type.SET == type ) {
@@ -333,35 +339,45 @@ public class PacketParserUtils {
 
     private static RosterPacket parseRoster(Element packet) {
         RosterPacket roster = new RosterPacket();
-        RosterPacket.Item item = null;
+        if (packet.hasAttribute("ver"))
+            roster.setVersion(packet.getAttribute("ver"));
         for(Element child: XmlUtil.getChildElements(packet)) {
-            if (child.getLocalName().equals("item")) {
-                String jid = child.getAttribute("jid");
-                String name = child.getAttribute("name");
+            if (child.getLocalName().equals("item"))
+                roster.addRosterItem(parseRosterItem(child));
+        }
+        return roster;
+    }
 
-                // Create packet.
-                item = new RosterPacket.Item(jid, name);
+    /**
+     * Parses a roster item.
+     *
+     * @param child the &lt;item/&gt; element of a roster query.
+     * @return a roster item.
+     */
+    public static RosterPacket.Item parseRosterItem(Element child) {
+        String jid = child.getAttribute("jid");
+        String name = child.getAttribute("name");
 
-                // Set status.
-                String ask = child.getAttribute("ask");
-                RosterPacket.ItemStatus status = RosterPacket.ItemStatus.fromString(ask);
-                item.setItemStatus(status);
-                
-                // Set type.
-                String subscription = child.getAttribute("subscription");
-                RosterPacket.ItemType type = RosterPacket.ItemType.valueOf(subscription != null ? subscription : "none");
-                item.setItemType(type);
-                for(Element child2: XmlUtil.getChildElements(child)) {
-                    if (child2.getLocalName().equals("group")) {
-                        String groupName = XmlUtil.getTextContent(child2);
-                        if (groupName.trim().length() > 0)
-                            item.addGroupName(groupName);
-                    }
-                }
-                roster.addRosterItem(item);
+        // Create packet.
+        RosterPacket.Item item = new RosterPacket.Item(jid, name);
+
+        // Set status.
+        String ask = child.getAttribute("ask");
+        RosterPacket.ItemStatus status = RosterPacket.ItemStatus.fromString(ask);
+        item.setItemStatus(status);
+        
+        // Set type.
+        String subscription = child.getAttribute("subscription");
+        RosterPacket.ItemType type = RosterPacket.ItemType.valueOf(subscription.equals("") ? "none" : subscription);
+        item.setItemType(type);
+        for(Element child2: XmlUtil.getChildElements(child)) {
+            if (child2.getLocalName().equals("group")) {
+                String groupName = XmlUtil.getTextContent(child2);
+                if (groupName.trim().length() > 0)
+                    item.addGroupName(groupName);
             }
         }
-        return roster;
+        return item;
     }
 
      private static Registration parseRegistration(Element packet) throws XMPPException {
@@ -461,36 +477,40 @@ public class PacketParserUtils {
                 }
             }
 
-            Object value = null;
-            if ("integer".equals(type))
-                value = Integer.valueOf(valueText);
-            else if ("long".equals(type))
-                value = Long.valueOf(valueText);
-            else if ("float".equals(type))
-                value = Float.valueOf(valueText);
-            else if ("double".equals(type))
-                value = Double.valueOf(valueText);
-            else if ("boolean".equals(type))
-                value = Boolean.valueOf(valueText);
-            else if ("string".equals(type))
-                value = valueText;
-            else if ("java-object".equals(type)) {
-                try {
-                    byte [] bytes = StringUtils.decodeBase64(valueText);
-                    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
-                    value = in.readObject();
-                }
-                catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-
+            Object value = parsePropertyValue(type, valueText);
             if (name != null && value != null)
                 properties.put(name, value);
         }
         return properties;
     }
 
+    private static Object parsePropertyValue(String type, String valueText) {
+        Object value = null;
+        if ("integer".equals(type))
+            value = Integer.valueOf(valueText);
+        else if ("long".equals(type))
+            value = Long.valueOf(valueText);
+        else if ("float".equals(type))
+            value = Float.valueOf(valueText);
+        else if ("double".equals(type))
+            value = Double.valueOf(valueText);
+        else if ("boolean".equals(type))
+            value = Boolean.valueOf(valueText);
+        else if ("string".equals(type))
+            value = valueText;
+        else if ("java-object".equals(type)) {
+            try {
+                byte [] bytes = StringUtils.decodeBase64(valueText);
+                ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+                value = in.readObject();
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return value;
+    }
+
     /**
      * Parses stream error packets.
      *
@@ -539,8 +559,13 @@ public class PacketParserUtils {
             }
         }
 
+        return createError(errorCode, packet.getAttribute("type"), condition, message, extensions);
+    }
+
+    private static XMPPError createError(String errorCode, String type, String condition,
+            String message, List<PacketExtension> extensions)
+    {
         // Parse the error type.
-        String type = packet.getAttribute("type");
         if(type.equals(""))
             type = "cancel";
 
@@ -554,7 +579,7 @@ public class PacketParserUtils {
         }
         return new XMPPError(Integer.parseInt(errorCode), errorType, condition, message, extensions);
     }
-    
+
     /**
      * Parses a packet extension sub-packet.
      *
@@ -562,13 +587,29 @@ public class PacketParserUtils {
      * @param namespace the XML namespace of the packet extension.
      * @param parser the XML parser, positioned at the starting element of the extension.
      * @return a PacketExtension.
-     * @throws Exception if a parsing error occurs.
-     * @deprecated Transitional shim.  Use {@link #parsePacketExtension(String, String, Element)}.
+     * @throws XMPPException if a parsing error occurs.
      */
-    public static PacketExtension parsePacketExtension(String elementName, String namespace, XmlPullParser parser) throws Exception
+    public static PacketExtension parsePacketExtension(String elementName, String namespace, XmlPullParser parser)
+    throws XMPPException
     {
-        Element packet = XmlUtil.ReadNodeFromXmlPull(parser);
-        return parsePacketExtension(elementName, namespace, packet);
+        // See if a provider is registered to handle the extension.
+        PacketExtensionProvider provider = ProviderManager.getInstance().getExtensionProvider(elementName, namespace);
+        if (provider != null)
+            return provider.parseExtensionFromStream(parser);
+
+        // No providers registered, so use a default extension.
+        try {
+            DefaultPacketExtension extension = new DefaultPacketExtension(elementName, namespace);
+            int depth = parser.getDepth();
+            while(XmlUtil.nextChildElement(parser, depth)) {
+                String name = parser.getName();
+                extension.setValue(name, XmlUtil.readTextContent(parser));
+            }
+            return extension;
+        }
+        catch (IOException e) {
+            throw new XMPPException("I/O error", e);
+        }
     }
 
     /**
@@ -597,6 +638,380 @@ public class PacketParserUtils {
         return extension;
     }
 
+    /**
+     * Parses a message packet directly from the stream, without building a DOM.
+     * This has the same results as {@link #parseMessage(Element)}.
+     *
+     * @param parser the XML parser, positioned at the start of a message packet.  On
+     *     return, it is positioned at the end of the message packet.
+     * @return a Message packet.
+     * @throws XMPPException if an exception occurs while parsing the packet.
+     */
+    public static Message parseMessage(XmlPullParser parser) throws XMPPException {
+        try {
+            Message message = new Message();
+            String id = XmlUtil.getAttribute(parser, "id");
+            message.setPacketID(id.equals("")? Packet.ID_NOT_AVAILABLE : id);
+            message.setTo(XmlUtil.getAttribute(parser, "to"));
+            message.setFrom(XmlUtil.getAttribute(parser, "from"));
+            message.setType(Message.Type.fromString(XmlUtil.getAttribute(parser, "type")));
+            String language = getLanguageAttribute(parser);
+
+            // determine message's default language
+            String defaultLanguage = null;
+            if (!language.equals("")) {
+                message.setLanguage(language);
+                defaultLanguage = language;
+            }
+            else {
+                defaultLanguage = Packet.getDefaultLanguage();
+            }
+
+            String thread = null;
+            Map<String, Object> properties = null;
+            int depth = parser.getDepth();
+            while(XmlUtil.nextChildElement(parser, depth)) {
+                String elementName = parser.getName();
+                String namespace = parser.getNamespace();
+                if (elementName.equals("subject")) {
+                    String xmlLang = getLanguageAttribute(parser);
+                    if (xmlLang == null) {
+                        xmlLang = defaultLanguage;
+                    }
+
+                    String subject = XmlUtil.readTextContent(parser);
+
+                    if (message.getSubject(xmlLang) == null) {
+                        message.addSubject(xmlLang, subject);
+                    }
+                }
+                else if (elementName.equals("body")) {
+                    String xmlLang = getLanguageAttribute(parser);
+                    if (xmlLang == null) {
+                        xmlLang = defaultLanguage;
+                    }
+
+                    String body = XmlUtil.readTextContent(parser);
+
+                    if (message.getBody(xmlLang) == null) {
+                        message.addBody(xmlLang, body);
+                    }
+                }
+                else if (elementName.equals("thread")) {
+                    String text = XmlUtil.readTextContent(parser);
+                    if (thread == null) {
+                        thread = text;
+                    }
+                }
+                else if (elementName.equals("error")) {
+                    message.setError(parseError(parser));
+                }
+                else if (elementName.equals("properties") &&
+                        namespace.equals(PROPERTIES_NAMESPACE))
+                {
+                    properties = parseProperties(parser);
+                }
+                // Otherwise, it must be a packet extension.
+                else {
+                    message.addExtension(
+                    PacketParserUtils.parsePacketExtension(elementName, namespace, parser));
+                }
+            }
+
+            message.setThread(thread);
+            // Set packet properties.
+            if (properties != null) {
+                for (String name : properties.keySet()) {
+                    message.setProperty(name, properties.get(name));
+                }
+            }
+            return message;
+        }
+        catch (IOException e) {
+            throw new XMPPException("I/O error", e);
+        }
+    }
+
+    /**
+     * Parses a presence packet directly from the stream, without building a DOM.
+     * This has the same results as {@link #parsePresence(Element)}.
+     *
+     * @param parser the XML parser, positioned at the start of a presence packet.  On
+     *     return, it is positioned at the end of the presence packet.
+     * @return a Presence packet.
+     * @throws XMPPException if an exception occurs while parsing the packet.
+     */
+    public static Presence parsePresence(XmlPullParser parser) throws XMPPException {
+        try {
+            Presence.Type type = Presence.Type.available;
+            String typeString = XmlUtil.getAttribute(parser, "type");
+            if (!typeString.equals("")) {
+                try {
+                    type = Presence.Type.valueOf(typeString);
+                }
+                catch (IllegalArgumentException iae) {
+                    System.err.println("Found invalid presence type " + typeString);
+                }
+            }
+            Presence presence = new Presence(type);
+            presence.setTo(XmlUtil.getAttribute(parser, "to"));
+            presence.setFrom(XmlUtil.getAttribute(parser, "from"));
+            String id = XmlUtil.getAttribute(parser, "id");
+            presence.setPacketID(id.equals("")? Packet.ID_NOT_AVAILABLE : id);
+
+            String language = getLanguageAttribute(parser);
+            if(!language.equals(""))
+                presence.setLanguage(language);
+
+            // Parse sub-elements
+            int depth = parser.getDepth();
+            while(XmlUtil.nextChildElement(parser, depth)) {
+                String elementName = parser.getName();
+                String namespace = parser.getNamespace();
+                if(elementName.equals("status") && namespace.equals("jabber:client")) {
+                    presence.setStatus(XmlUtil.readTextContent(parser));
+                    continue;
+                }
+
+                if(elementName.equals("priority") && namespace.equals("jabber:client")) {
+                    String priorityText = XmlUtil.readTextContent(parser);
+                    try {
+                        int priority = Integer.parseInt(priorityText);
+                        presence.setPriority(priority);
+                    }
+                    catch (NumberFormatException nfe) {
+                        // Ignore.
+                    }
+                    catch (IllegalArgumentException iae) {
+                        // Presence priority is out of range so assume priority to be zero
+                        presence.setPriority(0);
+                    }
+
+                    continue;
+                }
+
+                if(elementName.equals("show") && namespace.equals("jabber:client")) {
+                    String modeText = XmlUtil.readTextContent(parser);
+                    try {
+                        presence.setMode(Presence.Mode.valueOf(modeText));
+                    }
+                    catch (IllegalArgumentException iae) {
+                        System.err.println("Found invalid presence mode " + modeText);
+                    }
+                    continue;
+                }
+                if(elementName.equals("error") && namespace.equals("jabber:client")) {
+                    presence.setError(parseError(parser));
+                    continue;
+                }
+
+                if(elementName.equals("properties") &&
+                        namespace.equals(PROPERTIES_NAMESPACE)) {
+                    Map<String,Object> properties = parseProperties(parser);
+                    // Set packet properties.
+                    for (String name : properties.keySet()) {
+                        presence.setProperty(name, properties.get(name));
+                    }
+                    continue;
+                }
+
+                // Otherwise, it must be a packet extension.
+                presence.addExtension(PacketParserUtils.parsePacketExtension(elementName, namespace, parser));
+            }
+
+            return presence;
+        }
+        catch (IOException e) {
+            throw new XMPPException("I/O error", e);
+        }
+    }
+
+    /**
+     * Parses an IQ packet directly from the stream, without building a DOM.
+     * This has the same results as {@link #parseIQ(Element, Connection)}.
+     *
+     * @param parser the XML parser, positioned at the start of an IQ packet.  On
+     *     return, it is positioned at the end of the IQ packet.
+     * @return an IQ object, or null if the IQ was not understood and an error was returned.
+     * @throws XMPPException if an exception occurs while parsing the packet.
+     */
+    public static IQ parseIQ(XmlPullParser parser, Connection connection) throws XMPPException {
+        try {
+            IQ iqPacket = null;
+
+            String id = XmlUtil.getAttribute(parser, "id");
+            String to = XmlUtil.getAttribute(parser, "to");
+            String from = XmlUtil.getAttribute(parser, "from");
+            IQ.Type type = IQ.Type.fromString(XmlUtil.getAttribute(parser, "type"));
+            XMPPError error = null;
+
+            int depth = parser.getDepth();
+            while(XmlUtil.nextChildElement(parser, depth)) {
+                String elementName = parser.getName();
+                String namespace = parser.getNamespace();
+                if (elementName.equals("error")) {
+                    error = PacketParserUtils.parseError(parser);
+                }
+                else if (elementName.equals("query") && namespace.equals("jabber:iq:roster")) {
+                    iqPacket = parseRoster(parser);
+                }
+                // These are rare, so just read them into a DOM.
+                else if (elementName.equals("query") && namespace.equals("jabber:iq:auth")) {
+                    iqPacket = parseAuthentication(XmlUtil.ReadNodeFromXmlPull(parser));
+                }
+                else if (elementName.equals("query") && namespace.equals("jabber:iq:register")) {
+                    iqPacket = parseRegistration(XmlUtil.ReadNodeFromXmlPull(parser));
+                }
+                else if (elementName.equals("bind") &&
+                        namespace.equals("urn:ietf:params:xml:ns:xmpp-bind")) {
+                    iqPacket = parseResourceBinding(XmlUtil.ReadNodeFromXmlPull(parser));
+                }
+                // Otherwise, see if there is a registered provider for
+                // this element name and namespace.
+                else {
+                    IQProvider provider = ProviderManager.getInstance().getIQProvider(elementName, namespace);
+                    if (provider != null) {
+                        iqPacket = provider.parseIQFromStream(parser);
+                    }
+                }
+            }
+
+            return finishIQ(iqPacket, id, to, from, type, error, connection);
+        }
+        catch (IOException e) {
+            throw new XMPPException("I/O error", e);
+        }
+    }
+
+    private static RosterPacket parseRoster(XmlPullParser parser) throws XMPPException, IOException {
+        RosterPacket roster = new RosterPacket();
+        if (parser.getAttributeValue("", "ver") != null)
+            roster.setVersion(XmlUtil.getAttribute(parser, "ver"));
+        int depth = parser.getDepth();
+        while(XmlUtil.nextChildElement(parser, depth)) {
+            if (!parser.getName().equals("item"))
+                continue;
+
+            String jid = XmlUtil.getAttribute(parser, "jid");
+            String name = XmlUtil.getAttribute(parser, "name");
+
+            // Create packet.
+            RosterPacket.Item item = new RosterPacket.Item(jid, name);
+
+            // Set status.
+            String ask = XmlUtil.getAttribute(parser, "ask");
+            RosterPacket.ItemStatus status = RosterPacket.ItemStatus.fromString(ask);
+            item.setItemStatus(status);
+
+            // Set type.
+            String subscription = XmlUtil.getAttribute(parser, "subscription");
+            RosterPacket.ItemType type = RosterPacket.ItemType.valueOf(subscription.equals("") ? "none" : subscription);
+            item.setItemType(type);
+
+            int itemDepth = parser.getDepth();
+            while(XmlUtil.nextChildElement(parser, itemDepth)) {
+                if (parser.getName().equals("group")) {
+                    String groupName = XmlUtil.readTextContent(parser);
+                    if (groupName.trim().length() > 0)
+                        item.addGroupName(groupName);
+                }
+            }
+            roster.addRosterItem(item);
+        }
+        return roster;
+    }
+
+    /**
+     * Parse a properties sub-packet directly from the stream.  See
+     * {@link #parseProperties(Element)}.
+     *
+     * @param parser the XML parser, positioned at the start of a properties sub-packet.
+     * @return a map of the properties.
+     */
+    public static Map<String, Object> parseProperties(XmlPullParser parser) throws XMPPException {
+        try {
+            Map<String, Object> properties = new HashMap<String, Object>();
+            int depth = parser.getDepth();
+            while(XmlUtil.nextChildElement(parser, depth)) {
+                if(!parser.getName().equals("property"))
+                    continue;
+
+                // Parse a property
+                String name = null;
+                String type = null;
+                String valueText = null;
+                int propertyDepth = parser.getDepth();
+                while(XmlUtil.nextChildElement(parser, propertyDepth)) {
+                    String elementName = parser.getName();
+                    if (elementName.equals("name")) {
+                        name = XmlUtil.readTextContent(parser);
+                    }
+                    else if (elementName.equals("value")) {
+                        type = XmlUtil.getAttribute(parser, "type");
+                        valueText = XmlUtil.readTextContent(parser);
+                    }
+                }
+
+                Object value = parsePropertyValue(type, valueText);
+                if (name != null && value != null)
+                    properties.put(name, value);
+            }
+            return properties;
+        }
+        catch (IOException e) {
+            throw new XMPPException("I/O error", e);
+        }
+    }
+
+    /**
+     * Parses error sub-packets directly from the stream.  See {@link #parseError(Element)}.
+     *
+     * @param parser the XML parser, positioned at the start of an error sub-packet.
+     * @return an error sub-packet.
+     * @throws XMPPException if an exception occurs while parsing the packet.
+     */
+    public static XMPPError parseError(XmlPullParser parser) throws XMPPException {
+        try {
+            final String errorNamespace = "urn:ietf:params:xml:ns:xmpp-stanzas";
+            String message = null;
+            String condition = null;
+            List<PacketExtension> extensions = new ArrayList<PacketExtension>();
+
+            // Parse the error header
+            String errorCode = XmlUtil.getAttribute(parser, "code");
+            if(errorCode.equals(""))
+                errorCode = "-1";
+            String type = XmlUtil.getAttribute(parser, "type");
+
+            // Parse the text and condition tags
+            int depth = parser.getDepth();
+            while(XmlUtil.nextChildElement(parser, depth)) {
+                String elementName = parser.getName();
+                String namespace = parser.getNamespace();
+                if (elementName.equals("text")) {
+                    message = XmlUtil.readTextContent(parser);
+                }
+                else {
+                    // Condition tag, it can be xmpp error or an application defined error.
+                    if (errorNamespace.equals(namespace))
+                        condition = elementName;
+                    else
+                        extensions.add(parsePacketExtension(elementName, namespace, parser));
+                }
+            }
+
+            return createError(errorCode, type, condition, message, extensions);
+        }
+        catch (IOException e) {
+            throw new XMPPException("I/O error", e);
+        }
+    }
+
+    private static String getLanguageAttribute(XmlPullParser parser) {
+        String language = parser.getAttributeValue("http://www.w3.org/XML/1998/namespace", "lang");
+        return language != null? language.trim():"";
+    }
+
     private static String getLanguageAttribute(Element parser) {
         return parser.getAttributeNS("http://www.w3.org/XML/1998/namespace", "lang").trim();
     }
@@ -0,0 +1,335 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * An XmlPullParser which reads from another parser, and records the element it's
+ * positioned on as it's parsed.
+ * <p>
+ * This allows a stanza to be parsed directly from the stream, while keeping what
+ * was received so a DOM of it can be built later if it's asked for.  Recording the
+ * events is much cheaper than building a DOM up front, which is rarely needed.
+ */
+public class RecordingXmlPullParser implements XmlPullParser {
+    /** Marks the end of an element in a recording. */
+    private static final Object END_TAG_EVENT = new Object();
+
+    private final XmlPullParser parser;
+
+    /**
+     * Recorded events: a String[] of the namespace and name followed by the
+     * namespace, name and value of each attribute for a start tag, a String for text,
+     * and {@link #END_TAG_EVENT} for an end tag.
+     */
+    private final ArrayList<Object> events = new ArrayList<Object>();
+
+    /** The depth within the recorded element, or 0 once it's been read. */
+    private int depth = 0;
+
+    /**
+     * Create a parser reading from the given parser, which must be positioned on
+     * the start tag of the element to record.
+     *
+     * @param parser the parser to read from.
+     * @throws XmlPullParserException if the parser isn't on a start tag.
+     */
+    public RecordingXmlPullParser(XmlPullParser parser) throws XmlPullParserException {
+        if(parser.getEventType() != START_TAG)
+            throw new XmlPullParserException("Not on start tag.", parser, null);
+        this.parser = parser;
+        record(START_TAG);
+    }
+
+    /**
+     * Return what has been recorded.  If the end tag of the recorded element hasn't
+     * been read yet, the recording is incomplete and can't be converted to a DOM.
+     *
+     * @return the recorded element.
+     */
+    public Recording getRecording() {
+        return new Recording(events.toArray(), depth == 0);
+    }
+
+    private void record(int eventType) {
+        if(depth == 0 && !events.isEmpty())
+            return;
+
+        switch(eventType) {
+        case START_TAG:
+        {
+            int count = parser.getAttributeCount();
+            String[] tag = new String[2 + count*3];
+            tag[0] = parser.getNamespace();
+            tag[1] = parser.getName();
+            for(int i = 0; i < count; ++i) {
+                tag[2 + i*3] = parser.getAttributeNamespace(i);
+                tag[3 + i*3] = parser.getAttributeName(i);
+                tag[4 + i*3] = parser.getAttributeValue(i);
+            }
+            events.add(tag);
+            ++depth;
+            break;
+        }
+        case END_TAG:
+            events.add(END_TAG_EVENT);
+            --depth;
+            break;
+        case TEXT:
+        case CDSECT:
+        case ENTITY_REF:
+            events.add(parser.getText());
+            break;
+        }
+    }
+
+    public int next() throws XmlPullParserException, IOException {
+        int eventType = parser.next();
+        record(eventType);
+        return eventType;
+    }
+
+    public int nextToken() throws XmlPullParserException, IOException {
+        int eventType = parser.nextToken();
+        record(eventType);
+        return eventType;
+    }
+
+    /* nextText and nextTag are implemented with next(), so the events they read
+     * are recorded. */
+    public String nextText() throws XmlPullParserException, IOException {
+        if(getEventType() != START_TAG)
+            throw new XmlPullParserException("Not on start tag.", this, null);
+
+        int eventType = next();
+        if(eventType == TEXT) {
+            String result = getText();
+            if(next() != END_TAG)
+                throw new XmlPullParserException("Expected end tag", this, null);
+            return result;
+        }
+        if(eventType == END_TAG)
+            return "";
+        throw new XmlPullParserException("Unexpected event type: " + TYPES[eventType], this, null);
+    }
+
+    public int nextTag() throws XmlPullParserException, IOException {
+        int eventType = next();
+        if(eventType == TEXT && isWhitespace())
+            eventType = next();
+        if(eventType != START_TAG && eventType != END_TAG)
+            throw new XmlPullParserException("Expected start or end tag", this, null);
+        return eventType;
+    }
+
+    public void setFeature(String name, boolean state) throws XmlPullParserException {
+        parser.setFeature(name, state);
+    }
+
+    public boolean getFeature(String name) {
+        return parser.getFeature(name);
+    }
+
+    public void setProperty(String name, Object value) throws XmlPullParserException {
+        parser.setProperty(name, value);
+    }
+
+    public Object getProperty(String name) {
+        return parser.getProperty(name);
+    }
+
+    public void setInput(Reader in) throws XmlPullParserException {
+        throw new XmlPullParserException("setInput not supported");
+    }
+
+    public void setInput(InputStream in, String encodingName) throws XmlPullParserException {
+        throw new XmlPullParserException("setInput not supported");
+    }
+
+    public String getInputEncoding() {
+        return parser.getInputEncoding();
+    }
+
+    public void defineEntityReplacementText(String entityName, String replacementText)
+            throws XmlPullParserException {
+        parser.defineEntityReplacementText(entityName, replacementText);
+    }
+
+    public int getNamespaceCount(int depth) throws XmlPullParserException {
+        return parser.getNamespaceCount(depth);
+    }
+
+    public String getNamespacePrefix(int pos) throws XmlPullParserException {
+        return parser.getNamespacePrefix(pos);
+    }
+
+    public String getNamespaceUri(int pos) throws XmlPullParserException {
+        return parser.getNamespaceUri(pos);
+    }
+
+    public String getNamespace(String prefix) {
+        return parser.getNamespace(prefix);
+    }
+
+    public int getDepth() {
+        return parser.getDepth();
+    }
+
+    public String getPositionDescription() {
+        return parser.getPositionDescription();
+    }
+
+    public int getLineNumber() {
+        return parser.getLineNumber();
+    }
+
+    public int getColumnNumber() {
+        return parser.getColumnNumber();
+    }
+
+    public boolean isWhitespace() throws XmlPullParserException {
+        return parser.isWhitespace();
+    }
+
+    public String getText() {
+        return parser.getText();
+    }
+
+    public char[] getTextCharacters(int[] holderForStartAndLength) {
+        return parser.getTextCharacters(holderForStartAndLength);
+    }
+
+    public String getNamespace() {
+        return parser.getNamespace();
+    }
+
+    public String getName() {
+        return parser.getName();
+    }
+
+    public String getPrefix() {
+        return parser.getPrefix();
+    }
+
+    public boolean isEmptyElementTag() throws XmlPullParserException {
+        return parser.isEmptyElementTag();
+    }
+
+    public int getAttributeCount() {
+        return parser.getAttributeCount();
+    }
+
+    public String getAttributeNamespace(int index) {
+        return parser.getAttributeNamespace(index);
+    }
+
+    public String getAttributeName(int index) {
+        return parser.getAttributeName(index);
+    }
+
+    public String getAttributePrefix(int index) {
+        return parser.getAttributePrefix(index);
+    }
+
+    public String getAttributeType(int index) {
+        return parser.getAttributeType(index);
+    }
+
+    public boolean isAttributeDefault(int index) {
+        return parser.isAttributeDefault(index);
+    }
+
+    public String getAttributeValue(int index) {
+        return parser.getAttributeValue(index);
+    }
+
+    public String getAttributeValue(String namespace, String name) {
+        return parser.getAttributeValue(namespace, name);
+    }
+
+    public int getEventType() throws XmlPullParserException {
+        return parser.getEventType();
+    }
+
+    public void require(int type, String namespace, String name)
+            throws XmlPullParserException, IOException {
+        parser.require(type, namespace, name);
+    }
+
+    /**
+     * A recorded element, which can be converted to a DOM.
+     */
+    public static class Recording {
+        private final Object[] events;
+        private final boolean complete;
+
+        Recording(Object[] events, boolean complete) {
+            this.events = events;
+            this.complete = complete;
+        }
+
+        /**
+         * Build a DOM of the recorded element.  The result is the same as
+         * {@link XmlUtil#ReadNodeFromXmlPull} reading the element from the stream.
+         *
+         * @return the recorded element.
+         * @throws IllegalStateException if the recording ended before the element's end tag.
+         */
+        public Element toElement() {
+            if(!complete)
+                throw new IllegalStateException("The recorded element is incomplete");
+
+            Document doc = XmlUtil.getDocumentBuilder().newDocument();
+            LinkedList<Node> documentTree = new LinkedList<Node>();
+            Element root = null;
+            for(Object event: events) {
+                if(event == END_TAG_EVENT) {
+                    documentTree.removeLast();
+                } else if(event instanceof String) {
+                    documentTree.getLast().appendChild(doc.createTextNode((String) event));
+                } else {
+                    String[] tag = (String[]) event;
+                    Element element = doc.createElementNS(tag[0], tag[1]);
+                    for(int i = 2; i < tag.length; i += 3) {
+                        /* For XmlPullParser, no namespace is "".  For DOM APIs, no namespace is null. */
+                        String namespace = tag[i] == null || tag[i].length() == 0? null:tag[i];
+                        Attr attr = doc.createAttributeNS(namespace, tag[i+1]);
+                        attr.setValue(tag[i+2]);
+                        element.setAttributeNode(attr);
+                    }
+
+                    if(documentTree.isEmpty())
+                        root = element;
+                    else
+                        documentTree.getLast().appendChild(element);
+                    documentTree.add(element);
+                }
+            }
+            return root;
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+import org.jivesoftware.smack.XMPPException;
+
+/**
+ * An incremental tokenizer which splits a UTF-8 XMPP stream into the stream header and
+ * complete top-level stanzas, without blocking.  Data is passed in as it arrives with
+ * {@link #feed}, in chunks of any size; each complete element is passed to the
+ * {@link Listener} as a string, which can then be parsed without blocking.
+ * <p>
+ * The framer only tracks enough of the XML syntax to find element boundaries: tags,
+ * quoted attribute values, comments, CDATA sections and processing instructions.  It
+ * doesn't check that the XML is well-formed; that's left to the parser.  Since all of
+ * the markup characters are ASCII, the stream is scanned as bytes, and a multibyte
+ * UTF-8 character is never split between two elements.
+ */
+public class StanzaFramer {
+    /** Receives elements from {@link StanzaFramer#feed}. */
+    public interface Listener {
+        /**
+         * The stream header was received.  header is the opening tag, such as
+         * {@code <stream:stream xmlns='jabber:client' ...>}.
+         */
+        void streamOpened(String header) throws XMPPException;
+
+        /** A complete top-level stanza was received. */
+        void stanza(String stanza) throws XMPPException;
+
+        /** The closing stream tag was received. */
+        void streamClosed() throws XMPPException;
+    }
+
+    private static final int TEXT = 0;
+    private static final int TAG_OPEN = 1;
+    private static final int TAG = 2;
+    private static final int QUOTE = 3;
+    private static final int COMMENT = 4;
+    private static final int CDATA = 5;
+    private static final int PI = 6;
+
+    private static final byte[] COMMENT_START = { '<', '!', '-', '-' };
+    private static final byte[] CDATA_START = { '<', '!', '[', 'C', 'D', 'A', 'T', 'A', '[' };
+
+    private final int maxElementSize;
+
+    private byte[] buffer = new byte[4096];
+
+    /** The number of bytes in buffer. */
+    private int length;
+
+    /** The position of the next byte to scan. */
+    private int pos;
+
+    private int state = TEXT;
+
+    /** The element depth; 1 inside the stream header, 2 inside a stanza. */
+    private int depth;
+
+    /** The start of the element being framed, or -1 between elements. */
+    private int elementStart = -1;
+
+    /** The start of the markup being scanned, if state isn't TEXT. */
+    private int markupStart;
+
+    private boolean endTag;
+    private boolean emptyTag;
+    private byte quote;
+
+    private boolean suspended;
+    private boolean closed;
+
+    /**
+     * Creates a new framer.
+     *
+     * @param maxElementSize the largest stanza, in bytes, which will be buffered.
+     */
+    public StanzaFramer(int maxElementSize) {
+        this.maxElementSize = maxElementSize;
+    }
+
+    /**
+     * Adds the remaining bytes in data, and passes each element completed by them to
+     * listener.  If the listener calls {@link #suspend}, framing stops after the current
+     * element, and the rest of the data is buffered until {@link #resume} is called.
+     *
+     * @throws XMPPException if an element is larger than the maximum size, the stream
+     *     contains markup which isn't allowed in XMPP, or the listener throws.
+     */
+    public void feed(ByteBuffer data, Listener listener) throws XMPPException {
+        int count = data.remaining();
+        if(length + count > buffer.length) {
+            byte[] newBuffer = new byte[Math.max(buffer.length * 2, length + count)];
+            System.arraycopy(buffer, 0, newBuffer, 0, length);
+            buffer = newBuffer;
+        }
+        data.get(buffer, length, count);
+        length += count;
+
+        scan(listener);
+    }
+
+    /**
+     * Stop framing after the current element.  This is called by a listener when the
+     * data that follows must not be interpreted yet, like after a packet that ends the
+     * stream, or when received packets can't be handled yet.
+     */
+    public void suspend() {
+        suspended = true;
+    }
+
+    /** Resume framing after {@link #suspend}, passing any buffered elements to listener. */
+    public void resume(Listener listener) throws XMPPException {
+        suspended = false;
+        scan(listener);
+    }
+
+    /** Returns true if framing is suspended. */
+    public boolean isSuspended() {
+        return suspended;
+    }
+
+    /**
+     * Discard all buffered data and expect a new stream header.  This is called when the
+     * stream is restarted, like after negotiating TLS or compression.
+     */
+    public void reset() {
+        length = 0;
+        pos = 0;
+        state = TEXT;
+        depth = 0;
+        elementStart = -1;
+        closed = false;
+    }
+
+    /** Returns the number of bytes buffered and not yet passed to the listener. */
+    public int getBufferedSize() {
+        return length;
+    }
+
+    private void scan(Listener listener) throws XMPPException {
+        while(pos < length && !suspended && !closed) {
+            byte b = buffer[pos];
+            switch(state) {
+            case TEXT:
+                if(b == '<') {
+                    markupStart = pos;
+                    state = TAG_OPEN;
+                }
+                pos++;
+                break;
+
+            case TAG_OPEN:
+                if(b == '/') {
+                    endTag = true;
+                    emptyTag = false;
+                    state = TAG;
+                    pos++;
+                } else if(b == '?') {
+                    state = PI;
+                    pos++;
+                } else if(b == '!') {
+                    // Wait until we have enough data to tell comments and CDATA apart.
+                    if(startsWith(COMMENT_START)) {
+                        state = COMMENT;
+                        pos = markupStart + COMMENT_START.length;
+                    } else if(startsWith(CDATA_START)) {
+                        state = CDATA;
+                        pos = markupStart + CDATA_START.length;
+                    } else if(length - markupStart >= CDATA_START.length) {
+                        throw new XMPPException("Unsupported markup in stream");
+                    } else {
+                        return;
+                    }
+                } else {
+                    // A start tag.  At depth 1, this begins a new stanza.
+                    endTag = false;
+                    emptyTag = false;
+                    if(depth <= 1)
+                        elementStart = markupStart;
+                    state = TAG;
+                }
+                break;
+
+            case TAG:
+                if(b == '>') {
+                    state = TEXT;
+                    pos++;
+                    endOfTag(listener);
+                    break;
+                }
+                if(b == '"' || b == '\'') {
+                    quote = b;
+                    state = QUOTE;
+                }
+                emptyTag = b == '/';
+                pos++;
+                break;
+
+            case QUOTE:
+                if(b == quote)
+                    state = TAG;
+                pos++;
+                break;
+
+            case COMMENT:
+                if(b == '>' && buffer[pos - 1] == '-' && buffer[pos - 2] == '-' &&
+                        pos - 2 >= markupStart + COMMENT_START.length)
+                    state = TEXT;
+                pos++;
+                break;
+
+            case CDATA:
+                if(b == '>' && buffer[pos - 1] == ']' && buffer[pos - 2] == ']' &&
+                        pos - 2 >= markupStart + CDATA_START.length)
+                    state = TEXT;
+                pos++;
+                break;
+
+            case PI:
+                if(b == '>' && buffer[pos - 1] == '?' && pos - 1 > markupStart + 1)
+                    state = TEXT;
+                pos++;
+                break;
+            }
+        }
+
+        compact();
+    }
+
+    /** Returns true if the markup being scanned starts with prefix. */
+    private boolean startsWith(byte[] prefix) {
+        if(length - markupStart < prefix.length)
+            return false;
+        for(int i = 0; i < prefix.length; ++i) {
+            if(buffer[markupStart + i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private void endOfTag(Listener listener) throws XMPPException {
+        if(endTag) {
+            depth--;
+            if(depth == 1) {
+                emitStanza(listener);
+            } else if(depth == 0) {
+                closed = true;
+                listener.streamClosed();
+            }
+        } else if(emptyTag) {
+            if(depth == 1)
+                emitStanza(listener);
+        } else {
+            depth++;
+            if(depth == 1) {
+                String header = decode(markupStart, pos);
+                elementStart = -1;
+                listener.streamOpened(header);
+            }
+        }
+    }
+
+    private void emitStanza(Listener listener) throws XMPPException {
+        String stanza = decode(elementStart, pos);
+        elementStart = -1;
+        listener.stanza(stanza);
+    }
+
+    private String decode(int start, int end) {
+        try {
+            return new String(buffer, start, end - start, "UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Discard data which has already been passed to the listener. */
+    private void compact() throws XMPPException {
+        int keep = pos;
+        if(state != TEXT)
+            keep = Math.min(keep, markupStart);
+        if(elementStart != -1)
+            keep = Math.min(keep, elementStart);
+
+        if(keep > 0) {
+            System.arraycopy(buffer, keep, buffer, 0, length - keep);
+            length -= keep;
+            pos -= keep;
+            markupStart -= keep;
+            if(elementStart != -1)
+                elementStart -= keep;
+        }
+
+        if(length > maxElementSize)
+            throw new XMPPException("Received a stanza larger than " + maxElementSize + " bytes");
+    }
+}
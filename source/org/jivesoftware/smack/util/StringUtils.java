@@ -20,6 +20,7 @@
 
 package org.jivesoftware.smack.util;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -30,6 +31,8 @@ import java.util.Date;
 import java.util.Random;
 import java.util.TimeZone;
 
+import org.jivesoftware.smack.packet.XMLAppendable;
+
 /**
  * A collection of utility methods for String objects.
  */
@@ -49,11 +52,11 @@ public class StringUtils {
         XEP_0082_UTC_FORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
     }
 
-    private static final char[] QUOTE_ENCODE = "&quot;".toCharArray();
-    private static final char[] APOS_ENCODE = "&apos;".toCharArray();
-    private static final char[] AMP_ENCODE = "&amp;".toCharArray();
-    private static final char[] LT_ENCODE = "&lt;".toCharArray();
-    private static final char[] GT_ENCODE = "&gt;".toCharArray();
+    private static final String QUOTE_ENCODE = "&quot;";
+    private static final String APOS_ENCODE = "&apos;";
+    private static final String AMP_ENCODE = "&amp;";
+    private static final String LT_ENCODE = "&lt;";
+    private static final String GT_ENCODE = "&gt;";
 
     /**
      * Parses the given date string in the XEP-0082 - XMPP Date and Time Profiles format.
@@ -324,26 +327,50 @@ public class StringUtils {
         if (string == null) {
             return null;
         }
+        StringBuilder out = new StringBuilder((int)(string.length()*1.3));
+        try {
+            escapeForXML(string, out);
+        }
+        catch (IOException e) {
+            // StringBuilder doesn't throw IOException.
+            throw new RuntimeException(e);
+        }
+        // Escaping always lengthens the string, so if the length is unchanged
+        // nothing was escaped.
+        if (out.length() == string.length()) {
+            return string;
+        }
+        return out.toString();
+    }
+
+    /**
+     * Escapes all necessary characters in the String so that it can be used
+     * in an XML doc, and appends the result to out.  Unescaped runs of the
+     * string are appended without copying them.
+     *
+     * @param string the string to escape.
+     * @param out where to append the escaped string.
+     * @throws IOException if out throws IOException.
+     */
+    public static void escapeForXML(String string, Appendable out) throws IOException {
         char ch;
         int i=0;
         int last=0;
-        char[] input = string.toCharArray();
-        int len = input.length;
-        StringBuilder out = new StringBuilder((int)(len*1.3));
+        int len = string.length();
         for (; i < len; i++) {
-            ch = input[i];
+            ch = string.charAt(i);
             if (ch > '>') {
             }
             else if (ch == '<') {
                 if (i > last) {
-                    out.append(input, last, i - last);
+                    out.append(string, last, i);
                 }
                 last = i + 1;
                 out.append(LT_ENCODE);
             }
             else if (ch == '>') {
                 if (i > last) {
-                    out.append(input, last, i - last);
+                    out.append(string, last, i);
                 }
                 last = i + 1;
                 out.append(GT_ENCODE);
@@ -351,41 +378,59 @@ public class StringUtils {
 
             else if (ch == '&') {
                 if (i > last) {
-                    out.append(input, last, i - last);
+                    out.append(string, last, i);
                 }
                 // Do nothing if the string is of the form &#235; (unicode value)
                 if (!(len > i + 5
-                    && input[i + 1] == '#'
-                    && Character.isDigit(input[i + 2])
-                    && Character.isDigit(input[i + 3])
-                    && Character.isDigit(input[i + 4])
-                    && input[i + 5] == ';')) {
+                    && string.charAt(i + 1) == '#'
+                    && Character.isDigit(string.charAt(i + 2))
+                    && Character.isDigit(string.charAt(i + 3))
+                    && Character.isDigit(string.charAt(i + 4))
+                    && string.charAt(i + 5) == ';')) {
                         last = i + 1;
                         out.append(AMP_ENCODE);
                     }
+                else {
+                    // Keep the '&' with the following unescaped run.
+                    last = i;
+                }
             }
             else if (ch == '"') {
                 if (i > last) {
-                    out.append(input, last, i - last);
+                    out.append(string, last, i);
                 }
                 last = i + 1;
                 out.append(QUOTE_ENCODE);
             }
             else if (ch == '\'') {
                 if (i > last) {
-                    out.append(input, last, i - last);
+                    out.append(string, last, i);
                 }
                 last = i + 1;
                 out.append(APOS_ENCODE);
             }
         }
-        if (last == 0) {
-            return string;
-        }
         if (i > last) {
-            out.append(input, last, i - last);
+            out.append(string, last, i);
         }
-        return out.toString();
+    }
+
+    /**
+     * Returns the XML of an {@link XMLAppendable} as a String.
+     *
+     * @param appendable the object to serialize.
+     * @return the XML representation of the object.
+     */
+    public static String toXML(XMLAppendable appendable) {
+        StringBuilder buf = new StringBuilder();
+        try {
+            appendable.appendXML(buf);
+        }
+        catch (IOException e) {
+            // StringBuilder doesn't throw IOException.
+            throw new RuntimeException(e);
+        }
+        return buf.toString();
     }
 
     /**
@@ -0,0 +1,129 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A Reader which decodes UTF-8 from an InputStream, replacing the usual
+ * BufferedReader, InputStreamReader and {@link ObservableReader} stack with a single
+ * layer.  Bytes are read into one reusable buffer and decoded straight into the
+ * caller's array, so the XML parser's reads don't pass through intermediate copies.
+ * <p>
+ * If a {@link ObservableReader.ReadEvent} is given, decoded text is passed to it, but
+ * only while it has listeners; otherwise no strings are created.
+ */
+public class Utf8Reader extends Reader {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final InputStream in;
+    private final ObservableReader.ReadEvent readEvent;
+    private final CharsetDecoder decoder = UTF8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /** Bytes read and not yet decoded.  This is kept in write mode between reads. */
+    private final ByteBuffer bytes;
+
+    /** The low surrogate of a pair which didn't fit in a one-character read, or -1. */
+    private int pendingChar = -1;
+
+    private boolean endOfStream = false;
+
+    public Utf8Reader(InputStream in, ObservableReader.ReadEvent readEvent) {
+        this(in, readEvent, 8192);
+    }
+
+    public Utf8Reader(InputStream in, ObservableReader.ReadEvent readEvent, int bufferSize) {
+        this.in = in;
+        this.readEvent = readEvent;
+        this.bytes = ByteBuffer.allocate(bufferSize);
+    }
+
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if(len == 0)
+            return 0;
+
+        int count;
+        synchronized(lock) {
+            count = decode(cbuf, off, len);
+        }
+
+        if(count > 0 && readEvent != null && readEvent.hasListeners())
+            readEvent.notifyListeners(new String(cbuf, off, count));
+        return count;
+    }
+
+    private int decode(char[] cbuf, int off, int len) throws IOException {
+        if(pendingChar != -1) {
+            cbuf[off] = (char) pendingChar;
+            pendingChar = -1;
+            return 1;
+        }
+
+        // A surrogate pair can't be decoded into one character, so decode single
+        // characters through a small array.
+        if(len == 1) {
+            char[] pair = new char[2];
+            int count = decode(pair, 0, 2);
+            if(count <= 0)
+                return count;
+            cbuf[off] = pair[0];
+            if(count == 2)
+                pendingChar = pair[1];
+            return 1;
+        }
+
+        CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+        while(true) {
+            // Decode whatever is buffered.  Only block reading more if nothing was decoded.
+            bytes.flip();
+            decoder.decode(bytes, out, endOfStream);
+            bytes.compact();
+
+            if(out.position() > off)
+                return out.position() - off;
+
+            if(endOfStream) {
+                decoder.flush(out);
+                int count = out.position() - off;
+                return count > 0? count:-1;
+            }
+
+            int n = in.read(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            if(n == -1)
+                endOfStream = true;
+            else
+                bytes.position(bytes.position() + n);
+        }
+    }
+
+    public boolean ready() throws IOException {
+        synchronized(lock) {
+            return pendingChar != -1 || bytes.position() > 0 || in.available() > 0;
+        }
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Writer which encodes UTF-8 to an OutputStream, replacing the usual
+ * BufferedWriter, OutputStreamWriter and {@link ObservableWriter} stack with a single
+ * layer.  Text is encoded directly into a byte buffer, which is written out on
+ * {@link #flush}.
+ * <p>
+ * Buffers are taken from a pool shared by all writers when data is written, and
+ * returned to it when flushed, so idle connections don't each hold a buffer.
+ * <p>
+ * If a {@link ObservableWriter.WriteEvent} is given, written text is passed to it, but
+ * only while it has listeners.
+ */
+public class Utf8Writer extends Writer {
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The most buffers kept in the pool. */
+    private static final int MAX_POOLED = 64;
+
+    private static final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<byte[]>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private final OutputStream out;
+    private final ObservableWriter.WriteEvent writeEvent;
+
+    /** The buffer being filled, or null if nothing is buffered. */
+    private byte[] buffer;
+    private int length;
+
+    /** A high surrogate whose low surrogate hasn't been written yet, or 0. */
+    private char highSurrogate;
+
+    public Utf8Writer(OutputStream out, ObservableWriter.WriteEvent writeEvent) {
+        this.out = out;
+        this.writeEvent = writeEvent;
+    }
+
+    public void write(String str) throws IOException {
+        write(str, 0, str.length());
+    }
+
+    public void write(String str, int off, int len) throws IOException {
+        synchronized(lock) {
+            for(int i = off; i < off + len; ++i)
+                encode(str.charAt(i));
+        }
+
+        if(writeEvent != null && writeEvent.hasListeners())
+            writeEvent.notifyListeners(off == 0 && len == str.length()? str:str.substring(off, off + len));
+    }
+
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        synchronized(lock) {
+            for(int i = off; i < off + len; ++i)
+                encode(cbuf[i]);
+        }
+
+        if(writeEvent != null && writeEvent.hasListeners())
+            writeEvent.notifyListeners(new String(cbuf, off, len));
+    }
+
+    private void encode(char c) throws IOException {
+        if(buffer == null) {
+            buffer = pool.poll();
+            if(buffer != null)
+                pooled.decrementAndGet();
+            else
+                buffer = new byte[BUFFER_SIZE];
+            length = 0;
+        } else if(length > buffer.length - 4) {
+            out.write(buffer, 0, length);
+            length = 0;
+        }
+
+        if(highSurrogate != 0) {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if(Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                buffer[length++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[length++] = (byte) (0x80 | (codePoint & 0x3F));
+                return;
+            }
+
+            // An unpaired surrogate; replace it, like OutputStreamWriter does.
+            buffer[length++] = '?';
+            encode(c);
+            return;
+        }
+
+        if(c < 0x80) {
+            buffer[length++] = (byte) c;
+        } else if(c < 0x800) {
+            buffer[length++] = (byte) (0xC0 | (c >> 6));
+            buffer[length++] = (byte) (0x80 | (c & 0x3F));
+        } else if(Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        } else if(Character.isLowSurrogate(c)) {
+            buffer[length++] = '?';
+        } else {
+            buffer[length++] = (byte) (0xE0 | (c >> 12));
+            buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[length++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    public void flush() throws IOException {
+        synchronized(lock) {
+            if(buffer != null) {
+                byte[] data = buffer;
+                int count = length;
+                buffer = null;
+                length = 0;
+
+                try {
+                    out.write(data, 0, count);
+                } finally {
+                    if(pooled.incrementAndGet() <= MAX_POOLED)
+                        pool.add(data);
+                    else
+                        pooled.decrementAndGet();
+                }
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Close the stream.  This doesn't wait for writes in progress, so it can be used to
+     * abort a write blocked on the socket; anything buffered is discarded.
+     */
+    public void close() throws IOException {
+        out.close();
+    }
+}
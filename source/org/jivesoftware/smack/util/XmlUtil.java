@@ -128,18 +128,23 @@ public class XmlUtil {
      * @return {@link DocumentBuilder}.
      */
     public static DocumentBuilder getDocumentBuilder() {
-        // XXX: stash the DocumentBuilder; don't make a new one on every stanza
-        DocumentBuilderFactory dbfac = DocumentBuilderFactory.newInstance();
-        dbfac.setNamespaceAware(true);
-        DocumentBuilder docBuilder;
-        try {
-            docBuilder = dbfac.newDocumentBuilder();
-        } catch (ParserConfigurationException e) {
-            throw new RuntimeException("Unexpected parser error", e);
-        }
-        return docBuilder;
+        // DocumentBuilders aren't thread-safe, so keep one per thread rather than
+        // making a new one on every stanza.
+        return documentBuilder.get();
     }
 
+    private static final ThreadLocal<DocumentBuilder> documentBuilder = new ThreadLocal<DocumentBuilder>() {
+        protected DocumentBuilder initialValue() {
+            DocumentBuilderFactory dbfac = DocumentBuilderFactory.newInstance();
+            dbfac.setNamespaceAware(true);
+            try {
+                return dbfac.newDocumentBuilder();
+            } catch (ParserConfigurationException e) {
+                throw new RuntimeException("Unexpected parser error", e);
+            }
+        }
+    };
+
     /**
      * Return the current XML element as a string.
      * @param an {@link XmlPullParser} with a current event type of START_TAG
@@ -353,4 +358,105 @@ public class XmlUtil {
             throw new XMPPException("XML error", e);
         }
     }
+
+    /**
+     * Return the value of an unnamespaced attribute of the parser's current START_TAG.
+     * Like {@link Element#getAttribute}, returns "" if the attribute isn't present.
+     */
+    public static String getAttribute(XmlPullParser parser, String name) {
+        String value = parser.getAttributeValue("", name);
+        return value != null? value:"";
+    }
+
+    /**
+     * Advance parser to the next child element of the element at the given depth,
+     * skipping any deeper descendants.
+     * <p>
+     * Returns true if the parser is positioned on the START_TAG of a child element, or
+     * false if it's positioned on the END_TAG of the element itself.
+     *
+     * @param parser an {@link XmlPullParser} within the element
+     * @param depth the depth of the parent element, as returned by {@link XmlPullParser#getDepth}
+     *     on its START_TAG
+     */
+    public static boolean nextChildElement(XmlPullParser parser, int depth) throws XMPPException, IOException
+    {
+        try {
+            while(true) {
+                switch(parser.next()) {
+                case XmlPullParser.START_TAG:
+                    if(parser.getDepth() == depth + 1)
+                        return true;
+                    break;
+                case XmlPullParser.END_TAG:
+                    if(parser.getDepth() == depth)
+                        return false;
+                    break;
+                case XmlPullParser.END_DOCUMENT:
+                    throw new XMPPException("Stream closed unexpectedly");
+                }
+            }
+        }
+        catch (XmlPullParserException e) {
+            throw new XMPPException("XML error", e);
+        }
+    }
+
+    /**
+     * Advance parser to the END_TAG of the element at the given depth.  If the parser
+     * is already on that END_TAG, does nothing.
+     *
+     * @throws XMPPException if the parser has already moved past the element
+     */
+    public static void skipToEndTag(XmlPullParser parser, int depth) throws XMPPException, IOException
+    {
+        try {
+            if(parser.getDepth() < depth)
+                throw new XMPPException("Parser moved past the end of the element");
+
+            while(parser.getEventType() != XmlPullParser.END_TAG || parser.getDepth() != depth) {
+                if(parser.next() == XmlPullParser.END_DOCUMENT)
+                    throw new XMPPException("Stream closed unexpectedly");
+            }
+        }
+        catch (XmlPullParserException e) {
+            throw new XMPPException("XML error", e);
+        }
+    }
+
+    /**
+     * Read the text content of the parser's current START_TAG, as {@link #getTextContent}
+     * does for DOM nodes.  On return, the parser is positioned on the matching END_TAG.
+     */
+    public static String readTextContent(XmlPullParser parser) throws XMPPException, IOException
+    {
+        try {
+            int depth = parser.getDepth();
+            StringBuilder result = null;
+            String text = "";
+            while(true) {
+                switch(parser.next()) {
+                case XmlPullParser.TEXT:
+                    // Most elements contain a single text node; avoid copying it.
+                    if(result == null && text.length() == 0) {
+                        text = parser.getText();
+                    } else {
+                        if(result == null)
+                            result = new StringBuilder(text);
+                        result.append(parser.getText());
+                    }
+                    break;
+                case XmlPullParser.END_TAG:
+                    if(parser.getDepth() == depth)
+                        return result != null? result.toString():text;
+                    break;
+                case XmlPullParser.END_DOCUMENT:
+                    throw new XMPPException("Stream closed unexpectedly");
+                }
+            }
+        }
+        catch (XmlPullParserException e) {
+            throw new XMPPException("XML error", e);
+        }
+    }
 };
@@ -0,0 +1,417 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smackx;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.ConnectionListener;
+import org.jivesoftware.smack.PacketInterceptor;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.util.Cache;
+import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smackx.packet.CapsExtension;
+import org.jivesoftware.smackx.packet.DataForm;
+import org.jivesoftware.smackx.packet.DiscoverInfo;
+
+/**
+ * Implements entity capabilities (XEP-0115) for a {@link ServiceDiscoveryManager}.
+ * Our available presence carries a hash of our disco#info, and the hashes other
+ * entities advertise are mapped to their disco#info, so
+ * {@link ServiceDiscoveryManager#discoverInfo(String)} only queries each distinct
+ * set of capabilities once.
+ * <p>
+ * Verified information is kept in a bounded cache shared by all connections, and
+ * optionally in an {@link EntityCapsStore} so it's known across restarts.  Only
+ * SHA-1 hashes are verified; entities using other hashes or legacy caps are queried
+ * every time.
+ *
+ * @see <a href="http://xmpp.org/extensions/xep-0115.html">XEP-0115: Entity Capabilities</a>
+ */
+public class EntityCapsManager {
+
+    /** The hash function used for our own caps, and the only one we verify. */
+    public static final String HASH = "sha-1";
+
+    private static final String FORM_TYPE = "FORM_TYPE";
+
+    private static String entityNode = "http://www.igniterealtime.org/projects/smack/";
+
+    /** Verified disco#info by verification string, shared by all connections. */
+    private static final Cache<String, DiscoverInfo> cache = new Cache<String, DiscoverInfo>(1000, -1);
+
+    private static volatile EntityCapsStore persistentStore;
+
+    private final Connection connection;
+    private final ServiceDiscoveryManager discoveryManager;
+
+    /** The caps most recently advertised by each full JID. */
+    private final Map<String, CapsExtension> userCaps = new ConcurrentHashMap<String, CapsExtension>();
+
+    /* Guarded by this. */
+    private String ownVer;
+    private Presence lastPresence;
+
+    EntityCapsManager(Connection connection, ServiceDiscoveryManager discoveryManager) {
+        this.connection = connection;
+        this.discoveryManager = discoveryManager;
+
+        // Add our caps to outgoing available presence.
+        connection.addPacketInterceptor(new PacketInterceptor() {
+            public void interceptPacket(Packet packet) {
+                Presence presence = (Presence) packet;
+                if (presence.getType() != Presence.Type.available)
+                    return;
+
+                PacketExtension old = presence.getExtension(CapsExtension.ELEMENT_NAME, CapsExtension.NAMESPACE);
+                if (old != null)
+                    presence.removeExtension(old);
+                presence.addExtension(new CapsExtension(entityNode, getOwnVer(), HASH));
+
+                // Remember broadcast presence, to send it again if our features change.
+                if (presence.getTo() == null) {
+                    synchronized (EntityCapsManager.this) {
+                        lastPresence = presence;
+                    }
+                }
+            }
+        }, new PacketTypeFilter(Presence.class));
+
+        // Record the caps other entities advertise.
+        connection.addPacketListener(new PacketListener() {
+            public void processPacket(Packet packet) {
+                Presence presence = (Presence) packet;
+                String from = presence.getFrom();
+                if (from == null)
+                    return;
+
+                CapsExtension caps = (CapsExtension)
+                    presence.getExtension(CapsExtension.ELEMENT_NAME, CapsExtension.NAMESPACE);
+                if (presence.getType() == Presence.Type.available && caps != null &&
+                        caps.getNode().length() > 0 && caps.getVer().length() > 0) {
+                    userCaps.put(from, caps);
+                } else if (presence.getType() == Presence.Type.available ||
+                        presence.getType() == Presence.Type.unavailable) {
+                    userCaps.remove(from);
+                }
+            }
+        }, new PacketTypeFilter(Presence.class));
+
+        connection.addConnectionListener(new ConnectionListener() {
+            public void connectionClosed() {
+                reset();
+            }
+
+            public void connectionClosedOnError(Exception e) {
+                reset();
+            }
+        });
+    }
+
+    /**
+     * Returns the node URI advertised in our caps, identifying this software.
+     *
+     * @return the node URI.
+     */
+    public static String getEntityNode() {
+        return entityNode;
+    }
+
+    /**
+     * Sets the node URI advertised in our caps, identifying this software.
+     *
+     * @param node the node URI.
+     */
+    public static void setEntityNode(String node) {
+        entityNode = node;
+    }
+
+    /**
+     * Sets the maximum number of verified disco#info results kept in memory.
+     *
+     * @param size the maximum number of entries.
+     */
+    public static void setCacheSize(int size) {
+        cache.setMaxCacheSize(size);
+    }
+
+    /**
+     * Sets the store used to keep verified disco#info results across restarts.
+     *
+     * @param store the store, such as a {@link FileEntityCapsStore}, or null.
+     */
+    public static void setPersistentStore(EntityCapsStore store) {
+        persistentStore = store;
+    }
+
+    /**
+     * Returns the verification string of our current disco#info.
+     *
+     * @return our verification string.
+     */
+    public synchronized String getOwnVer() {
+        if (ownVer == null) {
+            DiscoverInfo info = new DiscoverInfo();
+            discoveryManager.addOwnInformation(info);
+            ownVer = generateVer(info);
+        }
+        return ownVer;
+    }
+
+    /** Return true if node is the node#ver for our current caps. */
+    boolean isOwnNode(String node) {
+        return node.equals(entityNode + "#" + getOwnVer());
+    }
+
+    /**
+     * Our disco#info has changed.  Entities we've sent presence to have cached the
+     * old hash, so send our presence again with the new one.
+     */
+    void featuresChanged() {
+        Presence presence;
+        synchronized (this) {
+            ownVer = null;
+            presence = lastPresence;
+        }
+
+        if (presence != null && connection.isAuthenticated())
+            connection.sendPacket(copyPresence(presence));
+    }
+
+    /** Our presence isn't known after disconnecting, and neither are anyone else's caps. */
+    private void reset() {
+        synchronized (this) {
+            lastPresence = null;
+        }
+        userCaps.clear();
+    }
+
+    /**
+     * Returns the caps an entity advertised, if they can be verified.
+     *
+     * @param user the full JID of the entity.
+     * @return the entity's caps, or null if it has none we can verify.
+     */
+    CapsExtension getVerifiableCaps(String user) {
+        CapsExtension caps = userCaps.get(user);
+        if (caps == null || !HASH.equalsIgnoreCase(caps.getHash()))
+            return null;
+        return caps;
+    }
+
+    /**
+     * Returns the disco#info of an entity from the cache, if its caps are known.
+     *
+     * @param user the full JID of the entity.
+     * @return a copy of the cached disco#info, or null if it isn't known.
+     */
+    DiscoverInfo getDiscoverInfoByUser(String user) {
+        CapsExtension caps = getVerifiableCaps(user);
+        if (caps == null)
+            return null;
+
+        DiscoverInfo info = getDiscoverInfoByVer(caps.getVer());
+        if (info == null)
+            return null;
+        return copy(info, user);
+    }
+
+    /**
+     * Returns the verified disco#info for a verification string, from memory or the
+     * persistent store.
+     *
+     * @param ver the verification string.
+     * @return the disco#info, or null if it isn't known.
+     */
+    public static DiscoverInfo getDiscoverInfoByVer(String ver) {
+        DiscoverInfo info = cache.get(ver);
+        if (info != null)
+            return info;
+
+        EntityCapsStore store = persistentStore;
+        if (store == null)
+            return null;
+
+        info = store.load(ver);
+        if (info == null || !ver.equals(generateVer(info)))
+            return null;
+        cache.put(ver, info);
+        return info;
+    }
+
+    /**
+     * Cache the disco#info queried for caps, if it matches the hash.
+     *
+     * @return true if the information was verified and cached.
+     */
+    boolean addDiscoverInfoByCaps(CapsExtension caps, DiscoverInfo info) {
+        if (!caps.getVer().equals(generateVer(info)))
+            return false;
+
+        DiscoverInfo copy = copy(info, null);
+        cache.put(caps.getVer(), copy);
+
+        EntityCapsStore store = persistentStore;
+        if (store != null)
+            store.store(caps.getVer(), copy);
+        return true;
+    }
+
+    /** Return a copy of info's identities, features and forms, as a result from user. */
+    private static DiscoverInfo copy(DiscoverInfo info, String user) {
+        DiscoverInfo result = new DiscoverInfo();
+        result.setType(DiscoverInfo.Type.RESULT);
+        result.setFrom(user);
+        for (Iterator<DiscoverInfo.Identity> it = info.getIdentities(); it.hasNext();)
+            result.addIdentity(it.next());
+        for (Iterator<DiscoverInfo.Feature> it = info.getFeatures(); it.hasNext();)
+            result.addFeature(it.next().getVar());
+        for (PacketExtension extension : info.getExtensions())
+            result.addExtension(extension);
+        return result;
+    }
+
+    private static Presence copyPresence(Presence presence) {
+        Presence result = new Presence(presence.getType());
+        result.setStatus(presence.getStatus());
+        if (presence.getPriority() != Integer.MIN_VALUE)
+            result.setPriority(presence.getPriority());
+        result.setMode(presence.getMode());
+        for (PacketExtension extension : presence.getExtensions()) {
+            if (!(extension instanceof CapsExtension))
+                result.addExtension(extension);
+        }
+        return result;
+    }
+
+    /**
+     * Computes the XEP-0115 verification string of disco#info with SHA-1.
+     *
+     * @param info the disco#info.
+     * @return the verification string, or null if the information is malformed in a
+     *     way XEP-0115 forbids caching, such as duplicate identities or features.
+     */
+    static String generateVer(DiscoverInfo info) {
+        StringBuilder s = new StringBuilder();
+
+        // Identities, sorted by category, type, lang and name.  We don't support xml:lang.
+        List<String> identities = new ArrayList<String>();
+        for (Iterator<DiscoverInfo.Identity> it = info.getIdentities(); it.hasNext();) {
+            DiscoverInfo.Identity identity = it.next();
+            identities.add(nullToEmpty(identity.getCategory()) + "/" + nullToEmpty(identity.getType()) +
+                    "//" + nullToEmpty(identity.getName()));
+        }
+        if (!sortUnique(identities))
+            return null;
+        for (String identity : identities)
+            s.append(identity).append("<");
+
+        List<String> features = new ArrayList<String>();
+        for (Iterator<DiscoverInfo.Feature> it = info.getFeatures(); it.hasNext();)
+            features.add(it.next().getVar());
+        if (!sortUnique(features))
+            return null;
+        for (String feature : features)
+            s.append(feature).append("<");
+
+        // Extended information forms, sorted by FORM_TYPE.  Forms without a FORM_TYPE
+        // are ignored.
+        TreeMap<String, DataForm> forms = new TreeMap<String, DataForm>();
+        for (PacketExtension extension : info.getExtensions()) {
+            if (!(extension instanceof DataForm))
+                continue;
+
+            DataForm form = (DataForm) extension;
+            List<String> formType = null;
+            for (Iterator<FormField> it = form.getFields(); it.hasNext();) {
+                FormField field = it.next();
+                if (FORM_TYPE.equals(field.getVariable()))
+                    formType = toList(field.getValues());
+            }
+            if (formType == null)
+                continue;
+            if (formType.size() != 1 || forms.containsKey(formType.get(0)))
+                return null;
+            forms.put(formType.get(0), form);
+        }
+
+        for (Map.Entry<String, DataForm> entry : forms.entrySet()) {
+            s.append(entry.getKey()).append("<");
+
+            List<FormField> fields = new ArrayList<FormField>();
+            for (Iterator<FormField> it = entry.getValue().getFields(); it.hasNext();) {
+                FormField field = it.next();
+                if (!FORM_TYPE.equals(field.getVariable()))
+                    fields.add(field);
+            }
+            Collections.sort(fields, new Comparator<FormField>() {
+                public int compare(FormField a, FormField b) {
+                    return nullToEmpty(a.getVariable()).compareTo(nullToEmpty(b.getVariable()));
+                }
+            });
+
+            for (FormField field : fields) {
+                s.append(nullToEmpty(field.getVariable())).append("<");
+                List<String> values = toList(field.getValues());
+                Collections.sort(values);
+                for (String value : values)
+                    s.append(value).append("<");
+            }
+        }
+
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return StringUtils.encodeBase64(sha1.digest(s.toString().getBytes("UTF-8")), false);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-1 not supported", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF-8 not supported", e);
+        }
+    }
+
+    /** Sort list.  Return false if it contains duplicates. */
+    private static boolean sortUnique(List<String> list) {
+        Collections.sort(list);
+        Set<String> unique = new HashSet<String>(list);
+        return unique.size() == list.size();
+    }
+
+    private static List<String> toList(Iterator<String> it) {
+        List<String> list = new ArrayList<String>();
+        while (it.hasNext())
+            list.add(it.next());
+        return list;
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null? "":s;
+    }
+}
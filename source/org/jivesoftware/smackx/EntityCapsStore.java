@@ -0,0 +1,44 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smackx;
+
+import org.jivesoftware.smackx.packet.DiscoverInfo;
+
+/**
+ * Persistent storage for verified entity capabilities, so disco#info learned in one
+ * session is known in the next.  Entries are keyed by verification string, and never
+ * change once stored.  Implementations must be thread-safe.
+ *
+ * @see EntityCapsManager#setPersistentStore(EntityCapsStore)
+ * @see FileEntityCapsStore
+ */
+public interface EntityCapsStore {
+
+    /**
+     * Returns the stored information for a verification string.
+     *
+     * @param ver the verification string.
+     * @return the stored information, or null if none is stored.
+     */
+    public DiscoverInfo load(String ver);
+
+    /**
+     * Stores the information for a verification string.
+     *
+     * @param ver the verification string.
+     * @param info the verified information.
+     */
+    public void store(String ver, DiscoverInfo info);
+}
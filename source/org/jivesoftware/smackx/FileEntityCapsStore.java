@@ -0,0 +1,79 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smackx;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.util.FileUtil;
+import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smack.util.XmlUtil;
+import org.jivesoftware.smackx.packet.DiscoverInfo;
+import org.jivesoftware.smackx.provider.DiscoverInfoProvider;
+import org.xml.sax.SAXException;
+
+/**
+ * An {@link EntityCapsStore} which keeps each entry in a file in a directory.  The
+ * directory can be shared by all accounts.  Entries are verified again when they're
+ * loaded, so a damaged file is ignored.
+ */
+public class FileEntityCapsStore implements EntityCapsStore {
+    private final File directory;
+
+    /**
+     * Creates a store in the given directory, creating the directory if it doesn't
+     * exist.
+     *
+     * @param directory the directory to store entries in.
+     * @throws IllegalArgumentException if the directory can't be created.
+     */
+    public FileEntityCapsStore(File directory) {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IllegalArgumentException("Can't create caps directory " + directory);
+        this.directory = directory;
+    }
+
+    public DiscoverInfo load(String ver) {
+        File file = getFile(ver);
+        if (!file.exists())
+            return null;
+
+        String data = FileUtil.readFile(file);
+        if (data == null)
+            return null;
+
+        try {
+            return (DiscoverInfo) new DiscoverInfoProvider().parseIQ(XmlUtil.getXMLRootNode(data));
+        } catch (SAXException e) {
+            return null;
+        } catch (XMPPException e) {
+            return null;
+        }
+    }
+
+    public void store(String ver, DiscoverInfo info) {
+        FileUtil.writeFileAtomically(getFile(ver), info.getChildElementXML());
+    }
+
+    /** Verification strings are base64, which isn't filename-safe, so hex-encode them. */
+    private File getFile(String ver) {
+        try {
+            return new File(directory, StringUtils.encodeHex(ver.getBytes("UTF-8")) + ".xml");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF-8 not supported", e);
+        }
+    }
+}
@@ -27,9 +27,10 @@ import org.jivesoftware.smack.filter.PacketTypeFilter;
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smackx.packet.CapsExtension;
+import org.jivesoftware.smackx.packet.DataForm;
 import org.jivesoftware.smackx.packet.DiscoverInfo;
 import org.jivesoftware.smackx.packet.DiscoverItems;
-import org.jivesoftware.smackx.packet.DataForm;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -56,6 +57,7 @@ public class ServiceDiscoveryManager {
     private Connection connection;
     private final List<String> features = new ArrayList<String>();
     private DataForm extendedInfo = null;
+    private EntityCapsManager capsManager;
     private Map<String, NodeInformationProvider> nodeInformationProviders =
             new ConcurrentHashMap<String, NodeInformationProvider>();
 
@@ -205,6 +207,9 @@ public class ServiceDiscoveryManager {
         };
         connection.addPacketListener(packetListener, packetFilter);
 
+        capsManager = new EntityCapsManager(connection, this);
+        addFeature(CapsExtension.NAMESPACE);
+
         // Listen for disco#info requests and answer the client's supported features 
         // To add a new feature as supported use the #addFeature message        
         packetFilter = new PacketTypeFilter(DiscoverInfo.class);
@@ -218,22 +223,11 @@ public class ServiceDiscoveryManager {
                     response.setTo(discoverInfo.getFrom());
                     response.setPacketID(discoverInfo.getPacketID());
                     response.setNode(discoverInfo.getNode());
-                     // Add the client's identity and features only if "node" is null
-                    if (discoverInfo.getNode() == null) {
-                        // Set this client identity
-                        DiscoverInfo.Identity identity = new DiscoverInfo.Identity("client",
-                                getIdentityName());
-                        identity.setType(getIdentityType());
-                        response.addIdentity(identity);
-                        // Add the registered features to the response
-                        synchronized (features) {
-                            for (Iterator<String> it = getFeatures(); it.hasNext();) {
-                                response.addFeature(it.next());
-                            }
-                            if (extendedInfo != null) {
-                                response.addExtension(extendedInfo);
-                            }
-                        }
+                    // Add the client's identity and features only if "node" is null, or
+                    // is the node#ver we advertise in our entity capabilities
+                    if (discoverInfo.getNode() == null ||
+                            capsManager.isOwnNode(discoverInfo.getNode())) {
+                        addOwnInformation(response);
                     }
                     else {
                         // Disco#info was sent to a node. Check if we have information of the
@@ -270,6 +264,39 @@ public class ServiceDiscoveryManager {
         connection.addPacketListener(packetListener, packetFilter);
     }
 
+    /**
+     * Adds this client's identity, features and extended information to a disco#info
+     * response.  This is also what our entity capabilities hash is computed from.
+     *
+     * @param response the disco#info to add to.
+     */
+    void addOwnInformation(DiscoverInfo response) {
+        // Set this client identity
+        DiscoverInfo.Identity identity = new DiscoverInfo.Identity("client",
+                getIdentityName());
+        identity.setType(getIdentityType());
+        response.addIdentity(identity);
+        // Add the registered features to the response
+        synchronized (features) {
+            for (Iterator<String> it = getFeatures(); it.hasNext();) {
+                response.addFeature(it.next());
+            }
+            if (extendedInfo != null) {
+                response.addExtension(extendedInfo);
+            }
+        }
+    }
+
+    /**
+     * Returns the entity capabilities manager of this connection, which advertises our
+     * features in presence and caches the features other entities advertise.
+     *
+     * @return the entity capabilities manager.
+     */
+    public EntityCapsManager getEntityCapsManager() {
+        return capsManager;
+    }
+
     /**
      * Returns the NodeInformationProvider responsible for providing information 
      * (ie items) related to a given node or <tt>null</null> if none.<p>
@@ -334,32 +361,38 @@ public class ServiceDiscoveryManager {
      * Registers that a new feature is supported by this XMPP entity. When this client is 
      * queried for its information the registered features will be answered.<p>
      *
-     * Since no packet is actually sent to the server it is safe to perform this operation
-     * before logging to the server. In fact, you may want to configure the supported features
-     * before logging to the server so that the information is already available if it is required
-     * upon login.
+     * If the feature is new and presence has already been sent, the presence is sent
+     * again so contacts see the new entity capabilities. It is safe to perform this
+     * operation before logging to the server. In fact, you may want to configure the
+     * supported features before logging to the server so that the information is already
+     * available if it is required upon login, and no presence has to be sent again.
      *
      * @param feature the feature to register as supported.
      */
     public void addFeature(String feature) {
         synchronized (features) {
-            if (!features.contains(feature))
-                features.add(feature);
+            if (features.contains(feature))
+                return;
+            features.add(feature);
         }
+        featuresChanged();
     }
 
     /**
      * Removes the specified feature from the supported features by this XMPP entity.<p>
      *
-     * Since no packet is actually sent to the server it is safe to perform this operation
-     * before logging to the server.
+     * If the feature was registered and presence has already been sent, the presence is
+     * sent again so contacts see the new entity capabilities. It is safe to perform this
+     * operation before logging to the server.
      *
      * @param feature the feature to remove from the supported features.
      */
     public void removeFeature(String feature) {
         synchronized (features) {
-            features.remove(feature);
+            if (!features.remove(feature))
+                return;
         }
+        featuresChanged();
     }
 
     /**
@@ -380,10 +413,11 @@ public class ServiceDiscoveryManager {
      * specified by XEP-0128.
      * <p>
      *
-     * Since no packet is actually sent to the server it is safe to perform this
-     * operation before logging to the server. In fact, you may want to
-     * configure the extended info before logging to the server so that the
-     * information is already available if it is required upon login.
+     * If presence has already been sent, the presence is sent again so contacts
+     * see the new entity capabilities. It is safe to perform this operation
+     * before logging to the server. In fact, you may want to configure the
+     * extended info before logging to the server so that the information is
+     * already available if it is required upon login.
      *
      * @param info
      *            the data form that contains the extend service discovery
@@ -391,17 +425,28 @@ public class ServiceDiscoveryManager {
      */
     public void setExtendedInfo(DataForm info) {
       extendedInfo = info;
+      featuresChanged();
     }
 
     /**
      * Removes the dataform containing extended service discovery information
      * from the information returned by this XMPP entity.<p>
      *
-     * Since no packet is actually sent to the server it is safe to perform this
-     * operation before logging to the server.
+     * If there was extended information and presence has already been sent, the
+     * presence is sent again so contacts see the new entity capabilities. It is
+     * safe to perform this operation before logging to the server.
      */
     public void removeExtendedInfo() {
+       if (extendedInfo == null)
+           return;
        extendedInfo = null;
+       featuresChanged();
+    }
+
+    /** Our disco#info changed, so our entity capabilities hash is stale. */
+    private void featuresChanged() {
+        if (capsManager != null)
+            capsManager.featuresChanged();
     }
 
     /**
@@ -426,6 +471,26 @@ public class ServiceDiscoveryManager {
      * @throws XMPPException if the operation failed for some reason.
      */
     public DiscoverInfo discoverInfo(String entityID, String node) throws XMPPException {
+        if (node == null) {
+            // If the entity advertised entity capabilities we've already seen, use the
+            // information cached for them.
+            DiscoverInfo info = capsManager.getDiscoverInfoByUser(entityID);
+            if (info != null)
+                return info;
+
+            // Otherwise query node#ver, and remember the result if it matches the hash.
+            CapsExtension caps = capsManager.getVerifiableCaps(entityID);
+            if (caps != null) {
+                info = queryInfo(entityID, caps.getNodeVer());
+                capsManager.addDiscoverInfoByCaps(caps, info);
+                info.setNode(null);
+                return info;
+            }
+        }
+        return queryInfo(entityID, node);
+    }
+
+    private DiscoverInfo queryInfo(String entityID, String node) throws XMPPException {
         // Discover the entity's info
         DiscoverInfo disco = new DiscoverInfo();
         disco.setType(IQ.Type.GET);
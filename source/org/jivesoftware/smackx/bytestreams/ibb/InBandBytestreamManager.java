@@ -167,6 +167,9 @@ public class InBandBytestreamManager implements BytestreamManager {
     /* the stanza used to send data packets */
     private StanzaType stanza = StanzaType.IQ;
 
+    /* maximum number of unacknowledged IQ data packets in flight per session */
+    private int maximumWindowSize = 1;
+
     /*
      * list containing session IDs of In-Band Bytestream open packets that should be ignored by the
      * InitiationListener
@@ -376,6 +379,40 @@ public class InBandBytestreamManager implements BytestreamManager {
         this.stanza = stanza;
     }
 
+    /**
+     * Returns the maximum number of data packets an outgoing In-Band Bytestream sends
+     * before earlier ones have been acknowledged, when data is sent with
+     * {@link StanzaType#IQ} stanzas.
+     * <p>
+     * Default is 1, so each data packet waits for the acknowledgement of the previous one.
+     * 
+     * @return the maximum window size
+     */
+    public int getMaximumWindowSize() {
+        return maximumWindowSize;
+    }
+
+    /**
+     * Sets the maximum number of data packets an outgoing In-Band Bytestream sends before
+     * earlier ones have been acknowledged, when data is sent with {@link StanzaType#IQ}
+     * stanzas. Without a window, each data packet costs a round trip, which limits the
+     * throughput to one block per round trip.
+     * <p>
+     * The window starts small and grows as acknowledgements arrive. It shrinks again if the
+     * round trip time rises well above the lowest seen, which indicates that packets are
+     * queueing somewhere between the peers rather than being delivered faster.
+     * <p>
+     * The setting applies to sessions established after it is changed.
+     * 
+     * @param maximumWindowSize the maximum window size, at least 1
+     */
+    public void setMaximumWindowSize(int maximumWindowSize) {
+        if (maximumWindowSize <= 0) {
+            throw new IllegalArgumentException("Maximum window size must be at least 1");
+        }
+        this.maximumWindowSize = maximumWindowSize;
+    }
+
     /**
      * Establishes an In-Band Bytestream with the given user and returns the session to send/receive
      * data to/from the user.
@@ -17,12 +17,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import org.jivesoftware.smack.Connection;
 import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.SmackConfiguration;
 import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.filter.AndFilter;
 import org.jivesoftware.smack.filter.PacketFilter;
@@ -32,7 +36,6 @@ import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.PacketExtension;
 import org.jivesoftware.smack.packet.XMPPError;
-import org.jivesoftware.smack.util.StringUtils;
 import org.jivesoftware.smackx.bytestreams.BytestreamSession;
 import org.jivesoftware.smackx.bytestreams.ibb.packet.Close;
 import org.jivesoftware.smackx.bytestreams.ibb.packet.Data;
@@ -572,6 +575,24 @@ public class InBandBytestreamSession implements BytestreamSession {
 
     }
 
+    /**
+     * IBBAcknowledgementFilter class filters all IQ responses from the remote peer of this session,
+     * which include the acknowledgements of data packets sent by the IQIBBOutputStream.
+     */
+    private class IBBAcknowledgementFilter implements PacketFilter {
+
+        public boolean accept(Packet packet) {
+            if (!(packet instanceof IQ) || packet.getFrom() == null
+                            || !packet.getFrom().equalsIgnoreCase(remoteJID)) {
+                return false;
+            }
+
+            IQ.Type type = ((IQ) packet).getType();
+            return type == IQ.Type.RESULT || type == IQ.Type.ERROR;
+        }
+
+    }
+
     /**
      * IBBOutputStream class is the base implementation of an In-Band Bytestream output stream.
      * Subclasses of this output stream must provide a method to send data over XMPP stream.
@@ -605,6 +626,15 @@ public class InBandBytestreamSession implements BytestreamSession {
          */
         protected abstract void writeToXML(DataPacketExtension data) throws IOException;
 
+        /**
+         * Waits until all data packets written to the XMPP stream have been delivered. The default
+         * implementation does nothing, for streams which don't wait for acknowledgements.
+         * 
+         * @throws IOException if a data packet could not be delivered
+         */
+        protected void drain() throws IOException {
+        }
+
         public synchronized void write(int b) throws IOException {
             if (this.isClosed) {
                 throw new IOException("Stream is closed");
@@ -689,6 +719,7 @@ public class InBandBytestreamSession implements BytestreamSession {
                 throw new IOException("Stream is closed");
             }
             flushBuffer();
+            drain();
         }
 
         private synchronized void flushBuffer() throws IOException {
@@ -698,10 +729,9 @@ public class InBandBytestreamSession implements BytestreamSession {
                 return;
             }
 
-            // create data packet
-            String enc = StringUtils.encodeBase64(buffer, 0, bufferPointer, false);
-            DataPacketExtension data = new DataPacketExtension(byteStreamRequest.getSessionID(),
-                            this.seq, enc);
+            // create data packet, which is encoded when it's written
+            DataPacketExtension data = DataPacketExtension.fromDecodedData(
+                            byteStreamRequest.getSessionID(), this.seq, Arrays.copyOf(buffer, bufferPointer));
 
             // write to XMPP stream
             writeToXML(data);
@@ -735,6 +765,7 @@ public class InBandBytestreamSession implements BytestreamSession {
             try {
                 if (flush) {
                     flushBuffer();
+                    drain();
                 }
             }
             catch (IOException e) {
@@ -753,12 +784,48 @@ public class InBandBytestreamSession implements BytestreamSession {
      */
     private class IQIBBOutputStream extends IBBOutputStream {
 
+        /* maximum number of data packets in flight; 1 waits for each acknowledgement in turn */
+        private final int maximumWindowSize;
+
+        /* number of data packets currently allowed in flight */
+        private int windowSize = 1;
+
+        /* true until the first sign of queueing; the window doubles every round trip meanwhile */
+        private boolean slowStart = true;
+
+        /* acknowledgements since the window last grew, once slow start has ended */
+        private int acknowledgedSinceGrowth = 0;
+
+        /* acknowledgements to receive before the window may shrink again */
+        private int acknowledgementsUntilShrink = 0;
+
+        /* lowest round trip time seen, in milliseconds */
+        private long minimumRoundTrip = Long.MAX_VALUE;
+
+        /* data packets sent but not yet acknowledged, by packet ID, in the order sent */
+        private final Map<String, SentData> inFlight = new LinkedHashMap<String, SentData>();
+
+        /* listener for acknowledgements; registered while data packets are in flight */
+        private PacketListener acknowledgementListener;
+
+        /* the error that aborted the stream, thrown by the next write */
+        private IOException error;
+
+        public IQIBBOutputStream() {
+            this.maximumWindowSize = InBandBytestreamManager.getByteStreamManager(connection).getMaximumWindowSize();
+        }
+
         @Override
         protected synchronized void writeToXML(DataPacketExtension data) throws IOException {
             // create IQ stanza containing data packet
             IQ iq = new Data(data);
             iq.setTo(remoteJID);
 
+            if (this.maximumWindowSize > 1) {
+                writeWindowed(iq, data.getSeq());
+                return;
+            }
+
             try {
                 SyncPacketSend.getReply(connection, iq);
             }
@@ -772,6 +839,173 @@ public class InBandBytestreamSession implements BytestreamSession {
 
         }
 
+        /**
+         * Sends a data packet once there is room in the window, without waiting for it to be
+         * acknowledged.
+         */
+        private void writeWindowed(IQ iq, long seq) throws IOException {
+            awaitInFlight(this.windowSize - 1);
+
+            if (this.acknowledgementListener == null) {
+                this.acknowledgementListener = new PacketListener() {
+
+                    public void processPacket(Packet packet) {
+                        acknowledged((IQ) packet);
+                    }
+
+                };
+                connection.addPacketListener(this.acknowledgementListener,
+                                new IBBAcknowledgementFilter());
+            }
+
+            this.inFlight.put(iq.getPacketID(), new SentData(seq, System.currentTimeMillis()));
+            connection.sendPacket(iq);
+        }
+
+        @Override
+        protected synchronized void drain() throws IOException {
+            if (this.maximumWindowSize > 1) {
+                awaitInFlight(0);
+            }
+        }
+
+        /**
+         * Waits until no more than the given number of data packets are in flight. Fails if the
+         * oldest data packet isn't acknowledged within the packet reply timeout.
+         */
+        private void awaitInFlight(int count) throws IOException {
+            while (this.error == null && this.inFlight.size() > count) {
+                SentData oldest = this.inFlight.values().iterator().next();
+                long remaining = oldest.time + SmackConfiguration.getPacketReplyTimeout()
+                                - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    abort(new IOException("Error while sending Data: no acknowledgement of packet "
+                                    + oldest.seq));
+                    break;
+                }
+
+                try {
+                    wait(remaining);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while sending Data");
+                }
+            }
+
+            if (this.error != null) {
+                // close session unless it is already closed
+                if (!this.isClosed) {
+                    InBandBytestreamSession.this.close();
+                }
+                throw this.error;
+            }
+        }
+
+        /**
+         * Handles the response to a data packet. An error response aborts the stream, as the
+         * remote peer has discarded the data and will reject any packets that follow.
+         */
+        private synchronized void acknowledged(IQ response) {
+            SentData sent = this.inFlight.remove(response.getPacketID());
+            if (sent == null) {
+                return;
+            }
+
+            if (response.getType() == IQ.Type.ERROR) {
+                abort(new IOException("Error while sending Data: " + response.getError()));
+                return;
+            }
+
+            adaptWindow(System.currentTimeMillis() - sent.time);
+
+            if (this.inFlight.isEmpty()) {
+                removeAcknowledgementListener();
+            }
+            notifyAll();
+        }
+
+        /**
+         * Grows the window as data packets are acknowledged, and halves it if the round trip time
+         * rises well above the lowest seen, which means packets are queueing rather than being
+         * delivered faster.
+         */
+        private void adaptWindow(long roundTrip) {
+            this.minimumRoundTrip = Math.min(this.minimumRoundTrip, roundTrip);
+            if (this.acknowledgementsUntilShrink > 0) {
+                this.acknowledgementsUntilShrink--;
+            }
+
+            if (roundTrip > 2 * this.minimumRoundTrip + 20) {
+                // shrink at most once per window, for packets sent at the larger size
+                if (this.acknowledgementsUntilShrink == 0) {
+                    this.windowSize = Math.max(1, this.windowSize / 2);
+                    this.slowStart = false;
+                    this.acknowledgedSinceGrowth = 0;
+                    this.acknowledgementsUntilShrink = this.inFlight.size();
+                }
+                return;
+            }
+
+            if (this.slowStart) {
+                this.windowSize++;
+            }
+            else if (++this.acknowledgedSinceGrowth >= this.windowSize) {
+                this.windowSize++;
+                this.acknowledgedSinceGrowth = 0;
+            }
+            this.windowSize = Math.min(this.windowSize, this.maximumWindowSize);
+        }
+
+        /**
+         * Fails the stream with the given error, discarding the data packets in flight.
+         */
+        private void abort(IOException e) {
+            if (this.error == null) {
+                this.error = e;
+            }
+            this.inFlight.clear();
+            removeAcknowledgementListener();
+            notifyAll();
+        }
+
+        private void removeAcknowledgementListener() {
+            if (this.acknowledgementListener != null) {
+                connection.removePacketListener(this.acknowledgementListener);
+                this.acknowledgementListener = null;
+            }
+        }
+
+        @Override
+        protected void closeInternal(boolean flush) {
+            super.closeInternal(flush);
+
+            // wake writers waiting for acknowledgements that are no longer of interest
+            synchronized (this) {
+                if (!this.inFlight.isEmpty() || this.acknowledgementListener != null) {
+                    abort(new IOException("Stream is closed"));
+                }
+            }
+        }
+
+    }
+
+    /**
+     * A data packet sent with an IQ stanza that hasn't been acknowledged yet.
+     */
+    private static class SentData {
+
+        /* sequence number of the data packet */
+        private final long seq;
+
+        /* time the data packet was sent */
+        private final long time;
+
+        public SentData(long seq, long time) {
+            this.seq = seq;
+            this.time = time;
+        }
+
     }
 
     /**
@@ -13,6 +13,8 @@
  */
 package org.jivesoftware.smackx.bytestreams.ibb.packet;
 
+import java.io.IOException;
+
 import org.jivesoftware.smack.packet.IQ;
 
 /**
@@ -61,4 +63,8 @@ public class Data extends IQ {
         return this.dataPacketExtension.toXML();
     }
 
+    protected void appendChildElementXML(Appendable out) throws IOException {
+        this.dataPacketExtension.appendXML(out);
+    }
+
 }
@@ -13,17 +13,25 @@
  */
 package org.jivesoftware.smackx.bytestreams.ibb.packet;
 
+import java.io.IOException;
+
 import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.packet.XMLAppendable;
+import org.jivesoftware.smack.util.Base64Codec;
 import org.jivesoftware.smack.util.StringUtils;
 import org.jivesoftware.smackx.bytestreams.ibb.InBandBytestreamManager;
 
 /**
  * Represents a chunk of data of an In-Band Bytestream within an IQ stanza or a
  * message stanza
+ * <p>
+ * A packet created from raw bytes encodes them only when it's written, directly
+ * into the packet's output; a packet created from base64 encoded data decodes it
+ * only when {@link #getDecodedData()} is called.
  * 
  * @author Henning Staib
  */
-public class DataPacketExtension implements PacketExtension {
+public class DataPacketExtension implements PacketExtension, XMLAppendable {
 
     /**
      * The element name of the data packet extension.
@@ -36,8 +44,8 @@ public class DataPacketExtension implements PacketExtension {
     /* sequence of this packet in regard to the other data packets */
     private final long seq;
 
-    /* the data contained in this packet */
-    private final String data;
+    /* the base64 encoded data contained in this packet, encoded on demand */
+    private String data;
 
     private byte[] decodedData;
 
@@ -63,6 +71,25 @@ public class DataPacketExtension implements PacketExtension {
         this.data = data;
     }
 
+    /**
+     * Creates a new In-Band Bytestream data packet from unencoded data.
+     * 
+     * @param sessionID unique session ID identifying this In-Band Bytestream
+     * @param seq sequence of this packet in regard to the other data packets
+     * @param data the data contained in this packet, which must not be modified
+     *        afterwards
+     * @return the data packet
+     */
+    public static DataPacketExtension fromDecodedData(String sessionID, long seq, byte[] data) {
+        if (data == null) {
+            throw new IllegalArgumentException("Data must not be null");
+        }
+        DataPacketExtension extension = new DataPacketExtension(sessionID, seq, "");
+        extension.data = null;
+        extension.decodedData = data;
+        return extension;
+    }
+
     /**
      * Returns the unique session ID identifying this In-Band Bytestream.
      * 
@@ -87,7 +114,10 @@ public class DataPacketExtension implements PacketExtension {
      * @return the data contained in this packet.
      */
     public String getData() {
-        return data;
+        if (this.data == null) {
+            this.data = Base64Codec.encode(decodedData, 0, decodedData.length);
+        }
+        return this.data;
     }
 
     /**
@@ -107,13 +137,8 @@ public class DataPacketExtension implements PacketExtension {
             return this.decodedData;
         }
 
-        // data must not contain the pad (=) other than end of data
-        if (data.matches(".*={1,2}+.+")) {
-            return null;
-        }
-
-        // decodeBase64 will return null if bad characters are included
-        this.decodedData = StringUtils.decodeBase64(data);
+        // null if bad characters are included or data follows the pad (=)
+        this.decodedData = Base64Codec.decode(data);
         return this.decodedData;
     }
 
@@ -126,24 +151,31 @@ public class DataPacketExtension implements PacketExtension {
     }
 
     public String toXML() {
-        StringBuilder buf = new StringBuilder();
-        buf.append("<");
-        buf.append(getElementName());
-        buf.append(" ");
-        buf.append("xmlns=\"");
-        buf.append(InBandBytestreamManager.NAMESPACE);
-        buf.append("\" ");
-        buf.append("seq=\"");
-        buf.append(seq);
-        buf.append("\" ");
-        buf.append("sid=\"");
-        buf.append(sessionID);
-        buf.append("\">");
-        buf.append(data);
-        buf.append("</");
-        buf.append(getElementName());
-        buf.append(">");
-        return buf.toString();
+        return StringUtils.toXML(this);
+    }
+
+    public void appendXML(Appendable out) throws IOException {
+        out.append("<");
+        out.append(getElementName());
+        out.append(" ");
+        out.append("xmlns=\"");
+        out.append(InBandBytestreamManager.NAMESPACE);
+        out.append("\" ");
+        out.append("seq=\"");
+        out.append(String.valueOf(seq));
+        out.append("\" ");
+        out.append("sid=\"");
+        out.append(sessionID);
+        out.append("\">");
+        if (this.data != null) {
+            out.append(this.data);
+        }
+        else {
+            Base64Codec.encode(decodedData, 0, decodedData.length, out);
+        }
+        out.append("</");
+        out.append(getElementName());
+        out.append(">");
     }
 
 }
@@ -17,9 +17,11 @@ import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.PacketExtension;
 import org.jivesoftware.smack.provider.IQProvider;
 import org.jivesoftware.smack.provider.PacketExtensionProvider;
+import org.jivesoftware.smack.util.Base64Codec;
 import org.jivesoftware.smackx.bytestreams.ibb.packet.Data;
 import org.jivesoftware.smackx.bytestreams.ibb.packet.DataPacketExtension;
 import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 /**
  * Parses an In-Band Bytestream data packet which can be a packet extension of
@@ -31,8 +33,32 @@ public class DataPacketProvider extends PacketExtensionProvider {
     static private DataPacketExtension parse(XmlPullParser parser) throws Exception {
         String sessionID = parser.getAttributeValue("", "sid");
         long seq = Long.parseLong(parser.getAttributeValue("", "seq"));
-        String data = parser.nextText();
-        return new DataPacketExtension(sessionID, seq, data);
+
+        if (parser.next() == XmlPullParser.END_TAG) {
+            return new DataPacketExtension(sessionID, seq, "");
+        }
+        if (parser.getEventType() != XmlPullParser.TEXT) {
+            throw new XmlPullParserException("Data element must contain only text", parser, null);
+        }
+
+        // decode straight from the parser's buffer
+        int[] startAndLength = new int[2];
+        char[] text = parser.getTextCharacters(startAndLength);
+        byte[] decoded = Base64Codec.decode(text, startAndLength[0], startAndLength[1]);
+        DataPacketExtension data;
+        if (decoded != null) {
+            data = DataPacketExtension.fromDecodedData(sessionID, seq, decoded);
+        }
+        else {
+            // keep invalid data so the session can reject it
+            data = new DataPacketExtension(sessionID, seq, new String(text, startAndLength[0],
+                            startAndLength[1]));
+        }
+
+        if (parser.next() != XmlPullParser.END_TAG) {
+            throw new XmlPullParserException("Data element must contain only text", parser, null);
+        }
+        return data;
     }
 
     protected DataPacketExtension parseExtension(XmlPullParser parser) throws Exception {
@@ -13,10 +13,10 @@
  */
 package org.jivesoftware.smackx.bytestreams.socks5;
 
-import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.concurrent.TimeoutException;
+import java.util.List;
 
 import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.packet.IQ;
@@ -62,6 +62,9 @@ public class Socks5BytestreamRequest implements BytestreamRequest {
     /* minimum timeout to connect to one SOCKS5 proxy */
     private int minimumConnectTimeout = 2000;
 
+    /* head start of each SOCKS5 proxy over the next one */
+    private int connectAttemptDelay = 250;
+
     /**
      * Returns the number of connection failures it takes for a particular SOCKS5 proxy to be
      * blacklisted. When a proxy is blacklisted no more connection attempts will be made to it for a
@@ -103,8 +106,9 @@ public class Socks5BytestreamRequest implements BytestreamRequest {
      * Returns the maximum timeout to connect to SOCKS5 proxies. Default is 10000ms.
      * <p>
      * When accepting a SOCKS5 Bytestream request Smack tries to connect to all SOCKS5 proxies given
-     * by the initiator until a connection is established. This timeout divided by the number of
-     * SOCKS5 proxies determines the timeout for every connection attempt.
+     * by the initiator concurrently, until a connection is established. Connection attempts still in
+     * progress when this timeout expires are aborted, unless they haven't had the minimum timeout
+     * yet.
      * <p>
      * You can set the minimum timeout for establishing a connection to one SOCKS5 proxy by invoking
      * {@link #setMinimumConnectTimeout(int)}.
@@ -122,8 +126,9 @@ public class Socks5BytestreamRequest implements BytestreamRequest {
      * Sets the maximum timeout to connect to SOCKS5 proxies. Default is 10000ms.
      * <p>
      * When accepting a SOCKS5 Bytestream request Smack tries to connect to all SOCKS5 proxies given
-     * by the initiator until a connection is established. This timeout divided by the number of
-     * SOCKS5 proxies determines the timeout for every connection attempt.
+     * by the initiator concurrently, until a connection is established. Connection attempts still in
+     * progress when this timeout expires are aborted, unless they haven't had the minimum timeout
+     * yet.
      * <p>
      * You can set the minimum timeout for establishing a connection to one SOCKS5 proxy by invoking
      * {@link #setMinimumConnectTimeout(int)}.
@@ -157,6 +162,31 @@ public class Socks5BytestreamRequest implements BytestreamRequest {
         this.minimumConnectTimeout = minimumConnectTimeout;
     }
 
+    /**
+     * Returns the head start in milliseconds each SOCKS5 proxy gets over the next one while
+     * accepting the SOCKS5 Bytestream request. Default is 250ms.
+     * 
+     * @return the delay between connection attempts
+     */
+    public int getConnectAttemptDelay() {
+        if (this.connectAttemptDelay < 0) {
+            return 250;
+        }
+        return this.connectAttemptDelay;
+    }
+
+    /**
+     * Sets the head start in milliseconds each SOCKS5 proxy gets over the next one while accepting
+     * the SOCKS5 Bytestream request. SOCKS5 proxies are tried in the order of preference given by
+     * the initiator. The next proxy is tried when this delay has passed, or as soon as all attempts
+     * in progress have failed. Default is 250ms.
+     * 
+     * @param connectAttemptDelay the delay between connection attempts
+     */
+    public void setConnectAttemptDelay(int connectAttemptDelay) {
+        this.connectAttemptDelay = connectAttemptDelay;
+    }
+
     /**
      * Returns the sender of the SOCKS5 Bytestream initialization request.
      * 
@@ -180,7 +210,8 @@ public class Socks5BytestreamRequest implements BytestreamRequest {
      * data.
      * <p>
      * Before accepting the SOCKS5 Bytestream request you can set timeouts by invoking
-     * {@link #setTotalConnectTimeout(int)} and {@link #setMinimumConnectTimeout(int)}.
+     * {@link #setTotalConnectTimeout(int)} and {@link #setMinimumConnectTimeout(int)}, and the
+     * delay between connection attempts by invoking {@link #setConnectAttemptDelay(int)}.
      * 
      * @return the socket to send/receive data
      * @throws XMPPException if connection to all SOCKS5 proxies failed or if stream is invalid.
@@ -194,52 +225,29 @@ public class Socks5BytestreamRequest implements BytestreamRequest {
             cancelRequest();
         }
 
-        StreamHost selectedHost = null;
-        Socket socket = null;
-
         String digest = Socks5Utils.createDigest(this.bytestreamRequest.getSessionID(),
                         this.bytestreamRequest.getFrom(), this.manager.getConnection().getUser());
 
-        /*
-         * determine timeout for each connection attempt; each SOCKS5 proxy has the same amount of
-         * time so that the first does not consume the whole timeout
-         */
-        int timeout = Math.max(getTotalConnectTimeout() / streamHosts.size(),
-                        getMinimumConnectTimeout());
-
+        // skip blacklisted addresses
+        List<StreamHost> candidates = new ArrayList<StreamHost>();
         for (StreamHost streamHost : streamHosts) {
-            String address = streamHost.getAddress() + ":" + streamHost.getPort();
-
-            // check to see if this address has been blacklisted
-            int failures = getConnectionFailures(address);
+            int failures = getConnectionFailures(getAddress(streamHost));
             if (CONNECTION_FAILURE_THRESHOLD > 0 && failures >= CONNECTION_FAILURE_THRESHOLD) {
                 continue;
             }
+            candidates.add(streamHost);
+        }
 
-            // establish socket
-            try {
-
-                // build SOCKS5 client
-                final Socks5Client socks5Client = new Socks5Client(streamHost, digest);
-
-                // connect to SOCKS5 proxy with a timeout
-                socket = socks5Client.getSocket(timeout);
-
-                // set selected host
-                selectedHost = streamHost;
-                break;
-
-            }
-            catch (TimeoutException e) {
-                incrementConnectionFailures(address);
-            }
-            catch (IOException e) {
-                incrementConnectionFailures(address);
-            }
-            catch (XMPPException e) {
-                incrementConnectionFailures(address);
-            }
+        // connect to all SOCKS5 proxies concurrently, the first to finish the handshake is used
+        StreamHostConnector connector = new StreamHostConnector(
+                        this.manager.getConnection().getNegotiationExecutor(), candidates, digest,
+                        getTotalConnectTimeout(), getMinimumConnectTimeout(),
+                        getConnectAttemptDelay());
+        Socket socket = connector.connect();
+        StreamHost selectedHost = connector.getSelectedStreamHost();
 
+        for (StreamHost failedHost : connector.getFailedStreamHosts()) {
+            incrementConnectionFailures(getAddress(failedHost));
         }
 
         // throw exception if connecting to all SOCKS5 proxies failed
@@ -292,6 +300,16 @@ public class Socks5BytestreamRequest implements BytestreamRequest {
         return response;
     }
 
+    /**
+     * Returns the address of the given SOCKS5 proxy as used in the blacklist.
+     * 
+     * @param streamHost the SOCKS5 proxy
+     * @return the address of the SOCKS5 proxy
+     */
+    private static String getAddress(StreamHost streamHost) {
+        return streamHost.getAddress() + ":" + streamHost.getPort();
+    }
+
     /**
      * Increments the connection failure counter by one for the given address.
      * 
@@ -73,22 +73,8 @@ class Socks5Client {
         FutureTask<Socket> futureTask = new FutureTask<Socket>(new Callable<Socket>() {
 
             public Socket call() throws Exception {
-
-                // initialize socket
                 Socket socket = new Socket();
-                SocketAddress socketAddress = new InetSocketAddress(streamHost.getAddress(),
-                                streamHost.getPort());
-                socket.connect(socketAddress);
-
-                // initialize connection to SOCKS5 proxy
-                if (!establish(socket)) {
-
-                    // initialization failed, close socket
-                    socket.close();
-                    throw new XMPPException("establishing connection to SOCKS5 proxy failed");
-
-                }
-
+                connect(socket);
                 return socket;
             }
 
@@ -118,6 +104,31 @@ class Socks5Client {
 
     }
 
+    /**
+     * Connects the given socket to the SOCKS5 proxy and initializes the connection in the current
+     * thread. Closing the socket from another thread aborts the attempt.
+     * 
+     * @param socket an unconnected socket
+     * @throws IOException if initializing the socket failed due to a network error
+     * @throws XMPPException if establishing connection to SOCKS5 proxy failed
+     */
+    void connect(Socket socket) throws IOException, XMPPException {
+
+        // initialize socket
+        SocketAddress socketAddress = new InetSocketAddress(streamHost.getAddress(),
+                        streamHost.getPort());
+        socket.connect(socketAddress);
+
+        // initialize connection to SOCKS5 proxy
+        if (!establish(socket)) {
+
+            // initialization failed, close socket
+            socket.close();
+            throw new XMPPException("establishing connection to SOCKS5 proxy failed");
+
+        }
+    }
+
     /**
      * Initializes the connection to the SOCKS5 proxy by negotiating authentication method and
      * requesting a stream for the given digest. Currently only the no-authentication method is
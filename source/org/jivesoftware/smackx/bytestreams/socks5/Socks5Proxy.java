@@ -13,25 +13,31 @@
  */
 package org.jivesoftware.smackx.bytestreams.socks5;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
+import java.net.SocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 import org.jivesoftware.smack.SmackConfiguration;
-import org.jivesoftware.smack.XMPPException;
 
 /**
  * The Socks5Proxy class represents a local SOCKS5 proxy server. It can be enabled/disabled by
@@ -54,6 +60,12 @@ import org.jivesoftware.smack.XMPPException;
  * in the process of establishing a SOCKS5 Bytestream (
  * {@link Socks5BytestreamManager#establishSession(String)}).
  * <p>
+ * A single thread accepts connections and runs the SOCKS5 handshakes of all clients concurrently
+ * with non-blocking I/O, so a slow or unresponsive client doesn't hold up others. Clients which
+ * don't complete the handshake within the {@link #setHandshakeTimeout(int) handshake timeout} are
+ * disconnected. Established connections are handed over as ordinary blocking sockets. The time
+ * taken to accept and to negotiate each connection is reported to {@link MetricsListener}s.
+ * <p>
  * This Implementation has the following limitations:
  * <ul>
  * <li>only supports the no-authentication authentication method</li>
@@ -68,32 +80,149 @@ import org.jivesoftware.smack.XMPPException;
  */
 public class Socks5Proxy {
 
+    /**
+     * The outcome of a connection to the local SOCKS5 proxy.
+     */
+    public enum Result {
+
+        /** The handshake succeeded and the connection was stored for its digest. */
+        ESTABLISHED,
+
+        /** The client requested a connection for a digest that isn't allowed. */
+        REFUSED,
+
+        /** The client isn't a SOCKS5 client or requested something this proxy doesn't support. */
+        UNSUPPORTED,
+
+        /** The client didn't complete the handshake within the handshake timeout. */
+        TIMED_OUT,
+
+        /** The client closed the connection during the handshake or a network error occurred. */
+        FAILED
+
+    }
+
+    /**
+     * Timing and outcome of a single connection to the local SOCKS5 proxy.
+     */
+    public static class ConnectionMetrics {
+
+        private final SocketAddress remoteAddress;
+
+        private final String digest;
+
+        private final Result result;
+
+        private final long acceptLatency;
+
+        private final long handshakeLatency;
+
+        ConnectionMetrics(SocketAddress remoteAddress, String digest, Result result,
+                        long acceptLatency, long handshakeLatency) {
+            this.remoteAddress = remoteAddress;
+            this.digest = digest;
+            this.result = result;
+            this.acceptLatency = acceptLatency;
+            this.handshakeLatency = handshakeLatency;
+        }
+
+        /**
+         * Returns the address of the client.
+         * 
+         * @return the address of the client
+         */
+        public SocketAddress getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        /**
+         * Returns the digest the client requested a connection for.
+         * 
+         * @return the digest or <code>null</code> if the client didn't get as far as sending it
+         */
+        public String getDigest() {
+            return digest;
+        }
+
+        /**
+         * Returns the outcome of the connection.
+         * 
+         * @return the outcome of the connection
+         */
+        public Result getResult() {
+            return result;
+        }
+
+        /**
+         * Returns the time the connection waited to be accepted after the proxy was notified of
+         * it.
+         * 
+         * @param unit the unit of the returned time
+         * @return the accept latency
+         */
+        public long getAcceptLatency(TimeUnit unit) {
+            return unit.convert(acceptLatency, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Returns the time from accepting the connection until the handshake finished, whether
+         * it succeeded or not.
+         * 
+         * @param unit the unit of the returned time
+         * @return the handshake latency
+         */
+        public long getHandshakeLatency(TimeUnit unit) {
+            return unit.convert(handshakeLatency, TimeUnit.NANOSECONDS);
+        }
+
+    }
+
+    /**
+     * Receives the metrics of every connection handled by the local SOCKS5 proxy.
+     */
+    public interface MetricsListener {
+
+        /**
+         * Called when the handshake of a connection finished. This is called on the proxy's
+         * thread, so it must return quickly.
+         * 
+         * @param metrics the metrics of the connection
+         */
+        void connectionHandled(ConnectionMetrics metrics);
+
+    }
+
     /* SOCKS5 proxy singleton */
     private static Socks5Proxy socks5Server;
 
-    /* reusable implementation of a SOCKS5 proxy server process */
+    /* default time in milliseconds a client may take to complete the handshake */
+    private static final int DEFAULT_HANDSHAKE_TIMEOUT = 10000;
+
+    /* process serving connections while the proxy is running */
     private Socks5ServerProcess serverProcess;
 
     /* thread running the SOCKS5 server process */
     private Thread serverThread;
 
-    /* server socket to accept SOCKS5 connections */
-    private ServerSocket serverSocket;
+    /* server channel to accept SOCKS5 connections */
+    private ServerSocketChannel serverChannel;
 
     /* assigns a connection to a digest */
     private final Map<String, Socket> connectionMap = new ConcurrentHashMap<String, Socket>();
 
-    /* list of digests connections should be stored */
-    private final List<String> allowedConnections = Collections.synchronizedList(new LinkedList<String>());
+    /* set of digests connections should be stored */
+    private final Set<String> allowedConnections = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     private final Set<String> localAddresses = Collections.synchronizedSet(new LinkedHashSet<String>());
 
+    private final List<MetricsListener> metricsListeners = new CopyOnWriteArrayList<MetricsListener>();
+
+    private volatile int handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
+
     /**
      * Private constructor.
      */
     private Socks5Proxy() {
-        this.serverProcess = new Socks5ServerProcess();
-
         // add default local address
         try {
             this.localAddresses.add(InetAddress.getLocalHost().getHostAddress());
@@ -126,12 +255,13 @@ public class Socks5Proxy {
         if (isRunning()) {
             return;
         }
+        ServerSocketChannel channel = null;
         try {
             if (SmackConfiguration.getLocalSocks5ProxyPort() < 0) {
                 int port = Math.abs(SmackConfiguration.getLocalSocks5ProxyPort());
                 for (int i = 0; i < 65535 - port; i++) {
                     try {
-                        this.serverSocket = new ServerSocket(port + i);
+                        channel = openServerChannel(port + i);
                         break;
                     }
                     catch (IOException e) {
@@ -140,11 +270,13 @@ public class Socks5Proxy {
                 }
             }
             else {
-                this.serverSocket = new ServerSocket(SmackConfiguration.getLocalSocks5ProxyPort());
+                channel = openServerChannel(SmackConfiguration.getLocalSocks5ProxyPort());
             }
 
-            if (this.serverSocket != null) {
-                this.serverThread = new Thread(this.serverProcess);
+            if (channel != null) {
+                this.serverProcess = new Socks5ServerProcess(channel);
+                this.serverChannel = channel;
+                this.serverThread = new Thread(this.serverProcess, "Smack SOCKS5 Proxy");
                 this.serverThread.start();
             }
         }
@@ -152,6 +284,29 @@ public class Socks5Proxy {
             // couldn't setup server
             System.err.println("couldn't setup local SOCKS5 proxy on port "
                             + SmackConfiguration.getLocalSocks5ProxyPort() + ": " + e.getMessage());
+            if (channel != null) {
+                closeChannel(channel);
+            }
+        }
+    }
+
+    /**
+     * Returns a non-blocking server channel bound to the given port.
+     * 
+     * @param port the port to listen on
+     * @return the server channel
+     * @throws IOException if the port is used or a network error occurred
+     */
+    private static ServerSocketChannel openServerChannel(int port) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.socket().bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            return channel;
+        }
+        catch (IOException e) {
+            closeChannel(channel);
+            throw e;
         }
     }
 
@@ -163,16 +318,10 @@ public class Socks5Proxy {
             return;
         }
 
-        try {
-            this.serverSocket.close();
-        }
-        catch (IOException e) {
-            // do nothing
-        }
+        this.serverProcess.shutdown();
 
         if (this.serverThread != null && this.serverThread.isAlive()) {
             try {
-                this.serverThread.interrupt();
                 this.serverThread.join();
             }
             catch (InterruptedException e) {
@@ -180,7 +329,8 @@ public class Socks5Proxy {
             }
         }
         this.serverThread = null;
-        this.serverSocket = null;
+        this.serverProcess = null;
+        this.serverChannel = null;
 
     }
 
@@ -254,7 +404,49 @@ public class Socks5Proxy {
         if (!isRunning()) {
             return -1;
         }
-        return this.serverSocket.getLocalPort();
+        return this.serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Returns the time in milliseconds a client may take to complete the SOCKS5 handshake.
+     * 
+     * @return the handshake timeout in milliseconds
+     */
+    public int getHandshakeTimeout() {
+        return this.handshakeTimeout;
+    }
+
+    /**
+     * Sets the time in milliseconds a client may take to complete the SOCKS5 handshake before it
+     * is disconnected. Default is 10000ms. The timeout applies to connections accepted after it
+     * is set.
+     * 
+     * @param timeout the handshake timeout in milliseconds
+     */
+    public void setHandshakeTimeout(int timeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        this.handshakeTimeout = timeout;
+    }
+
+    /**
+     * Adds a listener to be notified of the metrics of every connection to the local SOCKS5
+     * proxy.
+     * 
+     * @param listener the listener to add
+     */
+    public void addMetricsListener(MetricsListener listener) {
+        this.metricsListeners.add(listener);
+    }
+
+    /**
+     * Removes a listener added with {@link #addMetricsListener(MetricsListener)}.
+     * 
+     * @param listener the listener to remove
+     */
+    public void removeMetricsListener(MetricsListener listener) {
+        this.metricsListeners.remove(listener);
     }
 
     /**
@@ -302,125 +494,455 @@ public class Socks5Proxy {
      *         <code>false</code>
      */
     public boolean isRunning() {
-        return this.serverSocket != null;
+        return this.serverChannel != null;
+    }
+
+    /**
+     * Notifies the metrics listeners of a handled connection.
+     *
+     * @param metrics the metrics of the connection
+     */
+    private void fireConnectionHandled(ConnectionMetrics metrics) {
+        for (MetricsListener listener : this.metricsListeners) {
+            try {
+                listener.connectionHandled(metrics);
+            }
+            catch (RuntimeException e) {
+                // a failing listener must not stop the proxy
+                e.printStackTrace();
+            }
+        }
     }
 
     /**
-     * Implementation of a simplified SOCKS5 proxy server.
+     * Implementation of a simplified SOCKS5 proxy server. A single selector accepts connections
+     * and runs the handshakes of all connected clients.
      */
     private class Socks5ServerProcess implements Runnable {
 
+        private final ServerSocketChannel serverChannel;
+
+        private final Selector selector;
+
+        /* handshakes in progress, ordered by their deadline */
+        private final PriorityQueue<Handshake> handshakes = new PriorityQueue<Handshake>();
+
+        /* handshakes that succeeded and whose channels wait to be deregistered */
+        private final List<Handshake> established = new ArrayList<Handshake>();
+
+        private volatile boolean running = true;
+
+        public Socks5ServerProcess(ServerSocketChannel serverChannel) throws IOException {
+            this.serverChannel = serverChannel;
+            this.selector = Selector.open();
+            serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        }
+
+        /**
+         * Stops the process. The process closes its channels before its thread terminates.
+         */
+        public void shutdown() {
+            this.running = false;
+            this.selector.wakeup();
+        }
+
         public void run() {
+            try {
+                while (this.running) {
+                    handOverEstablished();
+                    long timeout = expireHandshakes();
+
+                    // keys still selected from deregistering don't wake select()
+                    if (this.selector.selectedKeys().isEmpty()) {
+                        this.selector.select(timeout);
+                    }
+                    else {
+                        this.selector.selectNow();
+                    }
+                    long readyTime = System.nanoTime();
+
+                    Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+                    while (it.hasNext() && this.running) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.channel() == this.serverChannel) {
+                            accept(readyTime);
+                        }
+                        else {
+                            ((Handshake) key.attachment()).ready(key);
+                        }
+                    }
+                }
+            }
+            catch (IOException e) {
+                // the selector failed, stop serving
+                e.printStackTrace();
+            }
+            finally {
+                close();
+            }
+        }
+
+        /**
+         * Accepts all pending connections and starts their handshakes.
+         *
+         * @param readyTime the time the selector reported pending connections
+         */
+        private void accept(long readyTime) {
             while (true) {
-                Socket socket = null;
-                boolean error = false;
+                SocketChannel channel;
+                try {
+                    channel = this.serverChannel.accept();
+                }
+                catch (IOException e) {
+                    // try again on the next notification
+                    return;
+                }
+                if (channel == null) {
+                    return;
+                }
 
+                long acceptTime = System.nanoTime();
+                Handshake handshake = new Handshake(channel, acceptTime - readyTime, acceptTime);
                 try {
+                    channel.configureBlocking(false);
+                    handshake.key = channel.register(this.selector, SelectionKey.OP_READ, handshake);
+                }
+                catch (IOException e) {
+                    handshake.finish(Result.FAILED);
+                    continue;
+                }
+                this.handshakes.add(handshake);
+            }
+        }
 
-                    if (Socks5Proxy.this.serverSocket.isClosed()
-                                    || Thread.currentThread().isInterrupted()) {
-                        return;
-                    }
+        /**
+         * Disconnects clients whose handshake timed out.
+         *
+         * @return the time in milliseconds until the next handshake times out or 0 if there are no
+         *         handshakes in progress
+         */
+        private long expireHandshakes() {
+            long now = System.nanoTime();
+            Handshake handshake;
+            while ((handshake = this.handshakes.peek()) != null) {
+                if (!handshake.finished && handshake.deadline - now > 0) {
+                    // round up, select(0) would block indefinitely
+                    return TimeUnit.NANOSECONDS.toMillis(handshake.deadline - now) + 1;
+                }
+                this.handshakes.poll();
+                if (!handshake.finished) {
+                    handshake.finish(Result.TIMED_OUT);
+                }
+            }
+            return 0;
+        }
 
-                    // accept connection
-                    socket = Socks5Proxy.this.serverSocket.accept();
-
-                    // initialize connection
-                    establishConnection(socket);
-
-                }
-                catch (SocketException e) {
-                    /*
-                     * do nothing, if caused by closing the server socket, thread will terminate in
-                     * next loop
-                     */
-                } catch (XMPPException e) {
-                    error = true;
-                } catch (IOException e) {
-                    error = true;
-                } finally {
-                    if(error) {
-                        try {
-                            if (socket != null)
-                                socket.close();
-                        }
-                        catch (IOException e) { /* ignore */ }
-                    }
+        /**
+         * Switches the channels of successful handshakes to blocking mode and stores them. The
+         * cancelled keys of the channels have to be flushed from the selector before that.
+         *
+         * @throws IOException if the selector failed
+         */
+        private void handOverEstablished() throws IOException {
+            if (this.established.isEmpty()) {
+                return;
+            }
+            this.selector.selectNow();
+
+            for (Handshake handshake : this.established) {
+                try {
+                    handshake.channel.configureBlocking(true);
+                }
+                catch (IOException e) {
+                    closeChannel(handshake.channel);
+                    handshake.report(Result.FAILED);
+                    continue;
                 }
+                Socks5Proxy.this.connectionMap.put(handshake.digest, handshake.channel.socket());
+                handshake.report(Result.ESTABLISHED);
             }
+            this.established.clear();
+        }
 
+        /**
+         * Closes the server channel, all connections with unfinished handshakes and the selector.
+         */
+        private void close() {
+            closeChannel(this.serverChannel);
+            for (Handshake handshake : this.handshakes) {
+                if (!handshake.finished) {
+                    closeChannel(handshake.channel);
+                }
+            }
+            for (Handshake handshake : this.established) {
+                closeChannel(handshake.channel);
+            }
+            this.handshakes.clear();
+            this.established.clear();
+            try {
+                this.selector.close();
+            }
+            catch (IOException e) {
+                // do nothing
+            }
         }
 
         /**
-         * Negotiates a SOCKS5 connection and stores it on success.
-         * 
-         * @param socket connection to the client
-         * @throws XMPPException if client requests a connection in an unsupported way
-         * @throws IOException if a network error occurred
+         * The SOCKS5 handshake with a single client.
          */
-        private void establishConnection(Socket socket) throws XMPPException, IOException {
-            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-            DataInputStream in = new DataInputStream(socket.getInputStream());
-
-            // first byte is version should be 5
-            int b = in.read();
-            if (b != 5) {
-                throw new XMPPException("Only SOCKS5 supported");
+        private class Handshake implements Comparable<Handshake> {
+
+            /* large enough for the method selection message and the connection request */
+            private static final int BUFFER_SIZE = 512;
+
+            private final SocketChannel channel;
+
+            private final SocketAddress remoteAddress;
+
+            private final long acceptLatency;
+
+            private final long acceptTime;
+
+            private final long deadline;
+
+            private SelectionKey key;
+
+            private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+
+            private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+
+            /* true once the authentication method has been negotiated */
+            private boolean authenticated;
+
+            /* the outcome once the final response is sent */
+            private Result result;
+
+            private String digest;
+
+            private boolean finished;
+
+            public Handshake(SocketChannel channel, long acceptLatency, long acceptTime) {
+                this.channel = channel;
+                this.remoteAddress = channel.socket().getRemoteSocketAddress();
+                this.acceptLatency = acceptLatency;
+                this.acceptTime = acceptTime;
+                this.deadline = acceptTime
+                                + TimeUnit.MILLISECONDS.toNanos(Socks5Proxy.this.handshakeTimeout);
             }
 
-            // second byte number of authentication methods supported
-            b = in.read();
+            public int compareTo(Handshake other) {
+                long difference = this.deadline - other.deadline;
+                return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+            }
 
-            // read list of supported authentication methods
-            byte[] auth = new byte[b];
-            in.readFully(auth);
+            /**
+             * Handles the channel becoming readable or writable.
+             *
+             * @param key the selection key of the channel
+             */
+            public void ready(SelectionKey key) {
+                try {
+                    if (key.isReadable()) {
+                        read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write();
+                    }
+                }
+                catch (IOException e) {
+                    finish(Result.FAILED);
+                }
+            }
 
-            byte[] authMethodSelectionResponse = new byte[2];
-            authMethodSelectionResponse[0] = (byte) 0x05; // protocol version
+            private void read() throws IOException {
+                if (this.channel.read(this.in) == -1) {
+                    finish(Result.FAILED);
+                    return;
+                }
+                if (!this.authenticated) {
+                    negotiateAuthentication();
+                }
+                if (this.authenticated && this.result == null) {
+                    receiveConnectionRequest();
+                }
+            }
+
+            /**
+             * Answers the method selection message once it is received completely. Only
+             * authentication method 0, no authentication, is supported.
+             */
+            private void negotiateAuthentication() throws IOException {
+                // first byte is version should be 5
+                if (this.in.position() < 1) {
+                    return;
+                }
+                if (this.in.get(0) != (byte) 0x05) {
+                    finish(Result.UNSUPPORTED);
+                    return;
+                }
+
+                // second byte number of authentication methods supported
+                if (this.in.position() < 2) {
+                    return;
+                }
+                int methods = this.in.get(1) & 0xFF;
+                if (this.in.position() < 2 + methods) {
+                    return;
+                }
+
+                boolean noAuthMethodFound = false;
+                for (int i = 0; i < methods; i++) {
+                    if (this.in.get(2 + i) == (byte) 0x00) {
+                        noAuthMethodFound = true;
+                        break;
+                    }
+                }
+                consume(2 + methods);
+                this.authenticated = true;
 
-            // only authentication method 0, no authentication, supported
-            boolean noAuthMethodFound = false;
-            for (int i = 0; i < auth.length; i++) {
-                if (auth[i] == (byte) 0x00) {
-                    noAuthMethodFound = true;
-                    break;
+                if (!noAuthMethodFound) {
+                    // no acceptable methods
+                    respond(new byte[] { (byte) 0x05, (byte) 0xFF }, Result.UNSUPPORTED);
+                    return;
                 }
+
+                // no-authentication method
+                respond(new byte[] { (byte) 0x05, (byte) 0x00 }, null);
             }
 
-            if (!noAuthMethodFound) {
-                authMethodSelectionResponse[1] = (byte) 0xFF; // no acceptable methods
-                out.write(authMethodSelectionResponse);
-                out.flush();
-                throw new XMPPException("Authentication method not supported");
+            /**
+             * Answers the connection request once it is received completely.
+             */
+            private void receiveConnectionRequest() throws IOException {
+                if (this.in.position() < 5) {
+                    return;
+                }
+                if (this.in.get(3) != (byte) 0x03) {
+                    // only the domain address type is supported
+                    finish(Result.UNSUPPORTED);
+                    return;
+                }
+                int addressLength = this.in.get(4) & 0xFF;
+                if (this.in.position() < 7 + addressLength) {
+                    return;
+                }
+
+                byte[] connectionRequest = new byte[7 + addressLength];
+                this.in.flip();
+                this.in.get(connectionRequest);
+                this.in.compact();
+
+                // extract digest
+                this.digest = new String(connectionRequest, 5, addressLength);
+
+                // return error if digest is not allowed
+                if (!Socks5Proxy.this.allowedConnections.contains(this.digest)) {
+                    connectionRequest[1] = (byte) 0x05; // set return status to 5 (connection refused)
+                    respond(connectionRequest, Result.REFUSED);
+                    return;
+                }
+
+                connectionRequest[1] = (byte) 0x00; // set return status to 0 (success)
+                respond(connectionRequest, Result.ESTABLISHED);
             }
 
-            authMethodSelectionResponse[1] = (byte) 0x00; // no-authentication method
-            out.write(authMethodSelectionResponse);
-            out.flush();
+            /**
+             * Removes bytes from the start of the input buffer.
+             */
+            private void consume(int length) {
+                this.in.flip();
+                this.in.position(length);
+                this.in.compact();
+            }
 
-            // receive connection request
-            byte[] connectionRequest = Socks5Utils.receiveSocks5Message(in);
+            /**
+             * Sends a response.
+             *
+             * @param response the response
+             * @param result the outcome once the response is sent or <code>null</code> if the
+             *        handshake continues
+             */
+            private void respond(byte[] response, Result result) throws IOException {
+                this.out.put(response);
+                this.result = result;
+                write();
+            }
 
-            // extract digest
-            String responseDigest = new String(connectionRequest, 5, connectionRequest[4]);
+            /**
+             * Writes pending output. Once everything is written the handshake continues or
+             * finishes with its result.
+             */
+            private void write() throws IOException {
+                this.out.flip();
+                this.channel.write(this.out);
+                this.out.compact();
+
+                if (this.out.position() > 0) {
+                    this.key.interestOps(SelectionKey.OP_WRITE);
+                }
+                else if (this.result == null) {
+                    this.key.interestOps(SelectionKey.OP_READ);
+                }
+                else if (this.result == Result.ESTABLISHED) {
+                    this.key.cancel();
+                    this.finished = true;
+                    release();
+                    Socks5ServerProcess.this.established.add(this);
+                }
+                else {
+                    finish(this.result);
+                }
+            }
 
-            // return error if digest is not allowed
-            if (!Socks5Proxy.this.allowedConnections.contains(responseDigest)) {
-                connectionRequest[1] = (byte) 0x05; // set return status to 5 (connection refused)
-                out.write(connectionRequest);
-                out.flush();
+            /**
+             * Closes the connection and reports the result of the handshake.
+             *
+             * @param result the result of the handshake
+             */
+            public void finish(Result result) {
+                if (this.finished) {
+                    return;
+                }
+                this.finished = true;
+                release();
+                closeChannel(this.channel);
+                report(result);
+            }
 
-                throw new XMPPException("Connection is not allowed");
+            /**
+             * Releases the buffers of a finished handshake, which may wait in the queue until
+             * its deadline.
+             */
+            private void release() {
+                this.in = null;
+                this.out = null;
             }
 
-            connectionRequest[1] = (byte) 0x00; // set return status to 0 (success)
-            out.write(connectionRequest);
-            out.flush();
+            public void report(Result result) {
+                fireConnectionHandled(new ConnectionMetrics(this.remoteAddress, this.digest,
+                                result, this.acceptLatency, System.nanoTime() - this.acceptTime));
+            }
 
-            // store connection
-            Socks5Proxy.this.connectionMap.put(responseDigest, socket);
         }
 
     }
 
+    /**
+     * Closes a channel, ignoring errors.
+     *
+     * @param channel the channel to close
+     */
+    private static void closeChannel(Channel channel) {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            // do nothing
+        }
+    }
+
 }
@@ -0,0 +1,278 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smackx.bytestreams.socks5;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smackx.bytestreams.socks5.packet.Bytestream.StreamHost;
+
+/**
+ * Connects to the first of several SOCKS5 proxies that completes the SOCKS5 handshake, racing
+ * connection attempts with staggered starts.
+ * <p>
+ * Stream hosts are tried in the order given, which is the initiator's order of preference. Each
+ * attempt starts a short delay after the previous one, or immediately once all attempts in progress
+ * have failed, so preferred proxies get a head start but unreachable ones don't hold up the
+ * others. The first proxy to complete the handshake wins; the other attempts are closed.
+ */
+class StreamHostConnector {
+
+    /* runs the connection attempts */
+    private final Executor executor;
+
+    /* the stream hosts in order of preference */
+    private final List<StreamHost> streamHosts;
+
+    /* SHA-1 digest identifying the SOCKS5 stream */
+    private final String digest;
+
+    /* time in milliseconds all attempts should be finished in */
+    private final int totalTimeout;
+
+    /* minimum time in milliseconds for each attempt */
+    private final int minimumTimeout;
+
+    /* delay in milliseconds before starting the next attempt */
+    private final int attemptDelay;
+
+    /* all guarded by this */
+    private final List<Attempt> attempts = new ArrayList<Attempt>();
+
+    private final List<StreamHost> failedStreamHosts = new ArrayList<StreamHost>();
+
+    private Attempt winner;
+
+    private int running;
+
+    /**
+     * Constructor.
+     *
+     * @param executor the executor to run connection attempts on
+     * @param streamHosts the SOCKS5 proxies in order of preference
+     * @param digest identifying the SOCKS5 Bytestream
+     * @param totalTimeout time in milliseconds all attempts should be finished in
+     * @param minimumTimeout minimum time in milliseconds for each attempt, even if it starts late
+     * @param attemptDelay delay in milliseconds before starting the next attempt
+     */
+    public StreamHostConnector(Executor executor, List<StreamHost> streamHosts, String digest,
+                    int totalTimeout, int minimumTimeout, int attemptDelay) {
+        this.executor = executor;
+        this.streamHosts = streamHosts;
+        this.digest = digest;
+        this.totalTimeout = totalTimeout;
+        this.minimumTimeout = minimumTimeout;
+        this.attemptDelay = attemptDelay;
+    }
+
+    /**
+     * Connects to one of the SOCKS5 proxies. This blocks until a proxy completes the handshake or
+     * all attempts failed or timed out.
+     *
+     * @return the socket connected to the winning proxy or <code>null</code> if all attempts
+     *         failed
+     * @throws InterruptedException if the current thread was interrupted while waiting; all
+     *         attempts are closed
+     */
+    public synchronized Socket connect() throws InterruptedException {
+        Iterator<StreamHost> next = this.streamHosts.iterator();
+        long start = System.currentTimeMillis();
+        long nextStart = start;
+
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+
+                if (this.winner == null && next.hasNext() && (this.running == 0 || now >= nextStart)) {
+                    long deadline = Math.max(start + this.totalTimeout, now + this.minimumTimeout);
+                    start(next.next(), deadline);
+                    nextStart = now + this.attemptDelay;
+                    continue;
+                }
+
+                long wait = expire(now);
+
+                if (this.winner != null) {
+                    abandonAll();
+                    return this.winner.socket;
+                }
+
+                if (this.running == 0 && !next.hasNext()) {
+                    return null;
+                }
+
+                if (next.hasNext()) {
+                    wait = Math.min(wait, nextStart - now);
+                }
+                wait(Math.max(wait, 1));
+            }
+        }
+        catch (InterruptedException e) {
+            abandonAll();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the SOCKS5 proxies whose connection attempts failed or timed out. Proxies whose
+     * attempts were abandoned because another proxy won are not included.
+     *
+     * @return the failed SOCKS5 proxies
+     */
+    public synchronized List<StreamHost> getFailedStreamHosts() {
+        return new ArrayList<StreamHost>(this.failedStreamHosts);
+    }
+
+    /**
+     * Returns the stream host of the winning attempt.
+     *
+     * @return the stream host of the winning attempt or <code>null</code> if there is none
+     */
+    public synchronized StreamHost getSelectedStreamHost() {
+        return this.winner == null ? null : this.winner.streamHost;
+    }
+
+    /**
+     * Starts connecting to the given SOCKS5 proxy on the executor.
+     *
+     * @param streamHost the SOCKS5 proxy
+     * @param deadline the time the attempt times out
+     */
+    private void start(StreamHost streamHost, long deadline) {
+        final Attempt attempt = new Attempt(streamHost, deadline);
+        this.attempts.add(attempt);
+        this.running++;
+
+        Runnable task = new Runnable() {
+
+            public void run() {
+                boolean success = false;
+                try {
+                    new Socks5Client(attempt.streamHost, digest).connect(attempt.socket);
+                    success = true;
+                }
+                catch (IOException e) {
+                    // failed, see below
+                }
+                catch (XMPPException e) {
+                    // failed, see below
+                }
+                finished(attempt, success);
+            }
+
+        };
+        try {
+            this.executor.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            finished(attempt, false);
+        }
+    }
+
+    /**
+     * Records the outcome of an attempt.
+     *
+     * @param attempt the attempt
+     * @param success <code>true</code> if the attempt completed the handshake
+     */
+    private synchronized void finished(Attempt attempt, boolean success) {
+        this.running--;
+        if (success && this.winner == null && !attempt.abandoned) {
+            this.winner = attempt;
+        }
+        else {
+            // lost the race, was abandoned or failed
+            attempt.close();
+            if (!success && !attempt.abandoned) {
+                attempt.abandoned = true;
+                this.failedStreamHosts.add(attempt.streamHost);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Closes attempts that timed out.
+     *
+     * @param now the current time
+     * @return the time in milliseconds until the next attempt in progress times out
+     */
+    private long expire(long now) {
+        long wait = Long.MAX_VALUE;
+        for (Attempt attempt : this.attempts) {
+            if (attempt.abandoned || attempt == this.winner) {
+                continue;
+            }
+            if (attempt.deadline <= now) {
+                attempt.abandoned = true;
+                attempt.close();
+                this.failedStreamHosts.add(attempt.streamHost);
+            }
+            else {
+                wait = Math.min(wait, attempt.deadline - now);
+            }
+        }
+        return wait;
+    }
+
+    /**
+     * Closes all attempts except the winner.
+     */
+    private void abandonAll() {
+        for (Attempt attempt : this.attempts) {
+            if (attempt != this.winner && !attempt.abandoned) {
+                attempt.abandoned = true;
+                attempt.close();
+            }
+        }
+    }
+
+    /**
+     * A connection attempt to a single SOCKS5 proxy.
+     */
+    private static class Attempt {
+
+        private final StreamHost streamHost;
+
+        private final long deadline;
+
+        /* closed by the waiting thread to abort the attempt */
+        private final Socket socket = new Socket();
+
+        /* true once the outcome no longer matters */
+        private boolean abandoned;
+
+        public Attempt(StreamHost streamHost, long deadline) {
+            this.streamHost = streamHost;
+            this.deadline = deadline;
+        }
+
+        public void close() {
+            try {
+                this.socket.close();
+            }
+            catch (IOException e) {
+                // do nothing
+            }
+        }
+
+    }
+
+}
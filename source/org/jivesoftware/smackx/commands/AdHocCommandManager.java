@@ -42,6 +42,8 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An AdHocCommandManager is responsible for keeping the list of available
@@ -96,9 +98,10 @@ public class AdHocCommandManager {
     }
 
     /**
-     * Thread that reaps stale sessions.
+     * Task that reaps stale sessions, scheduled while there are executing
+     * commands. Guarded by this.
      */
-    private Thread sessionsSweeper;
+    private ScheduledFuture<?> sessionsSweeper;
 
     /**
      * The Connection that this instances of AdHocCommandManager manages
@@ -248,7 +251,6 @@ public class AdHocCommandManager {
      * <li>Registers the ad-hoc command feature to the ServiceDiscoveryManager</li>
      * <li>Registers the items of the feature</li>
      * <li>Adds packet listeners to handle execution requests</li>
-     * <li>Creates and start the session sweeper</li>
      * </ul>
      */
     private void init() {
@@ -333,46 +335,67 @@ public class AdHocCommandManager {
         PacketFilter filter = new PacketTypeFilter(AdHocCommandData.class);
         connection.addPacketListener(listener, filter);
 
-        // Create a thread to reap sessions. But, we'll only start it later when commands are
-        // actually registered.
-        sessionsSweeper = new Thread(new Runnable() {
+    }
+
+    /**
+     * Schedules the session sweeper on the connection's scheduler, unless it is
+     * already scheduled. It runs when the oldest executing command's session
+     * expires, rather than polling.
+     */
+    private synchronized void scheduleSessionsSweeper() {
+        if (sessionsSweeper != null) {
+            return;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (LocalCommand command : executingCommands.values()) {
+            oldest = Math.min(oldest, command.getCreationDate());
+        }
+        if (oldest == Long.MAX_VALUE) {
+            return;
+        }
+        // Sweep no more than once a second
+        long delay = Math.max(oldest + SESSION_TIMEOUT * 1000 * 2
+                - System.currentTimeMillis(), 1000);
+        sessionsSweeper = connection.getScheduledExecutor().schedule(new Runnable() {
             public void run() {
-                while (true) {
-                    for (String sessionId : executingCommands.keySet()) {
-                        LocalCommand command = executingCommands.get(sessionId);
-                        // Since the command could be removed in the meanwhile
-                        // of getting the key and getting the value - by a
-                        // processed packet. We must check if it still in the
-                        // map.
-                        if (command != null) {
-                            long creationStamp = command.getCreationDate();
-                            // Check if the Session data has expired (default is
-                            // 10 minutes)
-                            // To remove it from the session list it waits for
-                            // the double of the of time out time. This is to
-                            // let
-                            // the requester know why his execution request is
-                            // not accepted. If the session is removed just
-                            // after the time out, then whe the user request to
-                            // continue the execution he will recieved an
-                            // invalid session error and not a time out error.
-                            if (System.currentTimeMillis() - creationStamp > SESSION_TIMEOUT * 1000 * 2) {
-                                // Remove the expired session
-                                executingCommands.remove(sessionId);
-                            }
-                        }
-                    }
-                    try {
-                        Thread.sleep(1000);
-                    }
-                    catch (InterruptedException ie) {
-                        // Ignore.
-                    }
-                }
+                sweepSessions();
             }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
 
-        });
-        sessionsSweeper.setDaemon(true);
+    /**
+     * Removes the sessions that have expired, then schedules the next sweep if
+     * commands are still executing.
+     */
+    private void sweepSessions() {
+        for (String sessionId : executingCommands.keySet()) {
+            LocalCommand command = executingCommands.get(sessionId);
+            // Since the command could be removed in the meanwhile
+            // of getting the key and getting the value - by a
+            // processed packet. We must check if it still in the
+            // map.
+            if (command != null) {
+                long creationStamp = command.getCreationDate();
+                // Check if the Session data has expired (default is
+                // 10 minutes)
+                // To remove it from the session list it waits for
+                // the double of the of time out time. This is to
+                // let
+                // the requester know why his execution request is
+                // not accepted. If the session is removed just
+                // after the time out, then whe the user request to
+                // continue the execution he will recieved an
+                // invalid session error and not a time out error.
+                if (System.currentTimeMillis() - creationStamp > SESSION_TIMEOUT * 1000 * 2) {
+                    // Remove the expired session
+                    executingCommands.remove(sessionId);
+                }
+            }
+        }
+        synchronized (this) {
+            sessionsSweeper = null;
+            scheduleSessionsSweeper();
+        }
     }
 
     /**
@@ -475,10 +498,8 @@ public class AdHocCommandManager {
                     // available for the next call
                     response.setStatus(Status.executing);
                     executingCommands.put(sessionId, command);
-                    // See if the session reaping thread is started. If not, start it.
-                    if (!sessionsSweeper.isAlive()) {
-                        sessionsSweeper.start();
-                    }
+                    // See if the session reaper is scheduled. If not, schedule it.
+                    scheduleSessionsSweeper();
                 }
 
                 // Sends the response packet
@@ -80,7 +80,7 @@ public class FaultTolerantNegotiator extends StreamNegotiator {
         connection.sendPacket(super.createInitiationAccept(initiation, getNamespaces()));
 
         CompletionService<InputStream> service
-                = new ExecutorCompletionService<InputStream>(Executors.newFixedThreadPool(2));
+                = new ExecutorCompletionService<InputStream>(connection.getNegotiationExecutor());
         List<Future<InputStream>> futures = new ArrayList<Future<InputStream>>();
         InputStream stream = null;
         XMPPException exception = null;
@@ -29,15 +29,18 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 import org.jivesoftware.smack.Connection;
 import org.jivesoftware.smack.ConnectionListener;
 import org.jivesoftware.smack.PacketCollector;
+import org.jivesoftware.smack.SmackConfiguration;
 import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.filter.PacketIDFilter;
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smack.util.BoundedExecutor;
 import org.jivesoftware.smackx.Form;
 import org.jivesoftware.smackx.FormField;
 import org.jivesoftware.smackx.ServiceDiscoveryManager;
@@ -210,12 +213,27 @@ public class FileTransferNegotiator {
 
     private final StreamNegotiator inbandTransferManager;
 
+    private final BoundedExecutor transferExecutor;
+
     private FileTransferNegotiator(final Connection connection) {
         configureConnection(connection);
 
         this.connection = connection;
         byteStreamTransferManager = new Socks5TransferNegotiator(connection);
         inbandTransferManager = new IBBTransferNegotiator(connection);
+        transferExecutor = new BoundedExecutor(connection.getExtensionExecutor(),
+                SmackConfiguration.getMaxConcurrentFileTransfers());
+    }
+
+    /**
+     * Returns the executor running the file transfers of this connection in the
+     * background. At most {@link SmackConfiguration#getMaxConcurrentFileTransfers()}
+     * transfers run at once; further transfers wait until one finishes.
+     *
+     * @return the executor for file transfers of this connection.
+     */
+    Executor getTransferExecutor() {
+        return transferExecutor;
     }
 
     private void configureConnection(final Connection connection) {
@@ -118,7 +118,7 @@ public class IncomingFileTransfer extends FileTransfer {
             throw new IllegalArgumentException("File cannot be null");
         }
 
-        Thread transferThread = new Thread(new Runnable() {
+        negotiator.getTransferExecutor().execute(new Runnable() {
             public void run() {
                 try {
                     inputStream = negotiateStream();
@@ -165,8 +165,7 @@ public class IncomingFileTransfer extends FileTransfer {
                     }
                 }
             }
-        }, "File Transfer " + streamID);
-        transferThread.start();
+        });
     }
 
     private void handleXMPPException(XMPPException e) {
@@ -23,6 +23,8 @@ import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.packet.XMPPError;
 
 import java.io.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * Handles the sending of a file to another user. File transfer's in jabber have
@@ -64,7 +66,7 @@ public class OutgoingFileTransfer extends FileTransfer {
 
 	private String initiator;
 
-	private Thread transferThread;
+	private Future<?> transferTask;
 
 	protected OutgoingFileTransfer(String initiator, String target,
 			String streamID, FileTransferNegotiator transferNegotiator) {
@@ -160,7 +162,7 @@ public class OutgoingFileTransfer extends FileTransfer {
 							+ " been attempted for this file transfer");
 		}
         this.callback = progress;
-        transferThread = new Thread(new Runnable() {
+        startTransfer(new Runnable() {
 			public void run() {
 				try {
 					OutgoingFileTransfer.this.outputStream = negotiateStream(
@@ -171,17 +173,26 @@ public class OutgoingFileTransfer extends FileTransfer {
 					handleXMPPException(e);
 				}
 			}
-		}, "File Transfer Negotiation " + streamID);
-		transferThread.start();
+		});
 	}
 
 	private void checkTransferThread() {
-		if (transferThread != null && transferThread.isAlive() || isDone()) {
+		if (transferTask != null && !transferTask.isDone() || isDone()) {
 			throw new IllegalStateException(
 					"File transfer in progress or has already completed.");
 		}
 	}
 
+	/**
+	 * Runs the transfer on the connection's file transfer executor. It may wait
+	 * there until other transfers finish.
+	 */
+	private void startTransfer(Runnable transfer) {
+		FutureTask<Object> task = new FutureTask<Object>(transfer, null);
+		transferTask = task;
+		negotiator.getTransferExecutor().execute(task);
+	}
+
     /**
 	 * This method handles the stream negotiation process and transmits the file
 	 * to the remote user. It returns immediatly and the progress of the file
@@ -208,7 +219,7 @@ public class OutgoingFileTransfer extends FileTransfer {
 			setFileInfo(file.getAbsolutePath(), file.getName(), file.length());
 		}
 
-		transferThread = new Thread(new Runnable() {
+		startTransfer(new Runnable() {
 			public void run() {
 				try {
 					outputStream = negotiateStream(file.getName(), file
@@ -251,8 +262,7 @@ public class OutgoingFileTransfer extends FileTransfer {
                 updateStatus(Status.in_progress, FileTransfer.Status.complete);
 				}
 
-		}, "File Transfer " + streamID);
-		transferThread.start();
+		});
 	}
 
     /**
@@ -274,7 +284,7 @@ public class OutgoingFileTransfer extends FileTransfer {
 	public synchronized void sendStream(final InputStream in, final String fileName, final long fileSize, final String description){
 		checkTransferThread();
 
-		transferThread = new Thread(new Runnable() {
+		startTransfer(new Runnable() {
 			public void run() {
                 //Create packet filter
                 try {
@@ -310,8 +320,7 @@ public class OutgoingFileTransfer extends FileTransfer {
                 updateStatus(Status.in_progress, FileTransfer.Status.complete);
 				}
 
-		}, "File Transfer " + streamID);
-		transferThread.start();
+		});
 	}
 
 	private void handleXMPPException(XMPPException e) {
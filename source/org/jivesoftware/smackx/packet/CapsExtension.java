@@ -0,0 +1,117 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smackx.packet;
+
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.provider.PacketExtensionProvider;
+import org.jivesoftware.smack.util.StringUtils;
+import org.w3c.dom.Element;
+
+/**
+ * The entity capabilities of the sender of a presence: a hash of its service discovery
+ * information, so receivers who've seen the hash before needn't query it again.
+ *
+ * @see <a href="http://xmpp.org/extensions/xep-0115.html">XEP-0115: Entity Capabilities</a>
+ */
+public class CapsExtension implements PacketExtension {
+
+    public static final String NAMESPACE = "http://jabber.org/protocol/caps";
+
+    public static final String ELEMENT_NAME = "c";
+
+    private final String node;
+    private final String ver;
+    private final String hash;
+
+    /**
+     * Creates a new caps extension.
+     *
+     * @param node the URI identifying the sending software.
+     * @param ver the verification string.
+     * @param hash the hash function used to compute ver, or null for legacy caps.
+     */
+    public CapsExtension(String node, String ver, String hash) {
+        this.node = node;
+        this.ver = ver;
+        this.hash = hash;
+    }
+
+    /**
+     * Returns the URI identifying the sending software.
+     *
+     * @return the node.
+     */
+    public String getNode() {
+        return node;
+    }
+
+    /**
+     * Returns the verification string, a hash of the sender's disco#info.
+     *
+     * @return the verification string.
+     */
+    public String getVer() {
+        return ver;
+    }
+
+    /**
+     * Returns the name of the hash function used to compute the verification string,
+     * such as "sha-1", or null for legacy caps which can't be verified.
+     *
+     * @return the hash function.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Returns the disco#info node to query for the information ver was computed from.
+     *
+     * @return node#ver.
+     */
+    public String getNodeVer() {
+        return node + "#" + ver;
+    }
+
+    public String getElementName() {
+        return ELEMENT_NAME;
+    }
+
+    public String getNamespace() {
+        return NAMESPACE;
+    }
+
+    public String toXML() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("<").append(ELEMENT_NAME).append(" xmlns=\"").append(NAMESPACE).append("\"");
+        if (hash != null)
+            buf.append(" hash=\"").append(StringUtils.escapeForXML(hash)).append("\"");
+        buf.append(" node=\"").append(StringUtils.escapeForXML(node)).append("\"");
+        buf.append(" ver=\"").append(StringUtils.escapeForXML(ver)).append("\"/>");
+        return buf.toString();
+    }
+
+    public static class Provider extends PacketExtensionProvider {
+        public PacketExtension parseExtension(Element packet) throws XMPPException {
+            // Missing attributes are left empty rather than failing the whole presence;
+            // EntityCapsManager ignores them.
+            String node = packet.getAttribute("node");
+            String ver = packet.getAttribute("ver");
+            String hash = packet.hasAttribute("hash")? packet.getAttribute("hash"):null;
+            return new CapsExtension(node, ver, hash);
+        }
+    }
+}
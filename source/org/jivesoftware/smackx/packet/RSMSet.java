@@ -0,0 +1,173 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smackx.packet;
+
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.provider.PacketExtensionProvider;
+import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smack.util.XmlUtil;
+import org.w3c.dom.Element;
+
+/**
+ * A result set management element, used to request one page of a large result and
+ * to describe the page returned.  A request sets the page size and the position to
+ * page from; a response gives the IDs of the first and last items in the page, and
+ * optionally the size of the whole result.
+ *
+ * @see <a href="http://xmpp.org/extensions/xep-0059.html">XEP-0059: Result Set Management</a>
+ */
+public class RSMSet implements PacketExtension {
+
+    public static final String NAMESPACE = "http://jabber.org/protocol/rsm";
+
+    public static final String ELEMENT_NAME = "set";
+
+    private int max = -1;
+    private String after;
+    private String first;
+    private String last;
+    private int count = -1;
+
+    /**
+     * Returns the maximum number of items requested.
+     *
+     * @return the page size, or -1 if not set.
+     */
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * Sets the maximum number of items to return in the page.
+     *
+     * @param max the page size.
+     */
+    public void setMax(int max) {
+        this.max = max;
+    }
+
+    /**
+     * Returns the ID of the item the requested page follows.
+     *
+     * @return the ID, or null to request the first page.
+     */
+    public String getAfter() {
+        return after;
+    }
+
+    /**
+     * Requests the page following an item, usually the last item of the previous page.
+     *
+     * @param after the ID of the item.
+     */
+    public void setAfter(String after) {
+        this.after = after;
+    }
+
+    /**
+     * Returns the ID of the first item in a returned page.
+     *
+     * @return the ID, or null if the page is empty.
+     */
+    public String getFirst() {
+        return first;
+    }
+
+    public void setFirst(String first) {
+        this.first = first;
+    }
+
+    /**
+     * Returns the ID of the last item in a returned page, which is used to request
+     * the next page.
+     *
+     * @return the ID, or null if the page is empty.
+     */
+    public String getLast() {
+        return last;
+    }
+
+    public void setLast(String last) {
+        this.last = last;
+    }
+
+    /**
+     * Returns the number of items in the whole result, if the responder gave it.
+     *
+     * @return the number of items, or -1 if unknown.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public String getElementName() {
+        return ELEMENT_NAME;
+    }
+
+    public String getNamespace() {
+        return NAMESPACE;
+    }
+
+    public String toXML() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("<").append(ELEMENT_NAME).append(" xmlns=\"").append(NAMESPACE).append("\">");
+        if (max != -1)
+            buf.append("<max>").append(max).append("</max>");
+        if (after != null)
+            buf.append("<after>").append(StringUtils.escapeForXML(after)).append("</after>");
+        if (first != null)
+            buf.append("<first>").append(StringUtils.escapeForXML(first)).append("</first>");
+        if (last != null)
+            buf.append("<last>").append(StringUtils.escapeForXML(last)).append("</last>");
+        if (count != -1)
+            buf.append("<count>").append(count).append("</count>");
+        buf.append("</").append(ELEMENT_NAME).append(">");
+        return buf.toString();
+    }
+
+    public static class Provider extends PacketExtensionProvider {
+        public PacketExtension parseExtension(Element packet) throws XMPPException {
+            RSMSet set = new RSMSet();
+            for (Element child: XmlUtil.getChildElements(packet)) {
+                String name = child.getLocalName();
+                String text = XmlUtil.getTextContent(child);
+                if (name.equals("max"))
+                    set.setMax(parseInt(text));
+                else if (name.equals("after"))
+                    set.setAfter(text);
+                else if (name.equals("first"))
+                    set.setFirst(text);
+                else if (name.equals("last"))
+                    set.setLast(text);
+                else if (name.equals("count"))
+                    set.setCount(parseInt(text));
+            }
+            return set;
+        }
+
+        private static int parseInt(String text) throws XMPPException {
+            try {
+                return Integer.parseInt(text.trim());
+            } catch (NumberFormatException e) {
+                throw new XMPPException("Invalid number in result set: " + text);
+            }
+        }
+    }
+}
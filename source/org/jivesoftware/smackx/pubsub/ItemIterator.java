@@ -0,0 +1,285 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smackx.pubsub;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.SmackConfiguration;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.filter.PacketIDFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.IQ.Type;
+import org.jivesoftware.smackx.packet.RSMSet;
+import org.jivesoftware.smackx.pubsub.packet.PubSub;
+
+/**
+ * Iterates over the items of a {@link LeafNode}, retrieving them a page at a time
+ * with result set management.  Pages are requested as they're needed, and up to a
+ * configurable number of pages are requested ahead of the caller, so the next page
+ * is usually ready when the current one is used up.  Pages are discarded once
+ * they've been iterated over, so only a few pages are held at a time, however large
+ * the node.
+ * <p>
+ * If the service doesn't support result set management, it returns all items in the
+ * first reply, and they're iterated over as a single page.
+ * <p>
+ * Call {@link #cancel()} if iteration is abandoned early, to stop requesting pages.
+ *
+ * @see LeafNode#getItemIterator(int, int)
+ */
+public class ItemIterator<T extends Item>
+{
+	private final Connection con;
+	private final Node node;
+	private final int pageSize;
+	private final int prefetchPages;
+
+	/* All guarded by this. */
+	private final LinkedList<List<T>> pages = new LinkedList<List<T>>();
+	private Iterator<T> current;
+	private PacketListener pendingListener;
+	private String nextAfter;
+	private boolean done;
+	private boolean cancelled;
+	private XMPPException error;
+	private int count = -1;
+
+	ItemIterator(Connection connection, Node node, int pageSize, int prefetchPages)
+	{
+		if (pageSize < 1)
+			throw new IllegalArgumentException("Page size must be positive");
+		if (prefetchPages < 0)
+			throw new IllegalArgumentException("Prefetch depth must not be negative");
+
+		con = connection;
+		this.node = node;
+		this.pageSize = pageSize;
+		this.prefetchPages = prefetchPages;
+
+		PubSub request;
+		synchronized (this)
+		{
+			request = requestPage();
+		}
+		con.sendPacket(request);
+	}
+
+	/**
+	 * Returns true if there are more items, waiting for the next page to arrive if
+	 * necessary.
+	 *
+	 * @return true if {@link #next()} will return an item.
+	 * @throws XMPPException if a page couldn't be retrieved.
+	 */
+	public boolean hasNext()
+		throws XMPPException
+	{
+		while (true)
+		{
+			PubSub request = null;
+
+			synchronized (this)
+			{
+				long deadline = System.currentTimeMillis() + SmackConfiguration.getPacketReplyTimeout();
+
+				while (request == null)
+				{
+					if (current != null && current.hasNext())
+						return true;
+
+					if (!pages.isEmpty())
+					{
+						current = pages.removeFirst().iterator();
+						request = maybeRequestPage();
+						continue;
+					}
+					current = null;
+
+					if (error != null)
+						throw error;
+
+					if (cancelled || (done && pendingListener == null))
+						return false;
+
+					// We've caught up with the prefetched pages.
+					if (pendingListener == null)
+					{
+						request = requestPage();
+						continue;
+					}
+
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0)
+					{
+						cancel();
+						throw new XMPPException("No response from server.");
+					}
+
+					try
+					{
+						wait(remaining);
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						throw new XMPPException("Interrupted while waiting for items");
+					}
+				}
+			}
+
+			// Send outside the lock, so replies to earlier requests aren't held up.
+			con.sendPacket(request);
+		}
+	}
+
+	/**
+	 * Returns the next item, waiting for the next page to arrive if necessary.
+	 *
+	 * @return the next item.
+	 * @throws XMPPException if a page couldn't be retrieved.
+	 * @throws NoSuchElementException if there are no more items.
+	 */
+	public T next()
+		throws XMPPException
+	{
+		if (!hasNext())
+			throw new NoSuchElementException();
+
+		synchronized (this)
+		{
+			return current.next();
+		}
+	}
+
+	/**
+	 * Returns the number of items in the node, if the service gave it with the first
+	 * page.
+	 *
+	 * @return the number of items, or -1 if it isn't known yet.
+	 */
+	public synchronized int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Stops retrieving pages and discards any that have been retrieved.  After this,
+	 * {@link #hasNext()} returns false.
+	 */
+	public void cancel()
+	{
+		PacketListener listener;
+		synchronized (this)
+		{
+			cancelled = true;
+			pages.clear();
+			current = null;
+			listener = pendingListener;
+			pendingListener = null;
+			notifyAll();
+		}
+
+		if (listener != null)
+			con.removePacketListener(listener);
+	}
+
+	/** Return a request for the next page if fewer than prefetchPages are held, or null. */
+	private PubSub maybeRequestPage()
+	{
+		if (done || cancelled || pendingListener != null || pages.size() >= prefetchPages)
+			return null;
+		return requestPage();
+	}
+
+	/**
+	 * Create the request for the next page and listen for its reply.  The caller must
+	 * send it after releasing the lock.
+	 */
+	private PubSub requestPage()
+	{
+		RSMSet set = new RSMSet();
+		set.setMax(pageSize);
+		set.setAfter(nextAfter);
+
+		PubSub request = node.createPubsubPacket(Type.GET, new GetItemsRequest(node.getId()));
+		request.addExtension(set);
+
+		pendingListener = new PacketListener()
+		{
+			public void processPacket(Packet packet)
+			{
+				con.removePacketListener(this);
+				PubSub next = pageReceived(this, (IQ)packet);
+
+				if (next != null)
+					con.sendPacket(next);
+			}
+		};
+		con.addPacketListener(pendingListener, new PacketIDFilter(request.getPacketID()));
+		return request;
+	}
+
+	/** Queue a received page.  Return the request for the following page, if it should be prefetched. */
+	private synchronized PubSub pageReceived(PacketListener listener, IQ reply)
+	{
+		if (listener != pendingListener)
+			return null;
+
+		pendingListener = null;
+		notifyAll();
+
+		if (reply.getType() == IQ.Type.ERROR)
+		{
+			error = new XMPPException(reply.getError());
+			done = true;
+			return null;
+		}
+
+		if (!(reply instanceof PubSub))
+		{
+			error = new XMPPException("Unexpected reply to items request");
+			done = true;
+			return null;
+		}
+
+		PubSub result = (PubSub)reply;
+		ItemsExtension itemsElem = (ItemsExtension)result.getExtension(PubSubElementType.ITEMS);
+		// The caller chooses T to match the type of the node's items.
+		@SuppressWarnings("unchecked")
+		List<T> items = itemsElem == null ? null : (List<T>)itemsElem.getItems();
+		RSMSet set = (RSMSet)result.getExtension(RSMSet.ELEMENT_NAME, RSMSet.NAMESPACE);
+
+		if (items != null && !items.isEmpty())
+			pages.add(items);
+
+		if (set != null && count == -1)
+			count = set.getCount();
+
+		// Without a result set, the service returned every item at once.
+		if (set == null || set.getLast() == null || items == null || items.isEmpty())
+		{
+			done = true;
+			return null;
+		}
+
+		nextAfter = set.getLast();
+		return maybeRequestPage();
+	}
+}
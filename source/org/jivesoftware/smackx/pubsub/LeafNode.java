@@ -164,6 +164,39 @@ public class LeafNode extends Node
 		return (List<T>)itemsElem.getItems();
 	}
 	
+	/**
+	 * Iterate over the items persisted on the node, retrieving them in pages with
+	 * result set management (XEP-0059) rather than all at once.  The page after the
+	 * current one is requested ahead of time.
+	 * 
+	 * @param pageSize Maximum number of items to request in each page
+	 * 
+	 * @return An {@link ItemIterator} over the node's items
+	 * 
+	 * @see #getItemIterator(int, int)
+	 */
+	public <T extends Item> ItemIterator<T> getItemIterator(int pageSize)
+	{
+		return getItemIterator(pageSize, 1);
+	}
+
+	/**
+	 * Iterate over the items persisted on the node, retrieving them in pages with
+	 * result set management (XEP-0059) rather than all at once.  Only the pages 
+	 * being iterated over and prefetched are held in memory, so this is suitable
+	 * for nodes with too many items to retrieve with {@link #getItems()}.
+	 * 
+	 * @param pageSize Maximum number of items to request in each page
+	 * @param prefetchPages Number of pages to request ahead of the page being
+	 * iterated over, or 0 to request each page only when it's needed
+	 * 
+	 * @return An {@link ItemIterator} over the node's items
+	 */
+	public <T extends Item> ItemIterator<T> getItemIterator(int pageSize, int prefetchPages)
+	{
+		return new ItemIterator<T>(con, this, pageSize, prefetchPages);
+	}
+	
 	/**
 	 * Publishes an event to the node.  This is an empty event
 	 * with no item.
@@ -12,9 +12,6 @@ import java.util.concurrent.ConcurrentHashMap;
 import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.Connection;
 import org.jivesoftware.smack.XMPPException;
-import org.jivesoftware.smack.filter.OrFilter;
-import org.jivesoftware.smack.filter.PacketFilter;
-import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.PacketExtension;
 import org.jivesoftware.smack.packet.IQ.Type;
@@ -250,7 +247,7 @@ abstract public class Node
 	{
 		PacketListener conListener = new ItemEventTranslator(listener); 
 		itemEventToListenerMap.put(listener, conListener);
-		con.addPacketListener(conListener, new EventContentFilter(EventElementType.items.toString(), "item"));
+		NodeEventMultiplexor.getMultiplexor(con).addListener(NodeEventMultiplexor.EventType.ITEM_PUBLISH, getId(), conListener);
 	}
 
 	/**
@@ -263,7 +260,7 @@ abstract public class Node
 		PacketListener conListener = itemEventToListenerMap.remove(listener);
 		
 		if (conListener != null)
-			con.removePacketListener(conListener);
+			NodeEventMultiplexor.getMultiplexor(con).removeListener(NodeEventMultiplexor.EventType.ITEM_PUBLISH, getId(), conListener);
 	}
 
 	/**
@@ -276,7 +273,7 @@ abstract public class Node
 	{
 		PacketListener conListener = new NodeConfigTranslator(listener); 
 		configEventToListenerMap.put(listener, conListener);
-		con.addPacketListener(conListener, new EventContentFilter(EventElementType.configuration.toString()));
+		NodeEventMultiplexor.getMultiplexor(con).addListener(NodeEventMultiplexor.EventType.CONFIGURATION, getId(), conListener);
 	}
 
 	/**
@@ -289,7 +286,7 @@ abstract public class Node
 		PacketListener conListener = configEventToListenerMap .remove(listener);
 		
 		if (conListener != null)
-			con.removePacketListener(conListener);
+			NodeEventMultiplexor.getMultiplexor(con).removeListener(NodeEventMultiplexor.EventType.CONFIGURATION, getId(), conListener);
 	}
 	
 	/**
@@ -302,10 +299,7 @@ abstract public class Node
 	{
 		PacketListener delListener = new ItemDeleteTranslator(listener); 
 		itemDeleteToListenerMap.put(listener, delListener);
-		EventContentFilter deleteItem = new EventContentFilter(EventElementType.items.toString(), "retract");
-		EventContentFilter purge = new EventContentFilter(EventElementType.purge.toString());
-		
-		con.addPacketListener(delListener, new OrFilter(deleteItem, purge));
+		NodeEventMultiplexor.getMultiplexor(con).addListener(NodeEventMultiplexor.EventType.ITEM_DELETE, getId(), delListener);
 	}
 
 	/**
@@ -318,7 +312,7 @@ abstract public class Node
 		PacketListener conListener = itemDeleteToListenerMap .remove(listener);
 		
 		if (conListener != null)
-			con.removePacketListener(conListener);
+			NodeEventMultiplexor.getMultiplexor(con).removeListener(NodeEventMultiplexor.EventType.ITEM_DELETE, getId(), conListener);
 	}
 
 	@Override
@@ -465,61 +459,4 @@ abstract public class Node
 			listener.handleNodeConfiguration(config);
 		}
 	}
-
-	/**
-	 * Filter for {@link PacketListener} to filter out events not specific to the 
-	 * event type expected for this node.
-	 * 
-	 * @author Robin Collier
-	 */
-	class EventContentFilter implements PacketFilter
-	{
-		private String firstElement;
-		private String secondElement;
-		
-		EventContentFilter(String elementName)
-		{
-			firstElement = elementName;
-		}
-
-		EventContentFilter(String firstLevelEelement, String secondLevelElement)
-		{
-			firstElement = firstLevelEelement;
-			secondElement = secondLevelElement;
-		}
-
-		public boolean accept(Packet packet)
-		{
-			if (!(packet instanceof Message))
-				return false;
-
-			EventElement event = (EventElement)packet.getExtension("event", PubSubNamespace.EVENT.getXmlns());
-			
-			if (event == null)
-				return false;
-
-			NodeExtension embedEvent = event.getEvent();
-			
-			if (embedEvent == null)
-				return false;
-			
-			if (embedEvent.getElementName().equals(firstElement))
-			{
-				if (!embedEvent.getNode().equals(getId()))
-					return false;
-				
-				if (secondElement == null)
-					return true;
-				
-				if (embedEvent instanceof EmbeddedPacketExtension)
-				{
-					List<PacketExtension> secondLevelList = ((EmbeddedPacketExtension)embedEvent).getExtensions();
-					
-					if (secondLevelList.size() > 0 && secondLevelList.get(0).getElementName().equals(secondElement))
-						return true;
-				}
-			}
-			return false;
-		}
-	}
 }
@@ -0,0 +1,190 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smackx.pubsub;
+
+import java.lang.ref.WeakReference;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.filter.PacketExtensionFilter;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smackx.pubsub.packet.PubSubNamespace;
+
+/**
+ * Routes incoming pubsub event messages on a <code>Connection</code> to the listeners
+ * registered by {@link Node}s, using a single listener on the connection.  Listeners are
+ * looked up by the type of event and the node ID, so the cost of an event doesn't depend
+ * on how many nodes have listeners.
+ * <p>
+ * A single <code>NodeEventMultiplexor</code> is created for each connection that has
+ * node listeners.
+ */
+class NodeEventMultiplexor implements PacketListener
+{
+	/** The kinds of event a {@link Node} listener can be registered for. */
+	enum EventType
+	{
+		/** Items published to the node. */
+		ITEM_PUBLISH,
+
+		/** Items retracted from the node, or the node purged. */
+		ITEM_DELETE,
+
+		/** The node's configuration changed. */
+		CONFIGURATION
+	}
+
+	// The connection holds the multiplexor as a packet listener, so only the
+	// connection needs to be weakly referenced.
+	private static final Map<Connection, WeakReference<NodeEventMultiplexor>> multiplexors =
+		new WeakHashMap<Connection, WeakReference<NodeEventMultiplexor>>();
+
+	private final Map<EventType, Map<String, List<PacketListener>>> listeners =
+		new EnumMap<EventType, Map<String, List<PacketListener>>>(EventType.class);
+
+	/**
+	 * Returns the multiplexor for a connection, creating it and registering it with the
+	 * connection if needed.
+	 *
+	 * @param con the connection receiving events.
+	 * @return the connection's multiplexor.
+	 */
+	static NodeEventMultiplexor getMultiplexor(Connection con)
+	{
+		synchronized (multiplexors)
+		{
+			WeakReference<NodeEventMultiplexor> ref = multiplexors.get(con);
+			NodeEventMultiplexor multiplexor = ref == null ? null : ref.get();
+
+			if (multiplexor == null)
+			{
+				multiplexor = new NodeEventMultiplexor();
+				con.addPacketListener(multiplexor, new PacketExtensionFilter("event", PubSubNamespace.EVENT.getXmlns()));
+				multiplexors.put(con, new WeakReference<NodeEventMultiplexor>(multiplexor));
+			}
+			return multiplexor;
+		}
+	}
+
+	private NodeEventMultiplexor()
+	{
+		for (EventType type : EventType.values())
+			listeners.put(type, new ConcurrentHashMap<String, List<PacketListener>>());
+	}
+
+	/**
+	 * Register a listener for one type of event on a node.
+	 *
+	 * @param type the type of event.
+	 * @param nodeId the ID of the node.
+	 * @param listener the listener, which receives the event message.
+	 */
+	synchronized void addListener(EventType type, String nodeId, PacketListener listener)
+	{
+		Map<String, List<PacketListener>> byNode = listeners.get(type);
+		List<PacketListener> nodeListeners = byNode.get(nodeId);
+
+		if (nodeListeners == null)
+		{
+			nodeListeners = new CopyOnWriteArrayList<PacketListener>();
+			byNode.put(nodeId, nodeListeners);
+		}
+		nodeListeners.add(listener);
+	}
+
+	/**
+	 * Unregister a listener added with {@link #addListener(EventType, String, PacketListener)}.
+	 *
+	 * @param type the type of event.
+	 * @param nodeId the ID of the node.
+	 * @param listener the listener to remove.
+	 */
+	synchronized void removeListener(EventType type, String nodeId, PacketListener listener)
+	{
+		Map<String, List<PacketListener>> byNode = listeners.get(type);
+		List<PacketListener> nodeListeners = byNode.get(nodeId);
+
+		if (nodeListeners != null && nodeListeners.remove(listener) && nodeListeners.isEmpty())
+			byNode.remove(nodeId);
+	}
+
+	public void processPacket(Packet packet)
+	{
+		if (!(packet instanceof Message))
+			return;
+
+		PacketExtension ext = packet.getExtension("event", PubSubNamespace.EVENT.getXmlns());
+
+		if (!(ext instanceof EventElement))
+			return;
+
+		NodeExtension embedEvent = ((EventElement)ext).getEvent();
+
+		if (embedEvent == null || embedEvent.getNode() == null)
+			return;
+
+		EventType type = getEventType(embedEvent);
+
+		if (type == null)
+			return;
+
+		List<PacketListener> nodeListeners = listeners.get(type).get(embedEvent.getNode());
+
+		if (nodeListeners == null)
+			return;
+
+		for (PacketListener listener : nodeListeners)
+			listener.processPacket(packet);
+	}
+
+	/**
+	 * Return the type of listener an event is for, or null if there's no listener for
+	 * events of its kind.
+	 */
+	private static EventType getEventType(NodeExtension embedEvent)
+	{
+		String elementName = embedEvent.getElementName();
+
+		if (elementName.equals(EventElementType.configuration.toString()))
+			return EventType.CONFIGURATION;
+
+		if (elementName.equals(EventElementType.purge.toString()))
+			return EventType.ITEM_DELETE;
+
+		if (elementName.equals(EventElementType.items.toString()) && embedEvent instanceof EmbeddedPacketExtension)
+		{
+			List<PacketExtension> items = ((EmbeddedPacketExtension)embedEvent).getExtensions();
+
+			if (items.size() > 0)
+			{
+				String itemElement = items.get(0).getElementName();
+
+				if (itemElement.equals("item"))
+					return EventType.ITEM_PUBLISH;
+
+				if (itemElement.equals("retract"))
+					return EventType.ITEM_DELETE;
+			}
+		}
+		return null;
+	}
+}
@@ -223,7 +223,7 @@ public class DummyConnection extends Connection {
         }
 
         // Loop through all collectors and notify the appropriate ones.
-        for (PacketCollector collector: getPacketCollectors()) {
+        for (PacketCollector<?> collector: getPacketCollectors()) {
             collector.processPacket(packet);
         }
 
@@ -0,0 +1,120 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.jivesoftware.smack.packet.RosterPacket;
+import org.jivesoftware.smack.packet.RosterPacket.Item;
+import org.jivesoftware.smack.packet.RosterPacket.ItemType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileRosterStoreTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("roster", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file: files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    private static Item item(String user, String name, String group) {
+        Item item = new Item(user, name);
+        item.setItemType(ItemType.both);
+        if (group != null)
+            item.addGroupName(group);
+        return item;
+    }
+
+    private static Item find(Collection<Item> items, String user) {
+        for (Item item: items) {
+            if (item.getUser().equals(user))
+                return item;
+        }
+        return null;
+    }
+
+    @Test
+    public void emptyStoreHasNoVersion() {
+        FileRosterStore store = new FileRosterStore(directory);
+        assertNull(store.getRosterVersion());
+        assertTrue(store.getEntries().isEmpty());
+    }
+
+    @Test
+    public void entriesPersistAcrossInstances() {
+        List<Item> items = new ArrayList<Item>();
+        items.add(item("romeo@example.net", "Romeo", "Friends"));
+        items.add(item("juliet@example.net", "J & \u00E9", null));
+        assertTrue(new FileRosterStore(directory).resetEntries(items, "ver1"));
+
+        FileRosterStore store = new FileRosterStore(directory);
+        assertEquals("ver1", store.getRosterVersion());
+        assertEquals(2, store.getEntries().size());
+
+        Item romeo = find(store.getEntries(), "romeo@example.net");
+        assertEquals("Romeo", romeo.getName());
+        assertEquals(ItemType.both, romeo.getItemType());
+        assertTrue(romeo.getGroupNames().contains("Friends"));
+        assertEquals("J & \u00E9", find(store.getEntries(), "juliet@example.net").getName());
+    }
+
+    @Test
+    public void pushesUpdateEntriesAndVersion() {
+        FileRosterStore store = new FileRosterStore(directory);
+        store.resetEntries(new ArrayList<Item>(), "ver1");
+
+        assertTrue(store.addEntry(item("romeo@example.net", "Romeo", null), "ver2"));
+        assertTrue(store.addEntry(item("romeo@example.net", "Romeo M.", null), "ver3"));
+        assertEquals("ver3", store.getRosterVersion());
+        assertEquals("Romeo M.", find(store.getEntries(), "romeo@example.net").getName());
+
+        assertTrue(store.removeEntry("romeo@example.net", "ver4"));
+        assertEquals("ver4", store.getRosterVersion());
+        assertTrue(store.getEntries().isEmpty());
+    }
+
+    @Test
+    public void resetReplacesAllEntries() {
+        FileRosterStore store = new FileRosterStore(directory);
+        store.addEntry(item("romeo@example.net", "Romeo", null), "ver1");
+
+        List<Item> items = new ArrayList<Item>();
+        items.add(item("benvolio@example.net", "Benvolio", null));
+        store.resetEntries(items, null);
+
+        assertNull(store.getRosterVersion());
+        Collection<RosterPacket.Item> entries = store.getEntries();
+        assertEquals(1, entries.size());
+        assertNotNull(find(entries, "benvolio@example.net"));
+    }
+}
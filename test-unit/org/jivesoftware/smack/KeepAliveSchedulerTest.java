@@ -0,0 +1,81 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class KeepAliveSchedulerTest {
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable command) { command.run(); }
+    };
+
+    private static class CountingTarget implements KeepAliveScheduler.Target {
+        volatile long lastActivity = System.currentTimeMillis();
+        final AtomicInteger sent = new AtomicInteger();
+
+        public long getLastActivity() { return lastActivity; }
+        public void sendKeepAlive() {
+            sent.incrementAndGet();
+            lastActivity = System.currentTimeMillis();
+        }
+    }
+
+    /** An idle connection is sent a keepalive about once per interval. */
+    @Test(timeout=5000)
+    public void sendsKeepAlivesWhenIdle() throws Exception {
+        // Use a small wheel, so intervals span several turns.
+        KeepAliveScheduler scheduler = new KeepAliveScheduler(10, 4, DIRECT);
+        CountingTarget target = new CountingTarget();
+        scheduler.register(target, 100);
+
+        Thread.sleep(550);
+        int sent = target.sent.get();
+        assertTrue("sent " + sent, sent >= 3 && sent <= 5);
+    }
+
+    /** A connection with recent activity isn't sent keepalives. */
+    @Test(timeout=5000)
+    public void skipsActiveConnections() throws Exception {
+        KeepAliveScheduler scheduler = new KeepAliveScheduler(10, 8, DIRECT);
+        CountingTarget target = new CountingTarget();
+        scheduler.register(target, 100);
+
+        for(int i = 0; i < 30; ++i) {
+            target.lastActivity = System.currentTimeMillis();
+            Thread.sleep(20);
+        }
+        assertEquals(0, target.sent.get());
+    }
+
+    @Test(timeout=5000)
+    public void cancelStopsKeepAlives() throws Exception {
+        KeepAliveScheduler scheduler = new KeepAliveScheduler(10, 8, DIRECT);
+        CountingTarget target = new CountingTarget();
+        KeepAliveScheduler.Entry entry = scheduler.register(target, 50);
+
+        Thread.sleep(130);
+        entry.cancel();
+        int sent = target.sent.get();
+        assertTrue(sent > 0);
+
+        Thread.sleep(200);
+        assertEquals(sent, target.sent.get());
+    }
+}
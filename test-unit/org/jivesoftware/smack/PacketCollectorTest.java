@@ -0,0 +1,161 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.junit.Test;
+
+/**
+ * Tests the queueing and overflow behavior of {@link PacketCollector}.
+ */
+public class PacketCollectorTest {
+
+    private static Message createMessage(String id) {
+        Message message = new Message();
+        message.setPacketID(id);
+        return message;
+    }
+
+    @Test
+    public void returnsPacketsInOrder() {
+        DummyConnection connection = new DummyConnection();
+        PacketCollector<Packet> collector = connection.createPacketCollector(null);
+        for(int i = 0; i < 10; ++i)
+            collector.processPacket(createMessage("id" + i));
+
+        for(int i = 0; i < 10; ++i)
+            assertEquals("id" + i, collector.pollResult().getPacketID());
+        assertNull(collector.pollResult());
+        assertEquals(0, collector.getDroppedCount());
+    }
+
+    @Test
+    public void dropOldestKeepsNewestPackets() {
+        DummyConnection connection = new DummyConnection();
+        PacketCollector<Packet> collector = connection.createPacketCollector(null, Packet.class,
+                3, PacketCollector.OverflowPolicy.dropOldest);
+        for(int i = 0; i < 5; ++i)
+            collector.processPacket(createMessage("id" + i));
+
+        assertEquals(2, collector.getDroppedCount());
+        assertEquals("id2", collector.pollResult().getPacketID());
+        assertEquals("id3", collector.pollResult().getPacketID());
+        assertEquals("id4", collector.pollResult().getPacketID());
+        assertNull(collector.pollResult());
+    }
+
+    @Test
+    public void dropNewestKeepsOldestPackets() {
+        DummyConnection connection = new DummyConnection();
+        PacketCollector<Packet> collector = connection.createPacketCollector(null, Packet.class,
+                2, PacketCollector.OverflowPolicy.dropNewest);
+        for(int i = 0; i < 5; ++i)
+            collector.processPacket(createMessage("id" + i));
+
+        assertEquals(3, collector.getDroppedCount());
+        assertEquals("id0", collector.pollResult().getPacketID());
+        assertEquals("id1", collector.pollResult().getPacketID());
+        assertNull(collector.pollResult());
+    }
+
+    @Test(timeout=5000)
+    public void getResultWakesOnPacket() throws Exception {
+        DummyConnection connection = new DummyConnection();
+        final PacketCollector<Packet> collector = connection.createPacketCollector(null);
+
+        Thread producer = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch(InterruptedException e) {
+                    return;
+                }
+                collector.processPacket(createMessage("late"));
+            }
+        };
+        producer.start();
+
+        assertEquals("late", collector.getResult(2000).getPacketID());
+        producer.join();
+    }
+
+    /** The ring grows as packets queue up, keeping their order, until it reaches the capacity. */
+    @Test
+    public void growsUpToCapacity() {
+        DummyConnection connection = new DummyConnection();
+        PacketCollector<Packet> collector = connection.createPacketCollector(null, Packet.class,
+                10, PacketCollector.OverflowPolicy.dropNewest);
+        collector.processPacket(createMessage("id0"));
+        collector.processPacket(createMessage("id1"));
+        assertEquals("id0", collector.pollResult().getPacketID());
+        for(int i = 2; i < 14; ++i)
+            collector.processPacket(createMessage("id" + i));
+
+        assertEquals(10, collector.getCapacity());
+        assertEquals(3, collector.getDroppedCount());
+        for(int i = 1; i < 11; ++i)
+            assertEquals("id" + i, collector.pollResult().getPacketID());
+        assertNull(collector.pollResult());
+    }
+
+    /** Consumers polling while the ring grows receive every packet exactly once. */
+    @Test(timeout=10000)
+    public void concurrentConsumersWhileGrowing() throws Exception {
+        final int count = 20000;
+        DummyConnection connection = new DummyConnection();
+        final PacketCollector<Packet> collector = connection.createPacketCollector(null,
+                Packet.class, count, PacketCollector.OverflowPolicy.dropNewest);
+        final AtomicIntegerArray received = new AtomicIntegerArray(count);
+
+        Thread[] consumers = new Thread[3];
+        for(int i = 0; i < consumers.length; ++i) {
+            consumers[i] = new Thread() {
+                public void run() {
+                    while(!isInterrupted()) {
+                        Packet packet = collector.pollResult();
+                        if(packet != null)
+                            received.incrementAndGet(Integer.parseInt(packet.getPacketID()));
+                    }
+                }
+            };
+            consumers[i].start();
+        }
+
+        for(int i = 0; i < count; ++i)
+            collector.processPacket(createMessage(String.valueOf(i)));
+
+        // Let the consumers drain the collector, then stop them.
+        long deadline = System.currentTimeMillis() + 5000;
+        int total;
+        do {
+            total = 0;
+            for(int i = 0; i < count; ++i)
+                total += received.get(i);
+        } while(total < count && System.currentTimeMillis() < deadline);
+        for(Thread consumer : consumers) {
+            consumer.interrupt();
+            consumer.join();
+        }
+
+        assertEquals(0, collector.getDroppedCount());
+        for(int i = 0; i < count; ++i)
+            assertEquals("packet " + i, 1, received.get(i));
+    }
+}
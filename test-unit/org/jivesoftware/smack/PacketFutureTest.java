@@ -0,0 +1,163 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smackx.packet.DiscoverInfo;
+import org.junit.Test;
+
+/**
+ * Tests for {@link Connection#sendIqAsync} and {@link PacketFuture}.
+ */
+public class PacketFutureTest {
+
+    private static DiscoverInfo createReply(IQ request, IQ.Type type) {
+        DiscoverInfo reply = new DiscoverInfo();
+        reply.setPacketID(request.getPacketID());
+        reply.setType(type);
+        return reply;
+    }
+
+    /** Create a reply without a payload, as replies the parser doesn't recognise are parsed. */
+    private static IQ createBareReply(IQ request, IQ.Type type) {
+        IQ reply = new IQ() {
+            public String getChildElementXML() { return null; }
+        };
+        reply.setPacketID(request.getPacketID());
+        reply.setType(type);
+        return reply;
+    }
+
+    @Test(timeout=5000)
+    public void completesWithReply() throws Exception {
+        DummyConnection connection = new DummyConnection();
+        DiscoverInfo request = new DiscoverInfo();
+        PacketFuture<DiscoverInfo> future = connection.sendIqAsync(request, DiscoverInfo.class);
+        assertSame(request, connection.getSentPacket());
+        assertFalse(future.isDone());
+
+        DiscoverInfo reply = createReply(request, IQ.Type.RESULT);
+        connection.processPacket(reply);
+        assertTrue(future.isDone());
+        assertSame(reply, future.get());
+
+        // The collector is released once the reply arrives.
+        assertTrue(connection.getPacketCollectors().isEmpty());
+    }
+
+    @Test(timeout=5000)
+    public void failsOnErrorReply() throws Exception {
+        DummyConnection connection = new DummyConnection();
+        DiscoverInfo request = new DiscoverInfo();
+        PacketFuture<DiscoverInfo> future = connection.sendIqAsync(request, DiscoverInfo.class);
+
+        DiscoverInfo reply = createReply(request, IQ.Type.ERROR);
+        reply.setError(new XMPPError(XMPPError.Condition.item_not_found));
+        connection.processPacket(reply);
+
+        try {
+            future.getResult();
+            fail("Expected XMPPException");
+        } catch(XMPPException e) {
+            assertEquals("item-not-found", e.getXMPPError().getCondition());
+        }
+    }
+
+    /** The empty result to a set request completes the future. */
+    @Test(timeout=5000)
+    public void completesWithEmptyResult() throws Exception {
+        DummyConnection connection = new DummyConnection();
+        DiscoverInfo request = new DiscoverInfo();
+        request.setType(IQ.Type.SET);
+        PacketFuture<IQ> future = connection.sendIqAsync(request);
+
+        IQ reply = createBareReply(request, IQ.Type.RESULT);
+        connection.processPacket(reply);
+        assertSame(reply, future.getResult());
+    }
+
+    /** An error reply fails with its error, even if it isn't of the expected type. */
+    @Test(timeout=5000)
+    public void failsOnBareErrorReply() throws Exception {
+        DummyConnection connection = new DummyConnection();
+        DiscoverInfo request = new DiscoverInfo();
+        PacketFuture<DiscoverInfo> future = connection.sendIqAsync(request, DiscoverInfo.class);
+
+        IQ reply = createBareReply(request, IQ.Type.ERROR);
+        reply.setError(new XMPPError(XMPPError.Condition.forbidden));
+        connection.processPacket(reply);
+
+        try {
+            future.getResult();
+            fail("Expected XMPPException");
+        } catch(XMPPException e) {
+            assertEquals("forbidden", e.getXMPPError().getCondition());
+        }
+    }
+
+    /** A result of another type than the one expected fails. */
+    @Test(timeout=5000)
+    public void failsOnUnexpectedResultType() throws Exception {
+        DummyConnection connection = new DummyConnection();
+        DiscoverInfo request = new DiscoverInfo();
+        PacketFuture<DiscoverInfo> future = connection.sendIqAsync(request, DiscoverInfo.class);
+
+        connection.processPacket(createBareReply(request, IQ.Type.RESULT));
+        try {
+            future.getResult();
+            fail("Expected XMPPException");
+        } catch(XMPPException e) {
+            assertNull(e.getXMPPError());
+        }
+    }
+
+    @Test(timeout=5000)
+    public void failsOnTimeout() throws Exception {
+        DummyConnection connection = new DummyConnection();
+        PacketFuture<DiscoverInfo> future = connection.sendIqAsync(new DiscoverInfo(), DiscoverInfo.class, 50);
+
+        try {
+            future.get(2, TimeUnit.SECONDS);
+            fail("Expected ExecutionException");
+        } catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof XMPPException);
+        }
+        assertTrue(connection.getPacketCollectors().isEmpty());
+    }
+
+    @Test(timeout=5000)
+    public void failsOnConnectionLost() throws Exception {
+        DummyConnection connection = new DummyConnection();
+        PacketFuture<DiscoverInfo> future = connection.sendIqAsync(new DiscoverInfo(), DiscoverInfo.class);
+
+        final XMPPException[] received = new XMPPException[1];
+        future.addCallback(new PacketFuture.Callback<DiscoverInfo>() {
+            public void onResult(DiscoverInfo result) { }
+            public void onError(XMPPException error) { received[0] = error; }
+        });
+
+        for(PacketCollector<?> collector: connection.getPacketCollectors())
+            collector.connectionLost();
+
+        assertTrue(future.isDone());
+        assertNotNull(received[0]);
+    }
+}
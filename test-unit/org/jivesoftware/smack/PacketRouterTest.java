@@ -0,0 +1,113 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.jivesoftware.smack.filter.AndFilter;
+import org.jivesoftware.smack.filter.FromContainsFilter;
+import org.jivesoftware.smack.filter.PacketExtensionFilter;
+import org.jivesoftware.smack.filter.PacketIDFilter;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.DefaultPacketExtension;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.packet.RosterPacket;
+import org.junit.Test;
+
+/**
+ * Tests that {@link PacketRouter} returns the entries whose filters may accept a packet.
+ */
+public class PacketRouterTest {
+
+    @Test
+    public void routesByPacketID() {
+        PacketRouter<String> router = new PacketRouter<String>();
+        router.add("a", new PacketIDFilter("id1"));
+        router.add("b", new PacketIDFilter("id2"));
+
+        Message message = new Message();
+        message.setPacketID("id1");
+        List<String> candidates = router.getCandidates(message);
+        assertEquals(1, candidates.size());
+        assertTrue(candidates.contains("a"));
+    }
+
+    @Test
+    public void routesByTypeIncludingSubclasses() {
+        PacketRouter<String> router = new PacketRouter<String>();
+        router.add("iq", new PacketTypeFilter(IQ.class));
+        router.add("message", new PacketTypeFilter(Message.class));
+
+        List<String> candidates = router.getCandidates(new RosterPacket());
+        assertEquals(1, candidates.size());
+        assertTrue(candidates.contains("iq"));
+
+        assertTrue(router.getCandidates(new Presence(Presence.Type.available)).isEmpty());
+    }
+
+    @Test
+    public void routesByExtensionNamespace() {
+        PacketRouter<String> router = new PacketRouter<String>();
+        router.add("muc", new PacketExtensionFilter("x", "http://jabber.org/protocol/muc#user"));
+
+        Message message = new Message();
+        assertTrue(router.getCandidates(message).isEmpty());
+
+        message.addExtension(new DefaultPacketExtension("x", "http://jabber.org/protocol/muc#user"));
+        message.addExtension(new DefaultPacketExtension("y", "http://jabber.org/protocol/muc#user"));
+        assertEquals(1, router.getCandidates(message).size());
+    }
+
+    @Test
+    public void andFilterUsesMostSelectiveKey() {
+        PacketRouter<String> router = new PacketRouter<String>();
+        router.add("reply", new AndFilter(new PacketTypeFilter(IQ.class), new PacketIDFilter("id1")));
+
+        RosterPacket other = new RosterPacket();
+        other.setPacketID("id2");
+        assertTrue(router.getCandidates(other).isEmpty());
+
+        RosterPacket reply = new RosterPacket();
+        reply.setPacketID("id1");
+        assertEquals(1, router.getCandidates(reply).size());
+    }
+
+    @Test
+    public void unknownFiltersAreAlwaysCandidates() {
+        PacketRouter<String> router = new PacketRouter<String>();
+        router.add("from", new FromContainsFilter("romeo"));
+        router.add("all", null);
+        assertEquals(2, router.getCandidates(new Message()).size());
+    }
+
+    @Test
+    public void reAddingReplacesFilter() {
+        PacketRouter<String> router = new PacketRouter<String>();
+        router.add("a", new PacketIDFilter("id1"));
+        router.add("a", new PacketIDFilter("id2"));
+
+        Message message = new Message();
+        message.setPacketID("id1");
+        assertTrue(router.getCandidates(message).isEmpty());
+
+        assertTrue(router.remove("a"));
+        assertFalse(router.remove("a"));
+        assertTrue(router.isEmpty());
+    }
+}
@@ -0,0 +1,233 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jivesoftware.smack.ConnectionConfiguration.BackpressurePolicy;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smackx.ChatState;
+import org.jivesoftware.smackx.packet.ChatStateExtension;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests how {@link PacketWriter} applies its backpressure policy when the outgoing
+ * packet queue is full, and which packets it may drop.
+ */
+public class PacketWriterTest {
+    private static final int QUEUE_CAPACITY = 2;
+
+    private StalledConnection connection;
+
+    @After
+    public void tearDown() {
+        if(connection != null)
+            connection.resume();
+    }
+
+    @Test
+    public void presenceUpdatesAreLowPriority() {
+        assertTrue(PacketWriter.isLowPriority(new Presence(Presence.Type.available)));
+        assertTrue(PacketWriter.isLowPriority(new Presence(Presence.Type.unavailable)));
+        assertFalse(PacketWriter.isLowPriority(new Presence(Presence.Type.subscribe)));
+        assertFalse(PacketWriter.isLowPriority(new Presence(Presence.Type.unsubscribed)));
+    }
+
+    @Test
+    public void chatStatesAreLowPriority() {
+        Message chatState = new Message("juliet@capulet.lit", Message.Type.chat);
+        chatState.addExtension(new ChatStateExtension(ChatState.composing));
+        assertTrue(PacketWriter.isLowPriority(chatState));
+
+        Message chat = new Message("juliet@capulet.lit", Message.Type.chat);
+        chat.setBody("Wherefore art thou, Romeo?");
+        chat.addExtension(new ChatStateExtension(ChatState.active));
+        assertFalse(PacketWriter.isLowPriority(chat));
+
+        assertFalse(PacketWriter.isLowPriority(new Message("juliet@capulet.lit")));
+    }
+
+    @Test
+    public void iqIsNotLowPriority() {
+        IQ iq = new IQ() {
+            public String getChildElementXML() {
+                return null;
+            }
+        };
+        assertFalse(PacketWriter.isLowPriority(iq));
+    }
+
+    @Test(timeout=5000)
+    public void blockWaitsForSpace() throws Exception {
+        connection = new StalledConnection(BackpressurePolicy.block, 10000);
+        fillQueue(connection);
+
+        final CountDownLatch sent = new CountDownLatch(1);
+        final AtomicReference<XMPPException> error = new AtomicReference<XMPPException>();
+        Thread sender = new Thread() {
+            public void run() {
+                try {
+                    connection.trySendPacket(new Message("juliet@capulet.lit"));
+                } catch(XMPPException e) {
+                    error.set(e);
+                }
+                sent.countDown();
+            }
+        };
+        sender.start();
+
+        // The sender waits while the queue is full...
+        assertFalse(sent.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(QUEUE_CAPACITY, connection.getPacketQueueSize());
+
+        // ... and its packet is queued once the writer makes space.
+        connection.resume();
+        assertTrue(sent.await(4, TimeUnit.SECONDS));
+        assertEquals(null, error.get());
+        connection.awaitWritten(QUEUE_CAPACITY + 2);
+        assertEquals(0, connection.getDroppedPacketCount());
+    }
+
+    @Test(timeout=5000)
+    public void blockTimesOut() throws Exception {
+        connection = new StalledConnection(BackpressurePolicy.block, 100);
+        fillQueue(connection);
+
+        long start = System.currentTimeMillis();
+        try {
+            connection.trySendPacket(new Message("juliet@capulet.lit"));
+            fail("expected XMPPException");
+        } catch(XMPPException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start >= 90);
+        assertEquals(QUEUE_CAPACITY, connection.getPacketQueueSize());
+    }
+
+    @Test(timeout=5000)
+    public void rejectThrowsWhenFull() throws Exception {
+        connection = new StalledConnection(BackpressurePolicy.reject, 10000);
+        fillQueue(connection);
+
+        long start = System.currentTimeMillis();
+        try {
+            connection.trySendPacket(new Message("juliet@capulet.lit"));
+            fail("expected XMPPException");
+        } catch(XMPPException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(QUEUE_CAPACITY, connection.getPacketQueueSize());
+
+        // Once there's space again, packets are accepted.
+        connection.resume();
+        connection.awaitWritten(QUEUE_CAPACITY + 1);
+        connection.trySendPacket(new Message("juliet@capulet.lit"));
+        connection.awaitWritten(QUEUE_CAPACITY + 2);
+    }
+
+    @Test(timeout=5000)
+    public void dropLowPriorityMakesRoom() throws Exception {
+        connection = new StalledConnection(BackpressurePolicy.dropLowPriority, 10000);
+        connection.trySendPacket(new Message("juliet@capulet.lit"));
+        connection.awaitWriting();
+        connection.trySendPacket(new Presence(Presence.Type.available));
+        connection.trySendPacket(new Message("juliet@capulet.lit"));
+
+        // A low-priority packet is dropped when the queue is full.
+        connection.trySendPacket(new Presence(Presence.Type.available));
+        assertEquals(1, connection.getDroppedPacketCount());
+
+        // Other packets replace a queued low-priority packet.
+        connection.trySendPacket(new Message("juliet@capulet.lit"));
+        assertEquals(2, connection.getDroppedPacketCount());
+        assertEquals(QUEUE_CAPACITY, connection.getPacketQueueSize());
+
+        connection.resume();
+        connection.awaitWritten(3);
+    }
+
+    /**
+     * Send a packet which the writer blocks on, and then fill the queue behind it.
+     */
+    private static void fillQueue(StalledConnection connection) throws Exception {
+        connection.trySendPacket(new Message("juliet@capulet.lit"));
+        connection.awaitWriting();
+        for(int i = 0; i < QUEUE_CAPACITY; ++i)
+            connection.trySendPacket(new Message("juliet@capulet.lit"));
+        assertEquals(QUEUE_CAPACITY, connection.getPacketQueueSize());
+    }
+
+    /**
+     * A connection whose writes block until {@link #resume} is called, so packets
+     * back up in the queue.
+     */
+    private static class StalledConnection extends XMPPConnection {
+        private final CountDownLatch writing = new CountDownLatch(1);
+        private final CountDownLatch resumed = new CountDownLatch(1);
+
+        /** The number of packets written.  Guarded by this. */
+        private int written = 0;
+
+        StalledConnection(BackpressurePolicy policy, long timeout) {
+            super(createConfiguration(policy, timeout));
+        }
+
+        private static ConnectionConfiguration createConfiguration(BackpressurePolicy policy, long timeout) {
+            ConnectionConfiguration config = new ConnectionConfiguration("example.com");
+            config.setPacketQueueCapacity(QUEUE_CAPACITY);
+            config.setBackpressurePolicy(policy);
+            config.setBackpressureTimeout(timeout);
+            config.setWriteLingerTime(0);
+            return config;
+        }
+
+        protected void writeStanzas(String batch, int[] ends, int count) throws XMPPException {
+            writing.countDown();
+            try {
+                resumed.await();
+            } catch(InterruptedException e) {
+                throw new XMPPException(e);
+            }
+            synchronized(this) {
+                written += count;
+                notifyAll();
+            }
+        }
+
+        void awaitWriting() throws InterruptedException {
+            assertTrue(writing.await(4, TimeUnit.SECONDS));
+        }
+
+        void resume() {
+            resumed.countDown();
+        }
+
+        synchronized void awaitWritten(int count) throws InterruptedException {
+            while(written < count)
+                wait();
+        }
+    }
+}
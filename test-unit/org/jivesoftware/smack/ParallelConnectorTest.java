@@ -0,0 +1,80 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.*;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+import org.jivesoftware.smack.util.DNSUtil.HostAddress;
+import org.junit.Test;
+
+public class ParallelConnectorTest {
+    private static final ThreadFactory THREADS = new ThreadFactory() {
+        public Thread newThread(Runnable runnable) { return new Thread(runnable); }
+    };
+
+    /** Return a local port with nothing listening on it. */
+    private static int closedPort() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        int port = server.getLocalPort();
+        server.close();
+        return port;
+    }
+
+    /** A refused server is skipped without waiting for the stagger delay. */
+    @Test(timeout=5000)
+    public void connectsToReachableServer() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        try {
+            List<HostAddress> hosts = new ArrayList<HostAddress>();
+            hosts.add(new HostAddress("127.0.0.1", closedPort()));
+            hosts.add(new HostAddress("127.0.0.1", server.getLocalPort()));
+
+            ParallelConnector.Result result = new ParallelConnector(hosts, THREADS).connect();
+            assertTrue(result.socket.isConnected());
+            assertSame(hosts.get(1), result.address);
+            result.socket.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test(timeout=5000, expected=XMPPException.class)
+    public void failsWhenNoServerIsReachable() throws Exception {
+        List<HostAddress> hosts = new ArrayList<HostAddress>();
+        hosts.add(new HostAddress("127.0.0.1", closedPort()));
+        hosts.add(new HostAddress("127.0.0.1", closedPort()));
+        new ParallelConnector(hosts, THREADS).connect();
+    }
+
+    @Test(timeout=5000, expected=XMPPException.class)
+    public void cancelledConnectorThrows() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        try {
+            List<HostAddress> hosts = new ArrayList<HostAddress>();
+            hosts.add(new HostAddress("127.0.0.1", server.getLocalPort()));
+
+            ParallelConnector connector = new ParallelConnector(hosts, THREADS);
+            connector.cancel();
+            connector.connect();
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -22,6 +22,7 @@ package org.jivesoftware.smack;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
 import java.io.StringReader;
 import java.util.Collection;
 import java.util.Collections;
@@ -489,6 +490,107 @@ public class RosterTest {
         }
     }
 
+    /**
+     * Test reloading a stored roster with roster versioning, where the server first
+     * answers with an empty result and sends the changes as pushes, and later answers
+     * with the full roster.
+     */
+    @Test(timeout=5000)
+    public void testVersionedRosterReload() throws Throwable {
+        final File directory = File.createTempFile("rostertest", "");
+        directory.delete();
+        final DummyConnection versionedConnection = createVersionedConnection(directory);
+        try {
+            // The roster stored by an earlier session is loaded on login
+            final Roster roster = versionedConnection.getRoster();
+            final RosterEntry romeo = roster.getEntry("romeo@example.net");
+            assertNotNull("The stored roster wasn't loaded!", romeo);
+            assertEquals("Romeo", romeo.getName());
+            assertSame(ItemType.both, romeo.getType());
+            assertEquals("Friends", romeo.getGroups().iterator().next().getName());
+            assertSame("Wrong number of roster entries.", 1, roster.getEntries().size());
+
+            // The stored roster is current, so the server answers with an empty result
+            roster.reload();
+            RosterPacket rosterRequest = (RosterPacket) versionedConnection.getSentPacket();
+            assertEquals("ver1", rosterRequest.getVersion());
+            final IQ emptyResult = new IQ() {
+                public String getChildElementXML() {
+                    return null;
+                }
+            };
+            emptyResult.setType(Type.RESULT);
+            emptyResult.setPacketID(rosterRequest.getPacketID());
+            versionedConnection.processPacket(emptyResult);
+            assertSame("The empty result didn't answer the reload!", 0, roster.getPendingReloadCount());
+            assertSame("The empty result changed the roster!", romeo, roster.getEntry("romeo@example.net"));
+
+            // A push is applied and persisted along with its version
+            final RosterPacket rosterPush = new RosterPacket();
+            rosterPush.setType(Type.SET);
+            rosterPush.setTo(versionedConnection.getUser());
+            rosterPush.setVersion("ver2");
+            final Item nurse = new Item("nurse@example.com", "Nurse");
+            nurse.setItemType(ItemType.both);
+            rosterPush.addRosterItem(nurse);
+            versionedConnection.processPacket(rosterPush);
+            assertNotNull("The push wasn't applied!", roster.getEntry("nurse@example.com"));
+            final FileRosterStore store = new FileRosterStore(directory);
+            assertEquals("ver2", store.getRosterVersion());
+            assertSame("The push wasn't stored!", 2, store.getEntries().size());
+
+            // A full result replaces both the roster and the stored roster
+            roster.reload();
+            rosterRequest = (RosterPacket) versionedConnection.getSentPacket();
+            assertEquals("ver2", rosterRequest.getVersion());
+            final RosterPacket rosterResult = new RosterPacket();
+            rosterResult.setType(Type.RESULT);
+            rosterResult.setTo(versionedConnection.getUser());
+            rosterResult.setPacketID(rosterRequest.getPacketID());
+            rosterResult.setVersion("ver3");
+            final Item benvolio = new Item("benvolio@example.net", "Benvolio");
+            benvolio.setItemType(ItemType.both);
+            rosterResult.addRosterItem(benvolio);
+            versionedConnection.processPacket(rosterResult);
+            assertSame(0, roster.getPendingReloadCount());
+            verifyBenvoliosEntry(roster.getEntry("benvolio@example.net"));
+            assertSame("Wrong number of roster entries.", 1, roster.getEntries().size());
+            assertEquals("ver3", store.getRosterVersion());
+            assertEquals("benvolio@example.net", store.getEntries().iterator().next().getUser());
+            assertSame("Wrong number of stored entries.", 1, store.getEntries().size());
+        }
+        finally {
+            versionedConnection.disconnect();
+            for (File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+    }
+
+    /**
+     * Create a logged in connection supporting roster versioning, storing its roster
+     * in the given directory, which holds Romeo's entry with version "ver1".
+     */
+    private static DummyConnection createVersionedConnection(File directory) throws XMPPException {
+        final FileRosterStore store = new FileRosterStore(directory);
+        final Item romeo = new Item("romeo@example.net", "Romeo");
+        romeo.addGroupName("Friends");
+        romeo.setItemType(ItemType.both);
+        store.resetEntries(Collections.singletonList(romeo), "ver1");
+
+        final ConnectionConfiguration config = new ConnectionConfiguration("example.com");
+        config.setRosterStore(store);
+        final DummyConnection versionedConnection = new DummyConnection(config) {
+            @Override
+            public boolean isRosterVersioningSupported() {
+                return true;
+            }
+        };
+        versionedConnection.connect();
+        versionedConnection.login("rostertest", "secret");
+        return versionedConnection;
+    }
+
     /**
      * Initialize the roster according to the example in
      * <a href="http://xmpp.org/rfcs/rfc3921.html#roster-login"
@@ -0,0 +1,131 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Field;
+
+import org.junit.Test;
+
+public class StreamManagementTest {
+    /** Record each of stanzas as a single batch. */
+    private static void send(StreamManagement sm, String... stanzas) {
+        StringBuilder batch = new StringBuilder();
+        int[] ends = new int[stanzas.length];
+        for(int i = 0; i < stanzas.length; ++i) {
+            batch.append(stanzas[i]);
+            ends[i] = batch.length();
+        }
+        sm.sent(batch.toString(), ends, stanzas.length);
+    }
+
+    @Test
+    public void acknowledgedStanzasAreDropped() throws Exception {
+        StreamManagement sm = new StreamManagement(10);
+        sm.enabled("id", true);
+        send(sm, "<a/>", "<b/>", "<c/>");
+        assertEquals(3, sm.getUnackedCount());
+
+        sm.acknowledged(2);
+        assertEquals(1, sm.getUnackedCount());
+        assertEquals("<c/>", sm.resumed(2));
+    }
+
+    @Test
+    public void resumedResendsUnacknowledgedStanzas() throws Exception {
+        StreamManagement sm = new StreamManagement(10);
+        sm.enabled("id", true);
+        send(sm, "<a/>", "<b/>");
+        send(sm, "<c/>");
+
+        assertEquals("<b/><c/>", sm.resumed(1));
+
+        // Resent stanzas stay queued until they're acknowledged.
+        assertEquals(2, sm.getUnackedCount());
+        sm.acknowledged(3);
+        assertEquals(0, sm.getUnackedCount());
+    }
+
+    /** Acknowledgement counts are modulo 2^32. */
+    @Test
+    public void countsWrapAround() throws Exception {
+        StreamManagement sm = new StreamManagement(10);
+        setAcked(sm, 0xFFFFFFFFL);
+        send(sm, "<a/>", "<b/>", "<c/>");
+
+        sm.acknowledged(1);
+        assertEquals(1, sm.getUnackedCount());
+    }
+
+    @Test(expected=XMPPException.class)
+    public void acknowledgingUnsentStanzasFails() throws Exception {
+        StreamManagement sm = new StreamManagement(10);
+        send(sm, "<a/>");
+        sm.acknowledged(2);
+    }
+
+    @Test
+    public void acksAreRequestedOnceAQuarterFull() throws Exception {
+        StreamManagement sm = new StreamManagement(8);
+        send(sm, "<a/>");
+        assertFalse(sm.shouldRequestAck());
+        send(sm, "<b/>");
+        assertTrue(sm.shouldRequestAck());
+
+        // Only one request is outstanding at a time.
+        send(sm, "<c/>");
+        assertFalse(sm.shouldRequestAck());
+        sm.acknowledged(1);
+        assertTrue(sm.shouldRequestAck());
+    }
+
+    @Test
+    public void queueFillsAtCapacity() {
+        StreamManagement sm = new StreamManagement(2);
+        send(sm, "<a/>");
+        assertFalse(sm.isFull());
+        send(sm, "<b/>");
+        assertTrue(sm.isFull());
+    }
+
+    @Test
+    public void responsesReportHandledCount() {
+        StreamManagement sm = new StreamManagement(1);
+        sm.enabled("id", true);
+        sm.stanzaHandled();
+        assertEquals("<a xmlns='urn:xmpp:sm:3' h='1'/>", sm.ackResponse());
+        assertEquals("<resume xmlns='urn:xmpp:sm:3' h='1' previd='id'/>", sm.resumeRequest());
+    }
+
+    @Test
+    public void sessionsWithoutResumptionIdAreNotResumable() {
+        StreamManagement sm = new StreamManagement(1);
+        sm.enabled(null, true);
+        assertTrue(sm.isEnabled());
+        assertFalse(sm.isResumable());
+    }
+
+    @Test(expected=XMPPException.class)
+    public void invalidCountsAreRejected() throws Exception {
+        StreamManagement.parseCount("4294967296");
+    }
+
+    private static void setAcked(StreamManagement sm, long acked) throws Exception {
+        Field field = StreamManagement.class.getDeclaredField("acked");
+        field.setAccessible(true);
+        field.setLong(sm, acked);
+    }
+}
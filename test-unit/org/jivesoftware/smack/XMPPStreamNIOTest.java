@@ -0,0 +1,320 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import org.jivesoftware.smack.ConnectionConfiguration.SecurityMode;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.jcraft.jzlib.JZlib;
+import com.jcraft.jzlib.ZInputStream;
+import com.jcraft.jzlib.ZOutputStream;
+
+/**
+ * Tests non-blocking connections against an in-process server, which negotiates
+ * TLS and compression and then echoes messages back.
+ */
+public class XMPPStreamNIOTest {
+    private static final String PASSWORD = "password";
+    private static File keyStoreFile;
+    private static SSLContext serverContext;
+
+    private TestServer server;
+    private XMPPConnection connection;
+
+    /** Create a self-signed server certificate; the client accepts it with SecurityMode.enabled. */
+    @BeforeClass
+    public static void createServerContext() throws Exception {
+        keyStoreFile = File.createTempFile("smack-test", ".jks");
+        keyStoreFile.delete();
+
+        ProcessBuilder keytool = new ProcessBuilder(
+                System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool",
+                "-genkeypair", "-alias", "server", "-keyalg", "RSA", "-keysize", "2048",
+                "-dname", "CN=localhost", "-validity", "2", "-storetype", "JKS",
+                "-keystore", keyStoreFile.getPath(), "-storepass", PASSWORD, "-keypass", PASSWORD);
+        keytool.redirectErrorStream(true);
+        Process process = keytool.start();
+        String output = new String(readFully(process.getInputStream()), "UTF-8");
+        assertEquals(output, 0, process.waitFor());
+
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        FileInputStream in = new FileInputStream(keyStoreFile);
+        try {
+            keyStore.load(in, PASSWORD.toCharArray());
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, PASSWORD.toCharArray());
+        serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagers.getKeyManagers(), null, null);
+    }
+
+    @AfterClass
+    public static void deleteKeyStore() {
+        if(keyStoreFile != null)
+            keyStoreFile.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if(connection != null)
+            connection.disconnect();
+        if(server != null)
+            server.close();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int count;
+        while((count = in.read(buf)) != -1)
+            out.write(buf, 0, count);
+        return out.toByteArray();
+    }
+
+    private XMPPConnection connect(boolean secure) throws Exception {
+        ConnectionConfiguration config = new ConnectionConfiguration("127.0.0.1", server.getPort(), "localhost");
+        config.setBoshURI(null);
+        config.setNonBlockingIOEnabled(true);
+        config.setReconnectionAllowed(false);
+        config.setSecurityMode(secure? SecurityMode.enabled:SecurityMode.disabled);
+        config.setCompressionEnabled(secure);
+
+        connection = new XMPPConnection(config);
+        connection.connect();
+        return connection;
+    }
+
+    /**
+     * Send count messages, and check that the server receives them and that its echoes
+     * are delivered to a listener in order.
+     */
+    private void exchangeMessages(int count) throws Exception {
+        final List<String> echoed = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(count);
+        connection.addPacketListener(new PacketListener() {
+            public void processPacket(Packet packet) {
+                echoed.add(((Message) packet).getBody());
+                done.countDown();
+            }
+        }, new PacketTypeFilter(Message.class));
+
+        for(int i = 0; i < count; ++i) {
+            Message message = new Message("echo@localhost");
+            message.setBody("message " + i);
+            connection.sendPacket(message);
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        server.checkError();
+        for(int i = 0; i < count; ++i) {
+            assertEquals("message " + i, server.received.get(i));
+            assertEquals("message " + i, echoed.get(i));
+        }
+    }
+
+    /** Neither the writer nor the listeners of a non-blocking connection have threads of their own. */
+    private void assertNoConnectionThreads() {
+        int id = connection.connectionCounterValue;
+        for(Thread thread: Thread.getAllStackTraces().keySet()) {
+            assertFalse(thread.getName(), thread.getName().equals("Smack Packet Writer (" + id + ")"));
+            assertFalse(thread.getName(), thread.getName().equals("Smack Listener Processor (" + id + ")"));
+        }
+    }
+
+    @Test(timeout=15000)
+    public void readsAndWritesStanzas() throws Exception {
+        server = new TestServer(false, 200);
+        server.start();
+        connect(false);
+        assertFalse(connection.isUsingCompression());
+
+        exchangeMessages(200);
+        assertNoConnectionThreads();
+    }
+
+    /**
+     * The stream is restarted after TLS and again after compression are negotiated,
+     * and stanzas are then exchanged over the compressed, encrypted stream.
+     */
+    @Test(timeout=15000)
+    public void restartsStreamForTLSAndCompression() throws Exception {
+        server = new TestServer(true, 200);
+        server.start();
+        connect(true);
+        server.checkError();
+        assertEquals(3, server.streamsOpened);
+        assertTrue(connection.isUsingCompression());
+
+        // The certificate is self-signed, so the stream is encrypted but not secure.
+        assertFalse(connection.isSecureConnection());
+
+        exchangeMessages(200);
+        assertNoConnectionThreads();
+    }
+
+    /**
+     * A server accepting one connection.  If secure, it offers TLS and then compression;
+     * then it echoes the bodies of the given number of messages.
+     */
+    private static class TestServer extends Thread {
+        private static final String STARTTLS = "<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>";
+        private static final String COMPRESSION =
+            "<compression xmlns='http://jabber.org/features/compress'><method>zlib</method></compression>";
+
+        private final ServerSocket serverSocket;
+        private final boolean secure;
+        private final int messages;
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        volatile int streamsOpened = 0;
+        private volatile Throwable error;
+
+        TestServer(boolean secure, int messages) throws IOException {
+            this.serverSocket = new ServerSocket(0);
+            this.secure = secure;
+            this.messages = messages;
+            setDaemon(true);
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        void checkError() {
+            if(error != null)
+                throw new AssertionError(error);
+        }
+
+        void close() throws Exception {
+            serverSocket.close();
+            synchronized(this) {
+                if(socket != null)
+                    socket.close();
+            }
+            join(5000);
+        }
+
+        public void run() {
+            try {
+                Socket accepted = serverSocket.accept();
+                synchronized(this) {
+                    socket = accepted;
+                }
+                in = accepted.getInputStream();
+                out = accepted.getOutputStream();
+
+                if(secure) {
+                    openStream(STARTTLS + COMPRESSION);
+                    assertTrue(readUntil("/>").contains("urn:ietf:params:xml:ns:xmpp-tls"));
+                    write("<proceed xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>");
+
+                    SSLSocket sslSocket = (SSLSocket) serverContext.getSocketFactory().createSocket(
+                            accepted, "localhost", accepted.getPort(), true);
+                    sslSocket.setUseClientMode(false);
+                    sslSocket.startHandshake();
+                    in = sslSocket.getInputStream();
+                    out = sslSocket.getOutputStream();
+
+                    openStream(COMPRESSION);
+                    assertTrue(readUntil("</compress>").contains("<method>zlib</method>"));
+                    write("<compressed xmlns='http://jabber.org/protocol/compress'/>");
+
+                    ZInputStream compressedIn = new ZInputStream(in);
+                    compressedIn.setFlushMode(JZlib.Z_SYNC_FLUSH);
+                    ZOutputStream compressedOut = new ZOutputStream(out, 9);
+                    compressedOut.setFlushMode(JZlib.Z_SYNC_FLUSH);
+                    in = compressedIn;
+                    out = compressedOut;
+                }
+                openStream("");
+
+                for(int i = 0; i < messages; ++i) {
+                    String message = readUntil("</message>");
+                    String body = message.substring(message.indexOf("<body>") + 6, message.indexOf("</body>"));
+                    received.add(body);
+                    write("<message from='echo@localhost'><body>" + body + "</body></message>");
+                }
+
+                // Close the stream when the client does, so it doesn't wait for us.
+                readUntil("</stream:stream>");
+                write("</stream:stream>");
+                accepted.close();
+            } catch(Throwable e) {
+                error = e;
+            }
+        }
+
+        /** Read the client's stream header, and open a stream offering features. */
+        private void openStream(String features) throws IOException {
+            readUntil("version=\"1.0\">");
+            ++streamsOpened;
+            write("<?xml version='1.0'?>" +
+                    "<stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' " +
+                    "from='localhost' id='stream" + streamsOpened + "' version='1.0'>" +
+                    "<stream:features>" + features + "</stream:features>");
+        }
+
+        private String readUntil(String end) throws IOException {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            while(true) {
+                int b = in.read();
+                if(b == -1)
+                    throw new IOException("Unexpected end of stream, waiting for " + end);
+                data.write(b);
+
+                String text = data.toString("UTF-8");
+                if(text.endsWith(end))
+                    return text;
+            }
+        }
+
+        private void write(String data) throws IOException {
+            out.write(data.getBytes("UTF-8"));
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Base64CodecTest {
+
+    @Test
+    public void matchesLegacyCodec() throws Exception {
+        Random random = new Random(42);
+        for (int length = 0; length < 100; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+
+            String expected = StringUtils.encodeBase64(data, 0, length, false);
+            assertEquals(expected, Base64Codec.encode(data, 0, length));
+            assertArrayEquals(data, Base64Codec.decode(expected));
+        }
+    }
+
+    @Test
+    public void appendsInChunks() throws Exception {
+        byte[] data = new byte[20000];
+        new Random(7).nextBytes(data);
+        String expected = StringUtils.encodeBase64(data, 0, data.length, false);
+
+        StringBuilder builder = new StringBuilder("<data>");
+        Base64Codec.encode(data, 0, data.length, builder);
+        assertEquals("<data>" + expected, builder.toString());
+
+        StringWriter writer = new StringWriter();
+        Base64Codec.encode(data, 1, data.length - 1, writer);
+        assertEquals(StringUtils.encodeBase64(data, 1, data.length - 1, false), writer.toString());
+    }
+
+    @Test
+    public void decodesWithinBuffer() {
+        char[] chars = "<data>Zm9vYmE=</data>".toCharArray();
+        assertArrayEquals("fooba".getBytes(), Base64Codec.decode(chars, 6, 8));
+    }
+
+    @Test
+    public void acceptsWhitespaceAndMissingPadding() {
+        assertArrayEquals("foobar".getBytes(), Base64Codec.decode("Zm9v\r\nYmFy"));
+        assertArrayEquals("fo".getBytes(), Base64Codec.decode("Zm8"));
+        assertArrayEquals(new byte[0], Base64Codec.decode(""));
+    }
+
+    @Test
+    public void rejectsInvalidInput() {
+        assertNull(Base64Codec.decode("BBBB=CCC"));
+        assertNull(Base64Codec.decode("AA=BB"));
+        assertNull(Base64Codec.decode("Zm9v{mFy"));
+        assertNull(Base64Codec.decode("Zm9v\u00E9mFy"));
+        assertNull(Base64Codec.decode("Z==="));
+        assertNull(Base64Codec.decode("Zm9=="));
+        assertNull(Base64Codec.decode("Zm9vY"));
+    }
+}
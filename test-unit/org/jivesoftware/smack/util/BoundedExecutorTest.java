@@ -0,0 +1,136 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class BoundedExecutorTest {
+    private final ExecutorService pool = Executors.newFixedThreadPool(8);
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    /** No more than the limit of tasks run at once, and all of them eventually run. */
+    @Test(timeout=5000)
+    public void limitsRunningTasks() throws Exception {
+        BoundedExecutor executor = new BoundedExecutor(pool, 2);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(20);
+        for(int i = 0; i < 20; ++i) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    int now = running.incrementAndGet();
+                    synchronized(maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), now));
+                    }
+                    try {
+                        Thread.sleep(5);
+                    } catch(InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+
+        assertTrue(done.await(4, TimeUnit.SECONDS));
+        assertEquals(2, maxRunning.get());
+    }
+
+    /** Queued tasks start in submission order as running tasks finish. */
+    @Test(timeout=5000)
+    public void queuedTasksRunInOrder() throws Exception {
+        BoundedExecutor executor = new BoundedExecutor(pool, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(10);
+        final List<Integer> results = Collections.synchronizedList(new ArrayList<Integer>());
+
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch(InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        for(int i = 0; i < 10; ++i) {
+            final int n = i;
+            executor.execute(new Runnable() {
+                public void run() {
+                    results.add(n);
+                    done.countDown();
+                }
+            });
+        }
+        assertEquals(10, executor.getQueuedTaskCount());
+        assertEquals(1, executor.getRunningTaskCount());
+
+        release.countDown();
+        assertTrue(done.await(4, TimeUnit.SECONDS));
+        for(int i = 0; i < 10; ++i)
+            assertEquals(Integer.valueOf(i), results.get(i));
+    }
+
+    /** A failing task releases its slot. */
+    @Test(timeout=5000)
+    public void failedTaskReleasesSlot() throws Exception {
+        BoundedExecutor executor = new BoundedExecutor(pool, 1);
+        final CountDownLatch ran = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            public void run() {
+                throw new RuntimeException("expected");
+            }
+        });
+        executor.execute(new Runnable() {
+            public void run() { ran.countDown(); }
+        });
+
+        assertTrue(ran.await(4, TimeUnit.SECONDS));
+    }
+
+    /** A task rejected by the underlying executor doesn't hold a slot. */
+    @Test
+    public void rejectedTaskReleasesSlot() {
+        pool.shutdown();
+        BoundedExecutor executor = new BoundedExecutor(pool, 1);
+        try {
+            executor.execute(new Runnable() {
+                public void run() { }
+            });
+            fail("expected RejectedExecutionException");
+        } catch(RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(0, executor.getRunningTaskCount());
+    }
+}
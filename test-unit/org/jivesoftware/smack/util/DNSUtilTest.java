@@ -0,0 +1,279 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.util.DNSUtil.AsyncLookup;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.ResolverListener;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TSIG;
+import org.xbill.DNS.Type;
+
+/**
+ * Tests the caching and sharing of lookups in {@link DNSUtil}, against a stub resolver.
+ */
+public class DNSUtilTest {
+    private StubResolver resolver;
+
+    @Before
+    public void setUp() {
+        resolver = new StubResolver();
+        Lookup.setDefaultResolver(resolver);
+        DNSUtil.clearCache();
+    }
+
+    @After
+    public void tearDown() {
+        resolver.release();
+        Lookup.refreshDefault();
+        DNSUtil.clearCache();
+        DNSUtil.setNegativeCacheTTL(60 * 1000);
+    }
+
+    /** Answers are cached until their TTL expires. */
+    @Test(timeout=5000)
+    public void cachesAnswersForTheirTTL() throws Exception {
+        resolver.addAddress("xmpp.example.com.", 1, "192.0.2.1");
+
+        Record[] records = lookup("xmpp.example.com.");
+        assertEquals(1, records.length);
+        assertEquals(InetAddress.getByName("192.0.2.1"), ((ARecord) records[0]).getAddress());
+        assertEquals(1, resolver.getQueryCount("xmpp.example.com."));
+
+        assertEquals(1, lookup("xmpp.example.com.").length);
+        assertEquals(1, resolver.getQueryCount("xmpp.example.com."));
+
+        Thread.sleep(1100);
+        assertEquals(1, lookup("xmpp.example.com.").length);
+        assertEquals(2, resolver.getQueryCount("xmpp.example.com."));
+    }
+
+    /** Names which don't exist are cached for the negative cache TTL. */
+    @Test(timeout=5000)
+    public void cachesMissingNames() throws Exception {
+        assertEquals(60 * 1000, DNSUtil.getNegativeCacheTTL());
+        DNSUtil.setNegativeCacheTTL(200);
+
+        assertEquals(0, lookup("missing.example.com.").length);
+        assertEquals(0, lookup("missing.example.com.").length);
+        assertEquals(1, resolver.getQueryCount("missing.example.com."));
+
+        Thread.sleep(300);
+        assertEquals(0, lookup("missing.example.com.").length);
+        assertEquals(2, resolver.getQueryCount("missing.example.com."));
+
+        // With a negative cache TTL of 0, missing names aren't cached.
+        DNSUtil.setNegativeCacheTTL(0);
+        DNSUtil.clearCache();
+        lookup("missing.example.com.");
+        lookup("missing.example.com.");
+        assertEquals(4, resolver.getQueryCount("missing.example.com."));
+    }
+
+    /** Server failures are transient, so they aren't cached. */
+    @Test(timeout=5000)
+    public void doesNotCacheFailures() throws Exception {
+        resolver.setRcode("broken.example.com.", Rcode.SERVFAIL);
+
+        assertEquals(0, lookup("broken.example.com.").length);
+        int queries = resolver.getQueryCount("broken.example.com.");
+        assertTrue(queries > 0);
+
+        lookup("broken.example.com.");
+        assertTrue(resolver.getQueryCount("broken.example.com.") > queries);
+    }
+
+    /**
+     * Lookups of the same name started while it's being looked up share the query,
+     * and a cancelled lookup doesn't stop it.
+     */
+    @Test(timeout=5000)
+    public void sharesLookupsInProgress() throws Exception {
+        resolver.addAddress("slow.example.com.", 60, "192.0.2.2");
+        resolver.hold();
+
+        LookupThread[] threads = new LookupThread[3];
+        for(int i = 0; i < threads.length; ++i) {
+            threads[i] = new LookupThread("slow.example.com.");
+            threads[i].start();
+        }
+        resolver.awaitQuery();
+
+        AsyncLookup cancelled = new AsyncLookup("slow.example.com.", Type.A);
+        LookupThread cancelledThread = new LookupThread(cancelled);
+        cancelledThread.start();
+
+        // Wait for every lookup to be waiting on the query.
+        for(LookupThread thread: threads)
+            awaitWaiting(thread);
+        awaitWaiting(cancelledThread);
+
+        cancelled.cancel();
+        cancelledThread.join();
+        assertNull(cancelledThread.result);
+
+        resolver.release();
+        for(LookupThread thread: threads) {
+            thread.join();
+            assertEquals(1, thread.result.length);
+        }
+        assertEquals(1, resolver.getQueryCount("slow.example.com."));
+
+        // The shared answer was cached.
+        assertEquals(1, lookup("slow.example.com.").length);
+        assertEquals(1, resolver.getQueryCount("slow.example.com."));
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        while(thread.getState() != Thread.State.WAITING)
+            Thread.sleep(5);
+    }
+
+    /**
+     * Look up the A records of name.  The resolver library's own cache is cleared
+     * first, so only DNSUtil's cache can answer without querying the resolver.
+     */
+    private static Record[] lookup(String name) throws Exception {
+        Lookup.getDefaultCache(DClass.IN).clearCache();
+        return new AsyncLookup(name, Type.A).run();
+    }
+
+    private static class LookupThread extends Thread {
+        private final AsyncLookup lookup;
+        volatile Record[] result;
+
+        LookupThread(String name) {
+            this(new AsyncLookup(name, Type.A));
+        }
+
+        LookupThread(AsyncLookup lookup) {
+            this.lookup = lookup;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                Lookup.getDefaultCache(DClass.IN).clearCache();
+                result = lookup.run();
+            } catch(Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * A resolver which answers from a table, and counts the queries for each name.
+     * Names not in the table don't exist.
+     */
+    private static class StubResolver implements Resolver {
+        private final Map<String, Record> addresses = new ConcurrentHashMap<String, Record>();
+        private final Map<String, Integer> rcodes = new ConcurrentHashMap<String, Integer>();
+
+        /** Guarded by this. */
+        private final Map<String, Integer> queryCounts = new HashMap<String, Integer>();
+
+        private final CountDownLatch queried = new CountDownLatch(1);
+        private volatile CountDownLatch held = new CountDownLatch(0);
+
+        void addAddress(String name, long ttl, String address) throws IOException {
+            addresses.put(name, new ARecord(Name.fromString(name), DClass.IN, ttl, InetAddress.getByName(address)));
+        }
+
+        void setRcode(String name, int rcode) {
+            rcodes.put(name, rcode);
+        }
+
+        /** Block answers until {@link #release} is called. */
+        void hold() {
+            held = new CountDownLatch(1);
+        }
+
+        void release() {
+            held.countDown();
+        }
+
+        void awaitQuery() throws InterruptedException {
+            assertTrue(queried.await(4, TimeUnit.SECONDS));
+        }
+
+        synchronized int getQueryCount(String name) {
+            Integer count = queryCounts.get(name);
+            return count == null? 0:count;
+        }
+
+        public Message send(Message query) throws IOException {
+            Record question = query.getQuestion();
+            String name = question.getName().toString();
+            synchronized(this) {
+                queryCounts.put(name, getQueryCount(name) + 1);
+            }
+            queried.countDown();
+
+            try {
+                held.await();
+            } catch(InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+
+            Message response = new Message(query.getHeader().getID());
+            response.getHeader().setFlag(Flags.QR);
+            response.addRecord(question, Section.QUESTION);
+            Record address = addresses.get(name);
+            if(rcodes.containsKey(name))
+                response.getHeader().setRcode(rcodes.get(name));
+            else if(address != null && question.getType() == Type.A)
+                response.addRecord(address, Section.ANSWER);
+            else
+                response.getHeader().setRcode(Rcode.NXDOMAIN);
+            return response;
+        }
+
+        public Object sendAsync(Message query, ResolverListener listener) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void setPort(int port) { }
+        public void setTCP(boolean flag) { }
+        public void setIgnoreTruncation(boolean flag) { }
+        public void setEDNS(int level) { }
+        @SuppressWarnings("rawtypes")
+        public void setEDNS(int level, int payloadSize, int flags, List options) { }
+        public void setTSIGKey(TSIG key) { }
+        public void setTimeout(int secs, int msecs) { }
+        public void setTimeout(int secs) { }
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class KeyedSerialExecutorTest {
+    private final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    /** Tasks with the same key run in submission order. */
+    @Test(timeout=5000)
+    public void sameKeyRunsInOrder() {
+        KeyedSerialExecutor executor = new KeyedSerialExecutor(pool);
+        final List<Integer> results = Collections.synchronizedList(new ArrayList<Integer>());
+        for(int i = 0; i < 100; ++i) {
+            final int n = i;
+            executor.execute("romeo@montague.lit", new Runnable() {
+                public void run() { results.add(n); }
+            });
+        }
+        executor.shutdown();
+
+        assertEquals(100, results.size());
+        for(int i = 0; i < 100; ++i)
+            assertEquals(Integer.valueOf(i), results.get(i));
+    }
+
+    /** A blocked task doesn't delay tasks with other keys. */
+    @Test(timeout=5000)
+    public void otherKeysRunInParallel() throws Exception {
+        KeyedSerialExecutor executor = new KeyedSerialExecutor(pool);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch otherRan = new CountDownLatch(1);
+
+        executor.execute("slow", new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch(InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        executor.execute("fast", new Runnable() {
+            public void run() { otherRan.countDown(); }
+        });
+
+        assertTrue(otherRan.await(2, TimeUnit.SECONDS));
+        release.countDown();
+        executor.shutdown();
+    }
+
+    /** A task throwing an Error doesn't stop later tasks with the same key. */
+    @Test(timeout=5000)
+    public void errorDoesNotStopLaterTasks() throws Exception {
+        KeyedSerialExecutor executor = new KeyedSerialExecutor(pool);
+        final CountDownLatch ran = new CountDownLatch(1);
+        executor.execute("romeo@montague.lit", new Runnable() {
+            public void run() { throw new AssertionError("expected"); }
+        });
+        executor.execute("romeo@montague.lit", new Runnable() {
+            public void run() { ran.countDown(); }
+        });
+
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+
+    @Test(expected=RejectedExecutionException.class)
+    public void rejectsAfterShutdown() {
+        KeyedSerialExecutor executor = new KeyedSerialExecutor(pool);
+        executor.shutdown();
+        executor.execute("key", new Runnable() {
+            public void run() { }
+        });
+    }
+}
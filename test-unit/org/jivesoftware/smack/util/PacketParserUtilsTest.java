@@ -18,8 +18,12 @@ import java.util.Properties;
 import org.custommonkey.xmlunit.DetailedDiff;
 import org.custommonkey.xmlunit.Diff;
 import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.packet.DefaultPacketExtension;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.packet.RosterPacket;
+import org.jivesoftware.smack.packet.XMPPError;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.w3c.dom.Element;
@@ -759,6 +763,171 @@ public class PacketParserUtilsTest {
         assertXMLEqual(control, message.toXML());
     }
 
+    @Test
+    public void streamParsedMessageTest() throws Exception {
+        String control = XMLBuilder.create("message")
+            .a("xmlns", "jabber:client")
+            .a("from", "romeo@montague.lit/orchard")
+            .a("to", "juliet@capulet.lit/balcony")
+            .a("id", "zid615d9")
+            .a("type", "chat")
+            .a("xml:lang", "en")
+            .e("body")
+                .t("Wherefore art thou, Romeo?")
+            .up()
+            .e("thread")
+                .t("e0ffe42b28561960c6b12b944a092794b9683a38")
+            .up()
+            .e("unknown")
+                .a("xmlns", "urn:example:unknown")
+                .e("value")
+                    .t("1")
+            .asString(outputProperties);
+
+        Message domMessage = PacketParserUtils.parseMessage(getPacket(control));
+
+        XmlPullParser parser = getParser(control, "message");
+        Message message = PacketParserUtils.parseMessage(parser);
+        assertEquals(XmlPullParser.END_TAG, parser.getEventType());
+        assertEquals("message", parser.getName());
+
+        assertEquals("en", message.getLanguage());
+        assertEquals("Wherefore art thou, Romeo?", message.getBody());
+        assertEquals("e0ffe42b28561960c6b12b944a092794b9683a38", message.getThread());
+        assertEquals("1", ((DefaultPacketExtension) message.getExtension("urn:example:unknown")).getValue("value"));
+        assertXMLEqual(domMessage.toXML(), message.toXML());
+    }
+
+    @Test
+    public void streamParsedPresenceTest() throws Exception {
+        String control = XMLBuilder.create("presence")
+            .a("xmlns", "jabber:client")
+            .a("from", "romeo@montague.lit/orchard")
+            .a("id", "p1")
+            .e("show")
+                .t("dnd")
+            .up()
+            .e("status")
+                .t("In the orchard")
+            .up()
+            .e("priority")
+                .t("5")
+            .asString(outputProperties);
+
+        XmlPullParser parser = getParser(control, "presence");
+        Presence presence = PacketParserUtils.parsePresence(parser);
+        assertEquals(XmlPullParser.END_TAG, parser.getEventType());
+        assertEquals("presence", parser.getName());
+
+        assertEquals(Presence.Mode.dnd, presence.getMode());
+        assertEquals("In the orchard", presence.getStatus());
+        assertEquals(5, presence.getPriority());
+        Element domPresence = XmlUtil.ReadNodeFromXmlPull(getParser(control, "presence"));
+        assertXMLEqual(PacketParserUtils.parsePresence(domPresence).toXML(), presence.toXML());
+    }
+
+    @Test
+    public void streamParsedErrorTest() throws Exception {
+        String control = XMLBuilder.create("message")
+            .a("xmlns", "jabber:client")
+            .a("from", "romeo@montague.lit")
+            .a("type", "error")
+            .e("error")
+                .a("type", "cancel")
+                .e("item-not-found")
+                    .a("xmlns", "urn:ietf:params:xml:ns:xmpp-stanzas")
+                .up()
+                .e("text")
+                    .a("xmlns", "urn:ietf:params:xml:ns:xmpp-stanzas")
+                    .t("No such user")
+            .asString(outputProperties);
+
+        Message message = PacketParserUtils.parseMessage(getParser(control, "message"));
+        assertEquals("item-not-found", message.getError().getCondition());
+        assertEquals("No such user", message.getError().getMessage());
+        assertEquals(XMPPError.Type.CANCEL, message.getError().getType());
+    }
+
+    @Test
+    public void streamParsedRosterVersionTest() throws Exception {
+        String control = XMLBuilder.create("iq")
+            .a("xmlns", "jabber:client")
+            .a("id", "r1")
+            .a("type", "result")
+            .e("query")
+                .a("xmlns", "jabber:iq:roster")
+                .a("ver", "ver7")
+                .e("item")
+                    .a("jid", "romeo@montague.lit")
+                    .a("subscription", "both")
+            .asString(outputProperties);
+
+        XmlPullParser parser = getParser(control, "iq");
+        RosterPacket roster = (RosterPacket) PacketParserUtils.parseIQ(parser, null);
+        assertEquals(XmlPullParser.END_TAG, parser.getEventType());
+        assertEquals("iq", parser.getName());
+        assertEquals("ver7", roster.getVersion());
+        assertEquals(1, roster.getRosterItemCount());
+
+        // Without the attribute, there's no version.
+        String unversioned = control.replace(" ver=\"ver7\"", "");
+        assertNull(((RosterPacket) PacketParserUtils.parseIQ(getParser(unversioned, "iq"), null)).getVersion());
+    }
+
+    @Test
+    public void recordedElementTest() throws Exception {
+        String control = XMLBuilder.create("message")
+            .a("xmlns", "jabber:client")
+            .a("to", "juliet@capulet.lit/balcony")
+            .a("id", "zid615d9")
+            .a("unknown", "kept")
+            .e("body")
+                .t("hello")
+            .up()
+            .e("x")
+                .a("xmlns", "urn:example:unknown")
+                .a("a", "1")
+                .e("y")
+                    .a("b", "2")
+                    .t("text")
+            .asString(outputProperties);
+
+        RecordingXmlPullParser recorder = new RecordingXmlPullParser(getParser(control, "message"));
+        Message message = PacketParserUtils.parseMessage(recorder);
+        message.setElement(recorder.getRecording());
+
+        // The element is what was received, not what the packet generates.
+        message.setBody("changed");
+        Element element = message.getElement();
+        assertEquals("kept", element.getAttribute("unknown"));
+        assertXMLEqual(XmlUtil.elementToString(getPacket(control)), XmlUtil.elementToString(element));
+        assertSame(element, message.getElement());
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void incompleteRecordingTest() throws Exception {
+        String control = XMLBuilder.create("message")
+            .a("xmlns", "jabber:client")
+            .e("body")
+                .t("hello")
+            .asString(outputProperties);
+
+        RecordingXmlPullParser recorder = new RecordingXmlPullParser(getParser(control, "message"));
+        recorder.nextTag();
+        recorder.getRecording().toElement();
+    }
+
+    private XmlPullParser getParser(String control, String name) throws XmlPullParserException, IOException {
+        XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+        parser.setInput(new StringReader(control));
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        while(true) {
+            if(parser.next() == XmlPullParser.START_TAG
+                    && parser.getName().equals(name)) { break; }
+        }
+        return parser;
+    }
+
     private Element getPacket(String control) throws XmlPullParserException, XMPPException, IOException {
         XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
         parser.setInput(new StringReader(control));
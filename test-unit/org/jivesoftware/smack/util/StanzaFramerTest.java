@@ -0,0 +1,146 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.smack.XMPPException;
+import org.junit.Test;
+
+public class StanzaFramerTest {
+    private static final String HEADER =
+        "<stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' version='1.0'>";
+
+    /** Records everything received, as "header:", "stanza:" and "closed" entries. */
+    private static class RecordingListener implements StanzaFramer.Listener {
+        final List<String> events = new ArrayList<String>();
+
+        public void streamOpened(String header) { events.add("header:" + header); }
+        public void stanza(String stanza) { events.add("stanza:" + stanza); }
+        public void streamClosed() { events.add("closed"); }
+    }
+
+    private static ByteBuffer bytes(String s) throws Exception {
+        return ByteBuffer.wrap(s.getBytes("UTF-8"));
+    }
+
+    /** Feed data one byte at a time, to test every split point. */
+    private static void feedBytewise(StanzaFramer framer, String data, StanzaFramer.Listener listener)
+        throws Exception
+    {
+        byte[] b = data.getBytes("UTF-8");
+        for(int i = 0; i < b.length; ++i)
+            framer.feed(ByteBuffer.wrap(b, i, 1), listener);
+    }
+
+    @Test
+    public void framesHeaderStanzasAndClose() throws Exception {
+        StanzaFramer framer = new StanzaFramer(1024);
+        RecordingListener listener = new RecordingListener();
+        String message = "<message to='a@b'><body>hi</body></message>";
+        framer.feed(bytes("<?xml version='1.0'?>" + HEADER + message + "<presence/></stream:stream>"), listener);
+
+        assertEquals(4, listener.events.size());
+        assertEquals("header:" + HEADER, listener.events.get(0));
+        assertEquals("stanza:" + message, listener.events.get(1));
+        assertEquals("stanza:<presence/>", listener.events.get(2));
+        assertEquals("closed", listener.events.get(3));
+        assertEquals(0, framer.getBufferedSize());
+    }
+
+    @Test
+    public void framesAcrossSplitFeeds() throws Exception {
+        StanzaFramer framer = new StanzaFramer(1024);
+        RecordingListener listener = new RecordingListener();
+        String message = "<message><body>\u00E9\u4E2D</body></message>";
+        feedBytewise(framer, HEADER + " " + message + "\n", listener);
+
+        assertEquals(2, listener.events.size());
+        assertEquals("stanza:" + message, listener.events.get(1));
+    }
+
+    /** '>' inside attribute values, comments and CDATA sections doesn't end an element. */
+    @Test
+    public void ignoresMarkupInQuotesCommentsAndCData() throws Exception {
+        StanzaFramer framer = new StanzaFramer(1024);
+        RecordingListener listener = new RecordingListener();
+        String message = "<message a='x>y' b=\"/>\"><!-- </message> --><body><![CDATA[</body>]]></body></message>";
+        feedBytewise(framer, HEADER + message, listener);
+
+        assertEquals(2, listener.events.size());
+        assertEquals("stanza:" + message, listener.events.get(1));
+    }
+
+    @Test(expected=XMPPException.class)
+    public void rejectsDoctype() throws Exception {
+        StanzaFramer framer = new StanzaFramer(1024);
+        framer.feed(bytes(HEADER + "<!DOCTYPE foo>"), new RecordingListener());
+    }
+
+    @Test
+    public void enforcesMaximumSize() throws Exception {
+        StanzaFramer framer = new StanzaFramer(64);
+        RecordingListener listener = new RecordingListener();
+        framer.feed(bytes(HEADER), listener);
+        try {
+            framer.feed(bytes("<message><body>" + "0123456789012345678901234567890123456789" +
+                    "0123456789012345678901234567890123456789"), listener);
+            fail("Expected XMPPException");
+        } catch(XMPPException e) {
+        }
+    }
+
+    @Test
+    public void suspendBuffersUntilResumed() throws Exception {
+        final StanzaFramer framer = new StanzaFramer(1024);
+        final List<String> stanzas = new ArrayList<String>();
+        StanzaFramer.Listener listener = new RecordingListener() {
+            public void stanza(String stanza) {
+                stanzas.add(stanza);
+                framer.suspend();
+            }
+        };
+        framer.feed(bytes(HEADER + "<a/><b/><c/>"), listener);
+        assertEquals(1, stanzas.size());
+        assertTrue(framer.isSuspended());
+
+        framer.resume(listener);
+        assertEquals(2, stanzas.size());
+        assertEquals("<b/>", stanzas.get(1));
+    }
+
+    /** Resetting from a callback discards the rest of the stream and expects a new header. */
+    @Test
+    public void resetFromListener() throws Exception {
+        final StanzaFramer framer = new StanzaFramer(1024);
+        RecordingListener listener = new RecordingListener() {
+            public void stanza(String stanza) {
+                super.stanza(stanza);
+                framer.reset();
+            }
+        };
+        framer.feed(bytes(HEADER + "<proceed/>garbage"), listener);
+        framer.feed(bytes(HEADER + "<features/>"), listener);
+
+        assertEquals(4, listener.events.size());
+        assertEquals("stanza:<proceed/>", listener.events.get(1));
+        assertEquals("header:" + HEADER, listener.events.get(2));
+        assertEquals("stanza:<features/>", listener.events.get(3));
+    }
+}
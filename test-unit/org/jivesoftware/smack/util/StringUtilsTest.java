@@ -0,0 +1,58 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import static org.junit.Assert.*;
+
+import org.jivesoftware.smack.packet.DefaultPacketExtension;
+import org.jivesoftware.smack.packet.Message;
+import org.junit.Test;
+
+public class StringUtilsTest {
+
+    @Test
+    public void escapeForXML() {
+        String unescaped = "Wherefore art thou, Romeo?";
+        assertSame(unescaped, StringUtils.escapeForXML(unescaped));
+        assertEquals("&lt;b&gt; &amp; &quot;q&quot; &apos;a&apos;", StringUtils.escapeForXML("<b> & \"q\" 'a'"));
+
+        // Numeric character references are left alone.
+        assertEquals("caf&#233; &amp;", StringUtils.escapeForXML("caf&#233; &"));
+        assertNull(StringUtils.escapeForXML(null));
+    }
+
+    @Test
+    public void escapeForXMLAppends() throws Exception {
+        StringBuilder out = new StringBuilder("<body>");
+        StringUtils.escapeForXML("a<b", out);
+        assertEquals("<body>a&lt;b", out.toString());
+    }
+
+    @Test
+    public void appendXMLMatchesToXML() throws Exception {
+        Message message = new Message("juliet@capulet.lit/balcony", Message.Type.chat);
+        message.setBody("Art thou not Romeo, & a Montague?");
+        message.setProperty("answer", "<neither>");
+        DefaultPacketExtension extension = new DefaultPacketExtension("x", "urn:example");
+        extension.setValue("name", "value");
+        message.addExtension(extension);
+
+        StringBuilder out = new StringBuilder();
+        message.appendXML(out);
+        assertEquals(message.toXML(), out.toString());
+        assertTrue(out.indexOf("<x xmlns=\"urn:example\"><name>value</name></x>") != -1);
+        assertTrue(out.indexOf("Romeo, &amp; a Montague?") != -1);
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+public class Utf8ReaderTest {
+    private static final String TEXT = "<body>plain \u00E9 \u20AC \uD834\uDD1E \u4E2D\u6587</body>";
+
+    /** An InputStream which returns at most one byte per read, like a slow socket. */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        TrickleInputStream(byte[] data) { super(data); }
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    private static String readAll(Utf8Reader reader, int chunk) throws IOException {
+        StringBuilder result = new StringBuilder();
+        char[] buf = new char[chunk];
+        int count;
+        while((count = reader.read(buf, 0, chunk)) != -1)
+            result.append(buf, 0, count);
+        return result.toString();
+    }
+
+    @Test
+    public void decodesSplitInput() throws Exception {
+        InputStream in = new TrickleInputStream(TEXT.getBytes("UTF-8"));
+        assertEquals(TEXT, readAll(new Utf8Reader(in, null, 4), 16));
+    }
+
+    /** Single-character reads return a surrogate pair one half at a time. */
+    @Test
+    public void decodesSingleCharacterReads() throws Exception {
+        InputStream in = new ByteArrayInputStream(TEXT.getBytes("UTF-8"));
+        assertEquals(TEXT, readAll(new Utf8Reader(in, null), 1));
+    }
+
+    @Test
+    public void writerEncodesUtf8() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Utf8Writer writer = new Utf8Writer(out, null);
+
+        // Split a surrogate pair across writes.
+        int split = TEXT.indexOf('\uDD1E');
+        writer.write(TEXT.substring(0, split));
+        writer.write(TEXT.substring(split));
+        writer.flush();
+        assertArrayEquals(TEXT.getBytes("UTF-8"), out.toByteArray());
+    }
+
+    /** Observers are notified of text read and written only while they have listeners. */
+    @Test
+    public void notifiesObservers() throws Exception {
+        final StringBuilder read = new StringBuilder();
+        final StringBuilder written = new StringBuilder();
+        ObservableReader.ReadEvent readEvent = new ObservableReader.ReadEvent();
+        ObservableWriter.WriteEvent writeEvent = new ObservableWriter.WriteEvent();
+        assertFalse(readEvent.hasListeners());
+
+        readEvent.addReaderListener(new ReaderListener() {
+            public void read(String str) { read.append(str); }
+        });
+        writeEvent.addWriterListener(new WriterListener() {
+            public void write(String str) { written.append(str); }
+        });
+        assertTrue(readEvent.hasListeners());
+
+        readAll(new Utf8Reader(new ByteArrayInputStream(TEXT.getBytes("UTF-8")), readEvent), 7);
+        Utf8Writer writer = new Utf8Writer(new ByteArrayOutputStream(), writeEvent);
+        writer.write(TEXT);
+        writer.flush();
+
+        assertEquals(TEXT, read.toString());
+        assertEquals(TEXT, written.toString());
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class Utf8WriterTest {
+    /** One-, two-, three- and four-byte sequences. */
+    private static final String TEXT = "<body>plain \u00E9 \u20AC \uD834\uDD1E \u4E2D\u6587</body>";
+
+    /** A ByteArrayOutputStream which records the size of each write. */
+    private static class RecordingOutputStream extends ByteArrayOutputStream {
+        final List<Integer> writes = new ArrayList<Integer>();
+        public synchronized void write(byte[] b, int off, int len) {
+            writes.add(len);
+            super.write(b, off, len);
+        }
+    }
+
+    private static byte[] encode(String text) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Utf8Writer writer = new Utf8Writer(out, null);
+        writer.write(text);
+        writer.flush();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void encodesStringsAndCharArrays() throws Exception {
+        assertArrayEquals(TEXT.getBytes("UTF-8"), encode(TEXT));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Utf8Writer writer = new Utf8Writer(out, null);
+        char[] chars = ("xx" + TEXT + "xx").toCharArray();
+        writer.write(chars, 2, chars.length - 4);
+        writer.write(TEXT, 6, 5);
+        writer.flush();
+        assertArrayEquals((TEXT + "plain").getBytes("UTF-8"), out.toByteArray());
+    }
+
+    /** A surrogate pair split across writes and flushes is encoded as one character. */
+    @Test
+    public void encodesSplitSurrogatePairs() throws Exception {
+        String clef = "\uD834\uDD1E";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Utf8Writer writer = new Utf8Writer(out, null);
+
+        writer.write(new char[] { 'a', clef.charAt(0) }, 0, 2);
+        writer.flush();
+        assertArrayEquals("a".getBytes("UTF-8"), out.toByteArray());
+
+        writer.write(clef.charAt(1));
+        writer.write("b" + clef.charAt(0));
+        writer.write(clef.substring(1));
+        writer.flush();
+        assertArrayEquals(("a" + clef + "b" + clef).getBytes("UTF-8"), out.toByteArray());
+    }
+
+    /** Unpaired surrogates are replaced with '?', like the JDK's encoder. */
+    @Test
+    public void replacesUnpairedSurrogates() throws Exception {
+        String[] tests = {
+            "a\uD834b",
+            "a\uDD1Eb",
+            "\uDD1E\uD834",
+            "\uD834\uD834\uDD1E",
+            "\uD834\u00E9",
+        };
+        for(String test: tests) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Utf8Writer writer = new Utf8Writer(out, null);
+            writer.write(test);
+            // A trailing high surrogate is only replaced once the next character arrives.
+            writer.write('.');
+            writer.flush();
+            assertArrayEquals(test, (test + ".").getBytes("UTF-8"), out.toByteArray());
+        }
+    }
+
+    /**
+     * Multi-byte sequences which end right at the buffer boundary, or would cross it,
+     * are written out whole, at every alignment.
+     */
+    @Test
+    public void encodesAcrossBufferBoundaries() throws Exception {
+        String[] sequences = { "\u00E9", "\u20AC", "\uD834\uDD1E" };
+        for(String sequence: sequences) {
+            for(int offset = 0; offset < 4; ++offset) {
+                StringBuilder text = new StringBuilder();
+                for(int i = 0; i < 8192 - 8 + offset; ++i)
+                    text.append('a');
+                while(text.length() < 8192 * 3)
+                    text.append(sequence);
+                String expected = text.toString();
+
+                RecordingOutputStream out = new RecordingOutputStream();
+                Utf8Writer writer = new Utf8Writer(out, null);
+                writer.write(expected);
+                writer.flush();
+                assertArrayEquals(expected.getBytes("UTF-8"), out.toByteArray());
+
+                assertTrue(out.writes.size() > 1);
+                for(int size: out.writes)
+                    assertTrue(size <= 8192);
+            }
+        }
+    }
+
+    /** Nothing is written until the buffer fills or the writer is flushed. */
+    @Test
+    public void buffersUntilFlushed() throws Exception {
+        RecordingOutputStream out = new RecordingOutputStream();
+        Utf8Writer writer = new Utf8Writer(out, null);
+        writer.write(TEXT);
+        writer.write(TEXT);
+        assertEquals(0, out.size());
+
+        writer.flush();
+        assertEquals(1, out.writes.size());
+        assertArrayEquals((TEXT + TEXT).getBytes("UTF-8"), out.toByteArray());
+
+        // Flushing with nothing buffered writes nothing.
+        writer.flush();
+        assertEquals(1, out.writes.size());
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smackx;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.jivesoftware.smack.DummyConnection;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smackx.packet.CapsExtension;
+import org.jivesoftware.smackx.packet.DataForm;
+import org.jivesoftware.smackx.packet.DiscoverInfo;
+import org.junit.Test;
+
+public class EntityCapsManagerTest {
+    private static DiscoverInfo exodus() {
+        DiscoverInfo info = new DiscoverInfo();
+        DiscoverInfo.Identity identity = new DiscoverInfo.Identity("client", "Exodus 0.9.1");
+        identity.setType("pc");
+        info.addIdentity(identity);
+        info.addFeature("http://jabber.org/protocol/disco#info");
+        info.addFeature("http://jabber.org/protocol/disco#items");
+        info.addFeature("http://jabber.org/protocol/muc");
+        info.addFeature("http://jabber.org/protocol/caps");
+        return info;
+    }
+
+    private static FormField field(String var, String... values) {
+        FormField field = new FormField(var);
+        for (String value: values)
+            field.addValue(value);
+        return field;
+    }
+
+    /** The simple generation example from XEP-0115 section 5.2. */
+    @Test
+    public void simpleVer() {
+        assertEquals("QgayPKawpkPSDYmwT/WM94uAlu0=", EntityCapsManager.generateVer(exodus()));
+    }
+
+    @Test
+    public void formsAreSortedByVarAndValue() {
+        DiscoverInfo info = new DiscoverInfo();
+        DiscoverInfo.Identity identity = new DiscoverInfo.Identity("client", "Psi");
+        identity.setType("pc");
+        info.addIdentity(identity);
+        info.addFeature("http://jabber.org/protocol/caps");
+
+        DataForm form = new DataForm("result");
+        form.addField(field("software_version", "0.9", "0.11"));
+        form.addField(field("FORM_TYPE", "urn:xmpp:dataforms:softwareinfo"));
+        form.addField(field("software", "Psi"));
+        form.addField(field("os", "Linux"));
+        info.addExtension(form);
+
+        // Forms without a FORM_TYPE don't contribute.
+        DataForm untyped = new DataForm("result");
+        untyped.addField(field("ignored", "x"));
+        info.addExtension(untyped);
+
+        assertEquals("Pl1NUr6ppTUsnrJ/BidPJyVA+V8=", EntityCapsManager.generateVer(info));
+    }
+
+    @Test
+    public void duplicateFeaturesAreRejected() {
+        DiscoverInfo info = exodus();
+        info.addFeature("http://jabber.org/protocol/muc");
+        assertNull(EntityCapsManager.generateVer(info));
+    }
+
+    /** Presence is only sent again when the features actually change. */
+    @Test
+    public void presenceIsResentOnlyWhenFeaturesChange() throws Exception {
+        DummyConnection connection = new DummyConnection();
+        connection.login("romeo", "secret", "orchard");
+        ServiceDiscoveryManager discoveryManager = new ServiceDiscoveryManager(connection);
+        connection.sendPacket(new Presence(Presence.Type.available));
+        while (connection.getNumberOfSentPackets() > 0)
+            connection.getSentPacket();
+
+        discoveryManager.addFeature("urn:example:feature");
+        Presence presence = (Presence) connection.getSentPacket();
+        assertNotNull(presence);
+        CapsExtension caps = (CapsExtension)
+            presence.getExtension(CapsExtension.ELEMENT_NAME, CapsExtension.NAMESPACE);
+        assertEquals(discoveryManager.getEntityCapsManager().getOwnVer(), caps.getVer());
+
+        discoveryManager.addFeature("urn:example:feature");
+        discoveryManager.removeFeature("urn:example:unknown");
+        discoveryManager.removeExtendedInfo();
+        assertEquals(0, connection.getNumberOfSentPackets());
+
+        discoveryManager.removeFeature("urn:example:feature");
+        assertTrue(connection.getSentPacket() instanceof Presence);
+        assertEquals(0, connection.getNumberOfSentPackets());
+    }
+
+    @Test
+    public void storedInfoIsVerifiedOnLoad() throws Exception {
+        File directory = File.createTempFile("caps", "");
+        directory.delete();
+        try {
+            FileEntityCapsStore store = new FileEntityCapsStore(directory);
+            String ver = EntityCapsManager.generateVer(exodus());
+            store.store(ver, exodus());
+            store.store("bogus", exodus());
+
+            EntityCapsManager.setPersistentStore(store);
+            DiscoverInfo loaded = EntityCapsManager.getDiscoverInfoByVer(ver);
+            assertNotNull(loaded);
+            assertTrue(loaded.containsFeature("http://jabber.org/protocol/muc"));
+            assertNull(EntityCapsManager.getDiscoverInfoByVer("bogus"));
+        } finally {
+            EntityCapsManager.setPersistentStore(null);
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file: files)
+                    file.delete();
+            }
+            directory.delete();
+        }
+    }
+}
@@ -14,7 +14,8 @@ import org.junit.runners.Suite;
                 DataListenerTest.class, InBandBytestreamManagerTest.class,
                 InBandBytestreamRequestTest.class,
                 InBandBytestreamSessionMessageTest.class,
-                InBandBytestreamSessionTest.class, InitiationListenerTest.class })
+                InBandBytestreamSessionTest.class, InBandBytestreamSessionWindowTest.class,
+                InitiationListenerTest.class })
 public class IBBTestsSuite {
     // the class remains completely empty,
     // being used only as a holder for the above annotations
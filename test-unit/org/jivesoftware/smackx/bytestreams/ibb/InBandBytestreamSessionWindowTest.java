@@ -0,0 +1,123 @@
+package org.jivesoftware.smackx.bytestreams.ibb;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.jivesoftware.smack.DummyConnection;
+import org.jivesoftware.smack.SmackConfiguration;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smackx.bytestreams.ibb.packet.Data;
+import org.jivesoftware.smackx.bytestreams.ibb.packet.Open;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for sending data of an In-Band Bytestream session with more than one unacknowledged IQ
+ * stanza in flight.
+ * 
+ * @author Henning Staib
+ */
+public class InBandBytestreamSessionWindowTest {
+
+    String initiatorJID = "initiator@xmpp-server/Smack";
+    String targetJID = "target@xmpp-server/Smack";
+
+    int blockSize = 10;
+
+    DummyConnection connection;
+
+    OutputStream outputStream;
+
+    int packetReplyTimeout;
+
+    /**
+     * Initialize a session allowing up to 4 data packets in flight.
+     * 
+     * @throws Exception should not happen
+     */
+    @Before
+    public void setup() throws Exception {
+        // the peer never answers close requests, so don't wait long for them
+        packetReplyTimeout = SmackConfiguration.getPacketReplyTimeout();
+        SmackConfiguration.setPacketReplyTimeout(500);
+
+        connection = new DummyConnection();
+        connection.connect();
+
+        InBandBytestreamManager.getByteStreamManager(connection).setMaximumWindowSize(4);
+
+        Open open = new Open("session_id", blockSize);
+        open.setFrom(initiatorJID);
+        open.setTo(targetJID);
+        InBandBytestreamSession session = new InBandBytestreamSession(connection, open, targetJID);
+        outputStream = session.getOutputStream();
+    }
+
+    @After
+    public void tearDown() {
+        SmackConfiguration.setPacketReplyTimeout(packetReplyTimeout);
+    }
+
+    private Data sentData() throws Exception {
+        Data data = (Data) connection.getSentPacket();
+        assertNotNull(data);
+        return data;
+    }
+
+    /**
+     * The window should grow as data packets are acknowledged, sending several data packets
+     * before any of them has been acknowledged.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void shouldSendWithoutWaitingForEachAcknowledgement() throws Exception {
+        outputStream.write(new byte[blockSize]);
+        outputStream.write(new byte[blockSize]);
+        Data first = sentData();
+        assertEquals(0, first.getDataPacketExtension().getSeq());
+        assertEquals(0, connection.getNumberOfSentPackets());
+
+        // the first acknowledgement opens the window for two data packets
+        connection.processPacket(IQ.createResultIQ(first));
+        outputStream.write(new byte[blockSize]);
+        outputStream.write(new byte[blockSize]);
+        Data second = sentData();
+        Data third = sentData();
+        assertEquals(1, second.getDataPacketExtension().getSeq());
+        assertEquals(2, third.getDataPacketExtension().getSeq());
+
+        connection.processPacket(IQ.createResultIQ(second));
+        connection.processPacket(IQ.createResultIQ(third));
+        outputStream.write(new byte[blockSize]);
+        assertEquals(3, sentData().getDataPacketExtension().getSeq());
+    }
+
+    /**
+     * An error response to any data packet in flight should fail the next write.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void shouldFailWriteAfterErrorResponse() throws Exception {
+        outputStream.write(new byte[blockSize]);
+        outputStream.write(new byte[blockSize]);
+        Data first = sentData();
+
+        connection.processPacket(IQ.createErrorResponse(first, new XMPPError(
+                        XMPPError.Condition.item_not_found)));
+
+        try {
+            outputStream.write(new byte[blockSize]);
+            fail("exception should be thrown");
+        }
+        catch (IOException e) {
+            assertTrue(e.getMessage().contains("Error while"));
+        }
+    }
+
+}
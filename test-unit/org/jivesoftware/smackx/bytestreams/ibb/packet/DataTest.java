@@ -24,6 +24,8 @@ import org.jivesoftware.smack.util.Base64;
 import org.jivesoftware.smackx.bytestreams.ibb.packet.Data;
 import org.jivesoftware.smackx.bytestreams.ibb.packet.DataPacketExtension;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.jamesmurty.utils.XMLBuilder;
 
@@ -68,13 +70,19 @@ public class DataTest {
             .asString(outputProperties);
 
         DataPacketExtension dpe = mock(DataPacketExtension.class);
-        String dataTag = XMLBuilder.create("data")
+        final String dataTag = XMLBuilder.create("data")
             .a("xmlns", "http://jabber.org/protocol/ibb")
             .a("seq", "0")
             .a("sid", "i781hf64")
             .t(encodedData)
             .asString(outputProperties);
         when(dpe.toXML()).thenReturn(dataTag);
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                ((Appendable) invocation.getArguments()[0]).append(dataTag);
+                return null;
+            }
+        }).when(dpe).appendXML(any(Appendable.class));
         Data data = new Data(dpe);
         data.setFrom("romeo@montague.lit/orchard");
         data.setTo("juliet@capulet.lit/balcony");
@@ -366,6 +366,69 @@ public class Socks5ByteStreamRequestTest {
 
     }
 
+    /**
+     * Connection attempts should be made to all SOCKS5 proxies concurrently, so proxies that
+     * don't respond don't delay connecting to a later one, and the attempts that lost should be
+     * closed.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void shouldConnectToLaterSocks5ProxyWhileEarlierOnesDoNotRespond() throws Exception {
+
+        // start a local SOCKS5 proxy
+        Socks5TestProxy.getProxy(7778);
+
+        // create fake SOCKS5 proxies that don't respond to a request
+        ServerSocket serverSocket1 = new ServerSocket(7779);
+        ServerSocket serverSocket2 = new ServerSocket(7780);
+
+        // build SOCKS5 Bytestream initialization request
+        Bytestream bytestreamInitialization = Socks5PacketUtils.createBytestreamInitiation(
+                        initiatorJID, targetJID, sessionID);
+        bytestreamInitialization.addStreamHost("dumb1." + proxyJID, proxyAddress, 7779);
+        bytestreamInitialization.addStreamHost("dumb2." + proxyJID, proxyAddress, 7780);
+        bytestreamInitialization.addStreamHost(proxyJID, proxyAddress, 7778);
+
+        // get SOCKS5 Bytestream manager for connection
+        Socks5BytestreamManager byteStreamManager = Socks5BytestreamManager.getBytestreamManager(connection);
+
+        // build SOCKS5 Bytestream request with the bytestream initialization
+        Socks5BytestreamRequest byteStreamRequest = new Socks5BytestreamRequest(byteStreamManager,
+                        bytestreamInitialization);
+
+        // set timeouts, each attempt has 5 seconds
+        byteStreamRequest.setTotalConnectTimeout(10000);
+        byteStreamRequest.setMinimumConnectTimeout(5000);
+        byteStreamRequest.setConnectAttemptDelay(100);
+
+        // accept the stream (this is the call that is tested here)
+        long start = System.currentTimeMillis();
+        byteStreamRequest.accept();
+        assertTrue(System.currentTimeMillis() - start < 2000);
+
+        // the attempts to the dumb SOCKS5 proxies are closed
+        for (ServerSocket serverSocket : new ServerSocket[] { serverSocket1, serverSocket2 }) {
+            Socket socket = serverSocket.accept();
+            socket.setSoTimeout(2000);
+            InputStream in = socket.getInputStream();
+
+            // skip the authentication request
+            for (int i = 0; i < 3; i++) {
+                assertTrue(in.read() != -1);
+            }
+            assertEquals(-1, in.read());
+            socket.close();
+            serverSocket.close();
+        }
+
+        // verify targets response
+        assertEquals(1, protocol.getRequests().size());
+        Packet targetResponse = protocol.getRequests().remove(0);
+        assertEquals(proxyJID, ((Bytestream) targetResponse).getUsedHost().getJID());
+
+    }
+
     /**
      * Accepting the SOCKS5 Bytestream request should be successfully.
      * 
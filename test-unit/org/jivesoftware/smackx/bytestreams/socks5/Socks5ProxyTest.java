@@ -23,6 +23,9 @@ import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.jivesoftware.smack.SmackConfiguration;
 import org.jivesoftware.smackx.bytestreams.socks5.Socks5Proxy;
@@ -336,6 +339,88 @@ public class Socks5ProxyTest {
 
     }
 
+    /**
+     * A client that doesn't complete its handshake must not hold up the handshakes of other
+     * clients.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void shouldNegotiateWhileAnotherClientStalls() throws Exception {
+        SmackConfiguration.setLocalSocks5ProxyPort(7890);
+        Socks5Proxy proxy = Socks5Proxy.getSocks5Proxy();
+        proxy.start();
+
+        String digest = new String(new byte[] { (byte) 0xAA });
+        proxy.addTransfer(digest);
+
+        // connects but never sends anything
+        Socket stalled = new Socket(proxy.getLocalAddresses().get(0), proxy.getPort());
+
+        Socket socket = new Socket(proxy.getLocalAddresses().get(0), proxy.getPort());
+        socket.setSoTimeout(2000);
+        OutputStream out = socket.getOutputStream();
+        InputStream in = socket.getInputStream();
+
+        out.write(new byte[] { (byte) 0x05, (byte) 0x01, (byte) 0x00 });
+        assertEquals((byte) 0x05, (byte) in.read());
+        assertEquals((byte) 0x00, (byte) in.read());
+
+        out.write(new byte[] { (byte) 0x05, (byte) 0x00, (byte) 0x00, (byte) 0x03, (byte) 0x01,
+                        (byte) 0xAA, (byte) 0x00, (byte) 0x00 });
+        assertEquals((byte) 0x05, (byte) in.read());
+        assertEquals((byte) 0x00, (byte) in.read()); // success
+
+        stalled.close();
+        socket.close();
+        proxy.removeTransfer(digest);
+        proxy.stop();
+
+    }
+
+    /**
+     * The SOCKS5 proxy should disconnect clients that don't complete the handshake in time and
+     * report the outcome of each connection.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void shouldDisconnectClientsAfterHandshakeTimeout() throws Exception {
+        SmackConfiguration.setLocalSocks5ProxyPort(7890);
+        Socks5Proxy proxy = Socks5Proxy.getSocks5Proxy();
+        proxy.setHandshakeTimeout(200);
+        proxy.start();
+
+        final BlockingQueue<Socks5Proxy.ConnectionMetrics> metrics = new LinkedBlockingQueue<Socks5Proxy.ConnectionMetrics>();
+        Socks5Proxy.MetricsListener listener = new Socks5Proxy.MetricsListener() {
+
+            public void connectionHandled(Socks5Proxy.ConnectionMetrics connectionMetrics) {
+                metrics.add(connectionMetrics);
+            }
+
+        };
+        proxy.addMetricsListener(listener);
+
+        Socket socket = new Socket(proxy.getLocalAddresses().get(0), proxy.getPort());
+        socket.setSoTimeout(2000);
+        socket.getOutputStream().write(new byte[] { (byte) 0x05, (byte) 0x01 });
+
+        long start = System.currentTimeMillis();
+        assertEquals(-1, socket.getInputStream().read());
+        assertTrue(System.currentTimeMillis() - start < 1500);
+
+        Socks5Proxy.ConnectionMetrics timedOut = metrics.poll(2, TimeUnit.SECONDS);
+        assertNotNull(timedOut);
+        assertEquals(Socks5Proxy.Result.TIMED_OUT, timedOut.getResult());
+        assertNull(timedOut.getDigest());
+        assertTrue(timedOut.getHandshakeLatency(TimeUnit.MILLISECONDS) >= 200);
+
+        socket.close();
+        proxy.removeMetricsListener(listener);
+        proxy.stop();
+
+    }
+
     /**
      * Reset SOCKS5 proxy settings.
      */
@@ -344,6 +429,7 @@ public class Socks5ProxyTest {
         SmackConfiguration.setLocalSocks5ProxyEnabled(true);
         SmackConfiguration.setLocalSocks5ProxyPort(7777);
         Socks5Proxy socks5Proxy = Socks5Proxy.getSocks5Proxy();
+        socks5Proxy.setHandshakeTimeout(10000);
         try {
             String address = InetAddress.getLocalHost().getHostAddress();
             List<String> addresses = new ArrayList<String>();
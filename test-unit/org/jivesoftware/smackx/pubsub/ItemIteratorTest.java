@@ -0,0 +1,114 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smackx.pubsub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.smack.DummyConnection;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.util.XmlUtil;
+import org.jivesoftware.smackx.packet.RSMSet;
+import org.jivesoftware.smackx.pubsub.packet.PubSub;
+import org.jivesoftware.smackx.pubsub.provider.PubSubProvider;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ItemIteratorTest
+{
+	private DummyConnection connection;
+	private LeafNode node;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		connection = new DummyConnection();
+		connection.connect();
+		node = new LeafNode(connection, "princely_musings");
+	}
+
+	private RSMSet sentPage() throws Exception
+	{
+		PubSub request = (PubSub)connection.getSentPacket();
+		RSMSet set = (RSMSet)request.getExtension(RSMSet.ELEMENT_NAME, RSMSet.NAMESPACE);
+		replyTo = request.getPacketID();
+		return set;
+	}
+
+	private String replyTo;
+
+	private void reply(String last, int count, String... ids)
+	{
+		List<Item> items = new ArrayList<Item>();
+		for (String id : ids)
+			items.add(new Item(id));
+
+		PubSub result = new PubSub();
+		result.setType(IQ.Type.RESULT);
+		result.setPacketID(replyTo);
+		result.addExtension(new ItemsExtension(ItemsExtension.ItemsElementType.items, node.getId(), items));
+
+		RSMSet set = new RSMSet();
+		set.setLast(last);
+		set.setCount(count);
+		result.addExtension(set);
+		connection.processPacket(result);
+	}
+
+	@Test
+	public void pagesAreRequestedAfterTheLastItem() throws Exception
+	{
+		ItemIterator<Item> it = node.getItemIterator(2);
+		RSMSet set = sentPage();
+		assertEquals(2, set.getMax());
+		assertNull(set.getAfter());
+		reply("b", 3, "a", "b");
+
+		assertEquals("a", it.next().getId());
+		assertEquals(3, it.getCount());
+
+		// The second page was requested as soon as the first was started.
+		assertEquals("b", sentPage().getAfter());
+		reply("c", 3, "c");
+
+		assertEquals("b", it.next().getId());
+		assertEquals("c", it.next().getId());
+
+		assertEquals("c", sentPage().getAfter());
+		reply(null, 3);
+		assertFalse(it.hasNext());
+		assertEquals(0, connection.getNumberOfSentPackets());
+	}
+
+	@Test
+	public void resultSetIsParsedFromPubSubReply() throws Exception
+	{
+		String xml =
+			"<pubsub xmlns='http://jabber.org/protocol/pubsub'>" +
+			"<items node='princely_musings'><item id='1'/></items>" +
+			"<set xmlns='http://jabber.org/protocol/rsm'><first>1</first><last>1</last><count>20</count></set>" +
+			"</pubsub>";
+		PubSub pubsub = (PubSub)new PubSubProvider().parseIQ(XmlUtil.getXMLRootNode(xml));
+
+		RSMSet set = (RSMSet)pubsub.getExtension(RSMSet.ELEMENT_NAME, RSMSet.NAMESPACE);
+		assertEquals("1", set.getLast());
+		assertEquals(20, set.getCount());
+		assertTrue(pubsub.getExtension(PubSubElementType.ITEMS) instanceof ItemsExtension);
+	}
+}
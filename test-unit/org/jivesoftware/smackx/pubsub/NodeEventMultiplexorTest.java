@@ -0,0 +1,85 @@
+/**
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smackx.pubsub;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jivesoftware.smack.DummyConnection;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smackx.pubsub.listener.ItemDeleteListener;
+import org.jivesoftware.smackx.pubsub.listener.ItemEventListener;
+import org.junit.Test;
+
+public class NodeEventMultiplexorTest
+{
+	private static Message event(String nodeId, PacketExtension item)
+	{
+		Message message = new Message();
+		message.addExtension(new EventElement(EventElementType.items,
+			new ItemsExtension(ItemsExtension.ItemsElementType.items, nodeId, Collections.singletonList(item))));
+		return message;
+	}
+
+	private static class PublishCounter implements ItemEventListener<Item>
+	{
+		List<String> nodes = new ArrayList<String>();
+
+		public void handlePublishedItems(ItemPublishEvent<Item> items)
+		{
+			nodes.add(items.getNodeId());
+		}
+	}
+
+	@Test
+	public void eventsReachOnlyTheirNodesListeners()
+	{
+		DummyConnection connection = new DummyConnection();
+		LeafNode a = new LeafNode(connection, "a");
+		LeafNode b = new LeafNode(connection, "b");
+		PublishCounter aListener = new PublishCounter();
+		PublishCounter bListener = new PublishCounter();
+		a.addItemEventListener(aListener);
+		b.addItemEventListener(bListener);
+
+		final List<String> deleted = new ArrayList<String>();
+		a.addItemDeleteListener(new ItemDeleteListener()
+		{
+			public void handleDeletedItems(ItemDeleteEvent items)
+			{
+				deleted.addAll(items.getItemIds());
+			}
+
+			public void handlePurge()
+			{
+			}
+		});
+
+		connection.processPacket(event("a", new Item("1")));
+		connection.processPacket(event("c", new Item("2")));
+		connection.processPacket(event("a", new RetractItem("3")));
+
+		assertEquals(Collections.singletonList("a"), aListener.nodes);
+		assertEquals(0, bListener.nodes.size());
+		assertEquals(Collections.singletonList("3"), deleted);
+
+		a.removeItemEventListener(aListener);
+		connection.processPacket(event("a", new Item("4")));
+		assertEquals(1, aListener.nodes.size());
+	}
+}
@@ -16,6 +16,8 @@ package org.jivesoftware.util;
 import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.*;
 
+import java.util.concurrent.Executor;
+
 import org.jivesoftware.smack.PacketCollector;
 import org.jivesoftware.smack.Connection;
 import org.jivesoftware.smack.filter.PacketFilter;
@@ -60,6 +62,19 @@ public class ConnectionUtils {
         when(connection.getUser()).thenReturn(initiatorJID);
         when(connection.getServiceName()).thenReturn(xmppServer);
 
+        // run extension and negotiation tasks on their own daemon threads
+        Executor executor = new Executor() {
+
+            public void execute(Runnable command) {
+                Thread thread = new Thread(command);
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+        };
+        when(connection.getExtensionExecutor()).thenReturn(executor);
+        when(connection.getNegotiationExecutor()).thenReturn(executor);
+
         // mock packet collector
         PacketCollector collector = mock(PacketCollector.class);
         when(connection.createPacketCollector(isA(PacketFilter.class))).thenReturn(
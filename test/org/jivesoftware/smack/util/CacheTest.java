@@ -75,4 +75,43 @@ public class CacheTest extends TestCase {
                     cache.get(new Integer(0)) != null);
         }
     }
+
+    public void testStatistics() {
+        Cache<Integer, String> cache = new Cache<Integer, String>(10, -1);
+        for (int i=0; i < 20; i++) {
+            cache.put(i, "value");
+        }
+        assertEquals(10, cache.size());
+        assertEquals(10, cache.getEvictionCount());
+
+        assertNotNull(cache.get(19));
+        assertNull(cache.get(0));
+        assertEquals(1, cache.getCacheHits());
+        assertEquals(1, cache.getCacheMisses());
+    }
+
+    public void testExpiry() throws InterruptedException {
+        Cache<Integer, String> cache = new Cache<Integer, String>(100, 50);
+        cache.put(1, "value");
+        assertNotNull(cache.get(1));
+        Thread.sleep(100);
+        assertNull(cache.get(1));
+        assertTrue(cache.isEmpty());
+        assertEquals(1, cache.getExpirationCount());
+    }
+
+    public void testWeigher() {
+        Cache<Integer, String> cache = new Cache<Integer, String>(10, -1,
+                new Cache.Weigher<Integer, String>() {
+                    public int weigh(Integer key, String value) {
+                        return value.length();
+                    }
+                });
+        cache.put(1, "12345");
+        cache.put(2, "12345");
+        assertEquals(2, cache.size());
+        cache.put(3, "1");
+        assertEquals(2, cache.size());
+        assertNull(cache.get(1));
+    }
 }